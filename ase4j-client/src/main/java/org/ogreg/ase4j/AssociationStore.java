@@ -6,6 +6,7 @@ import java.util.List;
 
 import org.ogreg.ase4j.criteria.Query;
 import org.ogreg.ase4j.criteria.QueryExecutionException;
+import org.ogreg.ase4j.criteria.QueryProfile;
 
 /**
  * Associative storage service interface.
@@ -76,9 +77,10 @@ public interface AssociationStore<F, T> {
 	/**
 	 * Returns the associations from the store, using the <code>query</code>.
 	 * <p>
-	 * Note: the collection returned by this function does <b>not</b> have to be
-	 * sorted. It is only guaranteed to contain exactly the associations which
-	 * conform to the specified query.
+	 * Note: the results of limited queries (see {@link Query#limit(int)}) are
+	 * sorted by their values, descending. The results of unlimited queries do
+	 * <b>not</b> have to be sorted. They are only guaranteed to contain exactly
+	 * the associations which conform to the specified query.
 	 * </p>
 	 * 
 	 * @param query
@@ -89,6 +91,47 @@ public interface AssociationStore<F, T> {
 	 */
 	List<Association<F, T>> query(Query query) throws QueryExecutionException;
 
+	/**
+	 * Returns a page of the associations from the store, using the
+	 * <code>query</code>.
+	 * <p>
+	 * The page contains the results from {@link Query#offset()}, at most
+	 * {@link Query#limit()} of them. The returned cursor may be set on the
+	 * query of the next page, so that the store can serve it from a snapshot
+	 * of the results instead of solving the query again.
+	 * </p>
+	 * <p>
+	 * Unlimited queries are paged by their {@link Query#pageSize()}, if it is
+	 * set. Otherwise all of their results are returned on a single page.
+	 * </p>
+	 * 
+	 * @param query
+	 * @return
+	 * @throws QueryExecutionException If the store failed to query the
+	 *             associations
+	 * @see Query#cursor(String)
+	 * @see QueryIterator
+	 */
+	ResultPage<F, T> queryPage(Query query) throws QueryExecutionException;
+
+	/**
+	 * Executes the <code>query</code> in profile mode, and returns the tree of
+	 * the executed operators.
+	 * <p>
+	 * The query is solved like {@link #query(Query)} does, but every operator
+	 * (phrase lookups, set operations, filtering, the loading of the results,
+	 * etc.) is measured: its input and output sizes, the bytes it has read,
+	 * its cache hits and its execution time are returned. The results of the
+	 * query are not returned.
+	 * </p>
+	 * 
+	 * @param query
+	 * @return The top level operator of the query
+	 * @throws QueryExecutionException If the store failed to query the
+	 *             associations
+	 */
+	QueryProfile profile(Query query) throws QueryExecutionException;
+
 	/**
 	 * Returns the metadata describing the current store.
 	 * <p>
@@ -147,5 +190,19 @@ public interface AssociationStore<F, T> {
 		public float calculate(float oldValue, float newValue) {
 			throw new AbstractMethodError();
 		}
+
+		/**
+		 * Returns true if the order of the operands does not matter for this
+		 * operation.
+		 * <p>
+		 * Query solvers may reorder the evaluation of the operands of
+		 * commutative operations.
+		 * </p>
+		 * 
+		 * @return
+		 */
+		public boolean isCommutative() {
+			return this == SUM;
+		}
 	}
 }
@@ -0,0 +1,119 @@
+package org.ogreg.ase4j;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.ogreg.ase4j.criteria.Query;
+import org.ogreg.ase4j.criteria.QueryExecutionException;
+
+/**
+ * Iterates over the results of a query, page by page.
+ * <p>
+ * The pages are queried lazily (see {@link AssociationStore#queryPage(Query)}
+ * ), so only a single page of associations is materialized at a time, even
+ * if the query has millions of results. The results of limited queries are
+ * iterated in the order of their values, descending, the results of unlimited
+ * queries are in no specific order.
+ * </p>
+ * <p>
+ * Note: if the store fails to query the next page, a
+ * {@link IllegalStateException} is thrown, caused by the
+ * {@link QueryExecutionException}.
+ * </p>
+ * 
+ * @param <F> The type of the association source
+ * @param <T> The type of the association target
+ * @author Gergely Kiss
+ */
+public class QueryIterator<F, T> implements Iterator<Association<F, T>> {
+	private final AssociationStore<F, T> store;
+
+	/** The query of the next page. */
+	private final Query query;
+
+	/** The maximum number of results to iterate, or 0 if unlimited. */
+	private final int limit;
+
+	private final int pageSize;
+
+	/** The number of results fetched so far. */
+	private int fetched = 0;
+
+	/** The current page. */
+	private List<Association<F, T>> page = null;
+	private int pos = 0;
+
+	/** True if the last page has been fetched. */
+	private boolean last = false;
+
+	/**
+	 * Creates an iterator over the results of <code>query</code>.
+	 * 
+	 * @param store
+	 * @param query The query, which is not modified by the iterator
+	 * @param pageSize The number of results to fetch at a time
+	 */
+	public QueryIterator(AssociationStore<F, T> store, Query query, int pageSize) {
+
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("The page size must be positive: " + pageSize);
+		}
+
+		this.store = store;
+		this.query = query.copy().cursor(null);
+		this.limit = query.limit();
+		this.pageSize = pageSize;
+	}
+
+	@Override
+	public boolean hasNext() {
+
+		while (((page == null) || (pos >= page.size())) && !last) {
+			fetch();
+		}
+
+		return (page != null) && (pos < page.size());
+	}
+
+	@Override
+	public Association<F, T> next() {
+
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		return page.get(pos++);
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	// Fetches the next page
+	private void fetch() {
+		int offset = query.offset();
+
+		if (limit > 0) {
+			query.limit(Math.min(pageSize, limit - fetched));
+		} else {
+			query.pageSize(pageSize);
+		}
+
+		try {
+			ResultPage<F, T> rp = store.queryPage(query);
+
+			page = rp.results;
+			pos = 0;
+			fetched += page.size();
+
+			last = (rp.cursor == null) || page.isEmpty() || ((limit > 0) && (fetched >= limit));
+
+			query.offset(offset + page.size()).cursor(rp.cursor);
+		} catch (QueryExecutionException e) {
+			last = true;
+			throw new IllegalStateException("Failed to query the next page of results", e);
+		}
+	}
+}
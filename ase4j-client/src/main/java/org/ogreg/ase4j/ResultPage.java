@@ -0,0 +1,35 @@
+package org.ogreg.ase4j;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.ogreg.ase4j.criteria.Query;
+
+/**
+ * A page of association query results.
+ * <p>
+ * The next page can be queried by advancing the offset of the query, and
+ * setting the {@link #cursor} of this page on it (see
+ * {@link Query#cursor(String)}). The cursor lets the store reuse its results
+ * instead of solving the query again.
+ * </p>
+ * 
+ * @param <F> The type of the association source
+ * @param <T> The type of the association target
+ * @author Gergely Kiss
+ * @see AssociationStore#queryPage(Query)
+ */
+public class ResultPage<F, T> implements Serializable {
+	private static final long serialVersionUID = -6413329612373263640L;
+
+	/** The associations on this page. */
+	public final List<Association<F, T>> results;
+
+	/** The opaque cursor of the query, or null if this is the last page. */
+	public final String cursor;
+
+	public ResultPage(List<Association<F, T>> results, String cursor) {
+		this.results = results;
+		this.cursor = cursor;
+	}
+}
@@ -0,0 +1,21 @@
+package org.ogreg.ase4j.criteria;
+
+/**
+ * A phrase expression which matches every phrase within a maximum edit
+ * distance of a phrase.
+ * 
+ * @author Gergely Kiss
+ */
+class FuzzyExpression implements Expression {
+	private static final long serialVersionUID = -5190268722413466125L;
+
+	final String phrase;
+
+	/** The maximum edit (Levenshtein) distance of the matching phrases. */
+	final int maxEdits;
+
+	public FuzzyExpression(String phrase, int maxEdits) {
+		this.phrase = phrase;
+		this.maxEdits = maxEdits;
+	}
+}
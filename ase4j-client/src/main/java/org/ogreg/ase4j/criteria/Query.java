@@ -2,8 +2,10 @@ package org.ogreg.ase4j.criteria;
 
 import java.io.Serializable;
 
+import org.ogreg.ase4j.AssociationStore;
 import org.ogreg.ase4j.AssociationStore.Operation;
 import org.ogreg.ase4j.Params;
+import org.ogreg.ase4j.ResultPage;
 
 /**
  * An association query. An association query consists of two parts: a select
@@ -41,6 +43,32 @@ public class Query implements Serializable {
 	 */
 	int limit = 1000;
 
+	/**
+	 * The number of results to skip, in the order of the results.
+	 * <p>
+	 * Default: 0
+	 * </p>
+	 */
+	int offset = 0;
+
+	/**
+	 * The number of results on a page of an unlimited query, or 0 if all the
+	 * results should be returned on a single page.
+	 * <p>
+	 * Default: 0
+	 * </p>
+	 * 
+	 * @see AssociationStore#queryPage(Query)
+	 */
+	int pageSize = 0;
+
+	/**
+	 * The opaque cursor of a previous page of this query, or null.
+	 * 
+	 * @see ResultPage
+	 */
+	String cursor;
+
 	/**
 	 * The association parameters to use for querying the associations.
 	 * <p>
@@ -121,6 +149,83 @@ public class Query implements Serializable {
 		return limit;
 	}
 
+	/**
+	 * Sets the number of results to skip.
+	 * <p>
+	 * Results of limited queries are ordered by their values, descending, so
+	 * the offset can be used for paging. Unlimited results are in no specific
+	 * order.
+	 * </p>
+	 * 
+	 * @param offset
+	 * @return
+	 */
+	public Query offset(int offset) {
+		this.offset = offset;
+		return this;
+	}
+
+	/**
+	 * Returns the number of results to skip for this query.
+	 * 
+	 * @return
+	 */
+	public int offset() {
+		return offset;
+	}
+
+	/**
+	 * Sets the number of results on a page of an unlimited query.
+	 * <p>
+	 * The pages of unlimited queries are in no specific order, but they are
+	 * consistent as long as the cursor of the previous page is used.
+	 * </p>
+	 * 
+	 * @param pageSize The page size, or 0 if all the results should be
+	 *            returned on a single page
+	 * @return
+	 */
+	public Query pageSize(int pageSize) {
+		this.pageSize = pageSize;
+		return this;
+	}
+
+	/**
+	 * Returns the number of results on a page of an unlimited query.
+	 * 
+	 * @return
+	 */
+	public int pageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Sets the cursor of a previous page of this query.
+	 * <p>
+	 * The store may use the cursor to serve the page from a short-lived
+	 * snapshot of the results. If the snapshot has already expired, the query
+	 * is solved again. The cursor must only be used with the query it was
+	 * created for.
+	 * </p>
+	 * 
+	 * @param cursor
+	 * @return
+	 * @see ResultPage#cursor
+	 */
+	public Query cursor(String cursor) {
+		this.cursor = cursor;
+		return this;
+	}
+
+	/**
+	 * Returns the cursor of a previous page of this query.
+	 * 
+	 * @return
+	 */
+	public String cursor() {
+		return cursor;
+	}
+
 	/**
 	 * Returns the association parameters for this query.
 	 * 
@@ -139,4 +244,21 @@ public class Query implements Serializable {
 		this.params = params;
 		return this;
 	}
+
+	/**
+	 * Returns a copy of this query, which may be modified independently (the
+	 * expressions are shared).
+	 * 
+	 * @return
+	 */
+	public Query copy() {
+		Query ret = new Query(select, params);
+		ret.filter = filter;
+		ret.limit = limit;
+		ret.offset = offset;
+		ret.pageSize = pageSize;
+		ret.cursor = cursor;
+
+		return ret;
+	}
 }
@@ -0,0 +1,148 @@
+package org.ogreg.ase4j.criteria;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.ogreg.ase4j.AssociationStore;
+
+/**
+ * A node of the executed operator tree of a profiled query.
+ * <p>
+ * Every node is an operator which was executed while solving the query: a
+ * phrase lookup, a set operation, a filter, the loading of the results, etc.
+ * The children of a node are the operators which were executed on its
+ * behalf, in no specific order.
+ * </p>
+ * <p>
+ * The time of a node includes the times of its children, but the bytes read
+ * and the cache hits are only the node's own. The input size of the
+ * operators which consume the results of their children is the sum of the
+ * children's output sizes.
+ * </p>
+ * 
+ * @author Gergely Kiss
+ * @see AssociationStore#profile(Query)
+ */
+public class QueryProfile implements Serializable {
+	private static final long serialVersionUID = -2794632719514330463L;
+
+	/** The name of the operator. */
+	final String operator;
+
+	/** The operand of the operator (a phrase for example), or null. */
+	final String detail;
+
+	/** The number of associations consumed by the operator. */
+	long inputSize;
+
+	/** The number of associations produced by the operator. */
+	long outputSize;
+
+	/** The number of bytes read from the storage by the operator. */
+	long bytesRead;
+
+	/** The number of cache hits of the operator. */
+	long cacheHits;
+
+	/** The execution time of the operator, in nanoseconds. */
+	long nanos;
+
+	/** The operators executed by this operator. */
+	final List<QueryProfile> children = new ArrayList<QueryProfile>(2);
+
+	public QueryProfile(String operator, String detail) {
+		this.operator = operator;
+		this.detail = detail;
+	}
+
+	public String getOperator() {
+		return operator;
+	}
+
+	public String getDetail() {
+		return detail;
+	}
+
+	public long getInputSize() {
+		return inputSize;
+	}
+
+	public long getOutputSize() {
+		return outputSize;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public long getCacheHits() {
+		return cacheHits;
+	}
+
+	public long getNanos() {
+		return nanos;
+	}
+
+	public List<QueryProfile> getChildren() {
+		return Collections.unmodifiableList(children);
+	}
+
+	/**
+	 * Returns the first node of the tree (including this node) with the given
+	 * operator name, in depth-first order.
+	 * 
+	 * @param operator
+	 * @return The node, or null if the operator was not executed
+	 */
+	public QueryProfile find(String operator) {
+
+		if (this.operator.equals(operator)) {
+			return this;
+		}
+
+		for (QueryProfile child : children) {
+			QueryProfile ret = child.find(operator);
+
+			if (ret != null) {
+				return ret;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the operator tree in a human readable form, one operator per
+	 * line.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		print(buf, 0);
+		return buf.toString();
+	}
+
+	private void print(StringBuilder buf, int depth) {
+
+		for (int i = 0; i < depth; i++) {
+			buf.append("  ");
+		}
+
+		buf.append(operator);
+
+		if (detail != null) {
+			buf.append(' ').append(detail);
+		}
+
+		buf.append(" (in: ").append(inputSize).append(", out: ").append(outputSize);
+		buf.append(", bytes: ").append(bytesRead).append(", cache hits: ").append(cacheHits);
+		buf.append(", time: ").append(nanos / 1000).append(" us)");
+
+		for (QueryProfile child : children) {
+			buf.append('\n');
+			child.print(buf, depth + 1);
+		}
+	}
+}
@@ -22,6 +22,78 @@ public abstract class Restrictions {
 		return new PhraseExpression(phrase);
 	}
 
+	/**
+	 * Creates a query for all of the phrases starting with <code>prefix</code>.
+	 * <p>
+	 * The associations of the matching phrases are united. Note: stores may
+	 * limit the number of phrases a query is expanded to.
+	 * </p>
+	 * 
+	 * @param prefix
+	 * @return
+	 */
+	public static Expression prefix(String prefix) {
+		return new WildcardExpression(prefix, null);
+	}
+
+	/**
+	 * Creates a query for all of the phrases matching the wildcard
+	 * <code>pattern</code>.
+	 * <p>
+	 * The pattern may contain <code>*</code> (any number of characters) and
+	 * <code>?</code> (exactly one character) wildcards, and it is matched
+	 * case insensitively. The associations of the matching phrases are
+	 * united. Note: stores may limit the number of phrases a query is expanded
+	 * to, and patterns starting with a wildcard have to be matched against
+	 * every phrase.
+	 * </p>
+	 * 
+	 * @param pattern
+	 * @return
+	 */
+	public static Expression wildcard(String pattern) {
+		int i = 0;
+
+		while ((i < pattern.length()) && (pattern.charAt(i) != '*') && (pattern.charAt(i) != '?')) {
+			i++;
+		}
+
+		if (i == pattern.length()) {
+			return phrase(pattern);
+		} else if ((i == pattern.length() - 1) && (pattern.charAt(i) == '*')) {
+			return prefix(pattern.substring(0, i));
+		}
+
+		return new WildcardExpression(pattern.substring(0, i), pattern);
+	}
+
+	/**
+	 * Creates a query for all of the phrases within <code>maxEdits</code> edits
+	 * of <code>phrase</code>.
+	 * <p>
+	 * The similarity is measured by the edit (Levenshtein) distance of the
+	 * phrases. The associations of the matching phrases are united, weighted
+	 * by their distances: the more edits a phrase needs, the lower its
+	 * associations are valued. Note: stores may limit the number of phrases a
+	 * query is expanded to.
+	 * </p>
+	 * 
+	 * @param phrase
+	 * @param maxEdits The maximum edit distance, usually 1 or 2
+	 * @return
+	 */
+	public static Expression fuzzy(String phrase, int maxEdits) {
+
+		if (maxEdits < 0) {
+			throw new IllegalArgumentException("The maximum edit distance can not be negative: "
+					+ maxEdits);
+		} else if (maxEdits == 0) {
+			return phrase(phrase);
+		}
+
+		return new FuzzyExpression(phrase, maxEdits);
+	}
+
 	/**
 	 * Creates a NOT expression.
 	 * 
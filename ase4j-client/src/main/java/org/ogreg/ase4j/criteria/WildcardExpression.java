@@ -0,0 +1,25 @@
+package org.ogreg.ase4j.criteria;
+
+/**
+ * A phrase expression which matches every phrase starting with a prefix,
+ * optionally restricted by a wildcard pattern.
+ * 
+ * @author Gergely Kiss
+ */
+class WildcardExpression implements Expression {
+	private static final long serialVersionUID = 2410938470315542297L;
+
+	/** The literal prefix of the matching phrases. */
+	final String prefix;
+
+	/**
+	 * The wildcard pattern of the matching phrases, or null if every phrase
+	 * with the prefix matches.
+	 */
+	final String pattern;
+
+	public WildcardExpression(String prefix, String pattern) {
+		this.prefix = prefix;
+		this.pattern = pattern;
+	}
+}
@@ -1,9 +1,15 @@
 package org.ogreg.ostore;
 
+import org.ogreg.common.Operator;
+
 import java.io.Flushable;
 import java.io.Serializable;
 
+import java.util.BitSet;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 
 /**
@@ -81,6 +87,24 @@ public interface ObjectStore<T> extends Flushable {
      */
     long saveOrUpdate(T entity) throws ObjectStoreException;
 
+    /**
+     * Stores the given instances in the object store, or returns the stored instances' keys.
+     *
+     * <p>Equivalent to calling {@link #save(Object)} for every entity, but the implementation may resolve the keys
+     * much more efficiently: the entities with the same business key are resolved only once, the keys may be looked
+     * up in the order of the business keys, and the new entities may be stored at once.</p>
+     *
+     * <p>Important: requires a {@link BusinessKey} on the stored type.</p>
+     *
+     * @param   entities  The object instances to store
+     *
+     * @return  The identifiers of the entities, in the order of the entities
+     *
+     * @throws  ObjectStoreException   on storage error
+     * @throws  IllegalStateException  if the type does not have a business key
+     */
+    long[] saveAll(List<T> entities) throws ObjectStoreException;
+
     /**
      * Adds the given instance in the object store.
      *
@@ -102,6 +126,21 @@ public interface ObjectStore<T> extends Flushable {
      */
     T get(long identifier) throws ObjectStoreException;
 
+    /**
+     * Retrieves multiple object instances by their identifiers.
+     *
+     * <p>Equivalent to calling {@link #get(long)} for every identifier, but the implementation may load the objects
+     * much more efficiently (for example by sorting the reads by their storage positions).</p>
+     *
+     * @param   identifiers  The unique identifiers of the objects
+     *
+     * @return  The initialized object instances, in the order of the identifiers (with nulls where
+     *          {@link #get(long)} would return null)
+     *
+     * @throws  ObjectStoreException  on storage error
+     */
+    List<T> getAll(long[] identifiers) throws ObjectStoreException;
+
     /**
      * Retrieves the field value of an instance by its identifier and field name.
      *
@@ -114,6 +153,21 @@ public interface ObjectStore<T> extends Flushable {
      */
     Object getField(long identifier, String fieldName) throws ObjectStoreException;
 
+    /**
+     * Retrieves the field values of multiple instances by their identifiers and a field name.
+     *
+     * <p>Equivalent to calling {@link #getField(long, String)} for every identifier, but the implementation may load
+     * the values much more efficiently (see {@link #getAll(long[])}).</p>
+     *
+     * @param   identifiers  The unique identifiers of the objects
+     * @param   fieldName    The field name to get the values from
+     *
+     * @return  The field values, in the order of the identifiers
+     *
+     * @throws  ObjectStoreException  on storage error
+     */
+    List<Object> getFields(long[] identifiers, String fieldName) throws ObjectStoreException;
+
     /**
      * Retrieves the object identifier by one of the object's fields.
      *
@@ -126,6 +180,60 @@ public interface ObjectStore<T> extends Flushable {
      */
     Long uniqueResult(String fieldName, Object value) throws ObjectStoreException;
 
+    /**
+     * Retrieves the identifiers of the objects whose field value starts with a prefix, using the unique index of the
+     * field.
+     *
+     * <p>The matching values are enumerated in the order of the index, and at most <code>limit</code> of them are
+     * returned. Note: the returned values may be normalized by the index (for example lower cased).</p>
+     *
+     * @param   fieldName  The name of the field to use for the query
+     * @param   prefix     The prefix of the field values
+     * @param   pattern    The pattern the field values must match (case insensitively), or null if all of them match
+     * @param   limit      The maximum number of results
+     *
+     * @return  The identifiers of the objects by their field values, or null if the unique index of the field can
+     *          not enumerate prefixes
+     *
+     * @throws  ObjectStoreException  on storage error
+     */
+    Map<String, Long> prefixResults(String fieldName, String prefix, Pattern pattern, int limit)
+        throws ObjectStoreException;
+
+    /**
+     * Retrieves the identifiers of the objects whose field value is similar to a value, using the unique index of the
+     * field.
+     *
+     * <p>The similarity is measured by the edit (Levenshtein) distance of the values, after they are normalized by
+     * the index (for example lower cased).</p>
+     *
+     * @param   fieldName  The name of the field to use for the query
+     * @param   value      The value to search for
+     * @param   maxEdits   The maximum edit distance of the field values
+     * @param   limit      The maximum number of results
+     *
+     * @return  The identifiers of the similar objects and their edit distances, or null if the unique index of the
+     *          field can not look up similar values
+     *
+     * @throws  ObjectStoreException  on storage error
+     */
+    Map<Long, Integer> similarResults(String fieldName, String value, int maxEdits, int limit)
+        throws ObjectStoreException;
+
+    /**
+     * Retrieves the object identifiers by a comparison on one of the object's fields, using a secondary index.
+     *
+     * @param   fieldName  The name of the field to use for the query
+     * @param   op         The comparison operator
+     * @param   value      The value to compare the field values to
+     *
+     * @return  The identifiers of the objects for which <code>field op value</code> is true, or null if the field
+     *          does not have an index which can evaluate the comparison
+     *
+     * @throws  ObjectStoreException  on storage error
+     */
+    BitSet indexedResults(String fieldName, Operator op, Object value) throws ObjectStoreException;
+
     /**
      * Returns the metadata describing the current store.
      *
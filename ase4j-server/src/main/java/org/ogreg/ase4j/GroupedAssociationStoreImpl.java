@@ -2,6 +2,10 @@ package org.ogreg.ase4j;
 
 import org.ogreg.ase4j.criteria.Query;
 import org.ogreg.ase4j.criteria.QueryExecutionException;
+import org.ogreg.ase4j.criteria.QueryProfile;
+import org.ogreg.ase4j.criteria.QueryProfiler;
+import org.ogreg.ase4j.criteria.QueryProfiler.Frame;
+import org.ogreg.ase4j.file.FileAssociationStoreImpl;
 
 import java.io.Closeable;
 import java.io.File;
@@ -12,10 +16,11 @@ import java.rmi.RemoteException;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A grouped association store implementation.
@@ -29,7 +34,7 @@ public class GroupedAssociationStoreImpl<F, T> implements AssociationStore<F, T>
 		Closeable {
 
 	/** The configured and initialized association stores. */
-	private final Map<String, AssociationStore<F, T>> assocStores = new HashMap<String, AssociationStore<F, T>>();
+	private final Map<String, FileAssociationStoreImpl<F, T>> assocStores = new ConcurrentHashMap<String, FileAssociationStoreImpl<F, T>>();
 
 	private final AssociationStoreManager manager;
 
@@ -55,6 +60,14 @@ public class GroupedAssociationStoreImpl<F, T> implements AssociationStore<F, T>
 		this.groupStorageDir = groupStorageDir;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The association is added to every member store multiplied by its
+	 * multiplier, using the operation of the {@link GroupedParams} (grouped
+	 * adds used to ignore it, and always summed the values).
+	 * </p>
+	 */
 	@Override
 	public void add(F from, T to, float value, Params params) throws AssociationStoreException {
 		GroupedParams group = GroupedParams.ensureNotNull(params);
@@ -62,83 +75,165 @@ public class GroupedAssociationStoreImpl<F, T> implements AssociationStore<F, T>
 		for (Entry<String, Float> e : group.getMultipliers().entrySet()) {
 			Float mul = e.getValue();
 
-			ensureStore(e.getKey()).add(from, to, value * mul, null);
+			ensureStore(e.getKey()).add(from, to, value * mul, group);
 		}
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The associations are added to the member stores concurrently, using the
+	 * operation of the {@link GroupedParams} (see
+	 * {@link FileAssociationStoreImpl#addAllGroup}).
+	 * </p>
+	 */
 	@Override
 	public void addAll(Collection<Association<F, T>> froms, T to, Params params)
 			throws AssociationStoreException, RemoteException {
-		GroupedParams group = GroupedParams.ensureNotNull(params);
-
-		for (Entry<String, Float> e : group.getMultipliers().entrySet()) {
-			Float mul = e.getValue();
-
-			// TODO rounding instability?
-			applyMultiplier(froms, mul);
-			ensureStore(e.getKey()).addAll(froms, to, null);
-			applyMultiplier(froms, 1.0F / mul);
-		}
+		addAll(froms, to, true, params);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The associations are added to the member stores concurrently, using the
+	 * operation of the {@link GroupedParams} (see
+	 * {@link FileAssociationStoreImpl#addAllGroup}).
+	 * </p>
+	 */
 	@Override
 	public void addAll(Collection<Association<F, T>> assocs, Params params)
 			throws AssociationStoreException, RemoteException {
+		addAll(assocs, null, false, params);
+	}
+
+	// See: addAll
+	private void addAll(Collection<Association<F, T>> assocs, T to, boolean common,
+			Params params) throws AssociationStoreException {
 		GroupedParams group = GroupedParams.ensureNotNull(params);
+		Map<String, Float> multipliers = group.getMultipliers();
 
-		for (Entry<String, Float> e : group.getMultipliers().entrySet()) {
-			float mul = e.getValue();
+		List<FileAssociationStoreImpl<F, T>> stores = new ArrayList<FileAssociationStoreImpl<F, T>>(
+				multipliers.size());
+		float[] muls = new float[multipliers.size()];
 
-			// TODO rounding instability?
-			applyMultiplier(assocs, mul);
-			ensureStore(e.getKey()).addAll(assocs, null);
-			applyMultiplier(assocs, 1.0F / mul);
+		for (Entry<String, Float> e : multipliers.entrySet()) {
+			muls[stores.size()] = e.getValue();
+			stores.add(ensureStore(e.getKey()));
 		}
+
+		FileAssociationStoreImpl.addAllGroup(stores, muls, assocs, to, common, group);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The member stores of the group are queried in parallel, and their
+	 * results are multiplied by their multipliers, and merged by their
+	 * targets using the operation of the query (see
+	 * {@link FileAssociationStoreImpl#queryGroup}). The limit and the offset
+	 * are applied to the merged results.
+	 * </p>
+	 */
 	@Override
 	public List<Association<F, T>> query(Query query) throws QueryExecutionException {
+		return query(query, null);
+	}
+
+	// See: query
+	private List<Association<F, T>> query(Query query, QueryProfiler profiler)
+			throws QueryExecutionException {
 		GroupedParams group = GroupedParams.ensureNotNull(query.params());
+		Map<String, Float> multipliers = group.getMultipliers();
 
-		List<Association<F, T>> ret = new ArrayList<Association<F, T>>(group.getMultipliers()
-				.size() * query.limit());
+		List<FileAssociationStoreImpl<F, T>> stores = new ArrayList<FileAssociationStoreImpl<F, T>>(
+				multipliers.size());
+		float[] muls = new float[multipliers.size()];
 
-		for (Entry<String, Float> e : group.getMultipliers().entrySet()) {
-			float mul = e.getValue();
+		for (Entry<String, Float> e : multipliers.entrySet()) {
+			muls[stores.size()] = e.getValue();
+			stores.add(ensureStore(e.getKey()));
+		}
 
-			List<Association<F, T>> results = ensureStore(e.getKey()).query(query);
-			applyMultiplier(results, mul);
+		return FileAssociationStoreImpl.queryGroup(stores, muls, query, profiler);
+	}
 
-			ret.addAll(results);
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The merged results of the member stores are kept in a snapshot for
+	 * serving the next pages (see {@link FileAssociationStoreImpl#queryGroupPage}).
+	 * </p>
+	 */
+	@Override
+	public ResultPage<F, T> queryPage(Query query) throws QueryExecutionException {
+		GroupedParams group = GroupedParams.ensureNotNull(query.params());
+
+		// Ordered by the store ids, so that every page finds the snapshot in
+		// the same store
+		Map<String, Float> multipliers = new TreeMap<String, Float>(group.getMultipliers());
+
+		List<FileAssociationStoreImpl<F, T>> stores = new ArrayList<FileAssociationStoreImpl<F, T>>(
+				multipliers.size());
+		float[] muls = new float[multipliers.size()];
+
+		for (Entry<String, Float> e : multipliers.entrySet()) {
+			muls[stores.size()] = e.getValue();
+			stores.add(ensureStore(e.getKey()));
 		}
 
-		return ret;
+		return FileAssociationStoreImpl.queryGroupPage(stores, muls, query);
 	}
 
 	@Override
-	public AssociationStoreMetadata getMetadata() {
-		return metadata;
-	}
+	public QueryProfile profile(Query query) throws QueryExecutionException {
+		QueryProfiler profiler = new QueryProfiler();
+		Frame frame = profiler.begin("group", groupId, 0);
+		List<Association<F, T>> results = null;
+
+		try {
+			results = query(query, profiler);
+		} finally {
+			profiler.end(frame, (results == null) ? 0 : results.size());
+		}
 
-	private void applyMultiplier(Collection<Association<F, T>> original, float value) {
+		return profiler.getProfile();
+	}
 
-		for (Association<F, T> assoc : original) {
-			assoc.value *= value;
-		}
+	@Override
+	public AssociationStoreMetadata getMetadata() {
+		return metadata;
 	}
 
+	/**
+	 * Returns the member store of the group with the given id, creating it if
+	 * necessary.
+	 * <p>
+	 * Note: the members are always file stores (see
+	 * {@link AssociationStoreManager#createStore(String, File)}).
+	 * </p>
+	 * 
+	 * @param id
+	 * @return
+	 */
 	@SuppressWarnings("unchecked")
-	private AssociationStore<F, T> ensureStore(String id) {
-		AssociationStore<F, T> store = assocStores.get(id);
+	private FileAssociationStoreImpl<F, T> ensureStore(String id) {
+		FileAssociationStoreImpl<F, T> store = assocStores.get(id);
 
 		if (store != null) {
 			return store;
 		}
 
-		store = manager.createStore(groupId,
-				AssociationStoreManager.getAssociatonStoreFile(groupStorageDir, id));
+		synchronized (assocStores) {
+			store = assocStores.get(id);
+
+			if (store == null) {
+				store = (FileAssociationStoreImpl<F, T>) manager.createStore(groupId,
+						AssociationStoreManager.getAssociatonStoreFile(groupStorageDir, id));
 
-		assocStores.put(id, store);
+				assocStores.put(id, store);
+			}
+		}
 
 		return store;
 	}
@@ -0,0 +1,423 @@
+package org.ogreg.ase4j.criteria;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.ogreg.common.Operator;
+
+/**
+ * A compiled filter comparison, which tests field values against its operand.
+ * <p>
+ * Predicates are compiled once per query (see {@link #compile(Operator, Object)}
+ * ), so that the operator and the type of the operand are resolved only once,
+ * not for every compared value. Comparisons of numbers and dates are evaluated
+ * on primitive longs, and pattern matches reuse the same {@link Matcher}.
+ * </p>
+ * <p>
+ * Note: predicates are not thread-safe.
+ * </p>
+ * 
+ * @author Gergely Kiss
+ */
+public abstract class Predicate {
+
+	/** The estimated selectivities of the comparison types. */
+	static final double EQ_SELECTIVITY = 0.1;
+	static final double RANGE_SELECTIVITY = 0.33;
+	static final double MATCHES_SELECTIVITY = 0.5;
+	static final double NE_SELECTIVITY = 0.9;
+
+	/** Orders predicates by their estimated selectivities, most selective first. */
+	public static final Comparator<Predicate> BY_SELECTIVITY = new Comparator<Predicate>() {
+		@Override
+		public int compare(Predicate o1, Predicate o2) {
+			return Double.compare(o1.selectivity(), o2.selectivity());
+		}
+	};
+
+	/** A predicate which never matches. */
+	private static final Predicate NONE = new Predicate() {
+		@Override
+		public boolean matches(Object value) {
+			return false;
+		}
+
+		@Override
+		public double selectivity() {
+			return 0;
+		}
+	};
+
+	/**
+	 * Returns true if <code>value</code> satisfies this predicate.
+	 * 
+	 * @param value The field value to test, may be null
+	 * @return
+	 */
+	public abstract boolean matches(Object value);
+
+	/**
+	 * Returns the estimated fraction of the values satisfying this predicate.
+	 * 
+	 * @return A number between 0 and 1
+	 */
+	public abstract double selectivity();
+
+	/**
+	 * Tests every element of a column of values.
+	 * 
+	 * @param values
+	 * @return The result of {@link #matches(Object)} for every value
+	 */
+	public boolean[] matchesAll(List<?> values) {
+		int size = values.size();
+		boolean[] ret = new boolean[size];
+
+		for (int i = 0; i < size; i++) {
+			ret[i] = matches(values.get(i));
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Compiles the comparison <code>value</code> <code>op</code>
+	 * <code>operand</code> to a predicate.
+	 * <p>
+	 * Missing (null) values are only equal to a null operand, and they are not
+	 * comparable to anything. Values of a type different from the operand's
+	 * are compared as {@link Comparable}s.
+	 * </p>
+	 * 
+	 * @param op
+	 * @param operand
+	 * @return
+	 * @throws IllegalArgumentException if the operand is not valid for the
+	 *             operator
+	 */
+	public static Predicate compile(Operator op, Object operand) {
+
+		if (operand == null) {
+
+			switch (op) {
+			case EQ:
+			case MATCHES:
+				return new NullPredicate(false);
+			case NE:
+				return new NullPredicate(true);
+			default:
+				return NONE;
+			}
+		}
+
+		if (op == Operator.MATCHES) {
+
+			if (!(operand instanceof Pattern)) {
+				throw new IllegalArgumentException("The operand of MATCHES must be a Pattern: "
+						+ operand);
+			}
+
+			return new PatternPredicate((Pattern) operand);
+		}
+
+		Class<?> type = operand.getClass();
+		ObjectPredicate generic = new ObjectPredicate(op, operand);
+
+		if ((type == Long.class) || (type == Integer.class) || (type == Short.class)
+				|| (type == Byte.class) || (type == Date.class) || (type == Double.class)
+				|| (type == Float.class)) {
+			long v = key(operand);
+
+			switch (op) {
+			case EQ:
+				return new RangePredicate(type, v, v, false, generic);
+			case NE:
+				return new RangePredicate(type, v, v, true, generic);
+			case GE:
+				return new RangePredicate(type, v, Long.MAX_VALUE, false, generic);
+			case GT:
+				return (v == Long.MAX_VALUE) ? NONE : new RangePredicate(type, v + 1,
+						Long.MAX_VALUE, false, generic);
+			case LE:
+				return new RangePredicate(type, Long.MIN_VALUE, v, false, generic);
+			case LT:
+				return (v == Long.MIN_VALUE) ? NONE : new RangePredicate(type, Long.MIN_VALUE,
+						v - 1, false, generic);
+			}
+		}
+
+		return generic;
+	}
+
+	/**
+	 * Returns a predicate which matches if all of the <code>predicates</code>
+	 * match.
+	 * <p>
+	 * The predicates are evaluated in the order of their estimated
+	 * selectivities, and the evaluation stops at the first one which does not
+	 * match.
+	 * </p>
+	 * 
+	 * @param predicates
+	 * @return
+	 */
+	public static Predicate and(List<Predicate> predicates) {
+
+		if (predicates.size() == 1) {
+			return predicates.get(0);
+		}
+
+		Predicate[] chain = predicates.toArray(new Predicate[predicates.size()]);
+		Arrays.sort(chain, BY_SELECTIVITY);
+
+		return new AndPredicate(chain);
+	}
+
+	/**
+	 * Returns the primitive comparison key of a number or a date.
+	 * <p>
+	 * Floating point numbers are mapped to longs in the order of
+	 * {@link Double#compare(double, double)}, which is consistent with
+	 * {@link Double#equals(Object)}.
+	 * </p>
+	 * 
+	 * @param value
+	 * @return
+	 */
+	static long key(Object value) {
+
+		if (value instanceof Date) {
+			return ((Date) value).getTime();
+		} else if ((value instanceof Double) || (value instanceof Float)) {
+			long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+			return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+		}
+
+		return ((Number) value).longValue();
+	}
+
+	/**
+	 * Tests numbers and dates of the same type as the operand, by checking if
+	 * their keys (see {@link Predicate#key(Object)}) fall into a closed range.
+	 * 
+	 * @author Gergely Kiss
+	 */
+	static class RangePredicate extends Predicate {
+		private final Class<?> type;
+		private final long min;
+		private final long max;
+		private final boolean negated;
+		private final Predicate generic;
+
+		RangePredicate(Class<?> type, long min, long max, boolean negated, Predicate generic) {
+			this.type = type;
+			this.min = min;
+			this.max = max;
+			this.negated = negated;
+			this.generic = generic;
+		}
+
+		@Override
+		public boolean matches(Object value) {
+
+			if (value == null) {
+				return negated;
+			} else if (value.getClass() != type) {
+				return generic.matches(value);
+			}
+
+			long k = key(value);
+			return ((k >= min) && (k <= max)) != negated;
+		}
+
+		@Override
+		public boolean[] matchesAll(List<?> values) {
+			int size = values.size();
+			boolean[] ret = new boolean[size];
+
+			for (int i = 0; i < size; i++) {
+				Object value = values.get(i);
+
+				if ((value == null) || (value.getClass() != type)) {
+					ret[i] = matches(value);
+				} else {
+					long k = key(value);
+					ret[i] = ((k >= min) && (k <= max)) != negated;
+				}
+			}
+
+			return ret;
+		}
+
+		@Override
+		public double selectivity() {
+
+			if (negated) {
+				return NE_SELECTIVITY;
+			}
+
+			return (min == max) ? EQ_SELECTIVITY : RANGE_SELECTIVITY;
+		}
+	}
+
+	/**
+	 * Tests character sequences against a pattern, reusing the same matcher.
+	 * 
+	 * @author Gergely Kiss
+	 */
+	static class PatternPredicate extends Predicate {
+		private final Matcher matcher;
+
+		PatternPredicate(Pattern pattern) {
+			this.matcher = pattern.matcher("");
+		}
+
+		@Override
+		public boolean matches(Object value) {
+			return (value != null) && matcher.reset((CharSequence) value).matches();
+		}
+
+		@Override
+		public double selectivity() {
+			return MATCHES_SELECTIVITY;
+		}
+	}
+
+	/**
+	 * Tests if the values are missing (or present, if negated).
+	 * 
+	 * @author Gergely Kiss
+	 */
+	static class NullPredicate extends Predicate {
+		private final boolean negated;
+
+		NullPredicate(boolean negated) {
+			this.negated = negated;
+		}
+
+		@Override
+		public boolean matches(Object value) {
+			return (value == null) == !negated;
+		}
+
+		@Override
+		public double selectivity() {
+			return negated ? NE_SELECTIVITY : EQ_SELECTIVITY;
+		}
+	}
+
+	/**
+	 * Tests any values using {@link Object#equals(Object)} and
+	 * {@link Comparable#compareTo(Object)}.
+	 * 
+	 * @author Gergely Kiss
+	 */
+	static class ObjectPredicate extends Predicate {
+		private final Operator op;
+		private final Object operand;
+
+		ObjectPredicate(Operator op, Object operand) {
+			this.op = op;
+			this.operand = operand;
+		}
+
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public boolean matches(Object value) {
+
+			if (value == null) {
+				return op == Operator.NE;
+			}
+
+			switch (op) {
+			case EQ:
+				return value.equals(operand);
+			case NE:
+				return !value.equals(operand);
+			case GE:
+				return ((Comparable) value).compareTo(operand) >= 0;
+			case GT:
+				return ((Comparable) value).compareTo(operand) > 0;
+			case LE:
+				return ((Comparable) value).compareTo(operand) <= 0;
+			case LT:
+				return ((Comparable) value).compareTo(operand) < 0;
+			}
+
+			throw new UnsupportedOperationException("Unsupported operator: " + op);
+		}
+
+		@Override
+		public double selectivity() {
+
+			switch (op) {
+			case EQ:
+				return EQ_SELECTIVITY;
+			case NE:
+				return NE_SELECTIVITY;
+			default:
+				return RANGE_SELECTIVITY;
+			}
+		}
+	}
+
+	/**
+	 * Tests if all of the chained predicates match.
+	 * 
+	 * @author Gergely Kiss
+	 */
+	static class AndPredicate extends Predicate {
+		private final Predicate[] chain;
+
+		AndPredicate(Predicate[] chain) {
+			this.chain = chain;
+		}
+
+		@Override
+		public boolean matches(Object value) {
+
+			for (Predicate p : chain) {
+
+				if (!p.matches(value)) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		@Override
+		public boolean[] matchesAll(List<?> values) {
+			boolean[] ret = chain[0].matchesAll(values);
+
+			// Only the remaining candidates are tested by the next predicates
+			for (int j = 1; j < chain.length; j++) {
+				Predicate p = chain[j];
+
+				for (int i = 0; i < ret.length; i++) {
+
+					if (ret[i]) {
+						ret[i] = p.matches(values.get(i));
+					}
+				}
+			}
+
+			return ret;
+		}
+
+		@Override
+		public double selectivity() {
+			double ret = 1;
+
+			for (Predicate p : chain) {
+				ret *= p.selectivity();
+			}
+
+			return ret;
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package org.ogreg.ase4j.criteria;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import org.ogreg.ase4j.AssociationStore.Operation;
+import org.ogreg.ase4j.GroupedParams;
+import org.ogreg.ase4j.Params;
+import org.ogreg.ase4j.criteria.LogicalExpression.LogicalType;
+
+/**
+ * A normalized query, which may be used as a key for caching query results.
+ * <p>
+ * Queries which are guaranteed to have the same results have equal keys: the
+ * operands of filter AND expressions, and the operands of select expressions
+ * using a commutative operation (see {@link Operation#isCommutative()}) are
+ * ordered canonically. The key contains the select, the filter, the limit,
+ * the offset and the operation of the query, and the multipliers of grouped
+ * queries - the paging cursor is ignored.
+ * </p>
+ * 
+ * @author Gergely Kiss
+ */
+public final class QueryKey {
+	private final String key;
+	private final boolean filtered;
+
+	private QueryKey(String key, boolean filtered) {
+		this.key = key;
+		this.filtered = filtered;
+	}
+
+	/**
+	 * Creates the normalized key of <code>query</code>.
+	 * 
+	 * @param query
+	 * @return The key, or null if the query contains expressions which can not
+	 *         be normalized
+	 */
+	public static QueryKey of(Query query) {
+		Operation op = Params.ensureNotNull(query.params).op;
+		StringBuilder buf = new StringBuilder();
+
+		String select = normalize(query.select, op.isCommutative());
+		String filter = (query.filter == null) ? "" : normalize(query.filter, true);
+
+		if ((select == null) || (filter == null)) {
+			return null;
+		}
+
+		buf.append(op).append(';').append(query.limit).append(';').append(query.offset);
+		buf.append(';').append(select).append(';').append(filter);
+
+		if (query.params instanceof GroupedParams) {
+			Map<String, Float> multipliers = new TreeMap<String, Float>(
+					((GroupedParams) query.params).getMultipliers());
+
+			buf.append(';');
+
+			for (Entry<String, Float> e : multipliers.entrySet()) {
+				buf.append(quote(e.getKey())).append('=').append(e.getValue()).append(',');
+			}
+		}
+
+		return new QueryKey(buf.toString(), query.filter != null);
+	}
+
+	/**
+	 * Returns the string form of a select expression, with its operands in
+	 * their written order.
+	 * 
+	 * @param e
+	 * @return The string form, or null if the expression is unknown
+	 */
+	static String describe(Expression e) {
+		return normalize(e, false);
+	}
+
+	// Returns the canonical string form of the expression, or null if unknown
+	private static String normalize(Expression e, boolean commutative) {
+
+		if (e instanceof PhraseExpression) {
+			return quote(((PhraseExpression) e).phrase);
+		} else if (e instanceof WildcardExpression) {
+			WildcardExpression we = (WildcardExpression) e;
+			return "*" + quote(we.prefix) + ((we.pattern == null) ? "" : quote(we.pattern));
+		} else if (e instanceof FuzzyExpression) {
+			FuzzyExpression fe = (FuzzyExpression) e;
+			return "~" + fe.maxEdits + quote(fe.phrase);
+		} else if (e instanceof NotExpression) {
+			String operand = normalize(((NotExpression) e).expression, commutative);
+			return (operand == null) ? null : "!" + operand;
+		} else if (e instanceof FieldExpression<?>) {
+			FieldExpression<?> fe = (FieldExpression<?>) e;
+			return quote(fe.fieldName) + fe.op + valueOf(fe.value);
+		} else if (e instanceof LogicalExpression) {
+			LogicalExpression le = (LogicalExpression) e;
+			List<String> operands = new ArrayList<String>(le.expressions.size());
+
+			for (Expression exp : le.expressions) {
+				String operand = normalize(exp, commutative);
+
+				if (operand == null) {
+					return null;
+				}
+
+				operands.add(operand);
+			}
+
+			if (commutative) {
+				Collections.sort(operands);
+			}
+
+			StringBuilder buf = new StringBuilder();
+			buf.append(le.type == LogicalType.AND ? '&' : '|').append('(');
+
+			for (int i = 0; i < operands.size(); i++) {
+				buf.append(i == 0 ? "" : ",").append(operands.get(i));
+			}
+
+			return buf.append(')').toString();
+		}
+
+		return null;
+	}
+
+	// Returns the typed string form of a field expression value
+	private static String valueOf(Object value) {
+
+		if (value == null) {
+			return "null";
+		} else if (value instanceof Pattern) {
+			Pattern p = (Pattern) value;
+			return "Pattern:" + p.flags() + ":" + quote(p.pattern());
+		} else if (value instanceof Date) {
+			return value.getClass().getName() + ":" + ((Date) value).getTime();
+		}
+
+		return value.getClass().getName() + ":" + quote(String.valueOf(value));
+	}
+
+	// Quotes the string so that it can not be mistaken for a separator
+	private static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	/**
+	 * Returns true if the query has a filter.
+	 * <p>
+	 * Note: the results of filtered queries depend on the fields of the
+	 * association targets too, not only on the associations.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public boolean isFiltered() {
+		return filtered;
+	}
+
+	/**
+	 * Returns the estimated number of bytes used by this key.
+	 * 
+	 * @return
+	 */
+	public int sizeOf() {
+		return 40 + key.length() * 2;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return (obj instanceof QueryKey) && key.equals(((QueryKey) obj).key);
+	}
+
+	@Override
+	public int hashCode() {
+		return key.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return key;
+	}
+}
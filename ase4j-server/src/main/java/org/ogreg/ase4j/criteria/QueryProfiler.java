@@ -0,0 +1,205 @@
+package org.ogreg.ase4j.criteria;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds the operator tree of a profiled query (see {@link QueryProfile}).
+ * <p>
+ * The operators are measured between {@link #begin(String, String, long)} and
+ * {@link #end(Frame, long)}, and the operators begun in between become the
+ * children of the current one. Every thread has its own current operator, so
+ * the subtasks of a parallel query must {@link #enter(Frame)} the operator
+ * they were forked from (see
+ * {@link QuerySolver#fork(java.util.concurrent.Callable)}).
+ * </p>
+ * <p>
+ * A profiler should be used for a single query only.
+ * </p>
+ * 
+ * @author Gergely Kiss
+ */
+public final class QueryProfiler {
+
+	/** The current operator of the threads. */
+	private final ThreadLocal<Frame> current = new ThreadLocal<Frame>();
+
+	/** The first top level operator. */
+	private volatile QueryProfile profile;
+
+	/**
+	 * Begins measuring an operator, as a child of the current operator.
+	 * 
+	 * @param operator The name of the operator
+	 * @param detail The operand of the operator, or null
+	 * @param inputSize The number of associations consumed by the operator (see
+	 *            {@link #addInput(long)})
+	 * @return The new current operator
+	 */
+	public Frame begin(String operator, String detail, long inputSize) {
+		Frame parent = current.get();
+		QueryProfile node = new QueryProfile(operator, detail);
+
+		if (parent == null) {
+
+			if (profile == null) {
+				profile = node;
+			}
+		} else {
+			parent.add(node);
+		}
+
+		Frame ret = new Frame(node, parent, inputSize);
+		current.set(ret);
+
+		return ret;
+	}
+
+	/**
+	 * Finishes measuring an operator, and makes its parent the current
+	 * operator again.
+	 * 
+	 * @param frame The operator returned by
+	 *            {@link #begin(String, String, long)}
+	 * @param outputSize The number of associations produced by the operator
+	 */
+	public void end(Frame frame, long outputSize) {
+		QueryProfile node = frame.node;
+
+		node.nanos = System.nanoTime() - frame.start;
+		node.outputSize = outputSize;
+		node.bytesRead = frame.bytesRead.get();
+		node.cacheHits = frame.cacheHits.get();
+		node.inputSize = frame.inputSize.get();
+
+		exit(frame.parent);
+	}
+
+	/**
+	 * Makes <code>frame</code> the current operator of the calling thread.
+	 * 
+	 * @param frame
+	 * @return The previous operator of the thread, which should be restored
+	 *         with {@link #exit(Frame)}
+	 */
+	public Frame enter(Frame frame) {
+		Frame ret = current.get();
+		current.set(frame);
+		return ret;
+	}
+
+	/**
+	 * Restores the current operator of the calling thread.
+	 * 
+	 * @param previous The operator returned by {@link #enter(Frame)}
+	 */
+	public void exit(Frame previous) {
+
+		if (previous == null) {
+			current.remove();
+		} else {
+			current.set(previous);
+		}
+	}
+
+	/**
+	 * Returns the current operator of the calling thread.
+	 * 
+	 * @return The operator, or null if none
+	 */
+	public Frame current() {
+		return current.get();
+	}
+
+	/**
+	 * Adds an already measured operator tree (of another store, for example)
+	 * to the current operator.
+	 * 
+	 * @param child
+	 */
+	public void add(QueryProfile child) {
+		Frame frame = current.get();
+
+		if (frame != null) {
+			frame.add(child);
+		}
+	}
+
+	/**
+	 * Adds to the number of associations consumed by the current operator.
+	 * 
+	 * @param size
+	 */
+	public void addInput(long size) {
+		Frame frame = current.get();
+
+		if (frame != null) {
+			frame.inputSize.addAndGet(size);
+		}
+	}
+
+	/**
+	 * Adds to the number of bytes read by the current operator.
+	 * 
+	 * @param bytes
+	 */
+	public void addBytesRead(long bytes) {
+		Frame frame = current.get();
+
+		if (frame != null) {
+			frame.bytesRead.addAndGet(bytes);
+		}
+	}
+
+	/**
+	 * Adds to the number of cache hits of the current operator.
+	 * 
+	 * @param hits
+	 */
+	public void addCacheHits(long hits) {
+		Frame frame = current.get();
+
+		if (frame != null) {
+			frame.cacheHits.addAndGet(hits);
+		}
+	}
+
+	/**
+	 * Returns the operator tree of the profiled query.
+	 * 
+	 * @return The first top level operator, or null if none was measured
+	 */
+	public QueryProfile getProfile() {
+		return profile;
+	}
+
+	/**
+	 * An operator being measured.
+	 * <p>
+	 * The measures may be updated by multiple threads, they are copied to the
+	 * profile node when the operator ends.
+	 * </p>
+	 * 
+	 * @author Gergely Kiss
+	 */
+	public static final class Frame {
+		final QueryProfile node;
+		final Frame parent;
+		final long start = System.nanoTime();
+		final AtomicLong inputSize;
+		final AtomicLong bytesRead = new AtomicLong();
+		final AtomicLong cacheHits = new AtomicLong();
+
+		Frame(QueryProfile node, Frame parent, long inputSize) {
+			this.node = node;
+			this.parent = parent;
+			this.inputSize = new AtomicLong(inputSize);
+		}
+
+		void add(QueryProfile child) {
+
+			synchronized (node.children) {
+				node.children.add(child);
+			}
+		}
+	}
+}
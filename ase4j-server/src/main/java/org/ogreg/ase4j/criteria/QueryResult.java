@@ -20,4 +20,11 @@ public interface QueryResult {
 	 * @return
 	 */
 	boolean isNegated();
+
+	/**
+	 * Returns the number of associations in the result.
+	 * 
+	 * @return
+	 */
+	int size();
 }
@@ -2,11 +2,20 @@ package org.ogreg.ase4j.criteria;
 
 import org.ogreg.ase4j.AssociationStore.Operation;
 import org.ogreg.ase4j.criteria.LogicalExpression.LogicalType;
+import org.ogreg.ase4j.criteria.QueryProfiler.Frame;
 
 import org.ogreg.common.Operator;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 /**
@@ -17,8 +26,31 @@ import java.util.regex.Pattern;
  */
 public abstract class QuerySolver<R extends QueryResult> {
 
+	/** Orders comparisons by the selectivities of their predicates. */
+	private static final Comparator<Comparison> BY_SELECTIVITY = new Comparator<Comparison>() {
+		@Override
+		public int compare(Comparison o1, Comparison o2) {
+			return Predicate.BY_SELECTIVITY.compare(o1.predicate, o2.predicate);
+		}
+	};
+
+	/** The executor of the forked subtasks, or null if the solver is sequential. */
+	private Executor executor;
+
+	/** The maximum number of threads working on a query, including the caller. */
+	private int parallelism = 1;
+
+	/** The number of subtasks which may still be forked to the executor. */
+	private final AtomicInteger forks = new AtomicInteger();
+
+	/** The profiler of the solved queries, or null if they are not profiled. */
+	private QueryProfiler profiler;
+
 	/**
 	 * Solves the specified query and returns the results.
+	 * <p>
+	 * The results of limited queries are sorted by their values, descending.
+	 * </p>
 	 * 
 	 * @param query
 	 * @return
@@ -30,6 +62,43 @@ public abstract class QuerySolver<R extends QueryResult> {
 			throw new IllegalArgumentException("The query select must not be null");
 		}
 
+		if ((query.filter == null) && (query.limit > 0) && isUnion(query.select)) {
+
+			// Top-k union, which may be terminated early by the implementation
+			return selectTop((LogicalExpression) query.select, query.params.op, query.offset,
+					query.limit);
+		}
+
+		R results = select(query);
+
+		if ((query.limit > 0) || (query.offset > 0)) {
+			Frame frame = begin("limit", null, results.size());
+			R limited = end(frame, limit(results, query.offset, query.limit));
+
+			if (limited != results) {
+				release(results);
+			}
+
+			results = limited;
+		}
+
+		return results;
+	}
+
+	/**
+	 * Solves the select and the filter part of the specified query, and
+	 * returns all of the results (ignoring the limit and the offset).
+	 * 
+	 * @param query
+	 * @return
+	 * @throws QueryExecutionException If the query execution has failed
+	 */
+	public R select(Query query) throws QueryExecutionException {
+
+		if (query.select == null) {
+			throw new IllegalArgumentException("The query select must not be null");
+		}
+
 		R results = select(query.select, query.params.op);
 
 		if (results.isNegated()) {
@@ -43,15 +112,21 @@ public abstract class QuerySolver<R extends QueryResult> {
 		Expression filter = query.filter;
 
 		if (filter != null) {
-			List<Comparison> ret = new LinkedList<Comparison>();
+			List<Comparison> ret = new ArrayList<Comparison>();
 
 			collectComparisons(query.filter, ret);
 
-			results = filter(results, ret);
-		}
+			// The most selective comparisons should be evaluated first
+			Collections.sort(ret, BY_SELECTIVITY);
+
+			Frame frame = begin("filter", null, results.size());
+			R filtered = end(frame, filter(results, ret));
+
+			if (filtered != results) {
+				release(results);
+			}
 
-		if (query.limit > 0) {
-			results = limit(results, query.limit);
+			results = filtered;
 		}
 
 		return results;
@@ -63,7 +138,12 @@ public abstract class QuerySolver<R extends QueryResult> {
 		// Simple filters
 		if (filter instanceof FieldExpression<?>) {
 			FieldExpression<?> fe = (FieldExpression<?>) filter;
-			dest.add(new Comparison(fe.fieldName, fe.op, fe.value));
+
+			try {
+				dest.add(new Comparison(fe.fieldName, fe.op, fe.value));
+			} catch (IllegalArgumentException e) {
+				throw new QueryExecutionException(e);
+			}
 		}
 		// AND expressions
 		else if ((filter instanceof LogicalExpression)
@@ -88,71 +168,87 @@ public abstract class QuerySolver<R extends QueryResult> {
 	 */
 	private R select(Expression e, Operation op) throws QueryExecutionException {
 
+		if (profiler == null) {
+			return selectExpression(e, op);
+		}
+
+		Frame frame;
+
 		if (e instanceof LogicalExpression) {
-			LogicalExpression le = (LogicalExpression) e;
+			String operator = (((LogicalExpression) e).type == LogicalType.AND) ? "and" : "or";
+			frame = profiler.begin(operator, null, 0);
+		} else if (e instanceof NotExpression) {
+			frame = profiler.begin("not", null, 0);
+		} else if (e instanceof WildcardExpression) {
+			frame = profiler.begin("prefix", QueryKey.describe(e), 0);
+		} else if (e instanceof FuzzyExpression) {
+			frame = profiler.begin("fuzzy", QueryKey.describe(e), 0);
+		} else if (e instanceof PhraseExpression) {
+			frame = profiler.begin("phrase", QueryKey.describe(e), 0);
+		} else {
+			frame = profiler.begin(e.getClass().getSimpleName(), null, 0);
+		}
+
+		return end(frame, selectExpression(e, op));
+	}
 
-			// TODO query optimization by result set size
+	// See: select
+	private R selectExpression(Expression e, Operation op) throws QueryExecutionException {
 
-			Expression lhs = le.expressions.get(0);
-			R leftResult = select(lhs, op);
-			boolean isLeftNegated = leftResult.isNegated();
+		if (e instanceof LogicalExpression) {
+			LogicalExpression le = (LogicalExpression) e;
 
 			if (le.type == LogicalType.AND) {
+				return selectAnd(le, op);
+			}
 
-				for (int i = 1; i < le.expressions.size(); i++) {
-					Expression rhs = le.expressions.get(i);
-					R rightResult = select(rhs, op);
-					boolean isRightNegated = rightResult.isNegated();
-
-					if (isLeftNegated) {
-
-						if (isRightNegated) {
-							rightResult = union(leftResult, rightResult, op);
-							rightResult.setNegated(true);
-						} else {
-							rightResult = minus(rightResult, leftResult);
-						}
-					} else {
-
-						if (isRightNegated) {
-							rightResult = minus(leftResult, rightResult);
-						} else {
-							rightResult = intersection(leftResult, rightResult, op);
-						}
-					}
+			if (le.type == LogicalType.OR) {
+				checkNotNegated(le);
+			}
 
-					leftResult = rightResult;
-					isLeftNegated = isRightNegated;
-				}
-			} else if (le.type == LogicalType.OR) {
-
-				for (int i = 1; i < le.expressions.size(); i++) {
-					Expression rhs = le.expressions.get(i);
-					R rr = select(rhs, op);
-					boolean isRightNegated = rr.isNegated();
-
-					if (!isLeftNegated && !isRightNegated) {
-						rr = union(leftResult, rr, op);
-					} else {
-
-						// Negation is not supported for OR expressions, because
-						// the result set would be the universe
-						throw new QueryExecutionException(
-								"You have negated an OR expression, which means that the result set would be too big. Please revise your query at: "
-										+ e);
-					}
+			// The operands are independent, they may be solved in parallel
+			List<FutureTask<R>> rhs = forkSelects(le.expressions.subList(1,
+					le.expressions.size()), op);
+			List<R> results = new ArrayList<R>(le.expressions.size());
+			boolean success = false;
+
+			try {
+				results.add(select(le.expressions.get(0), op));
+				success = true;
+			} finally {
 
-					leftResult = rr;
-					isLeftNegated = isRightNegated;
+				if (!success) {
+					discard(rhs);
 				}
 			}
 
+			joinSelects(le, rhs, results);
+			R leftResult = results.get(0);
+
+			if ((le.type == LogicalType.OR) && !rhs.isEmpty()) {
+				consumed(sizeOf(results));
+
+				// All the operands are united at once
+				Frame frame = begin("unionAll", null, sizeOf(results));
+				return end(frame, unionAll(results, op));
+			}
+
+			consumed(leftResult.size());
 			return leftResult;
 		} else if (e instanceof PhraseExpression) {
 			return query(((PhraseExpression) e).phrase);
+		} else if (e instanceof WildcardExpression) {
+			WildcardExpression we = (WildcardExpression) e;
+			Pattern pattern = (we.pattern == null) ? null : toPattern(we.pattern);
+
+			return queryPrefix(we.prefix, pattern, op);
+		} else if (e instanceof FuzzyExpression) {
+			FuzzyExpression fe = (FuzzyExpression) e;
+			return queryFuzzy(fe.phrase, fe.maxEdits, op);
 		} else if (e instanceof NotExpression) {
 			R r = select(((NotExpression) e).expression, op);
 			r.setNegated(!r.isNegated());
+			consumed(r.size());
 
 			return r;
 		}
@@ -161,51 +257,557 @@ public abstract class QuerySolver<R extends QueryResult> {
 	}
 
 	/**
-	 * Returns true if <code>valueA</code> <code>op</code> <code>valueB</code>is
-	 * true.
+	 * Solves the given OR expression, returning only its top
+	 * <code>limit</code> results after <code>offset</code>.
 	 * 
-	 * @param valueA
+	 * @param e
 	 * @param op
-	 * @param valueB
+	 * @param offset
+	 * @param limit
+	 * @return The solver's result
+	 * @throws QueryExecutionException If the query execution has failed
+	 * @see #unionTop(List, Operation, int, int)
+	 */
+	private R selectTop(LogicalExpression e, Operation op, int offset, int limit)
+			throws QueryExecutionException {
+		checkNotNegated(e);
+
+		Frame top = begin("or", null, 0);
+		List<FutureTask<R>> tasks = forkSelects(e.expressions, op);
+		List<R> results = new ArrayList<R>(e.expressions.size());
+
+		joinSelects(e, tasks, results);
+		consumed(sizeOf(results));
+
+		Frame frame = begin("unionTop", null, sizeOf(results));
+		return end(top, end(frame, unionTop(results, op, offset, limit)));
+	}
+
+	/**
+	 * Throws an exception if any of the operands of an OR expression will be
+	 * negated, before anything is solved.
+	 * <p>
+	 * Negation is not supported for OR expressions, because the result set
+	 * would be the universe.
+	 * </p>
+	 * 
+	 * @param e
+	 * @throws QueryExecutionException
+	 */
+	private void checkNotNegated(LogicalExpression e) throws QueryExecutionException {
+
+		for (Expression operand : e.expressions) {
+
+			if (isNegated(operand)) {
+				throw negatedOr(e);
+			}
+		}
+	}
+
+	// Returns the exception of a negated OR operand
+	private static QueryExecutionException negatedOr(Expression e) {
+		return new QueryExecutionException(
+				"You have negated an OR expression, which means that the result set would be too big. Please revise your query at: "
+						+ e);
+	}
+
+	/**
+	 * Joins the forked operands of a logical expression, and appends their
+	 * results to <code>results</code>.
+	 * <p>
+	 * If an operand fails, or an operand of an OR expression turns out to be
+	 * negated, all the results are released, and the tasks which were not
+	 * joined yet are discarded.
+	 * </p>
+	 * 
+	 * @param e
+	 * @param tasks
+	 * @param results The results of the operands solved so far
+	 * @throws QueryExecutionException If an operand has failed, or an operand
+	 *             of an OR expression turned out to be negated
+	 */
+	private void joinSelects(LogicalExpression e, List<FutureTask<R>> tasks, List<R> results)
+			throws QueryExecutionException {
+		int joined = 0;
+		boolean success = false;
+
+		try {
+
+			for (; joined < tasks.size(); joined++) {
+				results.add(join(tasks.get(joined)));
+			}
+
+			if (e.type == LogicalType.OR) {
+
+				for (R r : results) {
+
+					if (r.isNegated()) {
+						throw negatedOr(e);
+					}
+				}
+			}
+
+			success = true;
+		} finally {
+
+			if (!success) {
+
+				for (R r : results) {
+					release(r);
+				}
+
+				discard(tasks.subList(joined, tasks.size()));
+			}
+		}
+	}
+
+	/**
+	 * Discards forked tasks which will not be joined.
+	 * <p>
+	 * The tasks which were not started are not run any more, and the results
+	 * of the finished ones are released. The results of the running ones are
+	 * left to the garbage collector.
+	 * </p>
+	 * 
+	 * @param tasks
+	 */
+	private void discard(List<FutureTask<R>> tasks) {
+
+		for (FutureTask<R> task : tasks) {
+
+			if (!task.cancel(false)) {
+
+				try {
+					release(task.get());
+				} catch (Exception e) {
+					// Failed, there is nothing to release
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forks the solving of the given expressions (see {@link #fork(Callable)}).
+	 * 
+	 * @param es
+	 * @param op
+	 * @return The tasks solving the expressions, in the same order
+	 */
+	private List<FutureTask<R>> forkSelects(List<Expression> es, final Operation op) {
+		List<FutureTask<R>> ret = new ArrayList<FutureTask<R>>(es.size());
+
+		for (final Expression e : es) {
+			ret.add(fork(new Callable<R>() {
+				@Override
+				public R call() throws QueryExecutionException {
+					return select(e, op);
+				}
+			}));
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Sets the executor used for solving independent parts of the queries in
+	 * parallel.
+	 * <p>
+	 * At most <code>parallelism</code> threads (including the calling thread)
+	 * work on the queries of this solver at the same time, so a solver
+	 * should be created for every query.
+	 * </p>
+	 * 
+	 * @param executor The executor, or null if the queries should be solved
+	 *            on the calling thread only
+	 * @param parallelism
+	 */
+	public void setExecutor(Executor executor, int parallelism) {
+		this.executor = executor;
+		this.parallelism = (executor == null) ? 1 : Math.max(parallelism, 1);
+		this.forks.set(this.parallelism - 1);
+	}
+
+	/**
+	 * Sets the profiler which measures the operators of the solved queries.
+	 * 
+	 * @param profiler The profiler, or null if the queries should not be
+	 *            profiled
+	 */
+	public void setProfiler(QueryProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Returns the profiler of the solved queries.
+	 * <p>
+	 * Subclasses may report the bytes they read and the cache hits of the
+	 * current operator to the profiler.
+	 * </p>
+	 * 
+	 * @return The profiler, or null if the queries are not profiled
+	 */
+	protected QueryProfiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * Begins measuring an operator, if the query is profiled.
+	 * 
+	 * @param operator
+	 * @param detail
+	 * @param inputSize
+	 * @return The operator, or null if the query is not profiled
+	 * @see QueryProfiler#begin(String, String, long)
+	 */
+	private Frame begin(String operator, String detail, long inputSize) {
+		return (profiler == null) ? null : profiler.begin(operator, detail, inputSize);
+	}
+
+	/**
+	 * Finishes measuring an operator, if the query is profiled.
+	 * <p>
+	 * Note: if the operator fails, it is not finished. The profiler is
+	 * discarded with the failed query anyway.
+	 * </p>
+	 * 
+	 * @param frame
+	 * @param result The result of the operator
+	 * @return The result
+	 */
+	private R end(Frame frame, R result) {
+
+		if (frame != null) {
+			profiler.end(frame, result.size());
+		}
+
+		return result;
+	}
+
+	// Adds the size of a consumed operand to the input of the current operator
+	private void consumed(long size) {
+
+		if (profiler != null) {
+			profiler.addInput(size);
+		}
+	}
+
+	private static long sizeOf(List<? extends QueryResult> results) {
+		long ret = 0;
+
+		for (QueryResult r : results) {
+			ret += r.size();
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Returns the maximum number of threads working on a query.
+	 * 
 	 * @return
 	 */
-	// TODO How about error handling?
-	@SuppressWarnings({ "unchecked", "rawtypes" })
-	protected boolean evaluate(Object valueA, Operator op, Object valueB) {
+	protected int getParallelism() {
+		return parallelism;
+	}
 
-		switch (op) {
+	/**
+	 * Creates a task which may be run in parallel with the calling thread.
+	 * <p>
+	 * The task is submitted to the executor if the parallelism of the solver
+	 * allows, otherwise it is run by {@link #join(FutureTask)} on the calling
+	 * thread.
+	 * </p>
+	 * 
+	 * @param task
+	 * @return
+	 */
+	protected <V> FutureTask<V> fork(Callable<V> task) {
 
-		case EQ: {
-			return (valueA == null) ? (valueB == null) : valueA.equals(valueB);
+		if (profiler != null) {
+			task = profiled(task);
 		}
 
-		case NE: {
-			return (valueA == null) ? (valueB != null) : (!valueA.equals(valueB));
+		if ((executor == null) || !acquireFork()) {
+			return new FutureTask<V>(task);
 		}
 
-		case GE: {
-			return (valueA == null) ? false : (((Comparable) valueA).compareTo(valueB) >= 0);
+		FutureTask<V> ret = new FutureTask<V>(task) {
+			@Override
+			protected void done() {
+				forks.incrementAndGet();
+			}
+		};
+
+		try {
+			executor.execute(ret);
+		} catch (RejectedExecutionException e) {
+			// Will be run by join
 		}
 
-		case GT: {
-			return (valueA == null) ? false : (((Comparable) valueA).compareTo(valueB) > 0);
+		return ret;
+	}
+
+	/**
+	 * Waits for a forked task and returns its result.
+	 * <p>
+	 * If the task has not been started yet, it is run on the calling thread,
+	 * so joining never waits for a queued task (and can not deadlock even if
+	 * the tasks fork further tasks).
+	 * </p>
+	 * 
+	 * @param task
+	 * @return
+	 * @throws QueryExecutionException if the task has failed
+	 */
+	protected <V> V join(FutureTask<V> task) throws QueryExecutionException {
+
+		// Note: run is a no-op if the task was already started
+		task.run();
+
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new QueryExecutionException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+
+			if (cause instanceof QueryExecutionException) {
+				throw (QueryExecutionException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+
+			throw new QueryExecutionException(cause);
+		}
+	}
+
+	/**
+	 * Wraps the task so that it is profiled as a part of the current operator
+	 * of the forking thread.
+	 * 
+	 * @param task
+	 * @return
+	 */
+	private <V> Callable<V> profiled(final Callable<V> task) {
+		final QueryProfiler p = profiler;
+		final Frame frame = p.current();
+
+		return new Callable<V>() {
+			@Override
+			public V call() throws Exception {
+				Frame previous = p.enter(frame);
+
+				try {
+					return task.call();
+				} finally {
+					p.exit(previous);
+				}
+			}
+		};
+	}
+
+	private boolean acquireFork() {
+
+		while (true) {
+			int available = forks.get();
+
+			if (available <= 0) {
+				return false;
+			} else if (forks.compareAndSet(available, available - 1)) {
+				return true;
+			}
 		}
+	}
+
+	/**
+	 * Returns true if <code>e</code> is an OR expression of multiple operands.
+	 * 
+	 * @param e
+	 * @return
+	 */
+	private boolean isUnion(Expression e) {
+		return (e instanceof LogicalExpression) && (((LogicalExpression) e).type == LogicalType.OR)
+				&& (((LogicalExpression) e).expressions.size() > 1);
+	}
+
+	/**
+	 * Solves the given AND expression using a simple cost based plan.
+	 * <p>
+	 * The operands are evaluated in ascending order of their estimated result
+	 * sizes (see {@link #estimateSize(String)}), so that the intersections stay
+	 * as small as possible. Negated operands are applied last, as subtractions.
+	 * If the intermediate result becomes empty, the remaining operands are not
+	 * evaluated at all.
+	 * </p>
+	 * <p>
+	 * Note: for non-commutative operations (see {@link Operation#isCommutative()}
+	 * ) only the negated operands are reordered, to keep the association values
+	 * the same as if the operands were evaluated in their written order.
+	 * </p>
+	 * 
+	 * @param e
+	 * @param op
+	 * @return The solver's result
+	 * @throws QueryExecutionException If the query execution has failed
+	 */
+	private R selectAnd(LogicalExpression e, Operation op) throws QueryExecutionException {
+		R result = null;
+
+		for (Expression operand : plan(e.expressions, op)) {
+
+			if ((result != null) && !result.isNegated() && (result.size() == 0)) {
+
+				// Short circuit: the intersection can not grow any more
+				break;
+			}
 
-		case LE: {
-			return (valueA == null) ? false : (((Comparable) valueA).compareTo(valueB) <= 0);
+			R r = select(operand, op);
+			consumed(r.size());
+
+			if (result == null) {
+				result = r;
+				continue;
+			}
+
+			long inputSize = (long) result.size() + r.size();
+			Frame frame;
+
+			if (result.isNegated()) {
+
+				if (r.isNegated()) {
+					frame = begin("union", null, inputSize);
+					result = union(result, r, op);
+					result.setNegated(true);
+				} else {
+					frame = begin("minus", null, inputSize);
+					result = minus(r, result);
+				}
+			} else {
+
+				if (r.isNegated()) {
+					frame = begin("minus", null, inputSize);
+					result = minus(result, r);
+				} else {
+					frame = begin("intersection", null, inputSize);
+					result = intersection(result, r, op);
+				}
+			}
+
+			end(frame, result);
 		}
 
-		case LT: {
-			return (valueA == null) ? false : (((Comparable) valueA).compareTo(valueB) < 0);
+		return result;
+	}
+
+	/**
+	 * Orders the operands of an AND expression for evaluation.
+	 * <p>
+	 * Positive operands come first, ordered by their estimated sizes
+	 * (smallest first), followed by the negated operands in their written
+	 * order.
+	 * </p>
+	 * 
+	 * @param operands
+	 * @param op
+	 * @return The operands in evaluation order
+	 * @throws QueryExecutionException If the size estimation has failed
+	 */
+	private List<Expression> plan(List<Expression> operands, Operation op)
+			throws QueryExecutionException {
+		List<PlannedExpression> positives = new ArrayList<PlannedExpression>(operands.size());
+		List<Expression> ret = new ArrayList<Expression>(operands.size());
+		List<Expression> negatives = new ArrayList<Expression>();
+
+		for (Expression operand : operands) {
+
+			if (isNegated(operand)) {
+				negatives.add(operand);
+			} else {
+				long size = op.isCommutative() ? estimate(operand) : Long.MAX_VALUE;
+				positives.add(new PlannedExpression(operand, size));
+			}
 		}
 
-		case MATCHES: {
-			return ((valueA == null) || (valueB == null)) ? (valueA == valueB) : ((Pattern) valueB)
-					.matcher((CharSequence) valueA).matches();
+		// Note: the sort is stable, the written order is kept for equal sizes
+		Collections.sort(positives);
+
+		for (PlannedExpression pe : positives) {
+			ret.add(pe.expression);
 		}
+		ret.addAll(negatives);
+
+		return ret;
+	}
+
+	/**
+	 * Returns the estimated maximum size of the result of <code>e</code>, or
+	 * {@link Long#MAX_VALUE} if it can not be estimated.
+	 * 
+	 * @param e
+	 * @return
+	 * @throws QueryExecutionException If the size estimation has failed
+	 */
+	private long estimate(Expression e) throws QueryExecutionException {
+
+		if (e instanceof PhraseExpression) {
+			return estimateSize(((PhraseExpression) e).phrase);
+		} else if (e instanceof LogicalExpression) {
+			LogicalExpression le = (LogicalExpression) e;
+			long ret;
+
+			if (le.type == LogicalType.AND) {
+				ret = Long.MAX_VALUE;
+
+				for (Expression exp : le.expressions) {
+
+					if (!isNegated(exp)) {
+						ret = Math.min(ret, estimate(exp));
+					}
+				}
+			} else {
+				ret = 0;
+
+				for (Expression exp : le.expressions) {
+					long size = estimate(exp);
+
+					// Overflow-safe addition
+					ret = (size > Long.MAX_VALUE - ret) ? Long.MAX_VALUE : ret + size;
+				}
+			}
+
+			return ret;
 		}
 
-		throw new UnsupportedOperationException("Unsupported operator: " + op);
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Returns true if the result of <code>e</code> will be negated.
+	 * 
+	 * @param e
+	 * @return
+	 */
+	private boolean isNegated(Expression e) {
+
+		if (e instanceof NotExpression) {
+			return !isNegated(((NotExpression) e).expression);
+		} else if ((e instanceof LogicalExpression)
+				&& (((LogicalExpression) e).type == LogicalType.AND)) {
+
+			for (Expression exp : ((LogicalExpression) e).expressions) {
+
+				if (!isNegated(exp)) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		return false;
 	}
 
 	/**
@@ -218,9 +820,103 @@ public abstract class QuerySolver<R extends QueryResult> {
 	 */
 	protected abstract R query(String phrase) throws QueryExecutionException;
 
+	/**
+	 * Subclasses may provide the implementation to get the united results of
+	 * all the phrases starting with <code>prefix</code> here.
+	 * <p>
+	 * The default implementation throws an
+	 * {@link UnsupportedOperationException}.
+	 * </p>
+	 * 
+	 * @param prefix
+	 * @param pattern The pattern the phrases must match, or null if every
+	 *            phrase with the prefix matches
+	 * @param op The operation to use when adding associations
+	 * @return
+	 * @throws QueryExecutionException if the solver failed to get the results
+	 */
+	protected R queryPrefix(String prefix, Pattern pattern, Operation op)
+			throws QueryExecutionException {
+		throw new UnsupportedOperationException("Prefix queries are not supported");
+	}
+
+	/**
+	 * Subclasses may provide the implementation to get the united results of
+	 * all the phrases within <code>maxEdits</code> edits of
+	 * <code>phrase</code> here.
+	 * <p>
+	 * The default implementation throws an
+	 * {@link UnsupportedOperationException}.
+	 * </p>
+	 * 
+	 * @param phrase
+	 * @param maxEdits The maximum edit distance of the phrases
+	 * @param op The operation to use when adding associations
+	 * @return
+	 * @throws QueryExecutionException if the solver failed to get the results
+	 */
+	protected R queryFuzzy(String phrase, int maxEdits, Operation op)
+			throws QueryExecutionException {
+		throw new UnsupportedOperationException("Fuzzy queries are not supported");
+	}
+
+	/**
+	 * Converts a wildcard pattern to a case insensitive regular expression.
+	 * 
+	 * @param wildcard
+	 * @return
+	 * @see Restrictions#wildcard(String)
+	 */
+	static Pattern toPattern(String wildcard) {
+		StringBuilder buf = new StringBuilder();
+		int literal = 0;
+
+		for (int i = 0; i < wildcard.length(); i++) {
+			char c = wildcard.charAt(i);
+
+			if ((c == '*') || (c == '?')) {
+
+				if (literal < i) {
+					buf.append(Pattern.quote(wildcard.substring(literal, i)));
+				}
+
+				buf.append((c == '*') ? ".*" : ".");
+				literal = i + 1;
+			}
+		}
+
+		if (literal < wildcard.length()) {
+			buf.append(Pattern.quote(wildcard.substring(literal)));
+		}
+
+		return Pattern.compile(buf.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE
+				| Pattern.DOTALL);
+	}
+
+	/**
+	 * Subclasses may provide a cheap estimation of the result size of
+	 * {@link #query(String)} here, which is used for query planning.
+	 * <p>
+	 * The estimation should not load the results, and it should rather be an
+	 * upper bound than an exact value. The default implementation returns
+	 * {@link Long#MAX_VALUE} (unknown).
+	 * </p>
+	 * 
+	 * @param phrase
+	 * @return The estimated result size
+	 * @throws QueryExecutionException if the solver failed to estimate the size
+	 */
+	protected long estimateSize(String phrase) throws QueryExecutionException {
+		return Long.MAX_VALUE;
+	}
+
 	/**
 	 * Subclasses must provide implementation for calculating the union of two
 	 * results here.
+	 * <p>
+	 * Note: the values are consumed by the set operations (see
+	 * {@link #release(QueryResult)}), they must not be used after the call.
+	 * </p>
 	 * 
 	 * @param valueA
 	 * @param valueB
@@ -237,6 +933,7 @@ public abstract class QuerySolver<R extends QueryResult> {
 	 * @param valueB
 	 * @param op The operation to use when adding associations
 	 * @return The intersection of the two values, never null
+	 * @see #union(QueryResult, QueryResult, Operation)
 	 */
 	protected abstract R intersection(R valueA, R valueB, Operation op);
 
@@ -247,17 +944,88 @@ public abstract class QuerySolver<R extends QueryResult> {
 	 * @param valueA
 	 * @param valueB
 	 * @return The subtraction of the two values, never null
+	 * @see #union(QueryResult, QueryResult, Operation)
 	 */
 	protected abstract R minus(R valueA, R valueB);
 
+	/**
+	 * Subclasses may provide a more efficient implementation for calculating
+	 * the union of many results at once here.
+	 * <p>
+	 * The associations of equal targets must be combined in the order of the
+	 * values. The default implementation unites the values pairwise, from left
+	 * to right.
+	 * </p>
+	 * 
+	 * @param values The results to unite, none of them negated
+	 * @param op The operation to use when adding associations
+	 * @return The union of the values, never null
+	 * @see #union(QueryResult, QueryResult, Operation)
+	 */
+	protected R unionAll(List<R> values, Operation op) {
+		R ret = values.get(0);
+
+		for (int i = 1; i < values.size(); i++) {
+			ret = union(ret, values.get(i), op);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Subclasses may recycle the buffers of a result which is not used any
+	 * more here.
+	 * <p>
+	 * The solver releases the intermediate results it has consumed, but never
+	 * the results it returns. The default implementation does nothing.
+	 * </p>
+	 * 
+	 * @param result
+	 */
+	protected void release(R result) {
+	}
+
+	/**
+	 * Subclasses may provide a more efficient implementation for calculating
+	 * the top elements of the union of the given results here.
+	 * <p>
+	 * The default implementation calculates the whole union, and then limits
+	 * it.
+	 * </p>
+	 * 
+	 * @param values The results to unite, none of them negated
+	 * @param op The operation to use when adding associations
+	 * @param offset The number of top results to skip
+	 * @param limit The number of results to return
+	 * @return The limited union of the values, never null
+	 * @see #limit(QueryResult, int, int)
+	 */
+	protected R unionTop(List<R> values, Operation op, int offset, int limit) {
+		R all = unionAll(values, op);
+		R ret = limit(all, offset, limit);
+
+		if (ret != all) {
+			release(all);
+		}
+
+		return ret;
+	}
+
 	/**
 	 * Subclasses should provide implementation for limiting the result set.
+	 * <p>
+	 * If <code>limit</code> is positive, the <code>limit</code> results
+	 * following the first <code>offset</code> results must be returned, sorted
+	 * by their values, descending. Otherwise the first <code>offset</code>
+	 * results should be skipped in their current order.
+	 * </p>
 	 * 
 	 * @param results
+	 * @param offset
 	 * @param limit
 	 * @return
 	 */
-	protected abstract R limit(R results, int limit);
+	protected abstract R limit(R results, int offset, int limit);
 
 	/**
 	 * Subclasses should provide implementation for filtering the result set.
@@ -281,15 +1049,48 @@ public abstract class QuerySolver<R extends QueryResult> {
 		throw new UnsupportedOperationException();
 	}
 
-	public class Comparison {
+	// An expression and its estimated result size
+	private static class PlannedExpression implements Comparable<PlannedExpression> {
+		final Expression expression;
+		final long size;
+
+		PlannedExpression(Expression expression, long size) {
+			this.expression = expression;
+			this.size = size;
+		}
+
+		@Override
+		public int compareTo(PlannedExpression o) {
+			return (size < o.size) ? -1 : ((size == o.size) ? 0 : 1);
+		}
+	}
+
+	/**
+	 * A filter comparison, and its compiled predicate.
+	 * 
+	 * @author Gergely Kiss
+	 */
+	public static class Comparison {
 		public final String fieldName;
 		public final Operator op;
 		public final Object value;
+		public final Predicate predicate;
 
+		/**
+		 * Creates and compiles a comparison.
+		 * 
+		 * @param fieldName
+		 * @param op
+		 * @param value
+		 * @throws IllegalArgumentException if the value is not valid for the
+		 *             operator
+		 */
 		public Comparison(String fieldName, Operator op, Object value) {
 			this.fieldName = fieldName;
 			this.op = op;
 			this.value = value;
+			this.predicate = Predicate.compile(op, value);
 		}
 	}
+
 }
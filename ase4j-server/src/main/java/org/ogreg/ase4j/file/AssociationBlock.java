@@ -33,6 +33,16 @@ class AssociationBlock implements Serializable {
 	/** The common <code>from</code> part of the associations. */
 	int from;
 
+	/**
+	 * The upper bound of the association {@link #values}.
+	 * <p>
+	 * It is the maximum of every value ever merged to this row, so it is not
+	 * necessarily a stored value (associations may be overwritten with smaller
+	 * values), but no value is greater than this.
+	 * </p>
+	 */
+	float maxValue = Float.NEGATIVE_INFINITY;
+
 	/**
 	 * The <code>to</code> parts of the associations sorted numerically,
 	 * ascending. Has the same order as {@link #values}.
@@ -121,12 +131,14 @@ class AssociationBlock implements Serializable {
 			Arrays.insert(values, size, tidx, value);
 			size++;
 			changed = true;
+			maxValue = Math.max(maxValue, value);
 			return 1;
 		}
 		// Update
 		else {
 			values[tidx] = op.calculate(values[tidx], value);
 			changed |= value != values[tidx];
+			maxValue = Math.max(maxValue, values[tidx]);
 			return 0;
 		}
 	}
@@ -143,8 +155,34 @@ class AssociationBlock implements Serializable {
 		return (tidx < 0) ? 0 : values[tidx];
 	}
 
+	/**
+	 * Returns a copy of this row, with all of its values multiplied by
+	 * <code>multiplier</code>.
+	 * 
+	 * @param multiplier
+	 * @return
+	 */
+	public AssociationBlock scale(float multiplier) {
+		AssociationBlock ret = new AssociationBlock(capacity, size, from);
+
+		System.arraycopy(tos, 0, ret.tos, 0, size);
+
+		for (int i = 0; i < size; i++) {
+			float value = values[i] * multiplier;
+
+			ret.values[i] = value;
+			ret.maxValue = Math.max(ret.maxValue, value);
+		}
+
+		ret.changed = changed;
+
+		return ret;
+	}
+
 	public AssociationResultBlock asResult() {
-		return new AssociationResultBlock(tos, values, size);
+		AssociationResultBlock ret = new AssociationResultBlock(tos, values, size);
+		ret.maxValue = maxValue;
+		return ret;
 	}
 
 	protected void grow(int targetSize) {
@@ -29,6 +29,18 @@ class AssociationResultBlock implements QueryResult {
 	/** The number of associations currently stored in the row. */
 	int size;
 
+	/**
+	 * The upper bound of the {@link #values}, or {@link Float#NaN} if it is
+	 * not known yet.
+	 */
+	float maxValue = Float.NaN;
+
+	/**
+	 * True if the buffers of the result were acquired from a
+	 * {@link ResultBlockPool}, and may be released to it.
+	 */
+	boolean pooled = false;
+
 	public AssociationResultBlock(int size) {
 		this.size = size;
 		this.tos = new int[size];
@@ -51,4 +63,34 @@ class AssociationResultBlock implements QueryResult {
 		this.negated = negated;
 	}
 
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns an upper bound of the association values in this result.
+	 * <p>
+	 * Results created from stored blocks know their upper bound, for other
+	 * results it is calculated (and remembered) when first requested.
+	 * </p>
+	 * 
+	 * @return The upper bound, or {@link Float#NEGATIVE_INFINITY} if the result
+	 *         is empty
+	 */
+	public float maxValue() {
+
+		if (Float.isNaN(maxValue)) {
+			float max = Float.NEGATIVE_INFINITY;
+
+			for (int i = 0; i < size; i++) {
+				max = Math.max(max, values[i]);
+			}
+
+			maxValue = max;
+		}
+
+		return maxValue;
+	}
+
 }
@@ -25,13 +25,27 @@ import org.ogreg.common.nio.NioUtils;
  * until they reach a critical amount ({@link #maxCached}), after which they are
  * {@link #flush()}-ed to disk.
  * </p>
+ * <p>
+ * The stores of the previous format (<code>AS4J</code>, without the maximum
+ * values of the blocks) are still read, and the maximum values are computed
+ * when the blocks are loaded. They are rewritten in the current format when
+ * their associations are next written (or when they are flushed).
+ * </p>
  * 
  * @author Gergely Kiss
  */
 class CachedBlockStore extends BaseIndexedStore<AssociationBlock> {
-	private static final byte[] MAGIC = new byte[] { 'A', 'S', '4', 'J' };
+	// Format 2: association blocks contain their maximum values
+	private static final byte[] MAGIC = new byte[] { 'A', 'S', 'J', '2' };
+
+	// Format 1: association blocks without their maximum values
+	private static final byte[] LEGACY_MAGIC = new byte[] { 'A', 'S', '4', 'J' };
+
+	static final NioSerializer<AssociationBlock> Serializer = new AssociationBlockSerializer(
+			true);
 
-	static final NioSerializer<AssociationBlock> Serializer = new AssociationBlockSerializer();
+	static final NioSerializer<AssociationBlock> LegacySerializer = new AssociationBlockSerializer(
+			false);
 
 	// The base capacity of a newly created association store
 	static int baseCapacity = 1024;
@@ -50,6 +64,12 @@ class CachedBlockStore extends BaseIndexedStore<AssociationBlock> {
 	/** The number of currently stored associations. */
 	private long associationCount = 0;
 
+	/** The listener notified of the flushed blocks, or null. */
+	private UpdateListener updateListener;
+
+	/** True if the store is of the previous format. */
+	private boolean legacy = false;
+
 	public CachedBlockStore() {
 		setSerializer(Serializer);
 	}
@@ -59,7 +79,7 @@ class CachedBlockStore extends BaseIndexedStore<AssociationBlock> {
 		super.writeHeader(channel);
 
 		// Writing magic bytes
-		channel.write(ByteBuffer.wrap(MAGIC));
+		channel.write(ByteBuffer.wrap(legacy ? LEGACY_MAGIC : MAGIC));
 
 		// Writing association count
 		NioUtils.writeLong(channel, associationCount);
@@ -70,7 +90,21 @@ class CachedBlockStore extends BaseIndexedStore<AssociationBlock> {
 		super.readHeader(channel);
 
 		// Reading magic bytes
-		channel.read(ByteBuffer.allocate(4));
+		ByteBuffer magic = ByteBuffer.allocate(4);
+		channel.read(magic);
+
+		magic.flip();
+
+		if (ByteBuffer.wrap(MAGIC).equals(magic)) {
+			legacy = false;
+		} else if (ByteBuffer.wrap(LEGACY_MAGIC).equals(magic)) {
+			legacy = true;
+		} else {
+			throw new IOException("Unsupported association store format: "
+					+ new String(magic.array(), "ISO-8859-1"));
+		}
+
+		setSerializer(legacy ? LegacySerializer : Serializer);
 
 		// Reading association count
 		associationCount = NioUtils.readLong(channel);
@@ -107,6 +141,33 @@ class CachedBlockStore extends BaseIndexedStore<AssociationBlock> {
 		return assocs;
 	}
 
+	/**
+	 * Returns the number of associations stored for <code>from</code>, without
+	 * loading the association block.
+	 * <p>
+	 * Only the block header is read, so this is cheap enough to be used for
+	 * query planning. Note: the working set is not counted, since it is not
+	 * visible for the queries either.
+	 * </p>
+	 * 
+	 * @param from
+	 * @return The size of the stored block, or 0 if it was not found
+	 * @throws IOException in case of a storage failure
+	 */
+	public int getBlockSize(int from) throws IOException {
+		// Block header: capacity, size, from (, maxValue)
+		return readInt(from, 4);
+	}
+
+	/**
+	 * Returns the size of the block headers of the store, in bytes.
+	 * 
+	 * @return
+	 */
+	int getBlockHeaderSize() {
+		return legacy ? 12 : 16;
+	}
+
 	/**
 	 * Returns the association strength between <code>from</code> and
 	 * <code>to</code>.
@@ -137,12 +198,27 @@ class CachedBlockStore extends BaseIndexedStore<AssociationBlock> {
 		this.maxCached = maxCached;
 	}
 
+	/**
+	 * Sets the listener to notify when association blocks are written to the
+	 * store.
+	 * 
+	 * @param updateListener
+	 */
+	public void setUpdateListener(UpdateListener updateListener) {
+		this.updateListener = updateListener;
+	}
+
 	@Override
 	protected void onBeforeFlush() throws IOException {
 		flushWorkingSet();
 	}
 
 	synchronized void flushWorkingSet() throws IOException {
+
+		if (legacy) {
+			upgrade();
+		}
+
 		List<AssociationBlock> assocs = new ArrayList<AssociationBlock>(workingSet.blocks.values());
 
 		// System.err.println("Sorting " + assocs.size() + "...");
@@ -171,12 +247,32 @@ class CachedBlockStore extends BaseIndexedStore<AssociationBlock> {
 				stored.merge(assoc, workingSet.lastOp);
 				update(stored.from, stored);
 			}
+
+			if (updateListener != null) {
+				updateListener.blockUpdated(assoc.from, stored == null);
+			}
 		}
 
 		workingSet.clear();
 		// System.err.println("Done.");
 	}
 
+	// Rewrites the store of the previous format in the current format
+	private void upgrade() throws IOException {
+		legacy = false;
+		boolean success = false;
+
+		try {
+			rewrite(Serializer);
+			success = true;
+		} finally {
+
+			if (!success) {
+				legacy = true;
+			}
+		}
+	}
+
 	@Override
 	protected int getBaseCapacity() {
 		return baseCapacity;
@@ -186,8 +282,31 @@ class CachedBlockStore extends BaseIndexedStore<AssociationBlock> {
 		return associationCount;
 	}
 
-	// NIO Serializer for association blocks
+	/**
+	 * Listener interface for association block updates.
+	 * 
+	 * @author Gergely Kiss
+	 */
+	interface UpdateListener {
+
+		/**
+		 * Called after the association block of <code>from</code> has been
+		 * written to the store.
+		 * 
+		 * @param from
+		 * @param created True if the block was newly created
+		 */
+		void blockUpdated(int from, boolean created);
+	}
+
+	// NIO Serializer for association blocks, with or without their maximum
+	// values
 	private static class AssociationBlockSerializer implements NioSerializer<AssociationBlock> {
+		private final boolean maxValues;
+
+		AssociationBlockSerializer(boolean maxValues) {
+			this.maxValues = maxValues;
+		}
 
 		@Override
 		public void serialize(AssociationBlock value, ByteBuffer dest) {
@@ -198,7 +317,14 @@ class CachedBlockStore extends BaseIndexedStore<AssociationBlock> {
 			iview.put(value.size);
 			iview.put(value.from);
 
-			int tpos = iview.position();
+			fview.position(iview.position());
+
+			if (maxValues) {
+				fview.put(value.maxValue);
+			}
+
+			int tpos = fview.position();
+			iview.position(tpos);
 			iview.put(value.tos, 0, value.size);
 
 			fview.position(tpos + value.capacity);
@@ -220,12 +346,27 @@ class CachedBlockStore extends BaseIndexedStore<AssociationBlock> {
 
 			AssociationBlock assocs = new AssociationBlock(capacity, size, from);
 
-			int tpos = iview.position();
+			fview.position(iview.position());
+
+			if (maxValues) {
+				assocs.maxValue = fview.get();
+			}
+
+			int tpos = fview.position();
+			iview.position(tpos);
 			iview.get(assocs.tos, 0, size);
 
 			fview.position(tpos + capacity);
 			fview.get(assocs.values, 0, size);
 
+			// The blocks are loaded whole, so the maximum is computed
+			if (!maxValues) {
+
+				for (int i = 0; i < size; i++) {
+					assocs.maxValue = Math.max(assocs.maxValue, assocs.values[i]);
+				}
+			}
+
 			assocs.changed = false;
 
 			return assocs;
@@ -243,9 +384,9 @@ class CachedBlockStore extends BaseIndexedStore<AssociationBlock> {
 
 		private final int sizeOf(int capacity) {
 			// Size of an association:
-			// 4 + 4 + 4 + capacity * 4 + capacity * 4
-			// capacity + size + from + tos + values
-			return 12 + capacity * 8;
+			// 4 + 4 + 4 (+ 4) + capacity * 4 + capacity * 4
+			// capacity + size + from (+ maxValue) + tos + values
+			return (maxValues ? 16 : 12) + capacity * 8;
 		}
 	}
 
@@ -1,12 +1,31 @@
 package org.ogreg.ase4j.file;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Pattern;
 
 import org.ogreg.ase4j.AssociationStore.Operation;
+import org.ogreg.ase4j.Params;
+import org.ogreg.ase4j.criteria.Predicate;
+import org.ogreg.ase4j.criteria.Query;
 import org.ogreg.ase4j.criteria.QueryExecutionException;
+import org.ogreg.ase4j.criteria.QueryProfiler;
+import org.ogreg.ase4j.criteria.QueryProfiler.Frame;
 import org.ogreg.ase4j.criteria.QuerySolver;
+import org.ogreg.ase4j.file.QueryCache.Dependencies;
+import org.ogreg.ostore.ObjectStore;
 import org.ogreg.ostore.ObjectStoreException;
+import org.ogreg.ostore.index.StringIndex;
+import org.ogreg.util.Arrays;
 import org.ogreg.util.IntFloatSelector;
 
 /**
@@ -15,14 +34,42 @@ import org.ogreg.util.IntFloatSelector;
  * Note: {@link AssociationResultBlock}s created by this implementation may
  * <b>not</b> be ordered.
  * </p>
+ * <p>
+ * The buffers of the intermediate results are acquired from the
+ * {@link ResultBlockPool} of the store, and released as soon as the results
+ * are consumed by the next operation. Intersections and subtractions are
+ * calculated in place, if the buffers of their first operand are pooled.
+ * </p>
  * 
  * @author Gergely Kiss
  */
 class FileAssociationSolver extends QuerySolver<AssociationResultBlock> {
+
+	/** The minimum number of associations in a chunk of a parallel operation. */
+	private static final int MIN_CHUNK_SIZE = 1 << 16;
+
 	private final FileAssociationStoreImpl<?, ?> store;
 
+	/** The dependencies of the solved queries are collected here, if not null. */
+	private final Dependencies deps;
+
+	/** The pool of the intermediate result buffers. */
+	private final ResultBlockPool pool;
+
 	public FileAssociationSolver(FileAssociationStoreImpl<?, ?> store) {
+		this(store, null);
+	}
+
+	public FileAssociationSolver(FileAssociationStoreImpl<?, ?> store, Dependencies deps) {
+		this(store, deps, (store == null) ? new ResultBlockPool(
+				FileAssociationStoreImpl.DEFAULT_RESULT_POOL_SIZE) : store.getResultPool());
+	}
+
+	FileAssociationSolver(FileAssociationStoreImpl<?, ?> store, Dependencies deps,
+			ResultBlockPool pool) {
 		this.store = store;
+		this.deps = deps;
+		this.pool = pool;
 	}
 
 	@Override
@@ -33,8 +80,18 @@ class FileAssociationSolver extends QuerySolver<AssociationResultBlock> {
 			// TODO Field name? See: StringIndex.uniqueResult
 			Long k = store.getFromStore().uniqueResult("", phrase);
 
+			if (deps != null) {
+
+				if (k == null) {
+					deps.addMissing();
+				} else {
+					deps.add(k.intValue());
+				}
+			}
+
 			if (k != null) {
 				AssociationBlock assoc = store.getAssociation(k.intValue());
+				profile(assoc);
 
 				if (assoc != null) {
 					a = assoc.asResult();
@@ -49,136 +106,877 @@ class FileAssociationSolver extends QuerySolver<AssociationResultBlock> {
 		return a;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The matching phrases are enumerated by the unique index of the
+	 * <code>from</code> store, their association blocks are loaded in parallel
+	 * (if the solver has an executor), and united at once (see
+	 * {@link #unionAll(List, Operation)}).
+	 * </p>
+	 * 
+	 * @throws QueryExecutionException if the query matches more phrases than
+	 *             {@link FileAssociationStoreImpl#getMaxPhraseExpansions()}
+	 */
 	@Override
-	protected AssociationResultBlock intersection(AssociationResultBlock valueA,
-			AssociationResultBlock valueB, Operation op) {
-		int[] ta = valueA.tos;
-		int[] tb = valueB.tos;
+	protected AssociationResultBlock queryPrefix(String prefix, Pattern pattern, Operation op)
+			throws QueryExecutionException {
+		int limit = store.getMaxPhraseExpansions();
 
-		int la = valueA.size;
-		int lb = valueB.size;
-		int len = Math.min(la, lb);
+		try {
+			// TODO Field name? See: StringIndex.uniqueResult
+			Map<String, Long> keys = store.getFromStore().prefixResults("", prefix, pattern,
+					limit + 1);
 
-		AssociationResultBlock row = new AssociationResultBlock(len);
+			if (keys == null) {
+				throw new QueryExecutionException(
+						"The phrase index does not support prefix queries");
+			}
 
-		int a, b, cnt = 0;
+			checkExpansions((pattern == null) ? prefix : pattern.pattern(), keys.size(), limit);
 
-		for (int i = 0, j = 0; (i < la) && (j < lb);) {
-			a = ta[i];
-			b = tb[j];
+			return unionAll(load(keys.values()), null, op);
+		} catch (ObjectStoreException e) {
+			throw new QueryExecutionException(e);
+		}
+	}
 
-			// Note: arrays are sorted in _ascending_ order
-			if (a < b) {
-				i++;
-			} else if (a > b) {
-				j++;
-			} else {
-				row.tos[cnt] = a;
-				row.values[cnt] = op.calculate(valueA.values[i], valueB.values[j]);
-				cnt++;
-				i++;
-				j++;
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The similar phrases are looked up by the unique index of the
+	 * <code>from</code> store (by intersecting a Levenshtein automaton with its
+	 * trie, if it is a {@link StringIndex}). Their association blocks are
+	 * loaded in parallel (if the solver has an executor), and united at once,
+	 * weighted by their edit distances (see {@link #weight(int, int)}).
+	 * </p>
+	 * 
+	 * @throws QueryExecutionException if the query matches more phrases than
+	 *             {@link FileAssociationStoreImpl#getMaxPhraseExpansions()}
+	 */
+	@Override
+	protected AssociationResultBlock queryFuzzy(String phrase, int maxEdits, Operation op)
+			throws QueryExecutionException {
+		int limit = store.getMaxPhraseExpansions();
+
+		try {
+			// TODO Field name? See: StringIndex.uniqueResult
+			Map<Long, Integer> keys = store.getFromStore().similarResults("", phrase, maxEdits,
+					limit + 1);
+
+			if (keys == null) {
+				throw new QueryExecutionException(
+						"The phrase index does not support fuzzy queries");
+			}
+
+			checkExpansions(phrase + "~" + maxEdits, keys.size(), limit);
+
+			float[] weights = new float[keys.size()];
+			int i = 0;
+
+			for (Integer distance : keys.values()) {
+				weights[i++] = weight(distance, maxEdits);
+			}
+
+			return unionAll(load(keys.keySet()), weights, op);
+		} catch (ObjectStoreException e) {
+			throw new QueryExecutionException(e);
+		}
+	}
+
+	/**
+	 * Returns the weight of the associations of a phrase with the given edit
+	 * distance.
+	 * <p>
+	 * Exact matches have the weight of 1, and the weight decreases linearly
+	 * with the distance, down to <code>1 / (maxEdits + 1)</code>.
+	 * </p>
+	 * 
+	 * @param distance
+	 * @param maxEdits
+	 * @return
+	 */
+	static float weight(int distance, int maxEdits) {
+		return 1 - (float) distance / (maxEdits + 1);
+	}
+
+	private static void checkExpansions(String query, int expansions, int limit)
+			throws QueryExecutionException {
+
+		if (expansions > limit) {
+			throw new QueryExecutionException("The query " + query + " matches more than "
+					+ limit + " phrases. Please revise your query.");
+		}
+	}
+
+	/**
+	 * Loads the association blocks of <code>keys</code> as results, and adds
+	 * them to the query dependencies.
+	 * <p>
+	 * The blocks are loaded in parallel chunks (if the solver has an
+	 * executor).
+	 * </p>
+	 * 
+	 * @param keys
+	 * @return The results of the blocks in the order of the keys, or null for
+	 *         the missing blocks
+	 * @throws QueryExecutionException if the blocks could not be loaded
+	 */
+	private List<AssociationResultBlock> load(Collection<Long> keys)
+			throws QueryExecutionException {
+		final int[] froms = new int[keys.size()];
+		int i = 0;
+
+		for (Long k : keys) {
+			froms[i++] = k.intValue();
+		}
+
+		if (deps != null) {
+
+			// New phrases may match later
+			deps.addMissing();
+
+			for (int from : froms) {
+				deps.add(from);
+			}
+		}
+
+		int n = Math.max(Math.min(getParallelism(), froms.length), 1);
+		List<FutureTask<List<AssociationResultBlock>>> tasks = new ArrayList<FutureTask<List<AssociationResultBlock>>>(
+				n);
+
+		for (int k = 0; k < n; k++) {
+			final int from = (int) ((long) k * froms.length / n);
+			final int to = (int) ((long) (k + 1) * froms.length / n);
+
+			tasks.add(fork(new Callable<List<AssociationResultBlock>>() {
+				@Override
+				public List<AssociationResultBlock> call() throws IOException {
+					List<AssociationResultBlock> ret = new ArrayList<AssociationResultBlock>(to
+							- from);
+
+					for (int i = from; i < to; i++) {
+						AssociationBlock assoc = store.getAssociation(froms[i]);
+						profile(assoc);
+						ret.add((assoc == null) ? null : assoc.asResult());
+					}
+
+					return ret;
+				}
+			}));
+		}
+
+		List<AssociationResultBlock> ret = new ArrayList<AssociationResultBlock>(froms.length);
+
+		for (FutureTask<List<AssociationResultBlock>> task : tasks) {
+			ret.addAll(join(task));
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Solves the query on the member stores of a group in parallel, and
+	 * merges their results (see {@link #unionAll(List, float[], Operation)}).
+	 * 
+	 * @param stores The member stores, sharing the same <code>to</code> store
+	 * @param multipliers The weights of the results of the members
+	 * @param query
+	 * @return
+	 * @throws QueryExecutionException if any of the members failed to solve
+	 *             the query
+	 * @see FileAssociationStoreImpl#queryGroup(List, float[], Query,
+	 *      QueryProfiler)
+	 */
+	AssociationResultBlock solveGroup(List<? extends FileAssociationStoreImpl<?, ?>> stores,
+			float[] multipliers, Query query) throws QueryExecutionException {
+		List<AssociationResultBlock> results = solveMembers(stores, query);
+		QueryProfiler profiler = getProfiler();
+		Frame frame = null;
+
+		if (profiler != null) {
+			long size = 0;
+
+			for (AssociationResultBlock r : results) {
+				size += r.size;
 			}
+
+			frame = profiler.begin("merge", null, size);
 		}
 
-		row.size = cnt;
+		AssociationResultBlock ret = unionAll(results, multipliers, Params.ensureNotNull(query
+				.params()).op);
 
-		return row;
+		if (frame != null) {
+			profiler.end(frame, ret.size);
+		}
+
+		return ret;
 	}
 
+	/**
+	 * Solves a limited query on the member stores of a group, asking only
+	 * for the top results of every member.
+	 * <p>
+	 * Only valid for {@link Operation#SUM} and positive multipliers. A target
+	 * which is not in the top of a member whose results were cut is either
+	 * missing from that member, or has at most the smallest value of its
+	 * top. This bounds the merged values of the targets which were not seen
+	 * in every cut top (just like in the threshold algorithm of Fagin et
+	 * al.). The merge is returned only if it provably contains the top
+	 * <code>k</code> of the full merge with the same values: the targets
+	 * seen in every cut top have exact values, and none of the other targets
+	 * may reach the <code>k</code>th largest of them.
+	 * </p>
+	 * 
+	 * @param stores The member stores, sharing the same <code>to</code> store
+	 * @param multipliers The positive weights of the results of the members
+	 * @param query The query of the members, limited to their tops, which
+	 *            should be larger than <code>k</code> for the best chance of
+	 *            a proof
+	 * @param k The number of the top results needed
+	 * @return The exact results of the merge which contain its top
+	 *         <code>k</code>, or null if the full results of the members are
+	 *         needed
+	 * @throws QueryExecutionException if any of the members failed to solve
+	 *             the query
+	 * @see #solveGroup(List, float[], Query)
+	 */
+	AssociationResultBlock solveGroupTop(List<? extends FileAssociationStoreImpl<?, ?>> stores,
+			float[] multipliers, Query query, int k) throws QueryExecutionException {
+		List<AssociationResultBlock> results = solveMembers(stores, query);
+		QueryProfiler profiler = getProfiler();
+		Frame frame = null;
+
+		if (profiler != null) {
+			long size = 0;
+
+			for (AssociationResultBlock r : results) {
+				size += r.size;
+			}
+
+			frame = profiler.begin("mergeTop", null, size);
+		}
+
+		Map<Integer, Candidate> candidates = new TreeMap<Integer, Candidate>();
+		int cuts = 0;
+
+		// The upper bound of the merged value of a target seen in no cut top
+		double unseen = 0;
+
+		for (int i = 0; i < results.size(); i++) {
+			AssociationResultBlock r = results.get(i);
+			boolean cut = (r.size >= query.limit());
+			float bound = 0;
+
+			if (cut) {
+				float min = Float.MAX_VALUE;
+
+				for (int j = 0; j < r.size; j++) {
+					min = Math.min(min, r.values[j]);
+				}
+
+				bound = multipliers[i] * Math.max(0, min);
+				unseen += bound;
+				cuts++;
+			}
+
+			for (int j = 0; j < r.size; j++) {
+				Candidate c = candidates.get(r.tos[j]);
+
+				if (c == null) {
+					c = new Candidate();
+					candidates.put(r.tos[j], c);
+				}
+
+				// The same order of additions as in unionAll
+				c.value = c.value + r.values[j] * multipliers[i];
+
+				if (cut) {
+					c.cuts++;
+					c.bound += bound;
+				}
+			}
+
+			release(r);
+		}
+
+		AssociationResultBlock ret = new AssociationResultBlock(candidates.size());
+		int n = 0;
+
+		for (Map.Entry<Integer, Candidate> e : candidates.entrySet()) {
+
+			if (e.getValue().cuts == cuts) {
+				ret.tos[n] = e.getKey();
+				ret.values[n] = e.getValue().value;
+				n++;
+			}
+		}
+
+		ret.size = n;
+
+		if ((cuts > 0) && !isTop(ret, candidates.values(), cuts, unseen, k, stores.size())) {
+			ret = null;
+		}
+
+		if (frame != null) {
+			profiler.end(frame, (ret == null) ? 0 : ret.size);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Returns true if none of the targets which were not seen in every cut
+	 * top may reach the <code>k</code>th largest exact value.
+	 * 
+	 * @param exact The targets seen in every cut top
+	 * @param candidates All the seen targets
+	 * @param cuts The number of the cut tops
+	 * @param unseen The upper bound of the targets seen in no cut top
+	 * @param k
+	 * @param members The number of the members, for rounding errors
+	 * @return
+	 */
+	private static boolean isTop(AssociationResultBlock exact, Collection<Candidate> candidates,
+			int cuts, double unseen, int k, int members) {
+
+		if (exact.size < k) {
+			return false;
+		}
+
+		float[] values = java.util.Arrays.copyOf(exact.values, exact.size);
+		java.util.Arrays.sort(values);
+
+		float kth = values[exact.size - k];
+		double slack = members * Math.ulp(kth);
+
+		if (unseen + slack >= kth) {
+			return false;
+		}
+
+		for (Candidate c : candidates) {
+
+			if ((c.cuts < cuts) && (c.value + (unseen - c.bound) + slack >= kth)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	// Solves the query on the member stores of a group in parallel
+	private List<AssociationResultBlock> solveMembers(
+			List<? extends FileAssociationStoreImpl<?, ?>> stores, final Query query)
+			throws QueryExecutionException {
+		List<FutureTask<AssociationResultBlock>> tasks = new ArrayList<FutureTask<AssociationResultBlock>>(
+				stores.size());
+
+		for (final FileAssociationStoreImpl<?, ?> member : stores) {
+			tasks.add(fork(new Callable<AssociationResultBlock>() {
+				@Override
+				public AssociationResultBlock call() throws QueryExecutionException {
+					return member.solve(query, getProfiler());
+				}
+			}));
+		}
+
+		List<AssociationResultBlock> results = new ArrayList<AssociationResultBlock>(tasks
+				.size());
+
+		for (FutureTask<AssociationResultBlock> task : tasks) {
+			results.add(join(task));
+		}
+
+		return results;
+	}
+
+	/**
+	 * Reports a loaded association block to the profiler of the query, if it
+	 * is profiled.
+	 * 
+	 * @param assoc The block, or null if it was not found
+	 */
+	private void profile(AssociationBlock assoc) {
+		QueryProfiler profiler = getProfiler();
+
+		if ((profiler != null) && (assoc != null)) {
+			profiler.addInput(assoc.size);
+
+			// The serialized size of the block (see CachedBlockStore)
+			profiler.addBytesRead(16 + (long) assoc.capacity * 8);
+		}
+	}
+
+	/**
+	 * Calculates the union of many results at once, using a k-way merge.
+	 * <p>
+	 * The associations of equal tos are combined in the order of the results,
+	 * so the values are the same as if the results were united pairwise, from
+	 * left to right (see {@link #union(AssociationResultBlock,
+	 * AssociationResultBlock, Operation)}).
+	 * </p>
+	 * 
+	 * @param results
+	 * @param op
+	 * @return
+	 */
 	@Override
-	protected AssociationResultBlock minus(AssociationResultBlock valueA,
-			AssociationResultBlock valueB) {
-		int[] ta = valueA.tos;
-		int[] tb = valueB.tos;
+	protected AssociationResultBlock unionAll(List<AssociationResultBlock> results, Operation op) {
+		return unionAll(results, null, op);
+	}
 
-		int la = valueA.size;
-		int lb = valueB.size;
-		int len = la;
+	/**
+	 * Calculates the union of many weighted results at once, using a k-way
+	 * merge.
+	 * <p>
+	 * The values of every result are multiplied by its weight before they are
+	 * combined. The results are released when they are merged.
+	 * </p>
+	 * 
+	 * @param results The results to unite, null elements are skipped
+	 * @param weights The weights of the results, or null if all of them are 1
+	 * @param op
+	 * @return
+	 * @see #unionAll(List, Operation)
+	 */
+	AssociationResultBlock unionAll(List<AssociationResultBlock> results, float[] weights,
+			Operation op) {
+		int k = results.size();
 
-		AssociationResultBlock row = new AssociationResultBlock(len);
+		if ((k == 1) && (weights == null) && (results.get(0) != null)) {
+			return results.get(0);
+		}
 
-		int a, b, i = 0, cnt = 0;
+		AssociationResultBlock[] rs = results.toArray(new AssociationResultBlock[k]);
+		int[] pos = new int[k];
+		int[] heap = new int[k];
+		int hs = 0;
+		long total = 0;
 
-		for (int j = 0; (i < la) && (j < lb);) {
-			a = ta[i];
-			b = tb[j];
+		for (int i = 0; i < k; i++) {
 
-			// Note: arrays are sorted in _ascending_ order
-			if (a < b) {
-				row.tos[cnt] = a;
-				row.values[cnt] = valueA.values[i];
-				cnt++;
-				i++;
-			} else if (a > b) {
-				j++;
+			if ((rs[i] != null) && (rs[i].size > 0)) {
+				total += rs[i].size;
+				heap[hs++] = i;
+			}
+		}
+
+		for (int i = hs / 2 - 1; i >= 0; i--) {
+			siftDown(heap, hs, i, rs, pos);
+		}
+
+		AssociationResultBlock ret = pool.acquire((int) total);
+		int cnt = 0;
+
+		while (hs > 0) {
+			int i = heap[0];
+			AssociationResultBlock r = rs[i];
+			int to = r.tos[pos[i]];
+			float value = (weights == null) ? r.values[pos[i]] : r.values[pos[i]] * weights[i];
+
+			if ((cnt > 0) && (ret.tos[cnt - 1] == to)) {
+				ret.values[cnt - 1] = op.calculate(ret.values[cnt - 1], value);
 			} else {
-				i++;
-				j++;
+				ret.tos[cnt] = to;
+				ret.values[cnt] = value;
+				cnt++;
+			}
+
+			if (++pos[i] >= r.size) {
+				heap[0] = heap[--hs];
 			}
+
+			siftDown(heap, hs, 0, rs, pos);
 		}
 
-		for (; i < la; i++, cnt++) {
-			row.tos[cnt] = ta[i];
-			row.values[cnt] = valueA.values[i];
+		ret.size = cnt;
+
+		for (AssociationResultBlock r : rs) {
+			release(r);
 		}
 
-		row.size = cnt;
+		return ret;
+	}
 
-		return row;
+	// Restores the heap of result indices, ordered by their current tos and
+	// then by their indices
+	private static void siftDown(int[] heap, int size, int index, AssociationResultBlock[] rs,
+			int[] pos) {
+
+		while (true) {
+			int min = index;
+			int l = 2 * index + 1;
+			int r = l + 1;
+
+			if ((l < size) && less(heap[l], heap[min], rs, pos)) {
+				min = l;
+			}
+
+			if ((r < size) && less(heap[r], heap[min], rs, pos)) {
+				min = r;
+			}
+
+			if (min == index) {
+				return;
+			}
+
+			int tmp = heap[min];
+			heap[min] = heap[index];
+			heap[index] = tmp;
+			index = min;
+		}
+	}
+
+	private static boolean less(int a, int b, AssociationResultBlock[] rs, int[] pos) {
+		int ta = rs[a].tos[pos[a]];
+		int tb = rs[b].tos[pos[b]];
+
+		return (ta < tb) || ((ta == tb) && (a < b));
+	}
+
+	@Override
+	protected long estimateSize(String phrase) throws QueryExecutionException {
+
+		try {
+			Long k = store.getFromStore().uniqueResult("", phrase);
+
+			return (k == null) ? 0 : store.getAssociationSize(k.intValue());
+		} catch (IOException e) {
+			throw new QueryExecutionException(e);
+		} catch (ObjectStoreException e) {
+			throw new QueryExecutionException(e);
+		}
+	}
+
+	@Override
+	protected AssociationResultBlock intersection(AssociationResultBlock valueA,
+			AssociationResultBlock valueB, Operation op) {
+		return apply(SetOperation.INTERSECTION, valueA, valueB, op);
+	}
+
+	@Override
+	protected AssociationResultBlock minus(AssociationResultBlock valueA,
+			AssociationResultBlock valueB) {
+		return apply(SetOperation.MINUS, valueA, valueB, null);
 	}
 
 	@Override
 	protected AssociationResultBlock union(AssociationResultBlock valueA,
 			AssociationResultBlock valueB, Operation op) {
-		int[] ta = valueA.tos;
-		int[] tb = valueB.tos;
+		return apply(SetOperation.UNION, valueA, valueB, op);
+	}
 
-		int la = valueA.size;
-		int lb = valueB.size;
-		int len = la + lb;
+	/**
+	 * Applies a set operation on two results.
+	 * <p>
+	 * Big results are split to chunks of disjunct <code>to</code> ranges, and
+	 * the chunks are calculated in parallel (if the solver has an executor).
+	 * </p>
+	 * 
+	 * @param so
+	 * @param valueA
+	 * @param valueB
+	 * @param op
+	 * @return
+	 */
+	private AssociationResultBlock apply(final SetOperation so, final AssociationResultBlock valueA,
+			final AssociationResultBlock valueB, final Operation op) {
+		int n = chunks(valueA.size + valueB.size);
+		AssociationResultBlock ret;
 
-		AssociationResultBlock row = new AssociationResultBlock(len);
+		if (n <= 1) {
+			AssociationResultBlock dest = (so.inPlace && valueA.pooled) ? pool.reuse(valueA)
+					: pool.acquire(so.capacity(valueA.size, valueB.size));
 
-		int i = 0, j = 0, a, b, cnt = 0;
+			ret = so.apply(valueA, 0, valueA.size, valueB, 0, valueB.size, op, dest);
+		} else {
+			ret = applyChunked(so, valueA, valueB, op, n);
+		}
 
-		while ((i < la) && (j < lb)) {
-			a = ta[i];
-			b = tb[j];
+		release(valueA);
+		release(valueB);
 
-			// Note: arrays are sorted in _ascending_ order
-			if (a < b) {
-				row.tos[cnt] = a;
-				row.values[cnt] = valueA.values[i];
-				cnt++;
-				i++;
-			} else if (a > b) {
-				row.tos[cnt] = b;
-				row.values[cnt] = valueB.values[j];
-				cnt++;
-				j++;
-			} else {
-				row.tos[cnt] = a;
-				row.values[cnt] = op.calculate(valueA.values[i], valueB.values[j]);
-				cnt++;
-				i++;
-				j++;
+		return ret;
+	}
+
+	// Applies a set operation on n chunks of the results, in parallel
+	private AssociationResultBlock applyChunked(final SetOperation so,
+			final AssociationResultBlock valueA, final AssociationResultBlock valueB,
+			final Operation op, int n) {
+
+		// Splitting by the tos of the bigger result
+		AssociationResultBlock pivots = (valueA.size >= valueB.size) ? valueA : valueB;
+		final int[] ia = new int[n + 1];
+		final int[] ib = new int[n + 1];
+
+		for (int k = 1; k < n; k++) {
+			int pivot = pivots.tos[(int) ((long) k * pivots.size / n)];
+			ia[k] = lowerBound(valueA, pivot);
+			ib[k] = lowerBound(valueB, pivot);
+		}
+		ia[n] = valueA.size;
+		ib[n] = valueB.size;
+
+		List<FutureTask<AssociationResultBlock>> tasks = new ArrayList<FutureTask<AssociationResultBlock>>(
+				n);
+
+		for (int k = 0; k < n; k++) {
+			final int c = k;
+
+			tasks.add(fork(new Callable<AssociationResultBlock>() {
+				@Override
+				public AssociationResultBlock call() {
+					AssociationResultBlock dest = pool.acquire(so.capacity(ia[c + 1] - ia[c],
+							ib[c + 1] - ib[c]));
+
+					return so.apply(valueA, ia[c], ia[c + 1], valueB, ib[c], ib[c + 1], op, dest);
+				}
+			}));
+		}
+
+		return concat(joinAll(tasks));
+	}
+
+	/**
+	 * Returns the number of chunks a set operation on <code>size</code>
+	 * associations should be split to.
+	 * 
+	 * @param size
+	 * @return
+	 */
+	private int chunks(long size) {
+		return (int) Math.min(getParallelism(), size / MIN_CHUNK_SIZE);
+	}
+
+	/**
+	 * Joins all of the tasks (see {@link #join(FutureTask)}).
+	 * 
+	 * @param tasks
+	 * @return The results of the tasks, in the same order
+	 */
+	private <V> List<V> joinAll(List<FutureTask<V>> tasks) {
+		List<V> ret = new ArrayList<V>(tasks.size());
+
+		try {
+			for (FutureTask<V> task : tasks) {
+				ret.add(join(task));
 			}
+		} catch (QueryExecutionException e) {
+			// The chunks do not throw checked exceptions
+			throw new IllegalStateException(e);
 		}
 
-		for (; i < la; i++, cnt++) {
-			row.tos[cnt] = ta[i];
-			row.values[cnt] = valueA.values[i];
+		return ret;
+	}
+
+	// Returns the index of the first to of the result which is >= to
+	private static int lowerBound(AssociationResultBlock result, int to) {
+		int i = java.util.Arrays.binarySearch(result.tos, 0, result.size, to);
+		return (i < 0) ? -i - 1 : i;
+	}
+
+	// Concatenates and releases the results
+	private AssociationResultBlock concat(List<AssociationResultBlock> results) {
+		int size = 0;
+
+		for (AssociationResultBlock r : results) {
+			size += r.size;
 		}
 
-		for (; j < lb; j++, cnt++) {
-			row.tos[cnt] = tb[j];
-			row.values[cnt] = valueB.values[j];
+		AssociationResultBlock ret = pool.acquire(size);
+		int pos = 0;
+
+		for (AssociationResultBlock r : results) {
+			System.arraycopy(r.tos, 0, ret.tos, pos, r.size);
+			System.arraycopy(r.values, 0, ret.values, pos, r.size);
+			pos += r.size;
+			release(r);
 		}
 
-		row.size = cnt;
+		ret.size = pos;
+		return ret;
+	}
 
-		return row;
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The buffers of pooled results are returned to the {@link ResultBlockPool}
+	 * of the store.
+	 * </p>
+	 */
+	@Override
+	protected void release(AssociationResultBlock result) {
+		pool.release(result);
+	}
+
+	/**
+	 * Set operations on sorted ranges of results.
+	 * 
+	 * @author Gergely Kiss
+	 */
+	private enum SetOperation {
+		INTERSECTION(true) {
+			@Override
+			int capacity(int sizeA, int sizeB) {
+				return Math.min(sizeA, sizeB);
+			}
+
+			@Override
+			AssociationResultBlock apply(AssociationResultBlock valueA, int fromA, int toA,
+					AssociationResultBlock valueB, int fromB, int toB, Operation op,
+					AssociationResultBlock row) {
+				int[] ta = valueA.tos;
+				int[] tb = valueB.tos;
+
+				int a, b, cnt = 0;
+
+				for (int i = fromA, j = fromB; (i < toA) && (j < toB);) {
+					a = ta[i];
+					b = tb[j];
+
+					// Note: arrays are sorted in _ascending_ order
+					if (a < b) {
+						i++;
+					} else if (a > b) {
+						j++;
+					} else {
+						row.tos[cnt] = a;
+						row.values[cnt] = op.calculate(valueA.values[i], valueB.values[j]);
+						cnt++;
+						i++;
+						j++;
+					}
+				}
+
+				row.size = cnt;
+
+				return row;
+			}
+		},
+		MINUS(true) {
+			@Override
+			int capacity(int sizeA, int sizeB) {
+				return sizeA;
+			}
+
+			@Override
+			AssociationResultBlock apply(AssociationResultBlock valueA, int fromA, int toA,
+					AssociationResultBlock valueB, int fromB, int toB, Operation op,
+					AssociationResultBlock row) {
+				int[] ta = valueA.tos;
+				int[] tb = valueB.tos;
+
+				int a, b, i = fromA, cnt = 0;
+
+				for (int j = fromB; (i < toA) && (j < toB);) {
+					a = ta[i];
+					b = tb[j];
+
+					// Note: arrays are sorted in _ascending_ order
+					if (a < b) {
+						row.tos[cnt] = a;
+						row.values[cnt] = valueA.values[i];
+						cnt++;
+						i++;
+					} else if (a > b) {
+						j++;
+					} else {
+						i++;
+						j++;
+					}
+				}
+
+				for (; i < toA; i++, cnt++) {
+					row.tos[cnt] = ta[i];
+					row.values[cnt] = valueA.values[i];
+				}
+
+				row.size = cnt;
+
+				return row;
+			}
+		},
+		UNION(false) {
+			@Override
+			int capacity(int sizeA, int sizeB) {
+				return sizeA + sizeB;
+			}
+
+			@Override
+			AssociationResultBlock apply(AssociationResultBlock valueA, int fromA, int toA,
+					AssociationResultBlock valueB, int fromB, int toB, Operation op,
+					AssociationResultBlock row) {
+				int[] ta = valueA.tos;
+				int[] tb = valueB.tos;
+
+				int i = fromA, j = fromB, a, b, cnt = 0;
+
+				while ((i < toA) && (j < toB)) {
+					a = ta[i];
+					b = tb[j];
+
+					// Note: arrays are sorted in _ascending_ order
+					if (a < b) {
+						row.tos[cnt] = a;
+						row.values[cnt] = valueA.values[i];
+						cnt++;
+						i++;
+					} else if (a > b) {
+						row.tos[cnt] = b;
+						row.values[cnt] = valueB.values[j];
+						cnt++;
+						j++;
+					} else {
+						row.tos[cnt] = a;
+						row.values[cnt] = op.calculate(valueA.values[i], valueB.values[j]);
+						cnt++;
+						i++;
+						j++;
+					}
+				}
+
+				for (; i < toA; i++, cnt++) {
+					row.tos[cnt] = ta[i];
+					row.values[cnt] = valueA.values[i];
+				}
+
+				for (; j < toB; j++, cnt++) {
+					row.tos[cnt] = tb[j];
+					row.values[cnt] = valueB.values[j];
+				}
+
+				row.size = cnt;
+
+				return row;
+			}
+		};
+
+		/**
+		 * True if the operation never writes ahead of its reads in the first
+		 * operand, so it may be calculated in place.
+		 */
+		final boolean inPlace;
+
+		private SetOperation(boolean inPlace) {
+			this.inPlace = inPlace;
+		}
+
+		/**
+		 * Returns the maximum size of the result of the operation on operands
+		 * of the given sizes.
+		 */
+		abstract int capacity(int sizeA, int sizeB);
+
+		/**
+		 * Applies the operation on the [fromA, toA) range of
+		 * <code>valueA</code> and the [fromB, toB) range of
+		 * <code>valueB</code>, and stores the result in <code>row</code>
+		 * (which must have the capacity for it).
+		 */
+		abstract AssociationResultBlock apply(AssociationResultBlock valueA, int fromA, int toA,
+				AssociationResultBlock valueB, int fromB, int toB, Operation op,
+				AssociationResultBlock row);
 	}
 
 	@Override
@@ -186,47 +984,410 @@ class FileAssociationSolver extends QuerySolver<AssociationResultBlock> {
 			List<Comparison> comparisons) throws QueryExecutionException {
 
 		try {
-			AssociationResultBlock filtered = new AssociationResultBlock(results.size);
+			AssociationResultBlock filtered = results;
+			List<Comparison> scans = new ArrayList<Comparison>(comparisons.size());
+
+			// Intersecting with the indexed comparisons first
+			for (Comparison comparison : comparisons) {
+				BitSet ids = store.getToStore().indexedResults(comparison.fieldName,
+						comparison.op, comparison.value);
+
+				if (ids == null) {
+					scans.add(comparison);
+				} else {
+					filtered = consume(filtered, results, filter(filtered, ids));
+				}
+			}
 
-			int cnt = 0;
-			for (int i = 0; i < results.size; i++) {
+			// Chaining the comparisons of the same field, in selectivity order
+			Map<String, List<Predicate>> chains = new LinkedHashMap<String, List<Predicate>>();
 
-				boolean skip = false;
-				for (Comparison comparison : comparisons) {
-					Object value = store.getToStore()
-							.getField(results.tos[i], comparison.fieldName);
+			for (Comparison comparison : scans) {
+				List<Predicate> chain = chains.get(comparison.fieldName);
 
-					if (!evaluate(value, comparison.op, comparison.value)) {
-						skip = true;
-						break;
-					}
+				if (chain == null) {
+					chain = new ArrayList<Predicate>(2);
+					chains.put(comparison.fieldName, chain);
 				}
 
-				if (skip) {
-					continue;
+				chain.add(comparison.predicate);
+			}
+
+			// Evaluating the rest column by column, so that only the remaining
+			// candidates are loaded for the next field
+			for (Map.Entry<String, List<Predicate>> e : chains.entrySet()) {
+
+				if (filtered.size == 0) {
+					break;
 				}
 
-				filtered.tos[cnt] = results.tos[i];
-				filtered.values[cnt] = results.values[i];
-				cnt++;
+				filtered = consume(filtered, results, filter(filtered, e.getKey(), Predicate
+						.and(e.getValue())));
 			}
 
-			filtered.size = cnt;
 			return filtered;
 		} catch (ObjectStoreException e) {
 			throw new QueryExecutionException(e);
 		}
+	}
+
+	// Releases the intermediate result, if it is not the original
+	private AssociationResultBlock consume(AssociationResultBlock intermediate,
+			AssociationResultBlock original, AssociationResultBlock next) {
+
+		if (intermediate != original) {
+			release(intermediate);
+		}
 
+		return next;
 	}
 
-	@Override
-	protected AssociationResultBlock limit(AssociationResultBlock results, int limit) {
-		IntFloatSelector selector = new IntFloatSelector(limit);
+	/**
+	 * Keeps only the results contained by <code>ids</code>.
+	 * 
+	 * @param results
+	 * @param ids
+	 * @return The filtered results
+	 */
+	private AssociationResultBlock filter(AssociationResultBlock results, BitSet ids) {
+		AssociationResultBlock filtered = pool.acquire(results.size);
+
+		int cnt = 0;
+		for (int i = 0; i < results.size; i++) {
+
+			if (ids.get(results.tos[i])) {
+				filtered.tos[cnt] = results.tos[i];
+				filtered.values[cnt] = results.values[i];
+				cnt++;
+			}
+		}
+
+		filtered.size = cnt;
+		return filtered;
+	}
+
+	/**
+	 * Filters the results using the compiled predicate of a single field.
+	 * <p>
+	 * The field is loaded for all the results at once (see
+	 * {@link ObjectStore#getFields(long[], String)}).
+	 * </p>
+	 * 
+	 * @param results
+	 * @param fieldName
+	 * @param predicate
+	 * @return The filtered results
+	 * @throws ObjectStoreException if the field values could not be loaded
+	 */
+	private AssociationResultBlock filter(AssociationResultBlock results, String fieldName,
+			Predicate predicate) throws ObjectStoreException {
+		long[] ids = new long[results.size];
 
 		for (int i = 0; i < results.size; i++) {
+			ids[i] = results.tos[i];
+		}
+
+		List<Object> column = store.getToStore().getFields(ids, fieldName);
+		boolean[] matches = predicate.matchesAll(column);
+
+		AssociationResultBlock filtered = pool.acquire(results.size);
+
+		int cnt = 0;
+		for (int i = 0; i < results.size; i++) {
+
+			if (matches[i]) {
+				filtered.tos[cnt] = results.tos[i];
+				filtered.values[cnt] = results.values[i];
+				cnt++;
+			}
+		}
+
+		filtered.size = cnt;
+		return filtered;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * For {@link Operation#SUM} this implementation uses the MaxScore
+	 * algorithm. The results are ordered by their upper bounds (see
+	 * {@link AssociationResultBlock#maxValue()}), and whenever the sum of the
+	 * smallest upper bounds falls under the current top-k threshold, those
+	 * results become <i>non-essential</i>: associations which appear only in
+	 * them can not get into the top-k, so they are not enumerated any more,
+	 * only probed for the candidates of the essential results (and only while
+	 * a candidate may still get in).
+	 * </p>
+	 * <p>
+	 * The values of a candidate are summed in the order of the results, like
+	 * the pairwise unions do, so that the rounding errors (and so the ties of
+	 * the top-k) are the same.
+	 * </p>
+	 */
+	@Override
+	protected AssociationResultBlock unionTop(List<AssociationResultBlock> values, Operation op,
+			int offset, int limit) {
+
+		if (op != Operation.SUM) {
+			return super.unionTop(values, op, offset, limit);
+		}
+
+		int n = values.size();
+		long total = 0;
+
+		for (AssociationResultBlock r : values) {
+			total += r.size;
+		}
+
+		int top = top(total, offset, limit);
+
+		if (top == 0) {
+			return new AssociationResultBlock(0);
+		}
+		final AssociationResultBlock[] inputs = values.toArray(new AssociationResultBlock[n]);
+		Integer[] sorted = new Integer[n];
+
+		for (int i = 0; i < n; i++) {
+			sorted[i] = i;
+		}
+
+		// Sorting by upper bounds, ascending
+		java.util.Arrays.sort(sorted, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Float.compare(upperBound(inputs[o1]), upperBound(inputs[o2]));
+			}
+		});
+
+		AssociationResultBlock[] rs = new AssociationResultBlock[n];
+
+		// The index of the result in the original order
+		int[] order = new int[n];
+
+		for (int i = 0; i < n; i++) {
+			order[i] = sorted[i];
+			rs[i] = inputs[order[i]];
+		}
+
+		// The upper bound of the sum of the first i+1 results (with some
+		// headroom for floating point rounding errors)
+		double[] bounds = new double[n];
+		float sum = 0;
+
+		for (int i = 0; i < n; i++) {
+			sum += upperBound(rs[i]);
+			bounds[i] = sum + n * Math.ulp(sum);
+		}
+
+		IntFloatSelector selector = new IntFloatSelector(top);
+		float threshold = selector.threshold();
+		int[] pos = new int[n];
+
+		// The values of the candidate in the original order, NaN if missing
+		float[] parts = new float[n];
+
+		// The index of the first essential result
+		int essential = 0;
+
+		while (essential < n) {
+			int candidate = Integer.MAX_VALUE;
+			boolean found = false;
+
+			// The next candidate is the smallest to of the essential results
+			for (int i = essential; i < n; i++) {
+				AssociationResultBlock r = rs[i];
+
+				if ((pos[i] < r.size) && (r.tos[pos[i]] <= candidate)) {
+					candidate = r.tos[pos[i]];
+					found = true;
+				}
+			}
+
+			if (!found) {
+				break;
+			}
+
+			float partial = 0;
+			java.util.Arrays.fill(parts, Float.NaN);
+
+			for (int i = essential; i < n; i++) {
+				AssociationResultBlock r = rs[i];
+
+				if ((pos[i] < r.size) && (r.tos[pos[i]] == candidate)) {
+					partial += r.values[pos[i]];
+					parts[order[i]] = r.values[pos[i]];
+					pos[i]++;
+				}
+			}
+
+			// Probing the non-essential results, largest upper bound first
+			int i = essential - 1;
+
+			for (; (i >= 0) && (partial + bounds[i] > threshold); i--) {
+				AssociationResultBlock r = rs[i];
+
+				pos[i] = Arrays.gallop(r.tos, pos[i], r.size, candidate);
+
+				if ((pos[i] < r.size) && (r.tos[pos[i]] == candidate)) {
+					partial += r.values[pos[i]];
+					parts[order[i]] = r.values[pos[i]];
+				}
+			}
+
+			// The candidate can not get in, unless all the results were probed
+			if (i >= 0) {
+				continue;
+			}
+
+			float score = 0;
+
+			for (float part : parts) {
+
+				if (!Float.isNaN(part)) {
+					score += part;
+				}
+			}
+
+			if (score > threshold) {
+				selector.add(candidate, score);
+				threshold = selector.threshold();
+
+				while ((essential < n) && (bounds[essential] <= threshold)) {
+					essential++;
+				}
+			}
+		}
+
+		for (AssociationResultBlock r : rs) {
+			release(r);
+		}
+
+		return page(selector, offset);
+	}
+
+	// The non-negative upper bound of the values of a result
+	private static float upperBound(AssociationResultBlock r) {
+		return Math.max(0, r.maxValue());
+	}
+
+	@Override
+	protected AssociationResultBlock limit(AssociationResultBlock results, int offset, int limit) {
+
+		if (limit <= 0) {
+
+			// Unlimited: skipping in the current order
+			int size = Math.max(results.size - offset, 0);
+			AssociationResultBlock ret = new AssociationResultBlock(size);
+
+			System.arraycopy(results.tos, results.size - size, ret.tos, 0, size);
+			System.arraycopy(results.values, results.size - size, ret.values, 0, size);
+
+			return ret;
+		}
+
+		int top = top(results.size, offset, limit);
+
+		if (top == 0) {
+			return new AssociationResultBlock(0);
+		}
+
+		return page(select(results, top), offset);
+	}
+
+	/**
+	 * Selects the <code>top</code> results with the highest values.
+	 * <p>
+	 * Big results are split to chunks, which are selected in parallel (if the
+	 * solver has an executor), and then merged.
+	 * </p>
+	 * 
+	 * @param results
+	 * @param top
+	 * @return
+	 */
+	private IntFloatSelector select(final AssociationResultBlock results, final int top) {
+		final int n = chunks(results.size);
+
+		if (n <= 1) {
+			return select(results, 0, results.size, top);
+		}
+
+		List<FutureTask<IntFloatSelector>> tasks = new ArrayList<FutureTask<IntFloatSelector>>(n);
+
+		for (int k = 0; k < n; k++) {
+			final int from = (int) ((long) k * results.size / n);
+			final int to = (int) ((long) (k + 1) * results.size / n);
+
+			tasks.add(fork(new Callable<IntFloatSelector>() {
+				@Override
+				public IntFloatSelector call() {
+					IntFloatSelector ret = select(results, from, to, Math.min(top, to - from));
+					ret.sort();
+					return ret;
+				}
+			}));
+		}
+
+		// Merging the chunks in order, the sorted selections keep the ties
+		// the same as if the results were selected sequentially
+		IntFloatSelector ret = new IntFloatSelector(top);
+
+		for (IntFloatSelector chunk : joinAll(tasks)) {
+			int[] keys = chunk.keys();
+			float[] values = chunk.values();
+
+			for (int i = 0; i < chunk.size(); i++) {
+				ret.add(keys[i], values[i]);
+			}
+		}
+
+		return ret;
+	}
+
+	// Selects the top results of the [from, to) range of results
+	private static IntFloatSelector select(AssociationResultBlock results, int from, int to,
+			int top) {
+		IntFloatSelector selector = new IntFloatSelector(top);
+
+		for (int i = from; i < to; i++) {
 			selector.add(results.tos[i], results.values[i]);
 		}
 
-		return new AssociationResultBlock(selector.keys(), selector.values(), selector.size());
+		return selector;
+	}
+
+	// The selector size needed for a page of the given number of results
+	private static int top(long size, int offset, int limit) {
+		return (int) Math.min(size, (long) offset + limit);
+	}
+
+	// Sorts the selector and returns its elements after offset
+	private static AssociationResultBlock page(IntFloatSelector selector, int offset) {
+		selector.sort();
+
+		if (offset == 0) {
+			return new AssociationResultBlock(selector.keys(), selector.values(), selector.size());
+		}
+
+		int size = Math.max(selector.size() - offset, 0);
+		AssociationResultBlock ret = new AssociationResultBlock(size);
+
+		if (size > 0) {
+			System.arraycopy(selector.keys(), offset, ret.tos, 0, size);
+			System.arraycopy(selector.values(), offset, ret.values, 0, size);
+		}
+
+		return ret;
+	}
+
+	// A target seen in the top of some members of a group
+	private static final class Candidate {
+
+		/** The sum of the seen values. */
+		float value;
+
+		/** The number and the total bound of the cut tops it was seen in. */
+		int cuts;
+		double bound;
 	}
 }
@@ -7,10 +7,17 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -20,10 +27,19 @@ import org.ogreg.ase4j.AssociationStoreException;
 import org.ogreg.ase4j.AssociationStoreMetadata;
 import org.ogreg.ase4j.ConfigurableAssociationStore;
 import org.ogreg.ase4j.Params;
+import org.ogreg.ase4j.ResultPage;
+import org.ogreg.ase4j.file.QueryCache.Dependencies;
+import org.ogreg.ase4j.file.ResultSnapshots.Snapshot;
 import org.ogreg.ase4j.criteria.Query;
 import org.ogreg.ase4j.criteria.QueryExecutionException;
+import org.ogreg.ase4j.criteria.QueryKey;
+import org.ogreg.ase4j.criteria.QueryProfile;
+import org.ogreg.ase4j.criteria.QueryProfiler;
+import org.ogreg.ase4j.criteria.QueryProfiler.Frame;
 import org.ogreg.ostore.ObjectStore;
 import org.ogreg.ostore.ObjectStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A file-based implementation of the association store.
@@ -34,6 +50,7 @@ import org.ogreg.ostore.ObjectStoreException;
  */
 public class FileAssociationStoreImpl<F, T> implements ConfigurableAssociationStore<F, T>,
 		FileAssociationStoreImplMBean, Closeable, Flushable {
+	private static final Logger log = LoggerFactory.getLogger(FileAssociationStoreImpl.class);
 
 	/** The index of the from entities. */
 	private ObjectStore<F> fromStore;
@@ -45,7 +62,58 @@ public class FileAssociationStoreImpl<F, T> implements ConfigurableAssociationSt
 	private File storageFile;
 
 	private CachedBlockStore assocs = new CachedBlockStore();
-	private FileAssociationSolver solver = new FileAssociationSolver(this);
+
+	/**
+	 * The maximum number of threads solving a single query, including the
+	 * calling thread.
+	 * <p>
+	 * Default: 1 (sequential)
+	 * </p>
+	 */
+	private int queryParallelism = 1;
+
+	/**
+	 * The maximum number of phrases a prefix or wildcard query may be expanded
+	 * to.
+	 * <p>
+	 * Default: 1024
+	 * </p>
+	 */
+	private int maxPhraseExpansions = 1024;
+
+	/** The default maximum memory of the pooled result buffers of a thread. */
+	static final long DEFAULT_RESULT_POOL_SIZE = 32L << 20;
+
+	/** The pool of the intermediate result buffers of the queries. */
+	private final ResultBlockPool resultPool = new ResultBlockPool(DEFAULT_RESULT_POOL_SIZE);
+
+	/** The worker threads of the parallel queries, created on demand. */
+	private ExecutorService queryExecutor;
+
+	/** The worker threads of the grouped writes, created on demand. */
+	private ExecutorService writeExecutor;
+	private final Object executorLock = new Object();
+
+	/**
+	 * The execution time above which the queries are profiled and logged, in
+	 * milliseconds, or 0 if they are never logged.
+	 * <p>
+	 * Default: 0
+	 * </p>
+	 */
+	private volatile long slowQueryThreshold = 0;
+
+	/** The number of slow queries. */
+	private final AtomicLong slowQueries = new AtomicLong();
+
+	/** The operator tree of the last slow query. */
+	private volatile QueryProfile lastSlowQuery;
+
+	/** The result snapshots used for paging. */
+	private ResultSnapshots snapshots = new ResultSnapshots();
+
+	/** The cache of the query results. */
+	private QueryCache cache = new QueryCache();
 
 	/** Storage metadata. */
 	private AssociationStoreMetadata metadata;
@@ -79,6 +147,7 @@ public class FileAssociationStoreImpl<F, T> implements ConfigurableAssociationSt
 			close();
 
 			// Opening store at the specified file
+			assocs.setUpdateListener(cache);
 			assocs.open(storageFile);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
@@ -108,18 +177,23 @@ public class FileAssociationStoreImpl<F, T> implements ConfigurableAssociationSt
 	@Override
 	public void addAll(Collection<Association<F, T>> froms, T to, Params params)
 			throws AssociationStoreException {
+		addAll(froms, to, true, params);
+	}
 
-		try {
-			Operation op = Params.ensureNotNull(params).op;
-			int ti = (int) toStore.save(to);
+	@Override
+	public void addAll(Collection<Association<F, T>> assocs, Params params)
+			throws AssociationStoreException {
+		addAll(assocs, null, false, params);
+	}
 
-			for (Association<F, ?> assoc : froms) {
-				F from = assoc.from;
-				int fi = (int) fromStore.save(from);
+	// See: addAll
+	private void addAll(Collection<Association<F, T>> assocs, T to, boolean common,
+			Params params) throws AssociationStoreException {
 
-				AssociationBlock a = new AssociationBlock(fi);
-				a.merge(ti, assoc.value, op);
+		try {
+			Operation op = Params.ensureNotNull(params).op;
 
+			for (AssociationBlock a : toBlocks(assocs, to, common, op)) {
 				this.assocs.merge(a, op);
 			}
 		} catch (IOException e) {
@@ -129,64 +203,701 @@ public class FileAssociationStoreImpl<F, T> implements ConfigurableAssociationSt
 		}
 	}
 
-	@Override
-	public void addAll(Collection<Association<F, T>> assocs, Params params)
-			throws AssociationStoreException {
-		Map<F, List<Association<F, T>>> byFrom = new HashMap<F, List<Association<F, T>>>(
-				assocs.size() / 2);
+	/**
+	 * Adds the associations to the member stores of a group.
+	 * <p>
+	 * The stores must share the same <code>from</code> and <code>to</code>
+	 * stores. The ids of the associations are resolved only once, and the
+	 * associations are added to the members concurrently, multiplied by their
+	 * multipliers. The associations themselves are not modified.
+	 * </p>
+	 * <p>
+	 * The associations are added to every member using the operation of
+	 * <code>params</code> (the group adds used to ignore it, and always
+	 * summed the values). The other members are written on the write
+	 * threads of the first store, which never wait for the query threads.
+	 * All the members are waited for, even if some of them failed.
+	 * </p>
+	 * 
+	 * @param stores The member stores
+	 * @param multipliers The multipliers of the associations of the members
+	 * @param assocs
+	 * @param to The common target of the associations
+	 * @param common True if <code>to</code> should be used instead of the
+	 *            targets of the associations
+	 * @param params
+	 * @throws AssociationStoreException If any of the stores failed to add the
+	 *             associations (the other failures are logged)
+	 */
+	public static <F, T> void addAllGroup(List<FileAssociationStoreImpl<F, T>> stores,
+			float[] multipliers, Collection<Association<F, T>> assocs, T to, boolean common,
+			Params params) throws AssociationStoreException {
+
+		if (stores.isEmpty()) {
+			return;
+		}
+
+		final Operation op = Params.ensureNotNull(params).op;
+		final FileAssociationStoreImpl<F, T> first = stores.get(0);
+		final Collection<AssociationBlock> blocks;
+
+		try {
+			blocks = first.toBlocks(assocs, to, common, op);
+		} catch (ObjectStoreException e) {
+			throw new AssociationStoreException(e);
+		}
 
-		for (Association<F, T> a : assocs) {
-			List<Association<F, T>> l = byFrom.get(a.from);
+		// The other members are written on the worker threads
+		List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(stores.size() - 1);
 
-			if (l == null) {
-				l = new LinkedList<Association<F, T>>();
-				byFrom.put(a.from, l);
+		for (int i = 1; i < stores.size(); i++) {
+			final FileAssociationStoreImpl<F, T> member = stores.get(i);
+			final float multiplier = multipliers[i];
+
+			FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					member.merge(blocks, multiplier, op);
+					return null;
+				}
+			});
+
+			try {
+				first.getWriteExecutor().execute(task);
+			} catch (RejectedExecutionException e) {
+				// Will be run by await
 			}
 
-			l.add(a);
+			tasks.add(task);
 		}
 
+		Throwable failure = null;
+
 		try {
-			Operation op = Params.ensureNotNull(params).op;
+			first.merge(blocks, multipliers[0], op);
+		} catch (IOException e) {
+			failure = e;
+		} catch (RuntimeException e) {
+			failure = e;
+		} finally {
+			failure = await(tasks, failure);
+		}
 
-			for (Entry<F, List<Association<F, T>>> e : byFrom.entrySet()) {
-				F from = e.getKey();
-				int fi = (int) fromStore.save(from);
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw new AssociationStoreException(failure);
+		}
+	}
 
-				AssociationBlock a = new AssociationBlock(fi);
+	/**
+	 * Waits for all the writes of a group, so that none of them is left
+	 * running.
+	 * <p>
+	 * The writes which were not started yet are run on the calling thread.
+	 * Interrupts are deferred until all the writes have finished.
+	 * </p>
+	 * 
+	 * @param tasks
+	 * @param failure The failure of the group so far, or null
+	 * @return The first failure of the group, or null if there was none
+	 */
+	private static Throwable await(List<FutureTask<Void>> tasks, Throwable failure) {
+		boolean interrupted = false;
+
+		for (FutureTask<Void> task : tasks) {
+
+			// Note: run is a no-op if the task was already started
+			task.run();
 
-				for (Association<F, T> assoc : e.getValue()) {
-					int ti = (int) toStore.save(assoc.to);
+			while (true) {
 
-					// TODO This could be more effective
-					a.merge(ti, assoc.value, op);
+				try {
+					task.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+					continue;
+				} catch (ExecutionException e) {
+
+					if (failure == null) {
+						failure = e.getCause();
+					} else {
+						log.error("Failed to add the associations to a member of the group",
+								e.getCause());
+					}
 				}
 
-				this.assocs.merge(a, op);
+				break;
 			}
-		} catch (IOException e) {
-			throw new AssociationStoreException(e);
-		} catch (ObjectStoreException e) {
-			throw new AssociationStoreException(e);
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		return failure;
+	}
+
+	/**
+	 * Resolves the ids of the associations, and collects them to association
+	 * rows by their <code>from</code>s.
+	 * 
+	 * @param assocs
+	 * @param to The common target of the associations
+	 * @param common True if <code>to</code> should be used instead of the
+	 *            targets of the associations
+	 * @param op The operation to use for adding associations of the same row
+	 * @return
+	 * @throws ObjectStoreException if the ids could not be resolved
+	 */
+	private Collection<AssociationBlock> toBlocks(Collection<Association<F, T>> assocs, T to,
+			boolean common, Operation op) throws ObjectStoreException {
+		Map<Integer, AssociationBlock> blocks = new HashMap<Integer, AssociationBlock>();
+		List<F> froms = new ArrayList<F>(assocs.size());
+		List<T> tos = new ArrayList<T>(common ? 1 : assocs.size());
+
+		for (Association<F, T> assoc : assocs) {
+			froms.add(assoc.from);
+
+			if (!common) {
+				tos.add(assoc.to);
+			}
+		}
+
+		if (common) {
+			tos.add(to);
+		}
+
+		// Resolving the ids in batches
+		long[] fis = fromStore.saveAll(froms);
+		long[] tis = toStore.saveAll(tos);
+		int i = 0;
+
+		for (Association<F, T> assoc : assocs) {
+			int fi = (int) fis[i];
+			AssociationBlock a = blocks.get(fi);
+
+			if (a == null) {
+				a = new AssociationBlock(fi);
+				blocks.put(fi, a);
+			}
+
+			a.merge((int) tis[common ? 0 : i], assoc.value, op);
+			i++;
+		}
+
+		return blocks.values();
+	}
+
+	/**
+	 * Merges the scaled copies of the association rows to this store.
+	 * 
+	 * @param blocks The rows, which are not modified
+	 * @param multiplier
+	 * @param op
+	 * @throws IOException in case of a storage failure
+	 */
+	private void merge(Collection<AssociationBlock> blocks, float multiplier, Operation op)
+			throws IOException {
+
+		for (AssociationBlock a : blocks) {
+			assocs.merge(a.scale(multiplier), op);
 		}
 	}
 
 	@Override
 	public List<Association<F, T>> query(Query query) throws QueryExecutionException {
-		List<Association<F, T>> ret = new ArrayList<Association<F, T>>(query.limit());
+		QueryProfiler profiler = newProfiler();
+		Frame frame = begin(profiler, "query", query);
+		List<Association<F, T>> ret = null;
 
-		// Solving the query
-		AssociationResultBlock results = solver.solve(query);
+		try {
+			ret = query(query, profiler);
+		} finally {
+			end(profiler, frame, (ret == null) ? 0 : ret.size());
+		}
+
+		return ret;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Note: the query is solved just like {@link #query(Query)} would solve
+	 * it, so its results may be served from the query result cache.
+	 * </p>
+	 */
+	@Override
+	public QueryProfile profile(Query query) throws QueryExecutionException {
+		QueryProfiler profiler = new QueryProfiler();
+		Frame frame = begin(profiler, "query", query);
+		List<Association<F, T>> results = null;
 
 		try {
-			int[] tos = results.tos;
-			float[] values = results.values;
+			results = query(query, profiler);
+		} finally {
+			end(profiler, frame, (results == null) ? 0 : results.size());
+		}
+
+		return profiler.getProfile();
+	}
+
+	/**
+	 * Queries the member stores of a group, and returns their merged results.
+	 * <p>
+	 * The stores must share the same <code>to</code> store. They are queried
+	 * in parallel, at the level of the association ids, and their results are
+	 * multiplied by their multipliers and merged by their targets, using the
+	 * operation of the query. The offset and the limit are applied to the
+	 * merged results, so only the final results are materialized.
+	 * </p>
+	 * <p>
+	 * A limited query is solved only for the top results of the members, if
+	 * the order of the results is kept by the merge: for a single member with
+	 * a positive multiplier, or for {@link Operation#SUM} with positive
+	 * multipliers, if the top of the merge can be proven from the tops of the
+	 * members (see {@link FileAssociationSolver#solveGroupTop}). Otherwise the
+	 * query is solved unlimited on the members, because any of their results
+	 * may make it to the top of the merge.
+	 * </p>
+	 * <p>
+	 * The members are queried in parallel if the query parallelism of the
+	 * first store allows (see {@link #setQueryParallelism(int)}).
+	 * </p>
+	 * 
+	 * @param stores The member stores
+	 * @param multipliers The multipliers of the results of the members
+	 * @param query
+	 * @param profiler The profiler of the query, or null if it is not
+	 *            profiled
+	 * @return
+	 * @throws QueryExecutionException If any of the stores failed to query
+	 *             the associations
+	 */
+	public static <F, T> List<Association<F, T>> queryGroup(
+			List<FileAssociationStoreImpl<F, T>> stores, float[] multipliers, Query query,
+			QueryProfiler profiler) throws QueryExecutionException {
+
+		if (stores.isEmpty()) {
+			return new ArrayList<Association<F, T>>(0);
+		}
+
+		FileAssociationStoreImpl<F, T> first = stores.get(0);
+		FileAssociationSolver solver = newGroupSolver(first, stores.size(), profiler);
+
+		long k = (long) query.offset() + query.limit();
+		boolean positive = true;
+
+		for (float multiplier : multipliers) {
+			positive &= (multiplier > 0);
+		}
+
+		Query members = query.copy().offset(0).limit(0).cursor(null);
+		AssociationResultBlock results = null;
+
+		if ((query.limit() > 0) && positive && (k <= Integer.MAX_VALUE)) {
+			if (stores.size() == 1) {
+
+				// The top results of a single member stay on the top
+				results = solver.solveGroup(stores, multipliers, members.copy().limit((int) k));
+			} else if (Params.ensureNotNull(query.params()).op == Operation.SUM) {
+
+				// Twice as much as needed, so that the proof is likely
+				Query tops = members.copy().limit((int) Math.min(2 * k, Integer.MAX_VALUE));
+				results = solver.solveGroupTop(stores, multipliers, tops, (int) k);
+			}
+		}
+
+		if (results == null) {
+			results = solver.solveGroup(stores, multipliers, members);
+		}
+
+		if ((query.limit() > 0) || (query.offset() > 0)) {
+			Frame frame = (profiler == null) ? null : profiler.begin("limit", null,
+					results.size);
+			AssociationResultBlock limited = solver.limit(results, query.offset(), query
+					.limit());
+
+			if (frame != null) {
+				profiler.end(frame, limited.size);
+			}
+
+			if (limited != results) {
+				solver.release(results);
+			}
+
+			results = limited;
+		}
+
+		return first.materialize(results, profiler);
+	}
+
+	/**
+	 * Returns a page of the merged results of the member stores of a group.
+	 * <p>
+	 * The merged results are kept in a snapshot of the first store, which
+	 * serves the next pages just like {@link #queryPage(Query)} does. The key
+	 * of the snapshot contains the multipliers of the group (see
+	 * {@link QueryKey#of(Query)}), so the stores should be listed in the same
+	 * order for every page of the query.
+	 * </p>
+	 * 
+	 * @param stores The member stores
+	 * @param multipliers The multipliers of the results of the members
+	 * @param query
+	 * @return
+	 * @throws QueryExecutionException If any of the stores failed to query
+	 *             the associations, or the cursor of the query is invalid
+	 */
+	public static <F, T> ResultPage<F, T> queryGroupPage(
+			List<FileAssociationStoreImpl<F, T>> stores, float[] multipliers, Query query)
+			throws QueryExecutionException {
+
+		if (stores.isEmpty() || ((query.limit() <= 0) && (query.pageSize() <= 0))) {
+
+			// Unlimited query, a single page
+			return new ResultPage<F, T>(queryGroup(stores, multipliers, query, null), null);
+		}
+
+		FileAssociationStoreImpl<F, T> first = stores.get(0);
+		QueryProfiler profiler = first.newProfiler();
+		Frame frame = first.begin(profiler, "page", query);
+		ResultPage<F, T> ret = null;
+
+		try {
+			QueryKey key = snapshotKey(query);
+			Snapshot snapshot = first.snapshots.get(query.cursor(), key);
+			FileAssociationSolver solver = newGroupSolver(first, stores.size(), profiler);
+
+			if (snapshot == null) {
+				Query members = query.copy().offset(0).limit(0).cursor(null);
+				snapshot = new Snapshot(key, solver.solveGroup(stores, multipliers, members));
+			} else if (profiler != null) {
+				profiler.addCacheHits(1);
+			}
+
+			ret = first.page(snapshot, query, solver, profiler);
+		} finally {
+			first.end(profiler, frame, (ret == null) ? 0 : ret.results.size());
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Creates a solver for querying the member stores of a group, with the
+	 * query parallelism of the first store (at most one thread per member).
+	 * 
+	 * @param first The first member store
+	 * @param members The number of the member stores
+	 * @param profiler The profiler of the query, or null if it is not
+	 *            profiled
+	 * @return
+	 */
+	private static FileAssociationSolver newGroupSolver(FileAssociationStoreImpl<?, ?> first,
+			int members, QueryProfiler profiler) {
+		FileAssociationSolver solver = new FileAssociationSolver(first, null);
+		int parallelism = Math.min(first.getQueryParallelism(), members);
+
+		if (parallelism > 1) {
+			solver.setExecutor(first.getQueryExecutor(), parallelism);
+		}
+
+		solver.setProfiler(profiler);
+		return solver;
+	}
+
+	/**
+	 * Solves the query and loads its results.
+	 * 
+	 * @param query
+	 * @param profiler The profiler of the query, or null if it is not
+	 *            profiled
+	 * @return
+	 * @throws QueryExecutionException
+	 */
+	private List<Association<F, T>> query(Query query, QueryProfiler profiler)
+			throws QueryExecutionException {
+		return materialize(solve(query, profiler), profiler);
+	}
+
+	/**
+	 * Solves the query, or returns its results from the query result cache.
+	 * <p>
+	 * Note: the returned results may be cached, so they must not be modified.
+	 * </p>
+	 * 
+	 * @param query
+	 * @param profiler The profiler of the query, or null if it is not
+	 *            profiled
+	 * @return
+	 * @throws QueryExecutionException
+	 */
+	AssociationResultBlock solve(Query query, QueryProfiler profiler)
+			throws QueryExecutionException {
+		QueryKey key = (cache.getMaxBytes() > 0) ? QueryKey.of(query) : null;
+
+		// Filtered results are not cached, because the fields of the targets
+		// may be updated without us knowing about it
+		if ((key == null) || key.isFiltered()) {
+			return newSolver(null, profiler).solve(query);
+		}
+
+		AssociationResultBlock results = cache.get(key);
+
+		if (results == null) {
+			Dependencies deps = new Dependencies();
+			long generation = cache.generation();
+
+			// Solving the query, collecting its dependencies
+			results = newSolver(deps, profiler).solve(query);
+
+			// The buffers of the cached results must never be recycled
+			results.pooled = false;
+
+			cache.put(key, results, deps, generation);
+		} else if (profiler != null) {
+			profiler.addCacheHits(1);
+		}
+
+		return results;
+	}
+
+	@Override
+	public ResultPage<F, T> queryPage(Query query) throws QueryExecutionException {
+
+		if ((query.limit() <= 0) && (query.pageSize() <= 0)) {
+
+			// Unlimited query, a single page
+			return new ResultPage<F, T>(query(query), null);
+		}
+
+		QueryProfiler profiler = newProfiler();
+		Frame frame = begin(profiler, "page", query);
+		ResultPage<F, T> ret = null;
+
+		try {
+			ret = queryPage(query, profiler);
+		} finally {
+			end(profiler, frame, (ret == null) ? 0 : ret.results.size());
+		}
+
+		return ret;
+	}
+
+	// See: queryPage
+	private ResultPage<F, T> queryPage(Query query, QueryProfiler profiler)
+			throws QueryExecutionException {
+		QueryKey key = snapshotKey(query);
+		Snapshot snapshot = snapshots.get(query.cursor(), key);
+		FileAssociationSolver solver = newSolver(null, profiler);
+
+		if (snapshot == null) {
+			snapshot = new Snapshot(key, solver.select(query));
+		} else if (profiler != null) {
+			profiler.addCacheHits(1);
+		}
+
+		return page(snapshot, query, solver, profiler);
+	}
+
+	/**
+	 * Returns the page of the query from the snapshot of its results.
+	 * <p>
+	 * The snapshot is kept for serving the next pages, unless this is the
+	 * last page.
+	 * </p>
+	 * 
+	 * @param snapshot
+	 * @param query
+	 * @param solver The solver to use for sorting
+	 * @param profiler The profiler of the query, or null if it is not
+	 *            profiled
+	 * @return
+	 * @throws QueryExecutionException If the entities could not be loaded
+	 */
+	private ResultPage<F, T> page(Snapshot snapshot, Query query, FileAssociationSolver solver,
+			QueryProfiler profiler) throws QueryExecutionException {
+		AssociationResultBlock results;
+
+		if (query.limit() <= 0) {
+
+			// Unlimited query, paged in the order of the snapshot
+			results = snapshot.slice(query.offset(), query.pageSize());
+		} else {
+			results = snapshot.page(solver, query.offset(), query.limit());
+		}
+
+		String cursor = null;
+
+		if ((long) query.offset() + results.size < snapshot.size()) {
+			cursor = (snapshot.cursor == null) ? snapshots.add(snapshot) : snapshot.cursor;
+		}
+
+		return new ResultPage<F, T>(materialize(results, profiler), cursor);
+	}
+
+	/**
+	 * Returns the key of the snapshots of the query, which is the same for
+	 * all of its pages. The pages of limited (sorted) and unlimited queries
+	 * do not share snapshots.
+	 * 
+	 * @param query
+	 * @return
+	 */
+	private static QueryKey snapshotKey(Query query) {
+		return QueryKey.of(query.copy().offset(0).limit((query.limit() > 0) ? 1 : 0).cursor(
+				null));
+	}
+
+	/**
+	 * Creates a profiler for a single query, if slow queries should be
+	 * logged.
+	 * 
+	 * @return The profiler, or null if the query should not be profiled
+	 */
+	private QueryProfiler newProfiler() {
+		return (slowQueryThreshold > 0) ? new QueryProfiler() : null;
+	}
+
+	// Begins profiling the query, if the profiler is not null
+	private Frame begin(QueryProfiler profiler, String operator, Query query) {
+		return (profiler == null) ? null : profiler.begin(operator,
+				String.valueOf(QueryKey.of(query)), 0);
+	}
+
+	/**
+	 * Finishes profiling the query, and logs it if it was slow.
+	 * 
+	 * @param profiler The profiler of the query, or null if it is not
+	 *            profiled
+	 * @param frame
+	 * @param outputSize
+	 */
+	private void end(QueryProfiler profiler, Frame frame, int outputSize) {
+
+		if (profiler == null) {
+			return;
+		}
+
+		profiler.end(frame, outputSize);
+
+		QueryProfile profile = profiler.getProfile();
+		long threshold = slowQueryThreshold;
+
+		if ((threshold > 0) && (profile.getNanos() >= threshold * 1000000)) {
+			slowQueries.incrementAndGet();
+			lastSlowQuery = profile;
+
+			log.warn("Slow query on {} ({} ms):\n{}", new Object[] { storageFile,
+					profile.getNanos() / 1000000, profile });
+		}
+	}
+
+	/**
+	 * Creates a solver for a single query.
+	 * 
+	 * @param deps The dependencies of the query are collected here, if not
+	 *            null
+	 * @param profiler The profiler of the query, or null if it is not
+	 *            profiled
+	 * @return
+	 */
+	private FileAssociationSolver newSolver(Dependencies deps, QueryProfiler profiler) {
+		FileAssociationSolver solver = new FileAssociationSolver(this, deps);
+		solver.setProfiler(profiler);
+
+		synchronized (executorLock) {
+
+			if (queryParallelism > 1) {
+				solver.setExecutor(getQueryExecutor(), queryParallelism);
+			}
+		}
+
+		return solver;
+	}
+
+	/**
+	 * Returns the worker threads of the parallel queries, creating them if
+	 * necessary.
+	 * 
+	 * @return
+	 */
+	private ExecutorService getQueryExecutor() {
+
+		synchronized (executorLock) {
+
+			if (queryExecutor == null) {
+				queryExecutor = Executors.newFixedThreadPool(Runtime.getRuntime()
+						.availableProcessors(), new WorkerThreadFactory("ase4j-query-"));
+			}
+
+			return queryExecutor;
+		}
+	}
+
+	/**
+	 * Returns the worker threads of the grouped writes, creating them if
+	 * necessary.
+	 * 
+	 * @return
+	 */
+	private ExecutorService getWriteExecutor() {
+
+		synchronized (executorLock) {
+
+			if (writeExecutor == null) {
+				writeExecutor = Executors.newFixedThreadPool(Runtime.getRuntime()
+						.availableProcessors(), new WorkerThreadFactory("ase4j-write-"));
+			}
+
+			return writeExecutor;
+		}
+	}
+
+	/**
+	 * Loads the <code>to</code> entities of the results.
+	 * 
+	 * @param results
+	 * @param profiler The profiler of the query, or null if it is not
+	 *            profiled
+	 * @return
+	 * @throws QueryExecutionException If the entities could not be loaded
+	 */
+	private List<Association<F, T>> materialize(AssociationResultBlock results,
+			QueryProfiler profiler) throws QueryExecutionException {
+
+		if (profiler == null) {
+			return materialize(results);
+		}
+
+		Frame frame = profiler.begin("materialize", null, results.size);
+		List<Association<F, T>> ret = materialize(results);
+		profiler.end(frame, ret.size());
+
+		return ret;
+	}
+
+	// See: materialize
+	private List<Association<F, T>> materialize(AssociationResultBlock results)
+			throws QueryExecutionException {
+		List<Association<F, T>> ret = new ArrayList<Association<F, T>>(results.size);
+
+		try {
+			long[] ids = new long[results.size];
 
 			for (int i = 0; i < results.size; i++) {
-				T to = toStore.get(tos[i]);
-				float value = values[i];
+				ids[i] = results.tos[i];
+			}
+
+			// Loading the targets in one batch
+			List<T> tos = toStore.getAll(ids);
+			float[] values = results.values;
 
-				ret.add(new Association<F, T>(null, to, value));
+			for (int i = 0; i < results.size; i++) {
+				ret.add(new Association<F, T>(null, tos.get(i), values[i]));
 			}
 		} catch (ObjectStoreException e) {
 			throw new QueryExecutionException(e);
@@ -199,6 +910,10 @@ public class FileAssociationStoreImpl<F, T> implements ConfigurableAssociationSt
 		return assocs.get(from);
 	}
 
+	int getAssociationSize(int from) throws IOException {
+		return assocs.getBlockSize(from);
+	}
+
 	@Override
 	public synchronized void flush() throws IOException {
 		assocs.flush();
@@ -207,7 +922,21 @@ public class FileAssociationStoreImpl<F, T> implements ConfigurableAssociationSt
 	@Override
 	@PreDestroy
 	public synchronized void close() throws IOException {
+		cache.clear();
 		assocs.close();
+
+		synchronized (executorLock) {
+
+			if (queryExecutor != null) {
+				queryExecutor.shutdown();
+				queryExecutor = null;
+			}
+
+			if (writeExecutor != null) {
+				writeExecutor.shutdown();
+				writeExecutor = null;
+			}
+		}
 	}
 
 	@Override
@@ -239,6 +968,179 @@ public class FileAssociationStoreImpl<F, T> implements ConfigurableAssociationSt
 		this.storageFile = storageFile;
 	}
 
+	/**
+	 * Sets the time after an unused result snapshot expires.
+	 * <p>
+	 * Result snapshots are used for serving further pages of queries (see
+	 * {@link #queryPage(Query)}).
+	 * </p>
+	 * 
+	 * @param timeToLive The expiry in milliseconds (default: 1 minute)
+	 */
+	public void setSnapshotTimeToLive(long timeToLive) {
+		snapshots.setTimeToLive(timeToLive);
+	}
+
+	/**
+	 * Sets the maximum memory used by the result snapshots.
+	 * <p>
+	 * The memory usage is estimated by the sizes of the results. The least
+	 * recently used snapshots are dropped when it is exceeded, and their
+	 * queries are solved again when their next pages are queried.
+	 * </p>
+	 * 
+	 * @param maxBytes The maximum number of bytes (default: 64 Mb)
+	 */
+	public void setSnapshotCacheSize(long maxBytes) {
+		snapshots.setMaxBytes(maxBytes);
+	}
+
+	long getSnapshotUsage() {
+		return snapshots.getBytes();
+	}
+
+	/**
+	 * Sets the maximum memory used by the query result cache.
+	 * <p>
+	 * The results of unfiltered queries are cached until any of the
+	 * association blocks they depend on is updated. The memory usage of the
+	 * cache is estimated by the sizes of the cached results.
+	 * </p>
+	 * 
+	 * @param maxBytes The maximum number of bytes, or 0 to disable caching
+	 *            (default: 16 MB)
+	 */
+	public void setQueryCacheSize(long maxBytes) {
+		cache.setMaxBytes(maxBytes);
+	}
+
+	@Override
+	public long getQueryCacheSize() {
+		return cache.getMaxBytes();
+	}
+
+	@Override
+	public long getQueryCacheUsage() {
+		return cache.getBytes();
+	}
+
+	@Override
+	public long getQueryCacheHits() {
+		return cache.getHits();
+	}
+
+	@Override
+	public long getQueryCacheMisses() {
+		return cache.getMisses();
+	}
+
+	@Override
+	public double getQueryCacheHitRate() {
+		long hits = cache.getHits();
+		long total = hits + cache.getMisses();
+
+		return (total == 0) ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * Sets the maximum number of threads solving a single query.
+	 * <p>
+	 * The independent operands of OR expressions, and the chunks of big
+	 * unions, intersections and limits are calculated in parallel. The worker
+	 * threads are shared by all the queries of the store.
+	 * </p>
+	 * 
+	 * @param queryParallelism The number of threads, including the calling
+	 *            thread (default: 1, sequential)
+	 */
+	public void setQueryParallelism(int queryParallelism) {
+
+		synchronized (executorLock) {
+			this.queryParallelism = Math.max(queryParallelism, 1);
+		}
+	}
+
+	@Override
+	public int getQueryParallelism() {
+
+		synchronized (executorLock) {
+			return queryParallelism;
+		}
+	}
+
+	/**
+	 * Sets the maximum number of phrases a prefix or wildcard query may be
+	 * expanded to.
+	 * <p>
+	 * Queries matching more phrases fail with a
+	 * {@link QueryExecutionException}.
+	 * </p>
+	 * 
+	 * @param maxPhraseExpansions (default: 1024)
+	 */
+	public void setMaxPhraseExpansions(int maxPhraseExpansions) {
+		this.maxPhraseExpansions = maxPhraseExpansions;
+	}
+
+	@Override
+	public int getMaxPhraseExpansions() {
+		return maxPhraseExpansions;
+	}
+
+	/**
+	 * Sets the maximum memory of the pooled intermediate result buffers, per
+	 * query thread.
+	 * <p>
+	 * The set operations of the queries reuse the pooled buffers instead of
+	 * allocating new ones (see {@link ResultBlockPool}). Setting 0 disables
+	 * pooling.
+	 * </p>
+	 * 
+	 * @param maxBytes (default: 32 Mb)
+	 */
+	public void setResultPoolSize(long maxBytes) {
+		resultPool.setMaxBytes(maxBytes);
+	}
+
+	@Override
+	public long getResultPoolSize() {
+		return resultPool.getMaxBytes();
+	}
+
+	/**
+	 * Sets the execution time above which the queries are logged as slow.
+	 * <p>
+	 * If set, every query is profiled (see {@link #profile(Query)}), and the
+	 * operator trees of the slow ones are logged as warnings.
+	 * </p>
+	 * 
+	 * @param threshold The threshold in milliseconds, or 0 to disable the
+	 *            slow query log (default: 0)
+	 */
+	public void setSlowQueryThreshold(long threshold) {
+		this.slowQueryThreshold = Math.max(threshold, 0);
+	}
+
+	@Override
+	public long getSlowQueryThreshold() {
+		return slowQueryThreshold;
+	}
+
+	@Override
+	public long getSlowQueryCount() {
+		return slowQueries.get();
+	}
+
+	@Override
+	public String getLastSlowQuery() {
+		QueryProfile profile = lastSlowQuery;
+		return (profile == null) ? null : profile.toString();
+	}
+
+	ResultBlockPool getResultPool() {
+		return resultPool;
+	}
+
 	/**
 	 * Sets the association cache size.
 	 * <p>
@@ -279,8 +1181,9 @@ public class FileAssociationStoreImpl<F, T> implements ConfigurableAssociationSt
 		// Assoc bytes = file length - 4 Magic bytes - 4 size bytes - index cap
 		long assocBytes = storageFile.length() - 4 - 4 - assocs.getCapacity();
 
-		// ...minus AssociationBlock overhead: 4 capacity + 4 size + 4 from
-		assocBytes -= getBlockCount() * (4 + 4 + 4);
+		// ...minus AssociationBlock overhead: 4 capacity + 4 size + 4 from (+ 4
+		// maxValue)
+		assocBytes -= getBlockCount() * assocs.getBlockHeaderSize();
 
 		// ...divided by the stored association bytes (4 to + 4 value)
 		return (double) assocBytes / (size * (4 + 4));
@@ -302,4 +1205,21 @@ public class FileAssociationStoreImpl<F, T> implements ConfigurableAssociationSt
 		// return assocs.getCache().getAssociationCount(); TODO
 		return 0;
 	}
+
+	// Creates the daemon worker threads of the parallel queries and writes
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+		private final String prefix;
+
+		WorkerThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread ret = new Thread(r, prefix + count.incrementAndGet());
+			ret.setDaemon(true);
+			return ret;
+		}
+	}
 }
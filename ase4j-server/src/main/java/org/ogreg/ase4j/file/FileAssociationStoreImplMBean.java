@@ -8,4 +8,126 @@ import org.ogreg.ase4j.AssociationStoreMBean;
  * @author Gergely Kiss
  */
 public interface FileAssociationStoreImplMBean extends AssociationStoreMBean {
+
+	/**
+	 * Returns the maximum memory used by the query result cache, in bytes.
+	 * 
+	 * @return
+	 */
+	long getQueryCacheSize();
+
+	/**
+	 * Sets the maximum memory used by the query result cache, in bytes, or 0
+	 * to disable caching.
+	 * 
+	 * @param maxBytes
+	 */
+	void setQueryCacheSize(long maxBytes);
+
+	/**
+	 * Returns the memory currently used by the query result cache (estimated),
+	 * in bytes.
+	 * 
+	 * @return
+	 */
+	long getQueryCacheUsage();
+
+	/**
+	 * Returns the number of queries served from the result cache.
+	 * 
+	 * @return
+	 */
+	long getQueryCacheHits();
+
+	/**
+	 * Returns the number of cacheable queries which had to be solved.
+	 * 
+	 * @return
+	 */
+	long getQueryCacheMisses();
+
+	/**
+	 * Returns the ratio of the cache hits and all the cacheable queries.
+	 * 
+	 * @return
+	 */
+	double getQueryCacheHitRate();
+
+	/**
+	 * Returns the maximum number of threads solving a single query.
+	 * 
+	 * @return
+	 */
+	int getQueryParallelism();
+
+	/**
+	 * Sets the maximum number of threads solving a single query, or 1 to
+	 * solve the queries sequentially.
+	 * 
+	 * @param queryParallelism
+	 */
+	void setQueryParallelism(int queryParallelism);
+
+	/**
+	 * Returns the maximum number of phrases a prefix or wildcard query may be
+	 * expanded to.
+	 * 
+	 * @return
+	 */
+	int getMaxPhraseExpansions();
+
+	/**
+	 * Sets the maximum number of phrases a prefix or wildcard query may be
+	 * expanded to.
+	 * 
+	 * @param maxPhraseExpansions
+	 */
+	void setMaxPhraseExpansions(int maxPhraseExpansions);
+
+	/**
+	 * Returns the maximum memory of the pooled intermediate result buffers,
+	 * per query thread.
+	 * 
+	 * @return
+	 */
+	long getResultPoolSize();
+
+	/**
+	 * Sets the maximum memory of the pooled intermediate result buffers, per
+	 * query thread.
+	 * 
+	 * @param maxBytes
+	 */
+	void setResultPoolSize(long maxBytes);
+
+	/**
+	 * Returns the execution time above which the queries are logged as slow,
+	 * in milliseconds.
+	 * 
+	 * @return
+	 */
+	long getSlowQueryThreshold();
+
+	/**
+	 * Sets the execution time above which the queries are profiled and logged
+	 * as slow, in milliseconds, or 0 to disable the slow query log.
+	 * 
+	 * @param threshold
+	 */
+	void setSlowQueryThreshold(long threshold);
+
+	/**
+	 * Returns the number of queries which were slower than the threshold.
+	 * 
+	 * @return
+	 */
+	long getSlowQueryCount();
+
+	/**
+	 * Returns the profiled operator tree of the last slow query, or null if
+	 * there was none.
+	 * 
+	 * @return
+	 */
+	String getLastSlowQuery();
 }
@@ -0,0 +1,265 @@
+package org.ogreg.ase4j.file;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.ogreg.ase4j.criteria.QueryKey;
+import org.ogreg.ase4j.file.CachedBlockStore.UpdateListener;
+
+/**
+ * Memory bounded, least recently used cache of query results.
+ * <p>
+ * Every entry records the <code>from</code> blocks its result was calculated
+ * from, and it is invalidated as soon as any of them is updated (see
+ * {@link #blockUpdated(int, boolean)}). Results which depend on phrases without
+ * association blocks are invalidated whenever a new block is created.
+ * </p>
+ * <p>
+ * To avoid caching results which were calculated during an update, results
+ * may only be stored if no invalidation happened since their calculation has
+ * started (see {@link #generation()}).
+ * </p>
+ * 
+ * @author Gergely Kiss
+ */
+class QueryCache implements UpdateListener {
+
+	/** The estimated memory overhead of an entry, in bytes. */
+	private static final int ENTRY_OVERHEAD = 128;
+
+	/**
+	 * The maximum number of bytes used by the cached results (estimated), or
+	 * 0 if caching is disabled.
+	 * <p>
+	 * Default: 16 MB
+	 * </p>
+	 */
+	private long maxBytes = 16 * 1024 * 1024;
+
+	/** The number of bytes currently used by the cached results (estimated). */
+	private long bytes = 0;
+
+	/** The number of invalidations so far. */
+	private long generation = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/** The cached results, in access order. */
+	private final LinkedHashMap<QueryKey, CachedResult> entries = new LinkedHashMap<QueryKey, CachedResult>(
+			16, 0.75F, true);
+
+	/** The keys of the cached results by the blocks they depend on. */
+	private final Map<Integer, Set<QueryKey>> dependents = new HashMap<Integer, Set<QueryKey>>();
+
+	/** The keys of the cached results which depend on missing blocks. */
+	private final Set<QueryKey> openDependents = new HashSet<QueryKey>();
+
+	/**
+	 * Returns the cached result for <code>key</code>, and updates the hit
+	 * statistics.
+	 * 
+	 * @param key
+	 * @return The cached result, or null if it was not found
+	 */
+	synchronized AssociationResultBlock get(QueryKey key) {
+		CachedResult entry = entries.get(key);
+
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+
+		hits++;
+		return entry.results;
+	}
+
+	/**
+	 * Returns the current generation of the cache, which should be queried
+	 * before calculating a result to be cached.
+	 * 
+	 * @return
+	 */
+	synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * Caches <code>results</code> by <code>key</code>, unless an invalidation
+	 * has happened since <code>generation</code>. The least recently used
+	 * entries are evicted if the cache becomes too big.
+	 * 
+	 * @param key
+	 * @param results The results to cache, which must not be modified later
+	 * @param deps The blocks the results depend on
+	 * @param generation The generation of the cache before calculating the
+	 *            results
+	 */
+	synchronized void put(QueryKey key, AssociationResultBlock results, Dependencies deps,
+			long generation) {
+		CachedResult entry = new CachedResult(key, results, deps);
+
+		if ((generation != this.generation) || (entry.bytes > maxBytes)) {
+			return;
+		}
+
+		remove(key);
+
+		entries.put(key, entry);
+		bytes += entry.bytes;
+
+		for (Integer from : deps.froms) {
+			Set<QueryKey> keys = dependents.get(from);
+
+			if (keys == null) {
+				keys = new HashSet<QueryKey>();
+				dependents.put(from, keys);
+			}
+
+			keys.add(key);
+		}
+
+		if (deps.open) {
+			openDependents.add(key);
+		}
+
+		// Evicting the least recently used entries
+		Iterator<Map.Entry<QueryKey, CachedResult>> it = entries.entrySet().iterator();
+
+		while ((bytes > maxBytes) && it.hasNext()) {
+			Map.Entry<QueryKey, CachedResult> eldest = it.next();
+			it.remove();
+			removeDependencies(eldest.getValue(), eldest.getKey());
+		}
+	}
+
+	/**
+	 * Invalidates the results depending on the block of <code>from</code>.
+	 * 
+	 * @param from
+	 * @param created True if the block was newly created
+	 */
+	@Override
+	public synchronized void blockUpdated(int from, boolean created) {
+		generation++;
+
+		Set<QueryKey> keys = dependents.get(from);
+
+		if (keys != null) {
+
+			for (QueryKey key : keys.toArray(new QueryKey[keys.size()])) {
+				remove(key);
+			}
+		}
+
+		if (created) {
+
+			for (QueryKey key : openDependents.toArray(new QueryKey[openDependents.size()])) {
+				remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Removes all the cached results.
+	 */
+	synchronized void clear() {
+		generation++;
+		entries.clear();
+		dependents.clear();
+		openDependents.clear();
+		bytes = 0;
+	}
+
+	private void remove(QueryKey key) {
+		CachedResult entry = entries.remove(key);
+
+		if (entry != null) {
+			removeDependencies(entry, key);
+		}
+	}
+
+	private void removeDependencies(CachedResult entry, QueryKey key) {
+		bytes -= entry.bytes;
+
+		for (Integer from : entry.deps.froms) {
+			Set<QueryKey> keys = dependents.get(from);
+
+			if (keys != null) {
+				keys.remove(key);
+
+				if (keys.isEmpty()) {
+					dependents.remove(from);
+				}
+			}
+		}
+
+		openDependents.remove(key);
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	synchronized long getBytes() {
+		return bytes;
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+
+	synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+
+		if (bytes > maxBytes) {
+			clear();
+		}
+	}
+
+	/**
+	 * The association blocks a query result depends on.
+	 * 
+	 * @author Gergely Kiss
+	 */
+	static class Dependencies {
+		private final Set<Integer> froms = new HashSet<Integer>();
+
+		/** True if the result depends on phrases without association blocks. */
+		private boolean open = false;
+
+		synchronized void add(int from) {
+			froms.add(from);
+		}
+
+		synchronized void addMissing() {
+			open = true;
+		}
+	}
+
+	// A cached result with its dependencies
+	private static class CachedResult {
+		final AssociationResultBlock results;
+		final Dependencies deps;
+		final long bytes;
+
+		CachedResult(QueryKey key, AssociationResultBlock results, Dependencies deps) {
+			this.results = results;
+			this.deps = deps;
+			this.bytes = ENTRY_OVERHEAD + key.sizeOf() + (results.tos.length * 8L)
+					+ (deps.froms.size() * 32L);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package org.ogreg.ase4j.file;
+
+/**
+ * A per-thread pool of the buffers of temporary {@link AssociationResultBlock}s.
+ * <p>
+ * The set operations of a query create lots of temporary results, each of
+ * them sized for the worst case. Instead of allocating new buffers for every
+ * operation, the solver acquires them from the pool, and releases the buffers
+ * of the consumed operands when they are not needed any more, so that a long
+ * chain of operations keeps reusing the same few buffers.
+ * </p>
+ * <p>
+ * The buffers are pooled by power of two capacities, and every thread has its
+ * own buffers, so acquiring and releasing needs no synchronization. At most
+ * {@link #getMaxBytes()} bytes are retained by a thread, the rest of the
+ * released buffers are left to the garbage collector. Small buffers are not
+ * pooled at all.
+ * </p>
+ * 
+ * @author Gergely Kiss
+ */
+final class ResultBlockPool {
+
+	/** The capacity of the smallest pooled buffers. */
+	private static final int MIN_BITS = 10;
+
+	/** The capacity of the biggest pooled buffers. */
+	private static final int MAX_BITS = 30;
+
+	/** The maximum number of pooled buffers of the same capacity. */
+	private static final int MAX_BUFFERS = 4;
+
+	/** The memory used by a single association (a to and a value). */
+	private static final int ASSOCIATION_BYTES = 8;
+
+	/** The maximum memory retained by a thread. */
+	private volatile long maxBytes;
+
+	private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+
+	/**
+	 * Creates a pool.
+	 * 
+	 * @param maxBytes The maximum memory retained by a thread, pooling is
+	 *            disabled if 0
+	 */
+	ResultBlockPool(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns an empty result of at least <code>capacity</code> associations.
+	 * 
+	 * @param capacity
+	 * @return
+	 */
+	AssociationResultBlock acquire(int capacity) {
+
+		if ((capacity < (1 << MIN_BITS)) || (maxBytes <= 0)) {
+			AssociationResultBlock ret = new AssociationResultBlock(capacity);
+			ret.size = 0;
+			return ret;
+		}
+
+		int bits = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+
+		if (bits > MAX_BITS) {
+			AssociationResultBlock ret = new AssociationResultBlock(capacity);
+			ret.size = 0;
+			return ret;
+		}
+
+		AssociationResultBlock ret = buffers.get().remove(bits);
+
+		if (ret == null) {
+			ret = new AssociationResultBlock(1 << bits);
+			ret.size = 0;
+		}
+
+		ret.pooled = true;
+		return ret;
+	}
+
+	/**
+	 * Returns an empty result which takes over the buffers of
+	 * <code>result</code> (if it is pooled).
+	 * <p>
+	 * It may be used for operations which never write ahead of their reads,
+	 * so they can be calculated in place. The original result will not be
+	 * released.
+	 * </p>
+	 * 
+	 * @param result
+	 * @return
+	 */
+	AssociationResultBlock reuse(AssociationResultBlock result) {
+		AssociationResultBlock ret = new AssociationResultBlock(result.tos, result.values, 0);
+		ret.pooled = result.pooled;
+		result.pooled = false;
+		return ret;
+	}
+
+	/**
+	 * Returns the buffers of <code>result</code> to the pool, if it is pooled.
+	 * <p>
+	 * Note: the result must not be used after it is released.
+	 * </p>
+	 * 
+	 * @param result
+	 */
+	void release(AssociationResultBlock result) {
+
+		if ((result == null) || !result.pooled) {
+			return;
+		}
+
+		int[] tos = result.tos;
+		float[] values = result.values;
+
+		result.pooled = false;
+		result.tos = null;
+		result.values = null;
+		result.size = 0;
+
+		buffers.get().add(tos, values, maxBytes);
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * The pooled buffers of a thread.
+	 * 
+	 * @author Gergely Kiss
+	 */
+	private static final class Buffers {
+		private final int[][][] tos = new int[MAX_BITS + 1][MAX_BUFFERS][];
+		private final float[][][] values = new float[MAX_BITS + 1][MAX_BUFFERS][];
+		private final int[] counts = new int[MAX_BITS + 1];
+		private long bytes = 0;
+
+		AssociationResultBlock remove(int bits) {
+			int cnt = counts[bits];
+
+			if (cnt == 0) {
+				return null;
+			}
+
+			cnt--;
+
+			AssociationResultBlock ret = new AssociationResultBlock(tos[bits][cnt],
+					values[bits][cnt], 0);
+			tos[bits][cnt] = null;
+			values[bits][cnt] = null;
+			counts[bits] = cnt;
+			bytes -= (long) ASSOCIATION_BYTES << bits;
+
+			return ret;
+		}
+
+		void add(int[] t, float[] v, long maxBytes) {
+			int bits = Integer.numberOfTrailingZeros(t.length);
+			long size = (long) ASSOCIATION_BYTES << bits;
+
+			if ((bits < MIN_BITS) || (bits > MAX_BITS) || (t.length != 1 << bits)
+					|| (counts[bits] >= MAX_BUFFERS) || (bytes + size > maxBytes)) {
+				return;
+			}
+
+			tos[bits][counts[bits]] = t;
+			values[bits][counts[bits]] = v;
+			counts[bits]++;
+			bytes += size;
+		}
+	}
+}
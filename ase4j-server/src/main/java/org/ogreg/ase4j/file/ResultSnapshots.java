@@ -0,0 +1,249 @@
+package org.ogreg.ase4j.file;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.ogreg.ase4j.criteria.QueryExecutionException;
+import org.ogreg.ase4j.criteria.QueryKey;
+
+/**
+ * Short-lived snapshots of query results, used for paging.
+ * <p>
+ * A snapshot holds the full (filtered, but unlimited) result of a query, and
+ * a sorted prefix of it which is extended on demand. This way the pages of a
+ * query can be served without solving the query again. Snapshots are
+ * identified by random, opaque cursors, and they expire after
+ * {@link #timeToLive} milliseconds of inactivity.
+ * </p>
+ * <p>
+ * A cursor may only be used with the query which created it (see
+ * {@link #get(String, QueryKey)}). The memory used by the snapshots is
+ * estimated by their sizes, and the least recently used ones are dropped when
+ * it exceeds {@link #maxBytes}.
+ * </p>
+ * 
+ * @author Gergely Kiss
+ */
+class ResultSnapshots {
+
+	/**
+	 * The time after an unused snapshot expires, in milliseconds.
+	 * <p>
+	 * Default: 1 minute
+	 * </p>
+	 */
+	private long timeToLive = 60000;
+
+	/**
+	 * The maximum estimated memory of the snapshots, in bytes.
+	 * <p>
+	 * Default: 64 Mb
+	 * </p>
+	 */
+	private long maxBytes = 64L << 20;
+
+	/** The estimated memory of the snapshots, in bytes. */
+	private long bytes = 0;
+
+	/** The snapshots by their cursors, in access order. */
+	private final Map<String, Snapshot> snapshots = new LinkedHashMap<String, Snapshot>(16,
+			0.75F, true);
+
+	/**
+	 * Returns the snapshot identified by <code>cursor</code>.
+	 * 
+	 * @param cursor
+	 * @param key The key of the query of the snapshot (see
+	 *            {@link Snapshot#key})
+	 * @return The snapshot, or null if it was not found or expired
+	 * @throws QueryExecutionException if the snapshot belongs to a different
+	 *             query
+	 */
+	synchronized Snapshot get(String cursor, QueryKey key) throws QueryExecutionException {
+		expire();
+
+		Snapshot snapshot = (cursor == null) ? null : snapshots.get(cursor);
+
+		if (snapshot == null) {
+			return null;
+		}
+
+		if ((key == null) ? (snapshot.key != null) : !key.equals(snapshot.key)) {
+			throw new QueryExecutionException("The cursor " + cursor
+					+ " belongs to a different query");
+		}
+
+		snapshot.lastAccess = System.currentTimeMillis();
+
+		return snapshot;
+	}
+
+	/**
+	 * Keeps the snapshot, and assigns a new cursor to it.
+	 * <p>
+	 * The least recently used snapshots are dropped if the snapshots use too
+	 * much memory, but the new snapshot is always kept.
+	 * </p>
+	 * 
+	 * @param snapshot
+	 * @return The new cursor of the snapshot
+	 */
+	synchronized String add(Snapshot snapshot) {
+		expire();
+
+		snapshot.cursor = UUID.randomUUID().toString();
+		snapshot.lastAccess = System.currentTimeMillis();
+		snapshots.put(snapshot.cursor, snapshot);
+		bytes += snapshot.sizeOf();
+
+		for (Iterator<Snapshot> it = snapshots.values().iterator(); (bytes > maxBytes)
+				&& it.hasNext();) {
+			Snapshot eldest = it.next();
+
+			if (eldest != snapshot) {
+				bytes -= eldest.sizeOf();
+				it.remove();
+			}
+		}
+
+		return snapshot.cursor;
+	}
+
+	// Removes the expired snapshots (the least recently used ones come first)
+	private void expire() {
+		long expiry = System.currentTimeMillis() - timeToLive;
+
+		for (Iterator<Snapshot> it = snapshots.values().iterator(); it.hasNext();) {
+			Snapshot snapshot = it.next();
+
+			if (snapshot.lastAccess >= expiry) {
+				break;
+			}
+
+			bytes -= snapshot.sizeOf();
+			it.remove();
+		}
+	}
+
+	synchronized int size() {
+		return snapshots.size();
+	}
+
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * A snapshot of query results.
+	 * 
+	 * @author Gergely Kiss
+	 */
+	static class Snapshot {
+
+		/** The cursor of the snapshot, or null if it is not kept. */
+		String cursor;
+
+		/**
+		 * The key of the query of the snapshot, without its offset and limit
+		 * (or null if the query can not be normalized).
+		 */
+		final QueryKey key;
+
+		/** The full, unsorted result. */
+		private final AssociationResultBlock results;
+
+		/** The top of the results, sorted by value, descending. */
+		private AssociationResultBlock sorted = new AssociationResultBlock(0);
+
+		private volatile long lastAccess = System.currentTimeMillis();
+
+		Snapshot(QueryKey key, AssociationResultBlock results) {
+			this.key = key;
+			this.results = results;
+		}
+
+		/**
+		 * Returns the <code>limit</code> results after <code>offset</code>,
+		 * sorted by value, descending.
+		 * 
+		 * @param solver The solver to use for sorting
+		 * @param offset
+		 * @param limit
+		 * @return
+		 */
+		synchronized AssociationResultBlock page(FileAssociationSolver solver, int offset,
+				int limit) {
+			long end = Math.min((long) offset + limit, results.size);
+
+			if (sorted.size < end) {
+
+				// Sorting twice as much as needed, so that the next pages
+				// (probably) won't need sorting
+				int top = (int) Math.min(results.size, 2 * end);
+				sorted = solver.limit(results, 0, top);
+			}
+
+			int size = (int) Math.max(end - offset, 0);
+			AssociationResultBlock ret = new AssociationResultBlock(size);
+
+			if (size == 0) {
+				return ret;
+			}
+
+			System.arraycopy(sorted.tos, offset, ret.tos, 0, size);
+			System.arraycopy(sorted.values, offset, ret.values, 0, size);
+
+			return ret;
+		}
+
+		/**
+		 * Returns the <code>limit</code> results after <code>offset</code>,
+		 * in the (unspecified) order of the full result.
+		 * 
+		 * @param offset
+		 * @param limit
+		 * @return
+		 */
+		AssociationResultBlock slice(int offset, int limit) {
+			long end = Math.min((long) offset + limit, results.size);
+			int size = (int) Math.max(end - offset, 0);
+			AssociationResultBlock ret = new AssociationResultBlock(size);
+
+			if (size > 0) {
+				System.arraycopy(results.tos, offset, ret.tos, 0, size);
+				System.arraycopy(results.values, offset, ret.values, 0, size);
+			}
+
+			return ret;
+		}
+
+		/**
+		 * Returns the estimated memory of the snapshot: the results, and the
+		 * sorted copy of them at most.
+		 * 
+		 * @return
+		 */
+		long sizeOf() {
+			return 64 + 16L * results.size + ((key == null) ? 0 : key.sizeOf());
+		}
+
+		/**
+		 * Returns the total number of results in this snapshot.
+		 * 
+		 * @return
+		 */
+		int size() {
+			return results.size;
+		}
+	}
+}
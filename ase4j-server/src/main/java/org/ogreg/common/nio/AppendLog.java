@@ -0,0 +1,235 @@
+package org.ogreg.common.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A buffered, append-only log of records on a {@link FileChannel}.
+ * <p>
+ * The records are appended to a buffer, which is written to the end of the
+ * channel in one sequential write when it is full, when the flush interval
+ * elapses, or when the log is flushed. The records are written in the order
+ * of their appends, and a record is never split by other records.
+ * </p>
+ * <p>
+ * If the log is synchronous, every append waits until its record is forced
+ * to the storage device. The appends waiting at the same time are committed
+ * together: one of them writes the buffer and forces the channel, while the
+ * others keep appending to the buffer, to be committed by the next force.
+ * </p>
+ * <p>
+ * On a crash, the records which were not written yet are lost (at most the
+ * size of the buffer, or the records of the flush interval), and the records
+ * which were not forced may be lost. The last record may be written
+ * partially, the readers of the log should truncate it. The records of a
+ * synchronous log are not lost once their appends have returned.
+ * </p>
+ * 
+ * @author Gergely Kiss
+ */
+public class AppendLog implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(AppendLog.class);
+
+	/** Writes the buffers of the logs periodically. */
+	private static final Timer flusher = new Timer("AppendLog flusher", true);
+
+	private final FileChannel channel;
+	private final boolean sync;
+
+	/** The records not written yet. */
+	private final ByteBuffer buf;
+
+	/** Writes the buffer periodically, or null. */
+	private final TimerTask flushTask;
+
+	/** The position of the next write. */
+	private long position;
+
+	/** The number of bytes appended, written and forced. */
+	private long appended;
+	private long written;
+	private long forced;
+
+	/** True if a commit is forcing the channel. */
+	private boolean forcing;
+
+	/**
+	 * Creates a log which appends to the end of the channel.
+	 * 
+	 * @param channel
+	 * @param bufferSize The size of the buffer in bytes
+	 * @param flushInterval The maximum time of the records in the buffer, in
+	 *            milliseconds (0 if the buffer is only written when full)
+	 * @param sync True if every append should wait until its record is forced
+	 *            to the storage device
+	 * @throws IOException
+	 */
+	public AppendLog(FileChannel channel, int bufferSize, long flushInterval, boolean sync)
+			throws IOException {
+		this.channel = channel;
+		this.sync = sync;
+		this.buf = ByteBuffer.allocate(bufferSize);
+		this.position = channel.size();
+
+		if (flushInterval > 0) {
+			flushTask = new TimerTask() {
+				@Override
+				public void run() {
+
+					try {
+						synchronized (AppendLog.this) {
+							write();
+						}
+					} catch (IOException e) {
+						log.error("Failed to write the log", e);
+					}
+				}
+			};
+			flusher.schedule(flushTask, flushInterval, flushInterval);
+		} else {
+			flushTask = null;
+		}
+	}
+
+	/**
+	 * Appends the remaining bytes of the record to the log.
+	 * 
+	 * @param record
+	 * @throws IOException on write error
+	 */
+	public void append(ByteBuffer record) throws IOException {
+		long end;
+
+		synchronized (this) {
+			int size = record.remaining();
+
+			if (size > buf.remaining()) {
+				write();
+			}
+
+			if (size > buf.remaining()) {
+
+				// Larger than the buffer, writing it directly
+				while (record.hasRemaining()) {
+					position += channel.write(record, position);
+				}
+
+				written += size;
+			} else {
+				buf.put(record);
+			}
+
+			appended += size;
+			end = appended;
+		}
+
+		if (sync) {
+			commit(end);
+		}
+	}
+
+	/**
+	 * Writes the records of the buffer, and forces them to the storage device.
+	 * 
+	 * @throws IOException on write error
+	 */
+	public void flush() throws IOException {
+		long end;
+
+		synchronized (this) {
+			end = appended;
+		}
+
+		commit(end);
+	}
+
+	/**
+	 * Flushes the log. The channel is not closed.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (flushTask != null) {
+			flushTask.cancel();
+		}
+
+		flush();
+	}
+
+	// Writes and forces the records until the end, together with the records
+	// appended meanwhile
+	private void commit(long end) throws IOException {
+
+		while (true) {
+			long target;
+
+			synchronized (this) {
+
+				while (forcing && (forced < end)) {
+
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while committing the log");
+					}
+				}
+
+				if (forced >= end) {
+					return;
+				}
+
+				forcing = true;
+				write();
+				target = written;
+			}
+
+			boolean success = false;
+
+			try {
+				channel.force(false);
+				success = true;
+			} finally {
+
+				synchronized (this) {
+					forcing = false;
+
+					if (success) {
+						forced = Math.max(forced, target);
+					}
+
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	// Writes the buffer to the end of the channel, the caller must hold the
+	// lock of the log
+	private void write() throws IOException {
+
+		if (buf.position() == 0) {
+			return;
+		}
+
+		buf.flip();
+
+		try {
+			while (buf.hasRemaining()) {
+				position += channel.write(buf, position);
+			}
+		} finally {
+			buf.compact();
+		}
+
+		written = appended;
+	}
+}
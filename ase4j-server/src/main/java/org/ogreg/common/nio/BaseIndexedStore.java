@@ -7,6 +7,10 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 import org.ogreg.common.utils.FileUtils;
 
@@ -155,6 +159,51 @@ public abstract class BaseIndexedStore<T> implements Closeable, Flushable {
 		}
 	}
 
+	/**
+	 * Gets the entities specified by their keys.
+	 * <p>
+	 * The entities are loaded in the order of their file positions, in a
+	 * single pass. This is much faster than calling {@link #get(int)} for every
+	 * key, since the disk is read sequentially and the store is locked only
+	 * once.
+	 * </p>
+	 * 
+	 * @param keys The identifiers of the entities
+	 * @return The loaded entities in the order of the keys (null for the keys
+	 *         which are not in the store)
+	 * @throws IOException if file access failed
+	 */
+	public List<T> getAll(int[] keys) throws IOException {
+		final long[] positions = new long[keys.length];
+		List<Integer> order = new ArrayList<Integer>(keys.length);
+
+		for (int i = 0; i < keys.length; i++) {
+			positions[i] = index.get(keys[i]);
+
+			if (positions[i] != 0) {
+				order.add(i);
+			}
+		}
+
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Long.signum(positions[o1] - positions[o2]);
+			}
+		});
+
+		List<T> ret = new ArrayList<T>(Collections.<T> nCopies(keys.length, null));
+
+		synchronized (this) {
+
+			for (Integer i : order) {
+				ret.set(i, load(positions[i]));
+			}
+		}
+
+		return ret;
+	}
+
 	/**
 	 * Adds the entity specified by its identifier.
 	 * <p>
@@ -178,6 +227,87 @@ public abstract class BaseIndexedStore<T> implements Closeable, Flushable {
 		index.set(key, pos);
 	}
 
+	/**
+	 * Adds the entities specified by their identifiers.
+	 * <p>
+	 * Equivalent to calling {@link #add(int, Object)} for every entity, but the
+	 * index is grown at most once, and the entities are serialized one after
+	 * the other, so they are appended to the file with only a few big writes.
+	 * </p>
+	 * 
+	 * @param keys The identifiers of the entities
+	 * @param entities The entities to add, in the order of the keys
+	 * @throws IOException if file access failed
+	 */
+	public synchronized void addAll(int[] keys, List<T> entities) throws IOException {
+		int maxKey = -1;
+
+		for (int key : keys) {
+			maxKey = Math.max(maxKey, key);
+		}
+
+		// Checking index size and growing if necessary
+		if (maxKey >= index.getCapacity()) {
+			reindex(maxKey + 1);
+		}
+
+		long[] positions = new long[keys.length];
+		long pos = storageChannel.size();
+		int written = 0;
+
+		buffer.clear();
+
+		for (int i = 0; i < keys.length; i++) {
+			T entity = entities.get(i);
+			int size = serializer.sizeOf(entity);
+
+			// Writing the buffered entities if the next one does not fit
+			if (size > buffer.remaining()) {
+				pos = write(pos);
+				written = setPositions(keys, positions, written, i);
+			}
+
+			positions[i] = pos + buffer.position();
+
+			if (size > buffer.capacity()) {
+				append(entity);
+				pos += size;
+				written = setPositions(keys, positions, written, i + 1);
+			} else {
+				int start = buffer.position();
+				serializer.serialize(entity, buffer);
+				buffer.position(start + size);
+			}
+		}
+
+		write(pos);
+		setPositions(keys, positions, written, keys.length);
+	}
+
+	// Writes the contents of the buffer to the specified position
+	private long write(long pos) throws IOException {
+		buffer.flip();
+
+		while (buffer.hasRemaining()) {
+			pos += storageChannel.write(buffer, pos);
+		}
+
+		buffer.clear();
+
+		return pos;
+	}
+
+	// Indexes the written entities from start to end (exclusive)
+	private int setPositions(int[] keys, long[] positions, int start, int end)
+			throws IOException {
+
+		for (int i = start; i < end; i++) {
+			index.set(keys[i], positions[i]);
+		}
+
+		return end;
+	}
+
 	/**
 	 * Updates the entity specified by its identifier.
 	 * <p>
@@ -209,6 +339,27 @@ public abstract class BaseIndexedStore<T> implements Closeable, Flushable {
 		return index.get(key);
 	}
 
+	/**
+	 * Reads an int field of the entity specified by its key, without loading
+	 * the entity.
+	 * <p>
+	 * Useful for reading fixed position header fields (like sizes) of large
+	 * entities.
+	 * </p>
+	 * 
+	 * @param key The identifier of the entity
+	 * @param offset The offset of the field, relative to the entity's file
+	 *            position
+	 * @return The value of the field, or 0 if the store does not contain an
+	 *         entity with the specified id
+	 * @throws IOException if file access failed
+	 */
+	protected int readInt(int key, int offset) throws IOException {
+		long pos = index.get(key);
+
+		return (pos == 0) ? 0 : NioUtils.readInt(storageChannel, pos + offset);
+	}
+
 	/**
 	 * Appends the entity at the end of the store.
 	 * 
@@ -364,6 +515,85 @@ public abstract class BaseIndexedStore<T> implements Closeable, Flushable {
 		open(storageFile);
 	}
 
+	/**
+	 * Rewrites every entity of the store with the specified serializer, which
+	 * is used by the store from then on.
+	 * <p>
+	 * Used for upgrading stores of a previous format: the entities are loaded
+	 * by the current serializer, and written by <code>target</code> to a new
+	 * storage file, which is switched like in {@link #reindex(int)}. The
+	 * header of the new file is written by {@link #writeHeader(FileChannel)},
+	 * so the implementation should already write the header of the new format
+	 * by then.
+	 * </p>
+	 * 
+	 * @param target The serializer of the new format
+	 * @throws IOException if file access failed
+	 */
+	protected synchronized void rewrite(NioSerializer<T> target) throws IOException {
+		int maxKey = index.getMaxKey();
+
+		// Opening a new store at a temp file
+		File dir = storageFile.getParentFile();
+		File tmpFile = File.createTempFile(storageFile.getName() + "_rewrite", "", dir);
+		boolean success = false;
+
+		try {
+			RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+			FileChannel targetChannel = raf.getChannel();
+			IndexEntries targetIndex = new IndexEntries();
+
+			try {
+				writeHeader(targetChannel);
+				targetIndex.map(targetChannel, targetChannel.position(), index.getCapacity());
+
+				long pos = targetChannel.size();
+
+				for (int i = 0; i <= maxKey; i++) {
+					long storagePos = index.get(i);
+
+					if (storagePos == 0) {
+						// Skipping unset (deleted) entry
+						continue;
+					}
+
+					T entity = load(storagePos);
+					int size = target.sizeOf(entity);
+					ByteBuffer buf = getBufferOf(size);
+
+					buf.clear();
+					target.serialize(entity, buf);
+					buf.flip().limit(size);
+
+					targetIndex.set(i, pos);
+
+					while (buf.hasRemaining()) {
+						pos += targetChannel.write(buf, pos);
+					}
+				}
+
+				targetIndex.flush();
+			} finally {
+				targetIndex.unmap();
+				targetChannel.close();
+				raf.close();
+			}
+
+			// Finally: switching
+			close();
+			FileUtils.renameTo(tmpFile, storageFile);
+			success = true;
+		} finally {
+
+			if (!success) {
+				tmpFile.delete();
+			}
+		}
+
+		serializer = target;
+		open(storageFile);
+	}
+
 	@Override
 	public synchronized void flush() throws IOException {
 		onBeforeFlush();
@@ -1,19 +1,39 @@
 package org.ogreg.ostore;
 
+import org.ogreg.common.ConfigurationException;
+import org.ogreg.common.Operator;
 import org.ogreg.common.utils.PropertyUtils;
 
+import org.ogreg.ostore.index.PrefixIndex;
+import org.ogreg.ostore.index.PropertyIndex;
+import org.ogreg.ostore.index.SimilarityIndex;
 import org.ogreg.ostore.index.UniqueIndex;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 /**
  * Common base class for property-based object stores.
+ * <p>
+ * The recently loaded entities may be kept in a bounded LRU cache keyed by
+ * their identifiers (see {@link #setCacheSize(int)}), so that repeated
+ * {@link #get(long)}s of the same entities need not read their properties
+ * again. The cached entities are shared by the callers, so they should not be
+ * modified, only saved again.
+ * </p>
  * 
  * @param <T>
  * @author Gergely Kiss
@@ -26,6 +46,9 @@ public abstract class BaseObjectStore<T> implements ConfigurableObjectStore<T>,
 	/** The entity's unique indices keyed by their field names. */
 	private final Map<String, UniqueIndex> uniqueIndices = new HashMap<String, UniqueIndex>();
 
+	/** The entity's secondary indices keyed by their field names. */
+	private final Map<String, PropertyIndex> propertyIndices = new HashMap<String, PropertyIndex>();
+
 	/**
 	 * The field accessor which has the business key.
 	 * <p>
@@ -40,6 +63,15 @@ public abstract class BaseObjectStore<T> implements ConfigurableObjectStore<T>,
 	/** The property accessor used to access the stored type's properties. */
 	private EntityAccessor accessor;
 
+	/** The recently loaded entities, keyed by their identifiers. */
+	private final EntityCache<T> cache = new EntityCache<T>();
+
+	/** The number of entities found in the cache. */
+	private final AtomicLong cacheHits = new AtomicLong();
+
+	/** The number of entities not found in the cache. */
+	private final AtomicLong cacheMisses = new AtomicLong();
+
 	/**
 	 * The implementor should return the next available identifier.
 	 * <p>
@@ -50,6 +82,18 @@ public abstract class BaseObjectStore<T> implements ConfigurableObjectStore<T>,
 	 */
 	protected abstract long getNextId();
 
+	/**
+	 * The implementor should reserve <code>count</code> consecutive
+	 * identifiers at once, and return the first one.
+	 * <p>
+	 * The implementation must be threadsafe.
+	 * </p>
+	 * 
+	 * @param count The number of identifiers to reserve, at least 1
+	 * @return
+	 */
+	protected abstract long getNextIds(int count);
+
 	/**
 	 * The implementor should update its maximum identifier if it is less than
 	 * the given value.
@@ -58,6 +102,13 @@ public abstract class BaseObjectStore<T> implements ConfigurableObjectStore<T>,
 	 */
 	protected abstract void updateMaxId(long identifier);
 
+	/**
+	 * The implementor should return the maximum identifier assigned so far.
+	 * 
+	 * @return
+	 */
+	protected abstract long getMaxId();
+
 	/**
 	 * The implementor may flush the specified index here.
 	 * 
@@ -68,6 +119,16 @@ public abstract class BaseObjectStore<T> implements ConfigurableObjectStore<T>,
 	protected abstract void flushUniqueIndex(String propertyName, UniqueIndex index)
 			throws IOException;
 
+	/**
+	 * The implementor may flush the specified secondary index here.
+	 * 
+	 * @param propertyName
+	 * @param index
+	 * @throws IOException
+	 */
+	protected abstract void flushPropertyIndex(String propertyName, PropertyIndex index)
+			throws IOException;
+
 	/**
 	 * The implementor should create an implementation specific simple property
 	 * persistor here.
@@ -126,9 +187,209 @@ public abstract class BaseObjectStore<T> implements ConfigurableObjectStore<T>,
 		return identifier;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The distinct business keys are looked up in their natural order (if they
+	 * are comparable), so that the lookups of similar keys share the paths of
+	 * the index. The missing entities get their identifiers in a single
+	 * reservation, and they are stored property by property, with
+	 * {@link PropertyPersistor#storeAll(long[], Object[])}.
+	 * </p>
+	 */
+	@Override
+	public long[] saveAll(List<T> entities) throws ObjectStoreException {
+		long[] ret = new long[entities.size()];
+
+		if (ret.length == 0) {
+			return ret;
+		}
+
+		// Deduplicating the business keys
+		Map<Object, Integer> positions = new HashMap<Object, Integer>();
+		List<Object> keys = new ArrayList<Object>();
+		int[] keyPositions = new int[ret.length];
+
+		for (int i = 0; i < ret.length; i++) {
+			Object key = getBusinessKeyValue(entities.get(i));
+
+			if (key == null) {
+				throw new ObjectStoreException("The field " + accessor.getTypeName() + "."
+						+ uniqueFieldName + " has a unique index, so its value should not be null.");
+			}
+
+			Integer pos = positions.get(key);
+
+			if (pos == null) {
+				pos = keys.size();
+				positions.put(key, pos);
+				keys.add(key);
+			}
+
+			keyPositions[i] = pos;
+		}
+
+		UniqueIndex idx = uniqueIndices.get(uniqueFieldName);
+
+		if (idx == null) {
+			throw new ObjectStoreException("Field " + accessor.getTypeName() + "."
+					+ uniqueFieldName + " does not have a unique index specified.");
+		}
+
+		Integer[] order = sortedOrder(keys);
+		long[] ids = new long[keys.size()];
+		int missing = 0;
+
+		for (Integer i : order) {
+			Long id = idx.getKey(keys.get(i));
+			ids[i] = (id == null) ? -1 : id;
+			missing += (id == null) ? 1 : 0;
+		}
+
+		if (missing > 0) {
+			saveMissing(entities, keys, order, keyPositions, ids, missing, idx);
+		}
+
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = ids[keyPositions[i]];
+		}
+
+		return ret;
+	}
+
+	// Assigns identifiers to the missing entities and stores them
+	private void saveMissing(List<T> entities, List<Object> keys, Integer[] order,
+			int[] keyPositions, long[] ids, int missing, UniqueIndex idx)
+			throws ObjectStoreException {
+		long nextId = getNextIds(missing);
+		long[] newIds = new long[missing];
+		int cnt = 0;
+
+		for (Integer i : order) {
+
+			if (ids[i] >= 0) {
+				continue;
+			}
+
+			// Different keys may be normalized to the same key by the index, in
+			// which case the identifier reserved for the second one is skipped
+			Long id = idx.getKey(keys.get(i));
+
+			if (id == null) {
+				id = nextId++;
+				idx.setKey(keys.get(i), id);
+				newIds[cnt++] = id;
+			}
+
+			ids[i] = id;
+		}
+
+		// The first entity of every new key is stored
+		List<T> newEntities = new ArrayList<T>(cnt);
+		long[] entityIds = new long[cnt];
+		boolean[] stored = new boolean[keys.size()];
+
+		for (int i = 0; (i < keyPositions.length) && (newEntities.size() < cnt); i++) {
+			int pos = keyPositions[i];
+
+			if (!stored[pos] && (Arrays.binarySearch(newIds, 0, cnt, ids[pos]) >= 0)) {
+				stored[pos] = true;
+				entityIds[newEntities.size()] = ids[pos];
+				newEntities.add(entities.get(i));
+			}
+		}
+
+		try {
+			storeAll(entityIds, newEntities);
+		} finally {
+
+			for (long id : entityIds) {
+				cache.invalidate(id);
+			}
+		}
+	}
+
+	private void storeAll(long[] identifiers, List<T> entities) throws ObjectStoreException {
+		long maxId = 0;
+
+		for (long id : identifiers) {
+			maxId = Math.max(maxId, id);
+		}
+
+		try {
+			Object[] values = new Object[identifiers.length];
+
+			for (Entry<String, PropertyPersistor> e : persistors.entrySet()) {
+				String propertyName = e.getKey();
+				UniqueIndex idx = propertyName.equals(uniqueFieldName) ? null : uniqueIndices
+						.get(propertyName);
+				PropertyIndex pidx = propertyIndices.get(propertyName);
+
+				for (int i = 0; i < identifiers.length; i++) {
+					Object value = accessor.getFrom(entities.get(i), propertyName);
+					values[i] = value;
+
+					if (value == null) {
+						continue;
+					}
+
+					// Updating indices
+					if (idx != null) {
+						idx.setKey(value, identifiers[i]);
+					}
+
+					if (pidx != null) {
+						pidx.update(identifiers[i], null, value);
+					}
+				}
+
+				e.getValue().storeAll(identifiers, values);
+			}
+
+			updateMaxId(maxId);
+		} catch (IllegalArgumentException e) {
+			throw new ObjectStoreException(e);
+		} catch (IllegalAccessException e) {
+			throw new ObjectStoreException(e);
+		} catch (IOException e) {
+			throw new ObjectStoreException(e);
+		}
+	}
+
+	// Returns the indices of the keys in the natural order of the keys, if they
+	// are comparable
+	private static Integer[] sortedOrder(final List<Object> keys) {
+		Integer[] ret = new Integer[keys.size()];
+
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = i;
+		}
+
+		if (keys.get(0) instanceof Comparable) {
+			Arrays.sort(ret, new Comparator<Integer>() {
+				@Override
+				@SuppressWarnings({ "unchecked", "rawtypes" })
+				public int compare(Integer o1, Integer o2) {
+					return ((Comparable) keys.get(o1)).compareTo(keys.get(o2));
+				}
+			});
+		}
+
+		return ret;
+	}
+
 	@Override
 	public void add(long identifier, T entity) throws ObjectStoreException {
 
+		try {
+			store(identifier, entity);
+		} finally {
+			cache.invalidate(identifier);
+		}
+	}
+
+	private void store(long identifier, T entity) throws ObjectStoreException {
+
 		try {
 
 			// Saving properties
@@ -147,6 +408,13 @@ public abstract class BaseObjectStore<T> implements ConfigurableObjectStore<T>,
 					idx.setKey(value, identifier);
 				}
 
+				PropertyIndex pidx = propertyIndices.get(propertyName);
+
+				if (pidx != null) {
+					Object oldValue = e.getValue().load(identifier, null);
+					pidx.update(identifier, oldValue, value);
+				}
+
 				e.getValue().store(identifier, null, value);
 			}
 
@@ -163,6 +431,28 @@ public abstract class BaseObjectStore<T> implements ConfigurableObjectStore<T>,
 	@Override
 	public T get(long identifier) throws ObjectStoreException {
 
+		if (!cache.isEnabled()) {
+			return load(identifier);
+		}
+
+		T result = cache.get(identifier);
+
+		if (result != null) {
+			cacheHits.incrementAndGet();
+			return result;
+		}
+
+		cacheMisses.incrementAndGet();
+
+		long stamp = cache.stamp();
+		result = load(identifier);
+		cache.put(identifier, result, stamp);
+
+		return result;
+	}
+
+	private T load(long identifier) throws ObjectStoreException {
+
 		try {
 			@SuppressWarnings("unchecked")
 			T result = (T) accessor.newInstance();
@@ -178,6 +468,76 @@ public abstract class BaseObjectStore<T> implements ConfigurableObjectStore<T>,
 		}
 	}
 
+	@Override
+	public List<T> getAll(long[] identifiers) throws ObjectStoreException {
+
+		if (!cache.isEnabled()) {
+			return loadAll(identifiers);
+		}
+
+		List<T> results = new ArrayList<T>(identifiers.length);
+		long[] missing = new long[identifiers.length];
+		int cnt = 0;
+
+		for (int i = 0; i < identifiers.length; i++) {
+			T result = cache.get(identifiers[i]);
+
+			if (result == null) {
+				missing[cnt++] = identifiers[i];
+			}
+
+			results.add(result);
+		}
+
+		cacheHits.addAndGet(identifiers.length - cnt);
+		cacheMisses.addAndGet(cnt);
+
+		if (cnt == 0) {
+			return results;
+		}
+
+		// Loading only the missing entities
+		long stamp = cache.stamp();
+		List<T> loaded = loadAll((cnt == missing.length) ? missing : Arrays.copyOf(missing, cnt));
+
+		for (int i = 0, j = 0; i < identifiers.length; i++) {
+
+			if (results.get(i) == null) {
+				T result = loaded.get(j++);
+				results.set(i, result);
+				cache.put(identifiers[i], result, stamp);
+			}
+		}
+
+		return results;
+	}
+
+	private List<T> loadAll(long[] identifiers) throws ObjectStoreException {
+
+		try {
+			List<T> results = new ArrayList<T>(identifiers.length);
+
+			for (int i = 0; i < identifiers.length; i++) {
+				@SuppressWarnings("unchecked")
+				T result = (T) accessor.newInstance();
+				results.add(result);
+			}
+
+			// Loading the objects property by property
+			for (Entry<String, PropertyPersistor> e : persistors.entrySet()) {
+				Object[] values = e.getValue().loadAll(identifiers, null);
+
+				for (int i = 0; i < identifiers.length; i++) {
+					accessor.setTo(results.get(i), e.getKey(), values[i]);
+				}
+			}
+
+			return results;
+		} catch (Exception e) {
+			throw new ObjectStoreException(e);
+		}
+	}
+
 	@Override
 	public Object getField(long identifier, String fieldName) throws ObjectStoreException {
 		String[] pathElements = PropertyUtils.splitFirstPathElement(fieldName);
@@ -195,6 +555,24 @@ public abstract class BaseObjectStore<T> implements ConfigurableObjectStore<T>,
 		}
 	}
 
+	@Override
+	public List<Object> getFields(long[] identifiers, String fieldName)
+			throws ObjectStoreException {
+		String[] pathElements = PropertyUtils.splitFirstPathElement(fieldName);
+		PropertyPersistor persistor = persistors.get(pathElements[0]);
+
+		if (persistor == null) {
+			throw new ObjectStoreException("Property not found: " + accessor.getTypeName() + "."
+					+ fieldName);
+		}
+
+		try {
+			return Arrays.asList(persistor.loadAll(identifiers, pathElements[1]));
+		} catch (IOException e) {
+			throw new ObjectStoreException(e);
+		}
+	}
+
 	@Override
 	public Long uniqueResult(String fieldName, Object value) throws ObjectStoreException {
 		UniqueIndex idx = uniqueIndices.get(fieldName);
@@ -212,6 +590,42 @@ public abstract class BaseObjectStore<T> implements ConfigurableObjectStore<T>,
 		return idx.getKey(value);
 	}
 
+	@Override
+	public Map<String, Long> prefixResults(String fieldName, String prefix, Pattern pattern,
+			int limit) throws ObjectStoreException {
+		UniqueIndex idx = uniqueIndices.get(fieldName);
+
+		if (idx == null) {
+			throw new ObjectStoreException("Field " + accessor.getTypeName() + "." + fieldName
+					+ " does not have a unique index specified.");
+		}
+
+		return (idx instanceof PrefixIndex) ? ((PrefixIndex) idx).getKeys(prefix, pattern, limit)
+				: null;
+	}
+
+	@Override
+	public Map<Long, Integer> similarResults(String fieldName, String value, int maxEdits,
+			int limit) throws ObjectStoreException {
+		UniqueIndex idx = uniqueIndices.get(fieldName);
+
+		if (idx == null) {
+			throw new ObjectStoreException("Field " + accessor.getTypeName() + "." + fieldName
+					+ " does not have a unique index specified.");
+		}
+
+		return (idx instanceof SimilarityIndex) ? ((SimilarityIndex) idx).getSimilarKeys(value,
+				maxEdits, limit) : null;
+	}
+
+	@Override
+	public BitSet indexedResults(String fieldName, Operator op, Object value)
+			throws ObjectStoreException {
+		PropertyIndex idx = propertyIndices.get(fieldName);
+
+		return (idx == null) ? null : idx.select(op, value);
+	}
+
 	@Override
 	public void flush() throws IOException {
 
@@ -222,6 +636,10 @@ public abstract class BaseObjectStore<T> implements ConfigurableObjectStore<T>,
 		for (Entry<String, UniqueIndex> e : uniqueIndices.entrySet()) {
 			flushUniqueIndex(e.getKey(), e.getValue());
 		}
+
+		for (Entry<String, PropertyIndex> e : propertyIndices.entrySet()) {
+			flushPropertyIndex(e.getKey(), e.getValue());
+		}
 	}
 
 	@Override
@@ -268,6 +686,95 @@ public abstract class BaseObjectStore<T> implements ConfigurableObjectStore<T>,
 		uniqueIndices.put(fieldName, idx);
 	}
 
+	@Override
+	public void addPropertyIndex(String fieldName, PropertyIndex idx) {
+		PropertyPersistor persistor = persistors.get(fieldName);
+
+		if (persistor == null) {
+			throw new IllegalArgumentException("Property " + fieldName
+					+ " must be configured before its index.");
+		}
+
+		if (idx.isEmpty()) {
+
+			try {
+				buildIndex(persistor, idx);
+			} catch (IOException e) {
+				throw new ConfigurationException(e);
+			}
+		}
+
+		propertyIndices.put(fieldName, idx);
+	}
+
+	// Indexes the stored property values in chunks
+	private void buildIndex(PropertyPersistor persistor, PropertyIndex idx) throws IOException {
+		long maxId = getMaxId();
+		long[] identifiers = new long[4096];
+
+		for (long start = 0; start <= maxId; start += identifiers.length) {
+			int len = (int) Math.min(identifiers.length, maxId - start + 1);
+
+			if (len < identifiers.length) {
+				identifiers = new long[len];
+			}
+
+			for (int i = 0; i < len; i++) {
+				identifiers[i] = start + i;
+			}
+
+			Object[] values = persistor.loadAll(identifiers, null);
+
+			for (int i = 0; i < len; i++) {
+				idx.update(identifiers[i], null, values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Sets the maximum number of cached entities.
+	 * <p>
+	 * The least recently used entities are evicted from the cache when it is
+	 * full. The cache is cleared when its size is changed.
+	 * </p>
+	 * 
+	 * @param cacheSize The maximum number of cached entities, the cache is
+	 *            disabled if 0
+	 */
+	public void setCacheSize(int cacheSize) {
+
+		if (cacheSize < 0) {
+			throw new IllegalArgumentException("The cache size can not be negative: " + cacheSize);
+		}
+
+		cache.resize(cacheSize);
+	}
+
+	public int getCacheSize() {
+		return cache.getCapacity();
+	}
+
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	/**
+	 * Returns the ratio of the entities found in the cache to all the
+	 * entities requested while the cache was enabled.
+	 * 
+	 * @return The hit rate between 0 and 1, or 0 if no entities were requested
+	 */
+	public double getCacheHitRate() {
+		long hits = cacheHits.get();
+		long total = hits + cacheMisses.get();
+
+		return (total == 0) ? 0 : (double) hits / total;
+	}
+
 	private Object getBusinessKeyValue(T entity) throws ObjectStoreException {
 
 		if (uniqueFieldName == null) {
@@ -283,4 +790,98 @@ public abstract class BaseObjectStore<T> implements ConfigurableObjectStore<T>,
 			throw new ObjectStoreException(e);
 		}
 	}
+
+	/**
+	 * A bounded LRU cache of entities.
+	 * <p>
+	 * An entity loaded before its invalidation may be out of date, so it is
+	 * only cached if it was not invalidated while loading it (see
+	 * {@link #stamp()}). The invalidations are stamped per identifier, in a
+	 * fixed number of stripes, so a load is only rejected by the invalidation
+	 * of its own identifier (or of another one in the same stripe).
+	 * </p>
+	 * 
+	 * @author Gergely Kiss
+	 */
+	private static final class EntityCache<T> extends LinkedHashMap<Long, T> {
+		private static final long serialVersionUID = -6436432093612937540L;
+
+		/** The number of the invalidation stripes, a power of two. */
+		private static final int STRIPES = 1024;
+
+		/** The maximum number of cached entities. */
+		private volatile int capacity = 0;
+
+		/** The number of invalidations so far. */
+		private long clock = 0;
+
+		/** The clock of the last invalidation of the identifiers, by stripes. */
+		private final long[] stamps = new long[STRIPES];
+
+		/** The clock of the last resize. */
+		private long cleared = 0;
+
+		EntityCache() {
+			super(16, 0.75f, true);
+		}
+
+		boolean isEnabled() {
+			return capacity > 0;
+		}
+
+		int getCapacity() {
+			return capacity;
+		}
+
+		synchronized void resize(int capacity) {
+			this.capacity = capacity;
+			cleared = ++clock;
+			clear();
+		}
+
+		synchronized T get(long identifier) {
+			return super.get(identifier);
+		}
+
+		/**
+		 * Returns the stamp of a load, which should be taken before loading
+		 * the entities.
+		 * 
+		 * @return
+		 */
+		synchronized long stamp() {
+			return clock;
+		}
+
+		/**
+		 * Caches the entity, unless it was invalidated since the stamp of its
+		 * load.
+		 * 
+		 * @param identifier
+		 * @param entity
+		 * @param stamp
+		 */
+		synchronized void put(long identifier, T entity, long stamp) {
+
+			if ((capacity > 0) && (cleared <= stamp) && (stamps[stripe(identifier)] <= stamp)) {
+				super.put(identifier, entity);
+			}
+		}
+
+		synchronized void invalidate(long identifier) {
+			stamps[stripe(identifier)] = ++clock;
+			remove(identifier);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Entry<Long, T> eldest) {
+			return size() > capacity;
+		}
+
+		// The invalidation stripe of the identifier
+		private static int stripe(long identifier) {
+			long h = identifier * 0x9E3779B97F4A7C15L;
+			return (int) (h >>> 54) & (STRIPES - 1);
+		}
+	}
 }
@@ -2,6 +2,7 @@ package org.ogreg.ostore;
 
 import org.ogreg.common.ConfigurationException;
 
+import org.ogreg.ostore.index.PropertyIndex;
 import org.ogreg.ostore.index.UniqueIndex;
 
 import java.io.File;
@@ -65,6 +66,17 @@ public interface ConfigurableObjectStore<T> extends ObjectStore<T> {
      */
     void addIndex(String fieldName, UniqueIndex idx);
 
+    /**
+     * Adds a secondary index to the specified property.
+     *
+     * <p>The property must be configured before its index. If the index is empty, the implementor should build it from
+     * the stored property values. Does nothing if the implementor does not support indices.</p>
+     *
+     * @param  fieldName
+     * @param  idx
+     */
+    void addPropertyIndex(String fieldName, PropertyIndex idx);
+
     /**
      * Sets the store's metadata.
      *
@@ -16,6 +16,21 @@ public interface ObjectStoreMBean {
 	 */
 	long getObjectCount();
 
+	/**
+	 * Returns the maximum number of cached entities.
+	 * 
+	 * @return The cache size, or 0 if the store does not cache its entities
+	 */
+	int getCacheSize();
+
+	/**
+	 * Returns the ratio of the entities found in the cache to all the
+	 * requested entities.
+	 * 
+	 * @return The hit rate between 0 and 1
+	 */
+	double getCacheHitRate();
+
 	/**
 	 * Flushes the object store.
 	 */
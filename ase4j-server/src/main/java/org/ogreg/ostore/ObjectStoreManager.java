@@ -19,6 +19,9 @@ import org.ogreg.config.Parameter;
 import org.ogreg.config.PropertyConfig;
 
 import org.ogreg.ostore.file.FileObjectStoreImpl;
+import org.ogreg.ostore.index.BitmapIndex;
+import org.ogreg.ostore.index.PropertyIndex;
+import org.ogreg.ostore.index.RangeIndex;
 import org.ogreg.ostore.index.StringIndex;
 import org.ogreg.ostore.index.UniqueIndex;
 
@@ -46,10 +49,16 @@ public class ObjectStoreManager extends BaseJaxbManager<ObjectStorageConfig> {
 	/** Supported index types. */
 	private static final Map<String, Class<? extends UniqueIndex>> SupportedIndices = new HashMap<String, Class<? extends UniqueIndex>>();
 
+	/** Supported secondary index types. */
+	private static final Map<String, Class<? extends PropertyIndex>> SupportedPropertyIndices = new HashMap<String, Class<? extends PropertyIndex>>();
+
 	static {
 
 		// TODO More index types
 		SupportedIndices.put("trie", StringIndex.class);
+
+		SupportedPropertyIndices.put("range", RangeIndex.class);
+		SupportedPropertyIndices.put("bitmap", BitmapIndex.class);
 	}
 
 	/** The configurations for the different stores. */
@@ -132,6 +141,16 @@ public class ObjectStoreManager extends BaseJaxbManager<ObjectStorageConfig> {
 		// Initializing the store
 		store.init(accessor, storageDir, params);
 
+		if (cfg.getCache() != null) {
+
+			if (!(store instanceof BaseObjectStore)) {
+				throw new ConfigurationException("The store " + id
+						+ " does not support entity caching");
+			}
+
+			((BaseObjectStore) store).setCacheSize(cfg.getCache().getSize());
+		}
+
 		// Processing properties
 		Map<String, Class<?>> properties = new LinkedHashMap<String, Class<?>>();
 
@@ -161,6 +180,11 @@ public class ObjectStoreManager extends BaseJaxbManager<ObjectStorageConfig> {
 
 				store.addProperty(propertyType, propertyName);
 				properties.put(propertyName, propertyType);
+
+				if (prop.getIndex() != null) {
+					store.addPropertyIndex(propertyName, loadOrCreatePropertyIndex(storageDir,
+							propertyName, prop.getIndex()));
+				}
 			}
 			// Extension
 			else if (property instanceof ExtensionConfig) {
@@ -371,6 +395,39 @@ public class ObjectStoreManager extends BaseJaxbManager<ObjectStorageConfig> {
 		}
 	}
 
+	private PropertyIndex loadOrCreatePropertyIndex(File storageDir, String fieldName,
+			IndexConfig type) throws ConfigurationException {
+		Class<?> indexType = SupportedPropertyIndices.get(type.getType());
+
+		try {
+
+			if (indexType == null) {
+				indexType = Class.forName(type.getType());
+			}
+
+			if (!PropertyIndex.class.isAssignableFrom(indexType)) {
+				throw new ConfigurationException("Index type " + indexType.getName()
+						+ " should implement " + PropertyIndex.class.getName());
+			}
+
+			PropertyIndex index = (PropertyIndex) indexType.newInstance();
+
+			// Initializing the index (it is built by the store if it is new)
+			index.loadFrom(getPropertyIndexFile(storageDir, fieldName), getParams(type
+					.getParameter()));
+
+			return index;
+		} catch (ClassNotFoundException e) {
+			throw new ConfigurationException(e);
+		} catch (InstantiationException e) {
+			throw new ConfigurationException(e);
+		} catch (IllegalAccessException e) {
+			throw new ConfigurationException(e);
+		} catch (IOException e) {
+			throw new ConfigurationException(e);
+		}
+	}
+
 	private Map<String, String> getParams(List<Parameter> parameters) {
 		Map<String, String> ret = new HashMap<String, String>();
 
@@ -388,6 +445,10 @@ public class ObjectStoreManager extends BaseJaxbManager<ObjectStorageConfig> {
 		return new File(storageDir, PropertyUtils.pathToString(propertyNames) + ".uix");
 	}
 
+	public static File getPropertyIndexFile(File storageDir, String... propertyNames) {
+		return new File(storageDir, PropertyUtils.pathToString(propertyNames) + ".pix");
+	}
+
 	public static File getSequenceFile(File storageDir) {
 		return new File(storageDir, "sequence");
 	}
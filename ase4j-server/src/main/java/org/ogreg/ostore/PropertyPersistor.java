@@ -30,6 +30,20 @@ public interface PropertyPersistor extends Closeable, Flushable {
      */
     Object load(long identifier, String propertyPath) throws IOException;
 
+    /**
+     * Returns the field values for the objects with the given identifiers from the object store.
+     *
+     * <p>The implementation should load the values in a single pass, in the order of their storage positions.</p>
+     *
+     * @param   identifiers   The identifiers of the objects to access
+     * @param   propertyPath  The path of the property to access (see {@link #load(long, String)})
+     *
+     * @return  The field values, in the order of the identifiers
+     *
+     * @throws  IOException  on storage error
+     */
+    Object[] loadAll(long[] identifiers, String propertyPath) throws IOException;
+
     /**
      * Updates the field value for the object with the given identifier in the object store.
      *
@@ -41,4 +55,17 @@ public interface PropertyPersistor extends Closeable, Flushable {
      * @throws  IOException  on storage error
      */
     void store(long identifier, String propertyPath, Object value) throws IOException;
+
+    /**
+     * Stores the field values of new objects in the object store.
+     *
+     * <p>Equivalent to calling {@link #store(long, String, Object)} for every non-null value, but the implementation
+     * may write the values much more efficiently, since the objects were never stored before.</p>
+     *
+     * @param   identifiers  The identifiers of the new objects
+     * @param   values       The values to store, in the order of the identifiers (nulls are skipped)
+     *
+     * @throws  IOException  on storage error
+     */
+    void storeAll(long[] identifiers, Object[] values) throws IOException;
 }
@@ -10,7 +10,9 @@ import org.ogreg.ostore.PropertyPersistor;
 import java.io.File;
 import java.io.IOException;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -59,6 +61,40 @@ class FileExtensionPersistor implements PropertyPersistor {
         }
     }
 
+    @Override public Object[] loadAll(long[] identifiers, String propertyPath) throws IOException {
+
+        if (propertyPath == null) {
+
+            // Full map query
+            List<Map<String, Object>> ret = new ArrayList<Map<String, Object>>(identifiers.length);
+
+            for (int i = 0; i < identifiers.length; i++) {
+                ret.add(new HashMap<String, Object>());
+            }
+
+            for (Entry<String, PropertyPersistor> e : persistors.entrySet()) {
+                Object[] values = e.getValue().loadAll(identifiers, null);
+
+                for (int i = 0; i < identifiers.length; i++) {
+                    ret.get(i).put(e.getKey(), values[i]);
+                }
+            }
+
+            return ret.toArray();
+        } else {
+
+            // Object picking
+            String[] path = PropertyUtils.splitFirstPathElement(propertyPath);
+            PropertyPersistor accessor = persistors.get(path[0]);
+
+            if (accessor == null) {
+                return new Object[identifiers.length];
+            }
+
+            return accessor.loadAll(identifiers, path[1]);
+        }
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public void store(long identifier, String propertyPath, Object value) throws IOException {
@@ -81,6 +117,17 @@ class FileExtensionPersistor implements PropertyPersistor {
         }
     }
 
+    @Override public void storeAll(long[] identifiers, Object[] values) throws IOException {
+
+        // The extension values are stored by their own persistors anyway
+        for (int i = 0; i < identifiers.length; i++) {
+
+            if (values[i] != null) {
+                store(identifiers[i], null, values[i]);
+            }
+        }
+    }
+
     @SuppressWarnings({ "unchecked", "rawtypes" })
     private PropertyPersistor ensureHasPersistor(String name, Object value) throws IOException {
         PropertyPersistor persistor = persistors.get(name);
@@ -135,6 +182,14 @@ class FileExtensionPersistor implements PropertyPersistor {
             return store.get((int) identifier);
         }
 
+        @Override public Object[] loadAll(long[] identifiers, String propertyPath)
+            throws IOException {
+
+            // TODO long ids may be supported later...
+            // TODO Field name check
+            return store.getAll(FilePropertyPersistor.toInts(identifiers)).toArray();
+        }
+
         @Override public void store(long identifier, String propertyPath, Object value)
             throws IOException {
 
@@ -143,6 +198,10 @@ class FileExtensionPersistor implements PropertyPersistor {
             store.update((int) identifier, value);
         }
 
+        @Override public void storeAll(long[] identifiers, Object[] values) throws IOException {
+            FilePropertyPersistor.addAll(store, identifiers, values);
+        }
+
         @Override public void close() throws IOException {
             store.close();
         }
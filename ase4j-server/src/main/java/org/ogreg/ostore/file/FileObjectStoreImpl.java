@@ -11,6 +11,7 @@ import org.ogreg.ostore.ObjectStore;
 import org.ogreg.ostore.ObjectStoreManager;
 import org.ogreg.ostore.ObjectStoreMetadata;
 import org.ogreg.ostore.PropertyPersistor;
+import org.ogreg.ostore.index.PropertyIndex;
 import org.ogreg.ostore.index.UniqueIndex;
 
 import java.io.File;
@@ -47,6 +48,11 @@ public class FileObjectStoreImpl<T> extends BaseObjectStore<T> implements FileOb
 		return nextKey.incrementAndGet();
 	}
 
+	@Override
+	protected long getNextIds(int count) {
+		return nextKey.addAndGet(count) - count + 1;
+	}
+
 	@Override
 	protected void updateMaxId(long identifier) {
 		// Does not guarantee that every identifier is always assigned, but
@@ -57,6 +63,11 @@ public class FileObjectStoreImpl<T> extends BaseObjectStore<T> implements FileOb
 		}
 	}
 
+	@Override
+	protected long getMaxId() {
+		return nextKey.get();
+	}
+
 	@Override
 	public void init(EntityAccessor accessor, File storageDir, Map<String, String> params) {
 		super.init(accessor, storageDir, params);
@@ -82,6 +93,12 @@ public class FileObjectStoreImpl<T> extends BaseObjectStore<T> implements FileOb
 		index.saveTo(ObjectStoreManager.getIndexFile(storageDir, propertyName));
 	}
 
+	@Override
+	protected void flushPropertyIndex(String propertyName, PropertyIndex index)
+			throws IOException {
+		index.saveTo(ObjectStoreManager.getPropertyIndexFile(storageDir, propertyName));
+	}
+
 	@Override
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	protected FilePropertyPersistor createPersistor(Class<?> propertyType, String propertyName) {
@@ -96,8 +113,6 @@ public class FileObjectStoreImpl<T> extends BaseObjectStore<T> implements FileOb
 			pstore.setSerializer(s);
 			pstore.open(ObjectStoreManager.getPropertyFile(storageDir, propertyName));
 
-			// TODO Indices for properties
-
 			return new FilePropertyPersistor(pstore);
 		} catch (IOException e) {
 			throw new ConfigurationException(e);
@@ -4,6 +4,10 @@ import org.ogreg.ostore.PropertyPersistor;
 
 import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 
 /**
  * File-based property persistor.
@@ -24,6 +28,23 @@ class FilePropertyPersistor implements PropertyPersistor {
         return store.get((int) identifier);
     }
 
+    @Override public Object[] loadAll(long[] identifiers, String propertyPath) throws IOException {
+
+        // TODO long ids may be supported later...
+        // TODO Field name check
+        return store.getAll(toInts(identifiers)).toArray();
+    }
+
+    static int[] toInts(long[] identifiers) {
+        int[] ret = new int[identifiers.length];
+
+        for (int i = 0; i < identifiers.length; i++) {
+            ret[i] = (int) identifiers[i];
+        }
+
+        return ret;
+    }
+
     @Override public void store(long identifier, String propertyPath, Object value)
         throws IOException {
 
@@ -32,6 +53,26 @@ class FilePropertyPersistor implements PropertyPersistor {
         store.update((int) identifier, value);
     }
 
+    @Override public void storeAll(long[] identifiers, Object[] values) throws IOException {
+        addAll(store, identifiers, values);
+    }
+
+    static void addAll(FilePropertyStore<Object> store, long[] identifiers, Object[] values)
+        throws IOException {
+        int[] keys = new int[identifiers.length];
+        List<Object> entities = new ArrayList<Object>(identifiers.length);
+
+        for (int i = 0; i < identifiers.length; i++) {
+
+            if (values[i] != null) {
+                keys[entities.size()] = (int) identifiers[i];
+                entities.add(values[i]);
+            }
+        }
+
+        store.addAll((entities.size() == keys.length) ? keys : Arrays.copyOf(keys, entities.size()), entities);
+    }
+
     @Override public void close() throws IOException {
         store.close();
     }
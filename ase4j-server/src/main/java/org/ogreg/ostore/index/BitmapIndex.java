@@ -0,0 +1,118 @@
+package org.ogreg.ostore.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.ogreg.common.Operator;
+import org.ogreg.common.utils.SerializationUtils;
+
+/**
+ * A bitmap-based implementation of a {@link PropertyIndex}, for values with
+ * only a few distinct values (languages, categories, flags).
+ * <p>
+ * Every distinct value is mapped to the bitmap of the identifiers having that
+ * value, so equality comparisons are answered without any calculations. Range
+ * comparisons on {@link Comparable} values are evaluated by uniting the
+ * bitmaps of the matching values.
+ * </p>
+ * 
+ * @author Gergely Kiss
+ */
+public class BitmapIndex implements PropertyIndex, Serializable {
+	private static final long serialVersionUID = 6281774120633295731L;
+
+	/** The identifiers by the indexed values. */
+	private Map<Object, BitSet> ids;
+
+	public BitmapIndex() {
+	}
+
+	@Override
+	public synchronized void loadFrom(File indexFile, Map<String, String> params)
+			throws IOException {
+
+		if (indexFile.exists()) {
+			BitmapIndex idx = SerializationUtils.read(indexFile, BitmapIndex.class);
+			this.ids = idx.ids;
+		} else {
+			this.ids = new HashMap<Object, BitSet>();
+		}
+	}
+
+	@Override
+	public synchronized void saveTo(File indexFile) throws IOException {
+		SerializationUtils.write(indexFile, this);
+	}
+
+	@Override
+	public synchronized boolean isEmpty() {
+		return ids.isEmpty();
+	}
+
+	@Override
+	public synchronized void update(long identifier, Object oldValue, Object newValue) {
+		int id = (int) identifier;
+
+		if (oldValue != null) {
+			BitSet old = ids.get(oldValue);
+
+			if (old != null) {
+				old.clear(id);
+			}
+		}
+
+		if (newValue != null) {
+			BitSet bits = ids.get(newValue);
+
+			if (bits == null) {
+				bits = new BitSet();
+				ids.put(newValue, bits);
+			}
+
+			bits.set(id);
+		}
+	}
+
+	@Override
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public synchronized BitSet select(Operator op, Object operand) {
+
+		if (operand == null) {
+			return null;
+		}
+
+		if (op == Operator.EQ) {
+			BitSet bits = ids.get(operand);
+			return (bits == null) ? new BitSet() : (BitSet) bits.clone();
+		}
+
+		if (!(operand instanceof Comparable) || (op == Operator.NE) || (op == Operator.MATCHES)) {
+			return null;
+		}
+
+		BitSet ret = new BitSet();
+
+		for (Entry<Object, BitSet> e : ids.entrySet()) {
+			Object value = e.getKey();
+
+			// Values of other types are compared just like when they are loaded
+			if (value.getClass() != operand.getClass()) {
+				return null;
+			}
+
+			int cmp = ((Comparable) value).compareTo(operand);
+
+			if (((op == Operator.GE) && (cmp >= 0)) || ((op == Operator.GT) && (cmp > 0))
+					|| ((op == Operator.LE) && (cmp <= 0)) || ((op == Operator.LT) && (cmp < 0))) {
+				ret.or(e.getValue());
+			}
+		}
+
+		return ret;
+	}
+}
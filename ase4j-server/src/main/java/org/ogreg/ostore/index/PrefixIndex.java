@@ -0,0 +1,25 @@
+package org.ogreg.ostore.index;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Common interface for unique indices which can enumerate their keys by a
+ * prefix.
+ * 
+ * @author Gergely Kiss
+ */
+public interface PrefixIndex extends UniqueIndex {
+
+	/**
+	 * Returns the indexed values starting with <code>prefix</code>, and their
+	 * identifiers.
+	 * 
+	 * @param prefix The prefix to search for, never null
+	 * @param pattern The pattern the values must match, or null if every
+	 *            value with the prefix matches
+	 * @param limit The maximum number of values to return
+	 * @return The matching values and their identifiers, in index order
+	 */
+	Map<String, Long> getKeys(String prefix, Pattern pattern, int limit);
+}
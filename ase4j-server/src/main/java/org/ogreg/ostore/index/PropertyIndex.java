@@ -0,0 +1,73 @@
+package org.ogreg.ostore.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Map;
+
+import org.ogreg.common.Operator;
+
+/**
+ * Common interface for secondary (non-unique) property indices.
+ * <p>
+ * Property indices map the values of a property to the identifiers of the
+ * objects having that value, and they are used for evaluating filters without
+ * loading the property values. Null values are not indexed.
+ * </p>
+ * <p>
+ * Property indices must have a default constructor, and they should implement
+ * some sort of serialization.
+ * </p>
+ * 
+ * @author Gergely Kiss
+ */
+public interface PropertyIndex {
+
+	/**
+	 * The index must initialize itself with this method from the given file and
+	 * index parameters. If the file does not exist, an empty index should be
+	 * created.
+	 * 
+	 * @param indexFile
+	 * @param params
+	 * @throws IOException if the initialization has failed
+	 */
+	void loadFrom(File indexFile, Map<String, String> params) throws IOException;
+
+	/**
+	 * The index must persist or update itself with this method at the given
+	 * file.
+	 * 
+	 * @param indexFile
+	 * @throws IOException if persistence has failed
+	 */
+	void saveTo(File indexFile) throws IOException;
+
+	/**
+	 * Returns true if the index does not contain any values.
+	 * 
+	 * @return
+	 */
+	boolean isEmpty();
+
+	/**
+	 * Updates the indexed value of the given identifier.
+	 * 
+	 * @param identifier The identifier to index
+	 * @param oldValue The previously indexed value, or null
+	 * @param newValue The value to index, or null
+	 */
+	void update(long identifier, Object oldValue, Object newValue);
+
+	/**
+	 * Returns the identifiers of the objects for which <code>value</code>
+	 * <code>op</code> <code>operand</code> is true.
+	 * 
+	 * @param op
+	 * @param operand
+	 * @return The identifiers, or null if the index can not evaluate the
+	 *         comparison (in which case it should be evaluated by loading the
+	 *         values)
+	 */
+	BitSet select(Operator op, Object operand);
+}
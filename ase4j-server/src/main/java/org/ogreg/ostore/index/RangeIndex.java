@@ -0,0 +1,208 @@
+package org.ogreg.ostore.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.ogreg.common.Operator;
+import org.ogreg.common.utils.SerializationUtils;
+import org.ogreg.util.btree.BTree;
+
+/**
+ * A {@link BTree}-based implementation of a {@link PropertyIndex}, for
+ * {@link Comparable} values with many distinct values (dates, numbers).
+ * <p>
+ * Supports equality and range comparisons. Every distinct value is mapped to
+ * the sorted, growable array of the identifiers having that value, so that
+ * adding the identifiers in ascending order is amortized constant time.
+ * </p>
+ * 
+ * @param <K> The type of the indexed values
+ * @author Gergely Kiss
+ */
+@SuppressWarnings("unchecked")
+public class RangeIndex<K extends Comparable<K>> implements PropertyIndex, Serializable {
+	private static final long serialVersionUID = -4520816932184350718L;
+
+	/** The order of the newly created trees. */
+	private static final int ORDER = 128;
+
+	/** The identifiers by the indexed values. */
+	private BTree<K, Posting> ids;
+
+	/** The type of the indexed values, or null if nothing was indexed yet. */
+	private Class<?> type;
+
+	public RangeIndex() {
+	}
+
+	@Override
+	public synchronized void loadFrom(File indexFile, Map<String, String> params)
+			throws IOException {
+
+		if (indexFile.exists()) {
+			RangeIndex<K> idx = SerializationUtils.read(indexFile, RangeIndex.class);
+			this.ids = idx.ids;
+			this.type = idx.type;
+		} else {
+			this.ids = new BTree<K, Posting>(ORDER);
+			this.type = null;
+		}
+	}
+
+	@Override
+	public synchronized void saveTo(File indexFile) throws IOException {
+		SerializationUtils.write(indexFile, this);
+	}
+
+	@Override
+	public synchronized boolean isEmpty() {
+		return type == null;
+	}
+
+	@Override
+	public synchronized void update(long identifier, Object oldValue, Object newValue) {
+		int id = (int) identifier;
+
+		if (oldValue != null) {
+			Posting old = ids.get((K) oldValue);
+
+			// Note: BTree does not support deletion, empty postings are kept
+			if (old != null) {
+				old.remove(id);
+			}
+		}
+
+		if (newValue != null) {
+			Posting posting = ids.get((K) newValue);
+
+			if (posting == null) {
+				posting = new Posting();
+				ids.set((K) newValue, posting);
+			}
+
+			posting.add(id);
+
+			if (type == null) {
+				type = newValue.getClass();
+			}
+		}
+	}
+
+	@Override
+	public synchronized BitSet select(Operator op, Object operand) {
+		// Nothing was indexed, the nulls are matched by scanning
+		if (type == null) {
+			return null;
+		}
+
+		BitSet ret = new BitSet();
+
+		// Values of other types are compared just like when they are loaded
+		if ((operand == null) || (operand.getClass() != type)) {
+			return null;
+		}
+
+		K value = (K) operand;
+
+		switch (op) {
+
+		case EQ: {
+			add(ret, ids.get(value));
+			return ret;
+		}
+
+		case GE:
+		case GT: {
+
+			for (Iterator<Entry<K, Posting>> it = ids.iterator(value); it.hasNext();) {
+				Entry<K, Posting> e = it.next();
+
+				if ((op == Operator.GE) || (e.getKey().compareTo(value) > 0)) {
+					add(ret, e.getValue());
+				}
+			}
+
+			return ret;
+		}
+
+		case LE:
+		case LT: {
+
+			for (Entry<K, Posting> e : ids) {
+				int cmp = e.getKey().compareTo(value);
+
+				if ((cmp > 0) || ((cmp == 0) && (op == Operator.LT))) {
+					break;
+				}
+
+				add(ret, e.getValue());
+			}
+
+			return ret;
+		}
+		}
+
+		return null;
+	}
+
+	private static void add(BitSet dest, Posting posting) {
+
+		if (posting != null) {
+
+			for (int i = 0; i < posting.size; i++) {
+				dest.set(posting.ids[i]);
+			}
+		}
+	}
+
+	/**
+	 * The sorted identifiers of an indexed value, in a growable array.
+	 * 
+	 * @author Gergely Kiss
+	 */
+	static final class Posting implements Serializable {
+		private static final long serialVersionUID = 5032815716451981094L;
+
+		int[] ids = new int[2];
+		int size = 0;
+
+		void add(int id) {
+
+			int pos = size;
+
+			// Appending is the most common case, otherwise inserting in order
+			if ((size > 0) && (ids[size - 1] >= id)) {
+				pos = Arrays.binarySearch(ids, 0, size, id);
+
+				if (pos >= 0) {
+					return;
+				}
+
+				pos = -pos - 1;
+			}
+
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+
+			System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+			ids[pos] = id;
+			size++;
+		}
+
+		void remove(int id) {
+			int pos = Arrays.binarySearch(ids, 0, size, id);
+
+			if (pos >= 0) {
+				System.arraycopy(ids, pos + 1, ids, pos, size - pos - 1);
+				size--;
+			}
+		}
+	}
+}
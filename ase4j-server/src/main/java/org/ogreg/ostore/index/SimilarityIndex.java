@@ -0,0 +1,22 @@
+package org.ogreg.ostore.index;
+
+import java.util.Map;
+
+/**
+ * Common interface for unique indices which can look up keys by similarity.
+ * 
+ * @author Gergely Kiss
+ */
+public interface SimilarityIndex extends UniqueIndex {
+
+	/**
+	 * Returns the identifiers of the indexed values within
+	 * <code>maxEdits</code> edits of <code>value</code>.
+	 * 
+	 * @param value The value to search for, never null
+	 * @param maxEdits The maximum edit (Levenshtein) distance
+	 * @param limit The maximum number of identifiers to return
+	 * @return The identifiers of the similar values, and their edit distances
+	 */
+	Map<Long, Integer> getSimilarKeys(String value, int maxEdits, int limit);
+}
@@ -1,53 +1,418 @@
 package org.ogreg.ostore.index;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Pattern;
 
+import org.ogreg.common.nio.NioUtils;
+import org.ogreg.common.utils.FileUtils;
 import org.ogreg.common.utils.SerializationUtils;
+import org.ogreg.util.MappedTrie;
 import org.ogreg.util.Trie;
 import org.ogreg.util.TrieDictionary;
+import org.ogreg.util.TrieSerializer;
+import org.ogreg.util.TrieSerializer.TrieSerializerListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A {@link Trie}-based implementation of a {@link UniqueIndex}.
+ * <p>
+ * The keys are normalized by the dictionary of the trie (see
+ * {@link TrieDictionary}).
+ * </p>
+ * <p>
+ * The index is persisted as a snapshot of the trie and an append-only
+ * journal of the keys set since the snapshot was written. The snapshot is a
+ * {@link MappedTrie} file, which is queried in place, so loading the index
+ * only maps the snapshot and replays the journal to the delta trie.
+ * {@link #saveTo(File)} only appends the new keys to the journal, and when the
+ * journal grows too big, it is compacted into a new snapshot on a background
+ * thread. The compaction merges the journal with the previous snapshot, so
+ * the index can be used (and saved) while it is running.
+ * </p>
+ * <p>
+ * The snapshots of the previous versions ({@link TrieSerializer} files, and
+ * Java serialized indices) are loaded to the heap, and they are replaced by a
+ * new snapshot when the index is saved.
+ * </p>
+ * <p>
+ * The lookups are lock-free, they are never blocked by the keys being set
+ * concurrently (see {@link Trie}).
+ * </p>
+ * <p>
+ * Parameters:
+ * <ul>
+ * <li><code>dictionary</code>: the name of the dictionary of a new index</li>
+ * <li><code>journalLimit</code>: the journal is compacted when its size
+ * exceeds both this limit (in bytes, 1M by default) and the size of the
+ * snapshot</li>
+ * </ul>
+ * </p>
  * 
  * @author Gergely Kiss
  */
-public class StringIndex implements UniqueIndex, Serializable {
+public class StringIndex implements PrefixIndex, SimilarityIndex, Serializable {
 	private static final long serialVersionUID = -2371533415602619440L;
+	private static final Logger log = LoggerFactory.getLogger(StringIndex.class);
 
-	/** The {@link Trie} to map Strings to integers. */
+	/** The magic bytes of the {@link TrieSerializer} snapshot files. */
+	private static final byte[] MAGIC = new byte[] { 'S', 'I', 'D', 'X' };
+
+	/** The default minimum size of a journal to compact. */
+	private static final long DEFAULT_JOURNAL_LIMIT = 1 << 20;
+
+	/** The {@link Trie} of the keys set since the snapshot was mapped. */
 	private Trie<Integer> toInt;
 
+	/** The snapshot and the keys set since, mapping Strings to integers. */
+	private transient MappedTrie trie;
+
+	/** The journal records of the keys set since the last save. */
+	private transient ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+	/** True if the index was loaded from a snapshot of a previous version. */
+	private transient boolean legacy;
+
+	/** The minimum size of a journal to compact. */
+	private transient long journalLimit;
+
+	/** The running compaction, or null. */
+	private transient volatile Thread compaction;
+
 	public StringIndex() {
 	}
 
 	@Override
 	public Long getKey(Object value) {
-		Integer key = toInt.get((String) value);
+		Integer key = trie.get((String) value);
 		return key == null ? null : Long.valueOf(key.longValue());
 	}
 
 	@Override
 	public void setKey(Object value, long identifier) {
-		toInt.set((String) value, (int) identifier);
+		byte[] word = trie.getDictionary().encode((String) value);
+
+		if (word.length == 0) {
+			return;
+		}
+
+		// The journal records are appended in the same order as the keys are
+		// set
+		synchronized (pending) {
+			trie.set(word, (int) identifier);
+
+			try {
+				DataOutputStream out = new DataOutputStream(pending);
+				out.writeInt(word.length);
+				out.write(word);
+				out.writeInt((int) identifier);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
 	}
 
+	@Override
+	public Map<String, Long> getKeys(String prefix, Pattern pattern, int limit) {
+		Map<String, Long> ret = new LinkedHashMap<String, Long>();
+
+		for (Entry<String, Integer> e : trie.getEntries(prefix, pattern, limit).entrySet()) {
+			ret.put(e.getKey(), Long.valueOf(e.getValue().longValue()));
+		}
+
+		return ret;
+	}
+
+	@Override
+	public Map<Long, Integer> getSimilarKeys(String value, int maxEdits, int limit) {
+		Map<Long, Integer> ret = new LinkedHashMap<Long, Integer>();
+
+		for (Entry<Integer, Integer> e : trie.getSimilar(value, maxEdits, limit).entrySet()) {
+			ret.put(Long.valueOf(e.getKey().longValue()), e.getValue());
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Loads the snapshot, and replays the journals of the index.
+	 * <p>
+	 * The snapshots of the previous versions are also loaded, they are
+	 * replaced by a new snapshot when the index is saved.
+	 * </p>
+	 */
 	@Override
 	public void loadFrom(File indexFile, Map<String, String> params) throws IOException {
-		if (indexFile.exists()) {
-			StringIndex idx = SerializationUtils.read(indexFile, StringIndex.class);
-			this.toInt = idx.toInt;
-		} else {
+		String limit = params.get("journalLimit");
+
+		this.journalLimit = (limit == null) ? DEFAULT_JOURNAL_LIMIT : Long.parseLong(limit);
+
+		File snapshot = getSnapshotFile(indexFile);
+
+		// The compaction may have failed before renaming its snapshot, which
+		// is only promoted if it was completely written. Otherwise it is
+		// rebuilt from the journals, which are kept until the snapshot is
+		// renamed.
+		if (snapshot.exists()) {
+
+			if (!indexFile.exists() && MappedTrie.isComplete(snapshot)) {
+				FileUtils.renameTo(snapshot, indexFile);
+			} else {
+				log.warn("Deleting the incomplete or stale snapshot {}", snapshot);
+
+				if (!snapshot.delete()) {
+					throw new IOException("Failed to delete " + snapshot);
+				}
+			}
+		}
+
+		if (!indexFile.exists()) {
 			String dictName = params.get("dictionary");
 			TrieDictionary dictionary = TrieDictionary.createByName(dictName);
-			this.toInt = new Trie<Integer>(dictionary);
+			this.trie = new MappedTrie(new Trie<Integer>(dictionary));
+		} else if (MappedTrie.isMappedTrie(indexFile)) {
+			this.trie = MappedTrie.open(indexFile);
+		} else if (isLegacySnapshot(indexFile)) {
+			this.trie = new MappedTrie(readLegacySnapshot(indexFile));
+			this.legacy = true;
+		} else {
+			StringIndex idx = SerializationUtils.read(indexFile, StringIndex.class);
+			this.trie = new MappedTrie(idx.toInt);
+			this.legacy = true;
 		}
+
+		this.toInt = trie.getDelta();
+
+		// The journal being compacted is older than the current one
+		replay(trie, getCompactedJournalFile(indexFile));
+		replay(trie, getJournalFile(indexFile));
 	}
 
+	/**
+	 * Appends the keys set since the last save to the journal, and starts
+	 * compacting the journal if it has grown too big.
+	 */
 	@Override
 	public void saveTo(File indexFile) throws IOException {
-		SerializationUtils.write(indexFile, this);
+
+		if (legacy) {
+			saveSnapshot(indexFile);
+		}
+
+		byte[] records;
+
+		synchronized (pending) {
+			records = pending.toByteArray();
+			pending.reset();
+		}
+
+		File journal = getJournalFile(indexFile);
+
+		synchronized (this) {
+
+			if (records.length > 0) {
+				RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+
+				try {
+					FileChannel channel = raf.getChannel();
+					channel.position(channel.size());
+					channel.write(ByteBuffer.wrap(records));
+					channel.force(false);
+				} finally {
+					raf.close();
+				}
+			}
+
+			if ((compaction == null) && (journal.length() > journalLimit)
+					&& (journal.length() > indexFile.length())) {
+				compact(indexFile);
+			}
+		}
+	}
+
+	/**
+	 * Waits for the running compaction (if any) to finish.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void awaitCompaction() throws InterruptedException {
+		Thread thread = compaction;
+
+		if (thread != null) {
+			thread.join();
+		}
+	}
+
+	// Writes a snapshot of the whole trie, replacing the legacy snapshot
+	private synchronized void saveSnapshot(File indexFile) throws IOException {
+
+		synchronized (pending) {
+			pending.reset();
+		}
+
+		writeSnapshot(trie, indexFile);
+		legacy = false;
+	}
+
+	// Starts compacting the current journal into a new snapshot
+	private void compact(final File indexFile) throws IOException {
+		final File journal = getJournalFile(indexFile);
+		final File compacted = getCompactedJournalFile(indexFile);
+
+		// A previous compaction may have failed, its journal is compacted
+		// first
+		if (compacted.exists()) {
+			log.warn("Resuming the failed compaction of {}", compacted);
+		} else {
+			FileUtils.renameTo(journal, compacted);
+		}
+
+		final TrieDictionary dict = trie.getDictionary();
+
+		compaction = new Thread("StringIndex compaction: " + indexFile.getName()) {
+			@Override
+			public void run() {
+
+				try {
+					MappedTrie snapshot = indexFile.exists() ? MappedTrie.open(indexFile)
+							: new MappedTrie(new Trie<Integer>(dict));
+
+					try {
+						replay(snapshot, compacted);
+						writeSnapshot(snapshot, indexFile);
+					} finally {
+						snapshot.close();
+					}
+
+					if (!compacted.delete()) {
+						throw new IOException("Failed to delete " + compacted);
+					}
+				} catch (IOException e) {
+					log.error("Failed to compact the journal of " + indexFile, e);
+				} finally {
+					compaction = null;
+				}
+			}
+		};
+
+		compaction.setDaemon(true);
+		compaction.start();
+	}
+
+	static File getJournalFile(File indexFile) {
+		return new File(indexFile.getPath() + ".journal");
+	}
+
+	static File getCompactedJournalFile(File indexFile) {
+		return new File(indexFile.getPath() + ".journal.old");
+	}
+
+	static File getSnapshotFile(File indexFile) {
+		return new File(indexFile.getPath() + ".snapshot");
+	}
+
+	private static boolean isLegacySnapshot(File indexFile) throws IOException {
+		byte[] magic = new byte[MAGIC.length];
+		InputStream is = new FileInputStream(indexFile);
+
+		try {
+			return (is.read(magic) == magic.length) && Arrays.equals(magic, MAGIC);
+		} finally {
+			is.close();
+		}
+	}
+
+	private static Trie<Integer> readLegacySnapshot(File indexFile) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+
+		try {
+			FileChannel channel = raf.getChannel();
+			channel.position(MAGIC.length);
+
+			return new TrieSerializer<Integer>(Integer.class).deserialize(channel,
+					new TrieSerializerListener<Integer>() {
+						@Override
+						public void onEntryRead(byte[] key, Integer value) {
+						}
+					});
+		} finally {
+			raf.close();
+		}
+	}
+
+	// Writes the snapshot to a temporary file first, so that the previous
+	// snapshot is kept if the writing fails
+	private static void writeSnapshot(MappedTrie trie, File indexFile) throws IOException {
+		File snapshot = getSnapshotFile(indexFile);
+
+		MappedTrie.write(trie, snapshot);
+		FileUtils.renameTo(snapshot, indexFile);
+	}
+
+	/**
+	 * Sets the keys of the journal to the trie.
+	 * <p>
+	 * The journal is a sequence of records, each of them consisting of the
+	 * length of the encoded key (int), the encoded key (bytes) and the
+	 * identifier (int). An incomplete last record (of an interrupted save) is
+	 * truncated.
+	 * </p>
+	 * 
+	 * @param trie
+	 * @param journal
+	 * @throws IOException
+	 */
+	private static void replay(MappedTrie trie, File journal) throws IOException {
+
+		if (!journal.exists()) {
+			return;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+				journal)));
+		long length = 0;
+
+		try {
+
+			while (true) {
+				byte[] word = new byte[in.readInt()];
+				in.readFully(word);
+				trie.set(word, in.readInt());
+
+				length += 8 + word.length;
+			}
+		} catch (EOFException e) {
+			// End of the journal
+		} finally {
+			NioUtils.closeQuietly(in);
+		}
+
+		if (length < journal.length()) {
+			log.warn("Truncating the incomplete journal {} to {} bytes", journal, length);
+
+			RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+
+			try {
+				raf.setLength(length);
+			} finally {
+				raf.close();
+			}
+		}
 	}
 }
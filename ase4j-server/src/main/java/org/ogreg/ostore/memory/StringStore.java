@@ -1,21 +1,33 @@
 package org.ogreg.ostore.memory;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.ogreg.common.ConfigurationException;
-import org.ogreg.common.nio.NioCollectionSerializer.SerializerListener;
+import org.ogreg.common.Operator;
+import org.ogreg.common.nio.AppendLog;
+import org.ogreg.common.nio.NioSerializer;
 import org.ogreg.common.nio.NioUtils;
 import org.ogreg.common.nio.serializer.SerializerManager;
 import org.ogreg.ostore.ConfigurableObjectStore;
@@ -24,26 +36,60 @@ import org.ogreg.ostore.ObjectStore;
 import org.ogreg.ostore.ObjectStoreException;
 import org.ogreg.ostore.ObjectStoreManager;
 import org.ogreg.ostore.ObjectStoreMetadata;
+import org.ogreg.ostore.index.PropertyIndex;
 import org.ogreg.ostore.index.UniqueIndex;
-import org.ogreg.util.btree.BTree;
-import org.ogreg.util.btree.BTreeSerializer;
+import org.ogreg.util.LevenshteinAutomaton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * A simple {@link BTree}-based {@link ObjectStore} for storing {@link String}s.
+ * A compact in-memory {@link ObjectStore} for storing {@link String}s.
+ * <p>
+ * The strings are stored in a {@link StringTable}, and they are appended to
+ * the <code>strings</code> property file when added. The file is read when the
+ * store is initialized.
+ * </p>
+ * <p>
+ * The strings are appended to the file through an {@link AppendLog}, so that
+ * they are written in large sequential writes instead of one write per
+ * string. The strings are written in the order of their additions, so the
+ * last addition of an identifier wins when the file is read. The strings
+ * added since the last write of the log (at most <code>flushSize</code>
+ * bytes, or the strings of <code>flushInterval</code>) are lost if the
+ * process crashes, unless the store is synchronous or it is flushed. An
+ * incomplete last string (of an interrupted write) is truncated when the file
+ * is read.
+ * </p>
+ * <p>
+ * Parameters:
+ * <ul>
+ * <li><code>flushSize</code>: the size of the append buffer (in bytes, 64K by
+ * default)</li>
+ * <li><code>flushInterval</code>: the buffer is written at least this often
+ * (in milliseconds, 1000 by default, 0 if only when full)</li>
+ * <li><code>sync</code>: if true, every addition waits until its string is
+ * forced to the storage device, the concurrent additions are forced together
+ * (false by default)</li>
+ * </ul>
+ * </p>
  * 
  * @author Gergely Kiss
  */
 public class StringStore implements ConfigurableObjectStore<String>, Closeable, Serializable,
 		StringStoreMBean {
-	private static final long serialVersionUID = 4411880039656329960L;
+	private static final long serialVersionUID = -3101484612874326270L;
+	private static final Logger log = LoggerFactory.getLogger(StringStore.class);
 
-	private AtomicInteger nextKey;
+	/** The order of the BTree which was used by the previous versions. */
+	private static final int BTREE_ORDER = 128;
+
+	private static final int DEFAULT_FLUSH_SIZE = 64 * 1024;
+	private static final long DEFAULT_FLUSH_INTERVAL = 1000;
 
-	/** The {@link Trie} to map Strings to integers. */
-	private BTree<String, Integer> toInt;
+	private AtomicInteger nextKey;
 
-	/** The map to map Integers to Strings. */
-	private Map<Integer, String> toString;
+	/** The two-way mapping of the Strings and the integers. */
+	private StringTable strings;
 
 	// Helper fields
 
@@ -53,44 +99,44 @@ public class StringStore implements ConfigurableObjectStore<String>, Closeable,
 	/** The file channel which stores this instance. */
 	private transient FileChannel storageChannel;
 
+	/** The log which appends the strings to the storage channel. */
+	private transient AppendLog appendLog;
+
 	/** Storage metadata. */
 	private transient ObjectStoreMetadata metadata;
 
-	private transient BTreeSerializer<String, Integer> serializer = new BTreeSerializer<String, Integer>(
-			SerializerManager.findSerializerFor(String.class),
-			SerializerManager.findSerializerFor(Integer.class));
+	private transient NioSerializer<String> serializer = SerializerManager
+			.findSerializerFor(String.class);
 
 	@Override
 	public synchronized void init(EntityAccessor accessor, File storageDir,
 			Map<String, String> params) {
 		try {
 			storageFile = ObjectStoreManager.getPropertyFile(storageDir, "strings");
-			boolean existed = storageFile.exists();
 
-			storageChannel = new RandomAccessFile(storageFile, "rw").getChannel();
+			this.strings = new StringTable();
 
-			if (existed) {
-				this.nextKey = new AtomicInteger(NioUtils.readInt(storageChannel));
-				this.toString = new HashMap<Integer, String>();
+			if (storageFile.exists()) {
+				int next = read(storageFile, strings);
 
-				BTree<String, Integer> tree = serializer.deserialize(storageChannel,
-						new SerializerListener<Entry<String, Integer>>() {
-							@Override
-							public void onEntryRead(Entry<String, Integer> e) {
-								toString.put(e.getValue(), e.getKey());
-							}
-						});
+				// The next key of the file is not updated when adding strings
+				this.nextKey = new AtomicInteger(Math.max(next, strings.getMaxId() + 1));
 
-				this.toInt = tree;
+				storageChannel = new RandomAccessFile(storageFile, "rw").getChannel();
 			} else {
-				// TODO Parametric order
-				this.toInt = new BTree<String, Integer>(128);
-				this.toString = new HashMap<Integer, String>();
 				this.nextKey = new AtomicInteger(0);
 
+				storageChannel = new RandomAccessFile(storageFile, "rw").getChannel();
 				NioUtils.writeInt(storageChannel, nextKey.intValue());
-				serializer.serialize(toInt, storageChannel);
+				NioUtils.writeInt(storageChannel, BTREE_ORDER);
 			}
+
+			String size = params.get("flushSize");
+			String interval = params.get("flushInterval");
+
+			appendLog = new AppendLog(storageChannel, (size == null) ? DEFAULT_FLUSH_SIZE
+					: Integer.parseInt(size), (interval == null) ? DEFAULT_FLUSH_INTERVAL
+					: Long.parseLong(interval), Boolean.parseBoolean(params.get("sync")));
 		} catch (IOException e) {
 			throw new ConfigurationException(e);
 		}
@@ -98,9 +144,9 @@ public class StringStore implements ConfigurableObjectStore<String>, Closeable,
 
 	@Override
 	public long save(String entity) throws ObjectStoreException {
-		Integer key = toInt.get(entity);
+		int key = strings.getId(entity);
 
-		if (key == null) {
+		if (key < 0) {
 			int nk = nextKey.get();
 			add(nk, entity);
 
@@ -115,10 +161,20 @@ public class StringStore implements ConfigurableObjectStore<String>, Closeable,
 		return save(entity);
 	}
 
+	@Override
+	public long[] saveAll(List<String> entities) throws ObjectStoreException {
+		long[] ret = new long[entities.size()];
+
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = save(entities.get(i));
+		}
+
+		return ret;
+	}
+
 	@Override
 	public void add(long identifier, String entity) throws ObjectStoreException {
-		toInt.set(entity, (int) identifier);
-		toString.put((int) identifier, entity);
+		strings.add((int) identifier, entity);
 
 		// Does not guarantee that every identifier is always assigned, but is
 		// threadsafe
@@ -127,21 +183,32 @@ public class StringStore implements ConfigurableObjectStore<String>, Closeable,
 			nextKey.addAndGet(diff + 1);
 		}
 
-		synchronized (storageChannel) {
-			try {
-				// Appending to file channel immediately
-				// TODO BTree mmap?
-				storageChannel.position(storageChannel.size());
-				serializer.writeImmediately(entity, (int) identifier, storageChannel);
-			} catch (IOException e) {
-				throw new ObjectStoreException(e);
-			}
+		try {
+			ByteBuffer buf = ByteBuffer.allocate(serializer.sizeOf(entity) + 4);
+			serializer.serialize(entity, buf);
+			buf.putInt((int) identifier);
+			buf.flip();
+
+			appendLog.append(buf);
+		} catch (IOException e) {
+			throw new ObjectStoreException(e);
 		}
 	}
 
 	@Override
 	public String get(long identifier) throws ObjectStoreException {
-		return toString.get(Integer.valueOf((int) identifier));
+		return strings.get((int) identifier);
+	}
+
+	@Override
+	public List<String> getAll(long[] identifiers) throws ObjectStoreException {
+		List<String> ret = new ArrayList<String>(identifiers.length);
+
+		for (long identifier : identifiers) {
+			ret.add(get(identifier));
+		}
+
+		return ret;
 	}
 
 	@Override
@@ -151,23 +218,102 @@ public class StringStore implements ConfigurableObjectStore<String>, Closeable,
 		return get(identifier);
 	}
 
+	@Override
+	public List<Object> getFields(long[] identifiers, String fieldName)
+			throws ObjectStoreException {
+		List<Object> ret = new ArrayList<Object>(identifiers.length);
+
+		for (long identifier : identifiers) {
+			ret.add(getField(identifier, fieldName));
+		}
+
+		return ret;
+	}
+
 	@Override
 	public Long uniqueResult(String fieldName, Object value) throws ObjectStoreException {
 
 		// TODO Field name check?
-		Integer key = toInt.get((String) value);
+		int key = strings.getId((String) value);
+
+		return (key < 0) ? null : Long.valueOf(key);
+	}
+
+	@Override
+	public Map<String, Long> prefixResults(String fieldName, String prefix, Pattern pattern,
+			int limit) throws ObjectStoreException {
+		Map<String, Long> ret = new LinkedHashMap<String, Long>();
+		Matcher m = (pattern == null) ? null : pattern.matcher("");
+
+		// TODO Field name check?
+		for (Iterator<Entry<String, Integer>> it = strings.iterator(prefix); it.hasNext()
+				&& (ret.size() < limit);) {
+			Entry<String, Integer> e = it.next();
+
+			if (!e.getKey().startsWith(prefix)) {
+				break;
+			}
+
+			if ((m == null) || m.reset(e.getKey()).matches()) {
+				ret.put(e.getKey(), Long.valueOf(e.getValue()));
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Note: the strings are not normalized, and as the store is not backed by
+	 * a trie, every string is compared to the value.
+	 * </p>
+	 */
+	@Override
+	public Map<Long, Integer> similarResults(String fieldName, String value, int maxEdits,
+			int limit) throws ObjectStoreException {
+		Map<Long, Integer> ret = new LinkedHashMap<Long, Integer>();
+		LevenshteinAutomaton automaton = new LevenshteinAutomaton(value, maxEdits);
+
+		// TODO Field name check?
+		for (Iterator<Entry<String, Integer>> it = strings.iterator(); it.hasNext()
+				&& (ret.size() < limit);) {
+			Entry<String, Integer> e = it.next();
+			String key = e.getKey();
+
+			// Strings of very different lengths can not be similar
+			if (Math.abs(key.length() - value.length()) > maxEdits) {
+				continue;
+			}
+
+			int distance = automaton.distance(key);
 
-		return (key == null) ? null : Long.valueOf(key);
+			if (distance >= 0) {
+				ret.put(Long.valueOf(e.getValue()), distance);
+			}
+		}
+
+		return ret;
+	}
+
+	@Override
+	public BitSet indexedResults(String fieldName, Operator op, Object value)
+			throws ObjectStoreException {
+		return null;
 	}
 
 	@Override
 	public synchronized void flush() throws IOException {
-		storageChannel.force(false);
+		appendLog.flush();
 	}
 
 	@Override
 	public synchronized void close() throws IOException {
-		storageChannel.close();
+		try {
+			appendLog.close();
+		} finally {
+			storageChannel.close();
+		}
 	}
 
 	@Override
@@ -190,6 +336,11 @@ public class StringStore implements ConfigurableObjectStore<String>, Closeable,
 		// Do nothing
 	}
 
+	@Override
+	public void addPropertyIndex(String fieldName, PropertyIndex idx) {
+		// Do nothing
+	}
+
 	@Override
 	public ObjectStoreMetadata getMetadata() {
 		return metadata;
@@ -202,7 +353,78 @@ public class StringStore implements ConfigurableObjectStore<String>, Closeable,
 
 	@Override
 	public long getObjectCount() {
-		return toString.size();
+		return strings.size();
+	}
+
+	@Override
+	public int getCacheSize() {
+		// The strings are kept in memory anyway
+		return 0;
+	}
+
+	@Override
+	public double getCacheHitRate() {
+		return 0;
+	}
+
+	/**
+	 * Reads the strings of the file to the table.
+	 * <p>
+	 * The file consists of the next key (int) and the order of the BTree
+	 * which was used by the previous versions (int), followed by the strings
+	 * (see {@link NioSerializer}) and their identifiers (int). An incomplete
+	 * last string (of an interrupted write) is truncated.
+	 * </p>
+	 * 
+	 * @param file
+	 * @param dest
+	 * @return The next key of the file
+	 * @throws IOException on read error
+	 */
+	private static int read(File file, StringTable dest) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+				file)));
+
+		int next = 0;
+		long length = 8;
+
+		try {
+			next = in.readInt();
+			in.readInt();
+
+			while (true) {
+				int len = (in.readInt() - 4) / 2;
+				char[] chars = new char[len];
+
+				for (int i = 0; i < len; i++) {
+					chars[i] = in.readChar();
+				}
+
+				dest.append(in.readInt(), new String(chars));
+
+				length += 8 + len * 2;
+			}
+		} catch (EOFException e) {
+			// End of the file
+		} finally {
+			NioUtils.closeQuietly(in);
+		}
+
+		dest.sortAppended();
+
+		if (length < file.length()) {
+			log.warn("Truncating the incomplete string store {} to {} bytes", file, length);
+
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+			try {
+				raf.setLength(length);
+			} finally {
+				raf.close();
+			}
+		}
+
+		return next;
 	}
 
 	@Override
@@ -218,7 +440,7 @@ public class StringStore implements ConfigurableObjectStore<String>, Closeable,
 			bw = new BufferedWriter(new FileWriter(file));
 			final BufferedWriter w = bw;
 
-			for (Iterator<Entry<String, Integer>> it = toInt.iterator(); it.hasNext();) {
+			for (Iterator<Entry<String, Integer>> it = strings.iterator(); it.hasNext();) {
 				Entry<String, Integer> e = it.next();
 				w.append(e.getKey()).append('\n');
 			}
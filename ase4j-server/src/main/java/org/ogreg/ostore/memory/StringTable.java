@@ -0,0 +1,666 @@
+package org.ogreg.ostore.memory;
+
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+/**
+ * A compact, in-memory, two-way mapping of Strings and integer identifiers.
+ * <p>
+ * The strings are stored only once, UTF-8 encoded, in an append-only byte
+ * arena. Every record of the arena is the identifier (int), the length of the
+ * encoded string (a variable length integer, 7 bits per byte) and the encoded
+ * string. The identifiers are mapped to the offsets of their records by an
+ * array, and the strings are mapped to the offsets of their records by an
+ * open-addressing hash table (with linear probing). There are no objects per
+ * string.
+ * </p>
+ * <p>
+ * The strings are iterated in the order of their encoded bytes. The record
+ * offsets are kept in sorted runs, and the records added since the last run
+ * are inserted to a small sorted array of pending records. When it is full,
+ * it becomes a new run, and the last runs are merged while the older one is
+ * at most twice as large. So every record is merged O(log n) times, and the
+ * iterators merge O(log n) runs. Bulk loads append the records unsorted, and
+ * sort them once (see {@link #append(int, String)}). The iterators share the
+ * arrays with the table, the pending records are copied by the next add only.
+ * </p>
+ * <p>
+ * The table is thread safe. The iterators see the strings added before they
+ * were created, with the identifiers they were mapped to at that time.
+ * </p>
+ * 
+ * @author Gergely Kiss
+ */
+final class StringTable implements Serializable {
+	private static final long serialVersionUID = -6069567451815700569L;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The maximum number of the pending records. */
+	private static final int PENDING_LIMIT = 1024;
+
+	/** The records of the strings. */
+	private byte[] arena = new byte[1024];
+	private int arenaSize = 0;
+
+	/** The record offsets by the identifiers, +1 (0 if not assigned). */
+	private int[] offsets = new int[256];
+	private int count = 0;
+	private int maxId = -1;
+
+	/** The record offsets by the hashes of the strings, +1 (0 if empty). */
+	private int[] table = new int[256];
+	private int tableSize = 0;
+
+	/** The runs of the record offsets sorted by their strings, oldest first. */
+	private int[][] runs = new int[0][];
+
+	/** The record offsets added since the last run, sorted by their strings. */
+	private int[] pending = new int[16];
+	private int pendingSize = 0;
+
+	/** True if the pending records are shared with an iterator. */
+	private transient boolean pendingShared = false;
+
+	/** The record offsets appended since the last sort, unsorted. */
+	private int[] appended = new int[0];
+	private int appendedSize = 0;
+
+	/**
+	 * Maps the string to the identifier, and the identifier to the string.
+	 * <p>
+	 * If the string was already mapped to an other identifier, it is remapped
+	 * (but the other identifier is still mapped to the string).
+	 * </p>
+	 * 
+	 * @param id
+	 * @param value
+	 */
+	public synchronized void add(int id, String value) {
+		sortAppended();
+
+		int offset = map(id, value);
+
+		if (pendingShared || (pendingSize == pending.length)) {
+			pending = Arrays.copyOf(pending, (pendingSize == pending.length) ? pendingSize << 1
+					: pending.length);
+			pendingShared = false;
+		}
+
+		// The records of the same string are kept in the order of their adds
+		int pos = upperBound(arena, pending, pendingSize, offset);
+		System.arraycopy(pending, pos, pending, pos + 1, pendingSize - pos);
+		pending[pos] = offset;
+		pendingSize++;
+
+		if (pendingSize == PENDING_LIMIT) {
+			pushPending();
+		}
+	}
+
+	/**
+	 * Maps the string to the identifier like {@link #add(int, String)}, but
+	 * leaves its record unsorted until {@link #sortAppended()} (or the next
+	 * add or iterator), so that the records of a bulk load are sorted once.
+	 * 
+	 * @param id
+	 * @param value
+	 */
+	public synchronized void append(int id, String value) {
+
+		// The runs are kept in the order of the adds
+		if (pendingSize > 0) {
+			pushPending();
+		}
+
+		int offset = map(id, value);
+
+		if (appendedSize == appended.length) {
+			appended = Arrays.copyOf(appended, Math.max(16, appendedSize << 1));
+		}
+
+		appended[appendedSize++] = offset;
+	}
+
+	/**
+	 * Sorts the records appended since the last sort into a new run.
+	 */
+	public synchronized void sortAppended() {
+
+		if (appendedSize == 0) {
+			return;
+		}
+
+		int[] run = Arrays.copyOf(appended, appendedSize);
+		sort(arena, run);
+
+		appended = new int[0];
+		appendedSize = 0;
+
+		// Dropping the records of the remapped strings
+		int n = 0;
+
+		for (int offset : run) {
+
+			if (isCurrent(offset)) {
+				run[n++] = offset;
+			}
+		}
+
+		push((n == run.length) ? run : Arrays.copyOf(run, n));
+	}
+
+	// Writes the record, maps it by the identifier and the string, and
+	// returns its offset
+	private int map(int id, String value) {
+		byte[] bytes = value.getBytes(UTF8);
+		int offset = write(id, bytes);
+
+		if (id >= offsets.length) {
+			offsets = Arrays.copyOf(offsets, Math.max(id + 1, offsets.length << 1));
+		}
+
+		if (offsets[id] == 0) {
+			count++;
+		}
+
+		offsets[id] = offset + 1;
+		maxId = Math.max(maxId, id);
+
+		// Replacing the previous record of the string, if any
+		int slot = find(bytes);
+
+		if (table[slot] == 0) {
+			tableSize++;
+		}
+
+		table[slot] = offset + 1;
+
+		if (tableSize > (table.length >> 1)) {
+			rehash(table.length << 1);
+		}
+
+		return offset;
+	}
+
+	/**
+	 * Returns the string of the identifier.
+	 * 
+	 * @param id
+	 * @return The string, or null if the identifier is not mapped
+	 */
+	public synchronized String get(int id) {
+
+		if ((id < 0) || (id >= offsets.length) || (offsets[id] == 0)) {
+			return null;
+		}
+
+		return decode(arena, offsets[id] - 1);
+	}
+
+	/**
+	 * Returns the identifier of the string.
+	 * 
+	 * @param value
+	 * @return The identifier, or -1 if the string is not mapped
+	 */
+	public synchronized int getId(String value) {
+		int offset = table[find(value.getBytes(UTF8))] - 1;
+		return (offset < 0) ? -1 : readId(arena, offset);
+	}
+
+	/**
+	 * Returns the number of mapped identifiers.
+	 * 
+	 * @return
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the greatest mapped identifier.
+	 * 
+	 * @return The identifier, or -1 if none
+	 */
+	public synchronized int getMaxId() {
+		return maxId;
+	}
+
+	/**
+	 * Returns an iterator of the strings and their identifiers, in order.
+	 * 
+	 * @return
+	 */
+	public Iterator<Entry<String, Integer>> iterator() {
+		return iterator("");
+	}
+
+	/**
+	 * Returns an iterator of the strings and their identifiers, in order,
+	 * starting with the first string not less than <code>from</code>.
+	 * 
+	 * @param from
+	 * @return
+	 */
+	public synchronized Iterator<Entry<String, Integer>> iterator(String from) {
+		sortAppended();
+
+		byte[] key = from.getBytes(UTF8);
+		int[][] records = Arrays.copyOf(runs, runs.length + 1);
+		int[] sizes = new int[records.length];
+		int[] positions = new int[records.length];
+
+		records[runs.length] = pending;
+		pendingShared = true;
+
+		for (int k = 0; k < records.length; k++) {
+			sizes[k] = (k == runs.length) ? pendingSize : records[k].length;
+			positions[k] = lowerBound(arena, records[k], sizes[k], key);
+		}
+
+		return new TableIterator(arena, records, sizes, positions);
+	}
+
+	// Appends the record to the arena, and returns its offset
+	private int write(int id, byte[] bytes) {
+		int size = 4 + 5 + bytes.length;
+
+		if (arenaSize > Integer.MAX_VALUE - size) {
+			throw new IllegalStateException("The string table is full");
+		}
+
+		if (arenaSize + size > arena.length) {
+			int capacity = (int) Math.min(Integer.MAX_VALUE, Math.max(arenaSize + size,
+					(long) arena.length << 1));
+			arena = Arrays.copyOf(arena, capacity);
+		}
+
+		int offset = arenaSize;
+		int pos = offset;
+
+		arena[pos++] = (byte) (id >>> 24);
+		arena[pos++] = (byte) (id >>> 16);
+		arena[pos++] = (byte) (id >>> 8);
+		arena[pos++] = (byte) id;
+
+		for (int len = bytes.length; true; len >>>= 7) {
+
+			if (len < 0x80) {
+				arena[pos++] = (byte) len;
+				break;
+			}
+
+			arena[pos++] = (byte) ((len & 0x7F) | 0x80);
+		}
+
+		System.arraycopy(bytes, 0, arena, pos, bytes.length);
+		arenaSize = pos + bytes.length;
+
+		return offset;
+	}
+
+	// Returns the slot of the string, or the empty slot where it should be
+	private int find(byte[] bytes) {
+		int mask = table.length - 1;
+		int slot = hash(bytes, 0, bytes.length) & mask;
+
+		while (true) {
+			int offset = table[slot] - 1;
+
+			if ((offset < 0) || equals(arena, offset, bytes)) {
+				return slot;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private void rehash(int capacity) {
+		int[] ntable = new int[capacity];
+		int mask = capacity - 1;
+
+		for (int entry : table) {
+
+			if (entry == 0) {
+				continue;
+			}
+
+			int len = length(arena, entry - 1);
+			int slot = hash(arena, start(entry - 1, len), len) & mask;
+
+			while (ntable[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+
+			ntable[slot] = entry;
+		}
+
+		table = ntable;
+	}
+
+	// Pushes the pending records as a new run
+	private void pushPending() {
+		push(Arrays.copyOf(pending, pendingSize));
+		pendingSize = 0;
+	}
+
+	// Adds the run, and merges the last runs while the older one is at most
+	// twice as large
+	private void push(int[] run) {
+		int n = runs.length;
+
+		runs = Arrays.copyOf(runs, n + 1);
+		runs[n] = run;
+
+		while ((n > 0) && ((runs[n - 1].length >> 1) <= runs[n].length)) {
+			int[] merged = merge(runs[n - 1], runs[n]);
+
+			runs = Arrays.copyOf(runs, n);
+			runs[--n] = merged;
+		}
+	}
+
+	// Merges the older and the newer run, dropping the records of the
+	// remapped strings
+	private int[] merge(int[] older, int[] newer) {
+		int[] merged = new int[older.length + newer.length];
+		int i = 0;
+		int j = 0;
+		int n = 0;
+
+		while ((i < older.length) || (j < newer.length)) {
+			int offset;
+
+			if (j == newer.length) {
+				offset = older[i++];
+			} else if (i == older.length) {
+				offset = newer[j++];
+			} else if (compare(arena, older[i], newer[j]) <= 0) {
+				offset = older[i++];
+			} else {
+				offset = newer[j++];
+			}
+
+			if (isCurrent(offset)) {
+				merged[n++] = offset;
+			}
+		}
+
+		return (n == merged.length) ? merged : Arrays.copyOf(merged, n);
+	}
+
+	// True if the record is the current record of its string
+	private boolean isCurrent(int offset) {
+		int len = length(arena, offset);
+		int mask = table.length - 1;
+		int slot = hash(arena, start(offset, len), len) & mask;
+
+		while (table[slot] != 0) {
+
+			if (table[slot] == offset + 1) {
+				return true;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		return false;
+	}
+
+	private static int hash(byte[] bytes, int offset, int length) {
+		int h = 0;
+
+		for (int i = 0; i < length; i++) {
+			h = 31 * h + bytes[offset + i];
+		}
+
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static int readId(byte[] arena, int offset) {
+		return ((arena[offset] & 0xFF) << 24) | ((arena[offset + 1] & 0xFF) << 16)
+				| ((arena[offset + 2] & 0xFF) << 8) | (arena[offset + 3] & 0xFF);
+	}
+
+	// Returns the length of the string of the record
+	private static int length(byte[] arena, int offset) {
+		int pos = offset + 4;
+		int len = 0;
+
+		for (int shift = 0;; shift += 7) {
+			byte b = arena[pos++];
+			len |= (b & 0x7F) << shift;
+
+			if (b >= 0) {
+				return len;
+			}
+		}
+	}
+
+	// Returns the offset of the string of the record
+	private static int start(int offset, int length) {
+		int pos = offset + 5;
+
+		for (int len = length; len >= 0x80; len >>>= 7) {
+			pos++;
+		}
+
+		return pos;
+	}
+
+	private static String decode(byte[] arena, int offset) {
+		int len = length(arena, offset);
+		return new String(arena, start(offset, len), len, UTF8);
+	}
+
+	// True if the string of the record equals the bytes
+	private static boolean equals(byte[] arena, int offset, byte[] bytes) {
+		int len = length(arena, offset);
+
+		if (len != bytes.length) {
+			return false;
+		}
+
+		int pos = start(offset, len);
+
+		for (int i = 0; i < len; i++) {
+
+			if (arena[pos + i] != bytes[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	// Compares the strings of two records
+	private static int compare(byte[] arena, int a, int b) {
+		int lenA = length(arena, a);
+		int lenB = length(arena, b);
+
+		return compare(arena, start(a, lenA), lenA, arena, start(b, lenB), lenB);
+	}
+
+	// Compares the string of a record to the key
+	private static int compare(byte[] arena, int a, byte[] key) {
+		int len = length(arena, a);
+		return compare(arena, start(a, len), len, key, 0, key.length);
+	}
+
+	// Compares the bytes unsigned, which is the order of the code points
+	private static int compare(byte[] a, int offsetA, int lengthA, byte[] b, int offsetB,
+			int lengthB) {
+		int len = Math.min(lengthA, lengthB);
+
+		for (int i = 0; i < len; i++) {
+			int cmp = (a[offsetA + i] & 0xFF) - (b[offsetB + i] & 0xFF);
+
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+
+		return lengthA - lengthB;
+	}
+
+	// Returns the index of the first record not less than the key
+	private static int lowerBound(byte[] arena, int[] records, int size, byte[] key) {
+		int low = 0;
+		int high = size;
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+
+			if (compare(arena, records[mid], key) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+
+	// Sorts the records by their strings (a stable merge sort)
+	private static void sort(byte[] arena, int[] records) {
+		int[] tmp = new int[records.length];
+
+		for (int width = 1; width < records.length; width <<= 1) {
+
+			for (int lo = 0; lo < records.length - width; lo += width << 1) {
+				int mid = lo + width;
+				int hi = Math.min(lo + (width << 1), records.length);
+				int i = lo;
+				int j = mid;
+				int n = lo;
+
+				while ((i < mid) && (j < hi)) {
+					tmp[n++] = (compare(arena, records[i], records[j]) <= 0) ? records[i++]
+							: records[j++];
+				}
+
+				while (i < mid) {
+					tmp[n++] = records[i++];
+				}
+
+				while (j < hi) {
+					tmp[n++] = records[j++];
+				}
+
+				System.arraycopy(tmp, lo, records, lo, hi - lo);
+			}
+		}
+	}
+
+	// Returns the index of the first record greater than the given record
+	private static int upperBound(byte[] arena, int[] records, int size, int offset) {
+		int low = 0;
+		int high = size;
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+
+			if (compare(arena, records[mid], offset) <= 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Merges the runs of the records, skipping the records of the strings
+	 * remapped before the iterator was created.
+	 * <p>
+	 * The records of the same string are adjacent, in the order of their
+	 * adds, so only the last of them is returned. The records of the strings
+	 * remapped since are not seen by the iterator, so they are returned.
+	 * </p>
+	 * 
+	 * @author Gergely Kiss
+	 */
+	private static final class TableIterator implements Iterator<Entry<String, Integer>> {
+		private final byte[] arena;
+		private final int[][] runs;
+		private final int[] sizes;
+		private final int[] positions;
+
+		/** The run of the next record, -1 if none, or -2 if not known yet. */
+		private int head = -2;
+		private Entry<String, Integer> entry;
+
+		TableIterator(byte[] arena, int[][] runs, int[] sizes, int[] positions) {
+			this.arena = arena;
+			this.runs = runs;
+			this.sizes = sizes;
+			this.positions = positions;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return readNext() != null;
+		}
+
+		@Override
+		public Entry<String, Integer> next() {
+
+			if (readNext() == null) {
+				throw new NoSuchElementException();
+			}
+
+			Entry<String, Integer> next = entry;
+			entry = null;
+			return next;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private Entry<String, Integer> readNext() {
+
+			while ((entry == null) && (head() >= 0)) {
+				int offset = runs[head][positions[head]++];
+				head = -2;
+
+				// A later record of the same string follows
+				if ((head() >= 0) && (compare(arena, offset, runs[head][positions[head]]) == 0)) {
+					continue;
+				}
+
+				entry = new SimpleEntry<String, Integer>(decode(arena, offset), readId(arena,
+						offset));
+			}
+
+			return entry;
+		}
+
+		// Returns the run of the least next record (the oldest one, if equal)
+		private int head() {
+
+			if (head == -2) {
+				head = -1;
+
+				for (int k = 0; k < runs.length; k++) {
+
+					if ((positions[k] < sizes[k])
+							&& ((head < 0) || (compare(arena, runs[k][positions[k]],
+									runs[head][positions[head]]) < 0))) {
+						head = k;
+					}
+				}
+			}
+
+			return head;
+		}
+	}
+}
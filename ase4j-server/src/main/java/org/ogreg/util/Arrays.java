@@ -44,6 +44,42 @@ public abstract class Arrays {
         return -(low + 1); // key not found.
     }
 
+    /**
+     * Searches the specified sorted array for the first element which is not less than <code>key</code>, using
+     * exponential (galloping) search from <code>fromIndex</code>.
+     *
+     * <p>This is faster than {@link #binarySearch(int[], int, int, int)} when the searched element is expected to be
+     * close to <code>fromIndex</code>, which is the case when merging sorted arrays.</p>
+     *
+     * @param   array      The array to be searched
+     * @param   fromIndex  The start index in the array
+     * @param   toIndex    The stop index in the array
+     * @param   key        The value to be searched for
+     *
+     * @return  The index of the first element &gt;= <code>key</code>, or <code>toIndex</code> if there is no such
+     *          element (the array is expected to contain unique elements)
+     */
+    public static int gallop(int[] array, int fromIndex, int toIndex, int key) {
+        int low = fromIndex;
+        int step = 1;
+
+        // Finding the range of the key by doubling the step size
+        while ((low < toIndex) && (array[low] < key)) {
+            int next = low + step;
+
+            if ((next >= toIndex) || (array[next] >= key)) {
+                int idx = binarySearch(array, low + 1, Math.min(next, toIndex), key);
+
+                return (idx >= 0) ? idx : (-idx - 1);
+            }
+
+            low = next;
+            step <<= 1;
+        }
+
+        return low;
+    }
+
     /**
      * Inserts <code>src</code> at <code>pos</code> in the array <code>dest</code>.
      *
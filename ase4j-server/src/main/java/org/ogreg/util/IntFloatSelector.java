@@ -15,7 +15,8 @@ import java.util.Arrays;
  * </p>
  * <p>
  * Note: key-value pairs returned by this selector are <b>not</b> ordered. They
- * are only guaranteed to be the <code>k</code> largest value elements.
+ * are only guaranteed to be the <code>k</code> largest value elements, unless
+ * the selector is {@link #sort()}-ed.
  * </p>
  * 
  * @author Gergely Kiss
@@ -24,6 +25,7 @@ public class IntFloatSelector {
 	int[] keys;
 	float[] vals;
 	private int size = 0;
+	private boolean sorted = false;
 
 	public IntFloatSelector(int maxSize) {
 		keys = new int[maxSize];
@@ -39,6 +41,10 @@ public class IntFloatSelector {
 	 * @param val
 	 */
 	public void add(int key, float val) {
+		if (sorted) {
+			throw new IllegalStateException("Sorted selectors can not be added to");
+		}
+
 		if (size == keys.length) {
 
 			// Shortcut for low values when the heap is full
@@ -57,6 +63,51 @@ public class IntFloatSelector {
 		size++;
 	}
 
+	/**
+	 * Sorts the selected pairs by their values, descending (and by their keys,
+	 * ascending, if the values are equal).
+	 * <p>
+	 * The sorting is done in place, by draining the heap in O(k * log(k))
+	 * time. After sorting, the selector can not be added to any more.
+	 * </p>
+	 */
+	public void sort() {
+
+		if (sorted) {
+			return;
+		}
+
+		int n = size;
+
+		// The minimums are moved to the end of the arrays one by one
+		while (size > 1) {
+			int minKey = keys[0];
+			float minVal = vals[0];
+
+			removeMin();
+
+			keys[size] = minKey;
+			vals[size] = minVal;
+		}
+
+		size = n;
+		sorted = true;
+	}
+
+	/**
+	 * Returns the value which must be exceeded by a pair to get into the
+	 * selector.
+	 * <p>
+	 * This is the smallest selected value if the selector is full, or
+	 * {@link Float#NEGATIVE_INFINITY} if it is not.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public float threshold() {
+		return (size == keys.length) ? vals[0] : Float.NEGATIVE_INFINITY;
+	}
+
 	/**
 	 * Returns the keys.
 	 * <p>
@@ -129,7 +180,7 @@ public class IntFloatSelector {
 					minindex = lindex;
 				}
 			} else {
-				if (vals[lindex] <= vals[rindex]) {
+				if (!less(rindex, lindex)) {
 					// Left child is smaller
 					minindex = lindex;
 				} else {
@@ -139,7 +190,7 @@ public class IntFloatSelector {
 			}
 
 			// Determining if any of the children is smaller than us
-			if (vals[index] > vals[minindex]) {
+			if (less(minindex, index)) {
 				// Key swap
 				int minKey = keys[minindex];
 				keys[minindex] = keys[index];
@@ -165,24 +216,20 @@ public class IntFloatSelector {
 	 * @param index
 	 */
 	private void siftUp(int index) {
-		float value;
 		int parentIndex;
-		float parentValue;
 
 		while (index != 0) {
 			parentIndex = parentIndex(index);
 
-			parentValue = vals[parentIndex];
-			value = vals[index];
-
-			if (parentValue > value) {
+			if (less(index, parentIndex)) {
 				// Key swap
 				int parentKey = keys[parentIndex];
 				keys[parentIndex] = keys[index];
 				keys[index] = parentKey;
 
 				// Value swap
-				vals[parentIndex] = value;
+				float parentValue = vals[parentIndex];
+				vals[parentIndex] = vals[index];
 				vals[index] = parentValue;
 
 				// Moving to next index
@@ -193,6 +240,23 @@ public class IntFloatSelector {
 		}
 	}
 
+	/**
+	 * Returns true if the element at index <code>i</code> is smaller than the
+	 * element at index <code>j</code>.
+	 * <p>
+	 * Elements are ordered by their values first, then by their keys,
+	 * descending - so that equal values will be sorted by their keys,
+	 * ascending (see {@link #sort()}).
+	 * </p>
+	 * 
+	 * @param i
+	 * @param j
+	 * @return
+	 */
+	private boolean less(int i, int j) {
+		return (vals[i] < vals[j]) || ((vals[i] == vals[j]) && (keys[i] > keys[j]));
+	}
+
 	/**
 	 * Returns the parent index of the specified index.
 	 * 
@@ -1,5 +1,7 @@
 package org.ogreg.util;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 /**
@@ -47,7 +49,6 @@ public class IntTrie implements Serializable {
 	private static final long serialVersionUID = 8556320988440764488L;
 
 	final TrieDictionary dict;
-	byte maxChildren;
 	IntTrieNode root;
 
 	byte[] contents = new byte[1];
@@ -68,8 +69,7 @@ public class IntTrie implements Serializable {
 	 */
 	public IntTrie(TrieDictionary dict) {
 		this.dict = dict;
-		this.maxChildren = dict.size();
-		this.root = new IntTrieNode(this, 1, 0, Integer.MIN_VALUE);
+		this.root = new IntTrieNode(1, 0, (byte) 0, Integer.MIN_VALUE);
 	}
 
 	IntTrieNode create(byte[] word, int offset, int value) {
@@ -83,7 +83,7 @@ public class IntTrie implements Serializable {
 		System.arraycopy(word, offset, contents, noffset, wordLen);
 		size += wordLen;
 
-		return new IntTrieNode(this, noffset, wordLen, value);
+		return new IntTrieNode(noffset, wordLen, word[offset], value);
 	}
 
 	/**
@@ -97,7 +97,7 @@ public class IntTrie implements Serializable {
 			return;
 		}
 
-		root.set(dict.encode(word), value);
+		root.set(this, dict.encode(word), value);
 	}
 
 	/**
@@ -111,7 +111,7 @@ public class IntTrie implements Serializable {
 			return;
 		}
 
-		root.set(word, value);
+		root.set(this, word, value);
 	}
 
 	/**
@@ -124,7 +124,7 @@ public class IntTrie implements Serializable {
 	public int get(String word) {
 		byte[] bytes = dict.encode(word);
 
-		return root.get(bytes, 0, bytes.length);
+		return root.get(contents, bytes);
 	}
 
 	/**
@@ -153,11 +153,8 @@ public class IntTrie implements Serializable {
 			return;
 		}
 
-		for (int i = 0; i < children.length; i++) {
-
-			if (children[i] != null) {
-				getWords(value, children[i], processor);
-			}
+		for (IntTrieNode child : children) {
+			getWords(value, child, processor);
 		}
 	}
 
@@ -171,4 +168,9 @@ public class IntTrie implements Serializable {
 		System.arraycopy(contents, 0, ncontents, 0, size);
 		contents = ncontents;
 	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		root.repair(contents);
+	}
 }
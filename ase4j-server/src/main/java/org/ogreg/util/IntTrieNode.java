@@ -5,162 +5,222 @@ import java.util.Arrays;
 
 /**
  * A trie node storing ints.
- * 
+ * <p>
+ * The nodes have the same compact layout as the {@link TrieNode}s.
+ * </p>
+ *
  * @author Gergely Kiss
- * @see Trie
+ * @see IntTrie
  */
 final class IntTrieNode implements Serializable {
 	private static final long serialVersionUID = 7217023895828169766L;
 
-	final IntTrie parent;
 	final int offset;
 	int count;
 
+	/** The first symbol of the node (fits into the padding of the object). */
+	byte symbol;
+
 	int value;
+
+	/** The children sorted by their first symbols, or null if none. */
 	IntTrieNode[] children = null;
 
-	IntTrieNode(IntTrie parent, int offset, int count, int value) {
-		this.parent = parent;
+	IntTrieNode(int offset, int count, byte symbol, int value) {
 		this.offset = offset;
 		this.count = count;
+		this.symbol = symbol;
 		this.value = value;
 	}
 
-	int get(byte[] word, int offset, int length) {
+	int get(byte[] contents, byte[] word) {
 		IntTrieNode node = this;
-
-		byte[] contents = parent.contents;
 		int wordPos = 0;
 
 		while (node != null) {
 			int pos = node.getLongestMatch(contents, word, wordPos);
 			int wps = pos + wordPos;
 
-			if (wps == length) {
+			if (wps == word.length) {
 				return pos == node.count ? node.value : Integer.MIN_VALUE;
 			}
 
-			if (node.children == null) {
+			if (pos < node.count) {
 				return Integer.MIN_VALUE;
 			}
 
-			int charPos = word[offset + wps];
-
-			node = node.children[charPos];
+			node = node.child(word[wps]);
 			wordPos = wps;
 		}
 
 		return Integer.MIN_VALUE;
 	}
 
-	void set(byte[] word, int value) {
+	void set(IntTrie trie, byte[] word, int value) {
 		IntTrieNode node = this;
-
-		byte[] contents = parent.contents;
 		int wordPos = 0;
-		int pos;
-		int wps;
 
 		while (true) {
-			pos = node.getLongestMatch(contents, word, wordPos);
-			wps = pos + wordPos;
+			int pos = node.getLongestMatch(trie.contents, word, wordPos);
+			int wps = pos + wordPos;
 
-			// No match - adding the new word
-			if (pos == 0) {
-				int charPos = word[wps];
+			// Match is as long as the prefix
+			if (pos == node.count) {
 
-				if (node.children == null) {
-					node.children = new IntTrieNode[parent.maxChildren];
+				// ...and we have an exact match - updating value
+				if (wps == word.length) {
+					node.value = value;
+					return;
 				}
 
-				if (node.children[charPos] == null) {
-					// No node at this child, creating new one
-					node.children[charPos] = parent.create(word, wordPos, value);
-				} else {
-					// Continue adding to current child
-					node = node.children[charPos];
-					continue;
+				IntTrieNode child = node.child(word[wps]);
+
+				// ...and there are remaining chars - adding remainder to
+				// children
+				if (child == null) {
+					child = trie.create(word, wps, value);
+					node.addChild(child);
+					return;
 				}
+
+				node = child;
+				wordPos = wps;
+				continue;
+			}
+
+			// The match is shorter than the prefix - splitting the node
+			IntTrieNode child2 = new IntTrieNode(node.offset + pos, node.count - pos,
+					trie.contents[node.offset + pos], node.value);
+			child2.children = node.children;
+
+			node.count = pos; // Keeping the first half
+
+			// ...and we have an exact match (creating: a prefix which is the
+			// same as the new word, with one child)
+			if (wps == word.length) {
+				node.value = value;
+				node.children = new IntTrieNode[] { child2 };
 			}
-			// We have a match
+			// ...and there are remaining chars (creating: a non-word prefix
+			// with two children)
 			else {
-				int wordLen = word.length - wordPos;
-				int prefixLen = node.count;
-
-				if (pos < prefixLen) {
-					// ... and there are remaining chars - splitting the
-					// node (creating: a non-word prefix with two children)
-					if (pos < wordLen) {
-						IntTrieNode child1 = parent.create(word, wps, value);
-						IntTrieNode child2 = node.subtrie(pos, node.value);
-						child2.children = node.children;
-
-						node.count = pos; // Keeping the first half
-						node.value = Integer.MIN_VALUE;
-						node.children = new IntTrieNode[parent.maxChildren];
-						node.children[child1.byteAt(0)] = child1;
-						node.children[child2.byteAt(0)] = child2;
-					}
-					// ...and we have an exact match - splitting the node
-					// (creating: a prefix which is the same as the new
-					// word, with one child)
-					else {
-						IntTrieNode child2 = node.subtrie(pos, node.value);
-						child2.children = node.children;
-
-						node.count = pos; // Keeping the first half
-						node.value = value;
-						node.children = new IntTrieNode[parent.maxChildren];
-						node.children[child2.byteAt(0)] = child2;
-					}
-				}
-				// Match is as long as the prefix
-				else {
-					// ...and there are remaining chars - adding remainder
-					// to children
-					if (pos < wordLen) {
-						int charPos = word[wps];
-
-						if (node.children == null) {
-							node.children = new IntTrieNode[parent.maxChildren];
-						}
-
-						if (node.children[charPos] == null) {
-							node.children[charPos] = parent.create(word, wps, value);
-						} else {
-							node = node.children[charPos];
-							wordPos = wps;
-							continue;
-						}
-					}
-					// ...and we have an exact match - updating value
-					else {
-						node.value = value;
-					}
-				}
+				IntTrieNode child1 = trie.create(word, wps, value);
+
+				node.value = Integer.MIN_VALUE;
+				node.children = (word[wps] < child2.symbol) ? new IntTrieNode[] {
+						child1, child2 } : new IntTrieNode[] { child2, child1 };
 			}
 
-			break;
+			return;
 		}
 	}
 
-	final byte byteAt(int i) {
-		return parent.contents[offset + i];
+	/**
+	 * Returns the child starting with <code>symbol</code>.
+	 *
+	 * @param symbol
+	 * @return The child, or null if there is no such child
+	 */
+	IntTrieNode child(int symbol) {
+		IntTrieNode[] children = this.children;
+
+		if (children == null) {
+			return null;
+		}
+
+		int idx = indexOf(children, symbol);
+
+		return (idx < 0) ? null : children[idx];
 	}
 
-	private IntTrieNode subtrie(int beginIndex, int value) {
-		return (beginIndex == 0) ? this : new IntTrieNode(parent, offset + beginIndex, count
-				- beginIndex, value);
+	private void addChild(IntTrieNode child) {
+
+		if (children == null) {
+			children = new IntTrieNode[] { child };
+			return;
+		}
+
+		int idx = -indexOf(children, child.symbol) - 1;
+		IntTrieNode[] nchildren = new IntTrieNode[children.length + 1];
+
+		System.arraycopy(children, 0, nchildren, 0, idx);
+		System.arraycopy(children, idx, nchildren, idx + 1, children.length - idx);
+		nchildren[idx] = child;
+
+		children = nchildren;
+	}
+
+	/**
+	 * Returns the index of the child starting with <code>symbol</code>, with
+	 * the semantics of {@link Arrays#binarySearch(int[], int)}.
+	 *
+	 * @param children
+	 * @param symbol
+	 * @return
+	 */
+	static int indexOf(IntTrieNode[] children, int symbol) {
+		int low = 0;
+		int high = children.length - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int s = children[mid].symbol;
+
+			if (s < symbol) {
+				low = mid + 1;
+			} else if (s > symbol) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+
+		return -(low + 1);
+	}
+
+	/**
+	 * Packs the children arrays and sets the first symbols of the subtree.
+	 * <p>
+	 * The previous versions stored the children in arrays indexed by their
+	 * first symbols, this is used to convert the Java serialized tries.
+	 * </p>
+	 *
+	 * @param contents The contents of the trie
+	 */
+	void repair(byte[] contents) {
+
+		if (children == null) {
+			return;
+		}
+
+		int len = 0;
+		for (IntTrieNode child : children) {
+			if (child != null) {
+				len++;
+			}
+		}
+
+		IntTrieNode[] packed = new IntTrieNode[len];
+		int i = 0;
+		for (IntTrieNode child : children) {
+			if (child != null) {
+				child.symbol = contents[child.offset];
+				child.repair(contents);
+				packed[i++] = child;
+			}
+		}
+
+		children = (len == 0) ? null : packed;
 	}
 
 	@Override
 	public String toString() {
-		return Arrays.toString(Arrays.copyOfRange(parent.contents, offset, offset + count));
+		return "IntTrieNode[" + offset + ", " + count + "]";
 	}
 
 	/**
 	 * Returns the longest matching position of the two strings.
-	 * 
+	 *
 	 * @param word
 	 * @return
 	 */
@@ -175,4 +235,4 @@ final class IntTrieNode implements Serializable {
 		}
 		return len;
 	}
-}
\ No newline at end of file
+}
@@ -64,7 +64,7 @@ public class IntTrieSerializer {
 		NioUtils.serializeTo(channel, trie.dict);
 
 		buf.clear();
-		serialize(new TrieNodes(), trie.root, channel);
+		serialize(new TrieNodes(trie.contents), trie.root, channel);
 
 		buf.flip();
 		channel.write(buf);
@@ -108,11 +108,8 @@ public class IntTrieSerializer {
 		}
 
 		prefix.push(node);
-		for (int i = 0; i < children.length; i++) {
-
-			if (children[i] != null) {
-				serialize(prefix, children[i], dest);
-			}
+		for (IntTrieNode child : children) {
+			serialize(prefix, child, dest);
 		}
 		prefix.pop();
 	}
@@ -203,9 +200,9 @@ public class IntTrieSerializer {
 		// Writing key
 		for (int i = 0; i < prefix.size; i++) {
 			IntTrieNode pn = prefix.nodes[i];
-			buf.put(pn.parent.contents, pn.offset, pn.count);
+			buf.put(prefix.contents, pn.offset, pn.count);
 		}
-		buf.put(node.parent.contents, node.offset, node.count);
+		buf.put(prefix.contents, node.offset, node.count);
 
 		// Writing value
 		buf.putInt(node.value);
@@ -241,6 +238,13 @@ public class IntTrieSerializer {
 		IntTrieNode[] nodes = new IntTrieNode[16];
 		int size = 0;
 
+		/** The contents of the serialized trie. */
+		final byte[] contents;
+
+		TrieNodes(byte[] contents) {
+			this.contents = contents;
+		}
+
 		public void push(IntTrieNode node) {
 			if (size >= nodes.length) {
 				IntTrieNode[] copy = new IntTrieNode[nodes.length * 2];
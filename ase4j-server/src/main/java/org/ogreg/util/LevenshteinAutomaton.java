@@ -0,0 +1,223 @@
+package org.ogreg.util;
+
+/**
+ * A Levenshtein automaton, which accepts the words within a maximum edit
+ * distance of a given word.
+ * <p>
+ * The states of the automaton are the rows of the Levenshtein distance matrix
+ * (see {@link #start()} and {@link #step(int[], int, int[])}). As every state
+ * is calculated from the previous one, a prefix tree of words (a {@link Trie}
+ * for example) can be searched by stepping the automaton along its paths, and
+ * pruning the subtrees where {@link #step(int[], int, int[])} reports that no
+ * word can match any more. Once the maximum number of edits is used up, only
+ * a few symbols can lead to a match (see {@link #nextSymbols(int[], int[])}),
+ * so the other branches of the tree need not be visited at all.
+ * </p>
+ * <p>
+ * The automaton works on symbols, which may be characters, or characters
+ * encoded by a {@link TrieDictionary}. Distances greater than the maximum are
+ * not calculated exactly: they are reported as <code>maxEdits + 1</code>.
+ * </p>
+ * 
+ * @author Gergely Kiss
+ * @see http://en.wikipedia.org/wiki/Levenshtein_automaton
+ */
+public final class LevenshteinAutomaton {
+	private final int[] word;
+	private final int maxEdits;
+
+	/**
+	 * Creates an automaton which accepts the words within
+	 * <code>maxEdits</code> edits of the characters of <code>word</code>.
+	 * 
+	 * @param word
+	 * @param maxEdits
+	 */
+	public LevenshteinAutomaton(String word, int maxEdits) {
+		this(toSymbols(word), maxEdits);
+	}
+
+	/**
+	 * Creates an automaton which accepts the words within
+	 * <code>maxEdits</code> edits of the encoded <code>word</code>.
+	 * 
+	 * @param word
+	 * @param maxEdits
+	 */
+	public LevenshteinAutomaton(byte[] word, int maxEdits) {
+		this(toSymbols(word), maxEdits);
+	}
+
+	private LevenshteinAutomaton(int[] word, int maxEdits) {
+
+		if (maxEdits < 0) {
+			throw new IllegalArgumentException("The maximum edit distance can not be negative: "
+					+ maxEdits);
+		}
+
+		this.word = word;
+		this.maxEdits = maxEdits;
+	}
+
+	/**
+	 * Returns the initial state of the automaton.
+	 * 
+	 * @return A new state array of length {@link #stateSize()}
+	 */
+	public int[] start() {
+		int[] ret = new int[stateSize()];
+
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = Math.min(i, maxEdits + 1);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Calculates the state after reading <code>symbol</code> in the state
+	 * <code>prev</code>.
+	 * 
+	 * @param prev The current state
+	 * @param symbol The next symbol
+	 * @param next The array of the next state, of length {@link #stateSize()}
+	 * @return The minimum distance any word may still have, if greater than
+	 *         the maximum, the automaton can not accept any more words
+	 */
+	public int step(int[] prev, int symbol, int[] next) {
+		int limit = maxEdits + 1;
+		int min = Math.min(prev[0] + 1, limit);
+
+		next[0] = min;
+
+		for (int i = 1; i < next.length; i++) {
+			int d = prev[i - 1] + ((word[i - 1] == symbol) ? 0 : 1);
+			d = Math.min(d, prev[i] + 1);
+			d = Math.min(d, next[i - 1] + 1);
+			d = Math.min(d, limit);
+
+			next[i] = d;
+			min = Math.min(min, d);
+		}
+
+		return min;
+	}
+
+	/**
+	 * Collects the symbols which may lead to accepted words from a state.
+	 * <p>
+	 * If the state has edits left, any symbol may be accepted. Otherwise only
+	 * the symbols of the word which continue an alignment without further
+	 * edits are.
+	 * </p>
+	 * 
+	 * @param state
+	 * @param dest The array of the symbols, of length {@link #stateSize()}
+	 * @return The number of distinct symbols stored in <code>dest</code>, or -1
+	 *         if any symbol may be accepted
+	 */
+	public int nextSymbols(int[] state, int[] dest) {
+		int cnt = 0;
+
+		for (int i = 0; i < word.length; i++) {
+
+			if (state[i] < maxEdits) {
+				return -1;
+			} else if (state[i] == maxEdits) {
+				int symbol = word[i];
+				int j = 0;
+
+				while ((j < cnt) && (dest[j] != symbol)) {
+					j++;
+				}
+
+				if (j == cnt) {
+					dest[cnt++] = symbol;
+				}
+			}
+		}
+
+		// The last cell can only be followed by insertions
+		return (state[word.length] < maxEdits) ? -1 : cnt;
+	}
+
+	/**
+	 * Returns the edit distance of the word read so far.
+	 * 
+	 * @param state
+	 * @return The distance, or <code>maxEdits + 1</code> if it is greater than
+	 *         the maximum
+	 */
+	public int distance(int[] state) {
+		return state[word.length];
+	}
+
+	/**
+	 * Returns the edit distance of <code>value</code>, if it is accepted by
+	 * the automaton.
+	 * 
+	 * @param value
+	 * @return The distance, or -1 if it is greater than the maximum
+	 */
+	public int distance(CharSequence value) {
+		int[] state = start();
+		int[] next = new int[state.length];
+
+		for (int i = 0; i < value.length(); i++) {
+
+			if (step(state, value.charAt(i), next) > maxEdits) {
+				return -1;
+			}
+
+			int[] tmp = state;
+			state = next;
+			next = tmp;
+		}
+
+		int ret = distance(state);
+		return (ret > maxEdits) ? -1 : ret;
+	}
+
+	/**
+	 * Returns true if the state accepts the word read so far.
+	 * 
+	 * @param state
+	 * @return
+	 */
+	public boolean accepts(int[] state) {
+		return distance(state) <= maxEdits;
+	}
+
+	/**
+	 * Returns the length of the state arrays.
+	 * 
+	 * @return
+	 */
+	public int stateSize() {
+		return word.length + 1;
+	}
+
+	public int getMaxEdits() {
+		return maxEdits;
+	}
+
+	private static int[] toSymbols(String word) {
+		int[] ret = new int[word.length()];
+
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = word.charAt(i);
+		}
+
+		return ret;
+	}
+
+	private static int[] toSymbols(byte[] word) {
+		int[] ret = new int[word.length];
+
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = word[i];
+		}
+
+		return ret;
+	}
+}
@@ -0,0 +1,1100 @@
+package org.ogreg.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.ogreg.common.nio.NioUtils;
+
+/**
+ * A read-only trie which is queried in place in a memory mapped file, with a
+ * mutable {@link Trie} of the words set since the file was written.
+ * <p>
+ * Loading a {@link TrieSerializer} file rebuilds every node on the heap, which
+ * takes a lot of memory and time for large dictionaries. The nodes of this
+ * trie are stored in a flat format instead, so opening the file only maps it,
+ * and its pages are loaded by the OS when they are first accessed. The words
+ * set after opening are stored in the delta trie, which overrides the file,
+ * and {@link #write(MappedTrie, File)} writes the words of both to a new file.
+ * </p>
+ * <p>
+ * The file starts with a header: the magic bytes, the dictionary, the length
+ * of the nodes (long) and the offset of the root node (int, -1 if the trie is
+ * empty). The nodes follow the header, every node consists of:
+ * <ul>
+ * <li>a byte: its highest bit is set if the node has a value, the others are
+ * the number of its children</li>
+ * <li>the length of the label (a variable length integer, 7 bits per byte)
+ * and the label without its first symbol, which is stored by the parent</li>
+ * <li>the value of the node (int), if any</li>
+ * <li>the first symbols of the children (bytes, in ascending order), and the
+ * offsets of the children (ints)</li>
+ * </ul>
+ * The nodes are written in post-order, and their offsets are relative to the
+ * first node, so the nodes may take up to 2G.
+ * </p>
+ * <p>
+ * The mapped trie may be read concurrently with its modifications, and the
+ * reads are never blocked (see {@link Trie}).
+ * </p>
+ * 
+ * @author Gergely Kiss
+ * @see Trie
+ */
+public class MappedTrie {
+	private static final byte[] MAGIC = new byte[] { 'T', 'R', 'I', 'M' };
+
+	private final TrieDictionary dict;
+
+	/** The mapped nodes, or null if the trie was not opened from a file. */
+	private final ByteBuffer nodes;
+	private final int root;
+
+	/** The words set since the file was written. */
+	private final Trie<Integer> delta;
+
+	/**
+	 * Creates a mapped trie without a file.
+	 * 
+	 * @param delta The words of the trie
+	 */
+	public MappedTrie(Trie<Integer> delta) {
+		this(delta.getDictionary(), null, -1, delta);
+	}
+
+	private MappedTrie(TrieDictionary dict, ByteBuffer nodes, int root, Trie<Integer> delta) {
+		this.dict = dict;
+		this.nodes = nodes;
+		this.root = root;
+		this.delta = delta;
+	}
+
+	/**
+	 * Maps the trie file, with an empty delta trie.
+	 * 
+	 * @param file
+	 * @return The mapped trie
+	 * @throws IOException if the file is not a mapped trie file, or on read
+	 *             error
+	 */
+	public static MappedTrie open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			FileChannel channel = raf.getChannel();
+
+			if (!readMagic(channel)) {
+				throw new IOException(file + " is not a mapped trie file");
+			}
+
+			TrieDictionary dict = NioUtils.deserializeFrom(channel, TrieDictionary.class);
+			long length = NioUtils.readLong(channel);
+			int root = NioUtils.readInt(channel);
+			ByteBuffer nodes = channel.map(MapMode.READ_ONLY, channel.position(), length);
+
+			return new MappedTrie(dict, nodes, root, new Trie<Integer>(dict));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns true if <code>file</code> is a mapped trie file.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException on read error
+	 */
+	public static boolean isMappedTrie(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			return readMagic(raf.getChannel());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns true if <code>file</code> is a completely written mapped trie
+	 * file.
+	 * <p>
+	 * The header is written last (see {@link #write(MappedTrie, File)}), so the
+	 * header of an incomplete file is unreadable or zeroed (an empty trie has
+	 * a root of -1), or its nodes are cut short.
+	 * </p>
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException on read error
+	 */
+	public static boolean isComplete(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			FileChannel channel = raf.getChannel();
+
+			if (!readMagic(channel)) {
+				return false;
+			}
+
+			try {
+				NioUtils.deserializeFrom(channel, TrieDictionary.class);
+			} catch (IOException e) {
+				return false;
+			} catch (RuntimeException e) {
+				return false;
+			}
+
+			if (channel.size() < channel.position() + 12) {
+				return false;
+			}
+
+			long length = NioUtils.readLong(channel);
+			int root = NioUtils.readInt(channel);
+
+			return ((length > 0) || (root == -1)) && (channel.size() == channel.position() + length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes the words of the mapped file and the delta trie to a new mapped
+	 * trie file.
+	 * <p>
+	 * The words are merged in order, so the trie is not rebuilt on the heap.
+	 * </p>
+	 * 
+	 * @param trie
+	 * @param file
+	 * @throws IOException on write error
+	 */
+	public static void write(MappedTrie trie, File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+			FileChannel channel = raf.getChannel();
+			channel.truncate(0);
+			channel.write(ByteBuffer.wrap(MAGIC));
+			NioUtils.serializeTo(channel, trie.dict);
+
+			long header = channel.position();
+			channel.position(header + 12);
+
+			NodeWriter writer = new NodeWriter(channel);
+			Cursor cursor = trie.cursor(new byte[0]);
+
+			while (cursor.next()) {
+				writer.add(cursor.key, cursor.length, cursor.value);
+			}
+
+			int root = writer.finish();
+
+			ByteBuffer buf = ByteBuffer.allocate(12);
+			buf.putLong(writer.size).putInt(root).flip();
+			channel.write(buf, header);
+			channel.force(false);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Sets the given value to the encoded word in the delta trie.
+	 * 
+	 * @param word
+	 * @param value
+	 */
+	public void set(byte[] word, int value) {
+		delta.set(word, value);
+	}
+
+	/**
+	 * Returns the value associated with the given word, or null of there is no
+	 * such association.
+	 * 
+	 * @param word
+	 * @return
+	 */
+	public Integer get(String word) {
+		return get(dict.encode(word));
+	}
+
+	/**
+	 * Returns the value associated with the given encoded word, or null of
+	 * there is no such association.
+	 * 
+	 * @param word
+	 * @return
+	 */
+	public Integer get(byte[] word) {
+		Integer ret = delta.get(word);
+		return (ret != null) ? ret : find(word);
+	}
+
+	/**
+	 * Returns the words starting with <code>prefix</code>, and their values.
+	 * 
+	 * @param prefix
+	 * @param pattern The pattern the words must match, or null if every word
+	 *            with the prefix matches
+	 * @param limit The maximum number of words to return
+	 * @return The matching words and their values, in dictionary order
+	 * @see Trie#getEntries(String, Pattern, int)
+	 */
+	public Map<String, Integer> getEntries(String prefix, Pattern pattern, int limit) {
+		Map<String, Integer> ret = new LinkedHashMap<String, Integer>();
+		Matcher matcher = (pattern == null) ? null : pattern.matcher("");
+		Cursor cursor = cursor(dict.encode(prefix));
+
+		while ((ret.size() < limit) && cursor.next()) {
+			String word = dict.decode(cursor.key, 0, cursor.length);
+
+			if ((matcher == null) || matcher.reset(word).matches()) {
+				ret.put(word, cursor.value);
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Returns the values of the words within <code>maxEdits</code> edits of
+	 * <code>word</code>, and their edit distances.
+	 * 
+	 * @param word
+	 * @param maxEdits The maximum edit distance
+	 * @param limit The maximum number of values to return
+	 * @return The values of the similar words, and their edit distances
+	 * @see Trie#getSimilar(String, int, int)
+	 */
+	public Map<Integer, Integer> getSimilar(String word, int maxEdits, int limit) {
+		Map<Integer, Integer> ret = delta.getSimilar(word, maxEdits, limit);
+
+		if ((root >= 0) && (ret.size() < limit)) {
+			new SimilarWalk(new LevenshteinAutomaton(dict.encode(word), maxEdits), limit, ret)
+					.walk(root, -1, 0);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Releases the mapped file. The trie must not be used after closing it.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+
+		if (nodes instanceof MappedByteBuffer) {
+			NioUtils.unmap((MappedByteBuffer) nodes);
+		}
+	}
+
+	public TrieDictionary getDictionary() {
+		return dict;
+	}
+
+	/**
+	 * Returns the words set since the file was written.
+	 * 
+	 * @return
+	 */
+	public Trie<Integer> getDelta() {
+		return delta;
+	}
+
+	// Returns a cursor of the words starting with the prefix
+	Cursor cursor(byte[] prefix) {
+		return new MergeCursor(new NodeCursor(prefix), new TrieCursor(delta, prefix));
+	}
+
+	// Returns the value of the word in the mapped file
+	private Integer find(byte[] word) {
+		int p = root;
+		int wordPos = 0;
+
+		if (p < 0) {
+			return null;
+		}
+
+		while (true) {
+			int header = nodes.get(p) & 0xFF;
+			int q = p + 1;
+			int len = 0;
+
+			for (int shift = 0;; shift += 7) {
+				byte b = nodes.get(q++);
+				len |= (b & 0x7F) << shift;
+
+				if (b >= 0) {
+					break;
+				}
+			}
+
+			if (len > word.length - wordPos) {
+				return null;
+			}
+
+			for (int i = 0; i < len; i++) {
+
+				if (nodes.get(q + i) != word[wordPos + i]) {
+					return null;
+				}
+			}
+
+			q += len;
+			wordPos += len;
+
+			if (header >= 0x80) {
+
+				if (wordPos == word.length) {
+					return Integer.valueOf(nodes.getInt(q));
+				}
+
+				q += 4;
+			} else if (wordPos == word.length) {
+				return null;
+			}
+
+			int count = header & 0x7F;
+			int idx = indexOf(q, count, word[wordPos]);
+
+			if (idx < 0) {
+				return null;
+			}
+
+			p = nodes.getInt(q + count + idx * 4);
+			wordPos++;
+		}
+	}
+
+	/**
+	 * Returns the index of <code>symbol</code> in the <code>count</code>
+	 * symbols at <code>pos</code>, or a negative number if it is not found.
+	 */
+	private int indexOf(int pos, int count, int symbol) {
+		int low = 0;
+		int high = count - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int s = nodes.get(pos + mid);
+
+			if (s < symbol) {
+				low = mid + 1;
+			} else if (s > symbol) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+
+		return -(low + 1);
+	}
+
+	private static boolean readMagic(FileChannel channel) throws IOException {
+		ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+
+		while (magic.hasRemaining() && (channel.read(magic) >= 0)) {
+		}
+
+		return Arrays.equals(magic.array(), MAGIC);
+	}
+
+	/**
+	 * The parsed header of a mapped node.
+	 * 
+	 * @author Gergely Kiss
+	 */
+	private final class Node {
+		boolean hasValue;
+		int label;
+		int labelLength;
+		int value;
+		int count;
+		int symbols;
+
+		void read(int p) {
+			int header = nodes.get(p) & 0xFF;
+			int q = p + 1;
+			int len = 0;
+
+			for (int shift = 0;; shift += 7) {
+				byte b = nodes.get(q++);
+				len |= (b & 0x7F) << shift;
+
+				if (b >= 0) {
+					break;
+				}
+			}
+
+			label = q;
+			labelLength = len;
+			q += len;
+
+			hasValue = header >= 0x80;
+
+			if (hasValue) {
+				value = nodes.getInt(q);
+				q += 4;
+			}
+
+			count = header & 0x7F;
+			symbols = q;
+		}
+
+		byte symbol(int idx) {
+			return nodes.get(symbols + idx);
+		}
+
+		int child(int idx) {
+			return nodes.getInt(symbols + count + idx * 4);
+		}
+	}
+
+	/**
+	 * Iterates over the encoded words of a trie and their values, in order.
+	 * 
+	 * @author Gergely Kiss
+	 */
+	abstract static class Cursor {
+		byte[] key = new byte[32];
+		int length;
+		int value;
+
+		/**
+		 * Moves to the next word.
+		 * 
+		 * @return false if there are no more words
+		 */
+		abstract boolean next();
+
+		void ensureCapacity(int capacity) {
+
+			if (capacity > key.length) {
+				key = Arrays.copyOf(key, Math.max(capacity, key.length << 1));
+			}
+		}
+	}
+
+	/**
+	 * Iterates over the words of the mapped file.
+	 * 
+	 * @author Gergely Kiss
+	 */
+	private final class NodeCursor extends Cursor {
+		private final Node node = new Node();
+
+		// The stack of the visited nodes: their positions, the length of the
+		// key after their labels, and the index of the next child (-1 if the
+		// value of the node was not visited yet)
+		private int[] positions = new int[16];
+		private int[] depths = new int[16];
+		private int[] children = new int[16];
+		private int size = 0;
+
+		NodeCursor(byte[] prefix) {
+			int p = root;
+			int wordPos = 0;
+
+			if (p < 0) {
+				return;
+			}
+
+			ensureCapacity(prefix.length);
+			System.arraycopy(prefix, 0, key, 0, prefix.length);
+
+			while (true) {
+				node.read(p);
+
+				int len = Math.min(node.labelLength, prefix.length - wordPos);
+
+				for (int i = 0; i < len; i++) {
+
+					if (nodes.get(node.label + i) != prefix[wordPos + i]) {
+						return;
+					}
+				}
+
+				if (wordPos + node.labelLength >= prefix.length) {
+					push(p, wordPos);
+					return;
+				}
+
+				wordPos += node.labelLength;
+
+				int idx = indexOf(node.symbols, node.count, prefix[wordPos]);
+
+				if (idx < 0) {
+					return;
+				}
+
+				p = node.child(idx);
+				wordPos++;
+			}
+		}
+
+		@Override
+		boolean next() {
+
+			while (size > 0) {
+				int top = size - 1;
+				int child = children[top]++;
+
+				node.read(positions[top]);
+
+				if (child < 0) {
+
+					if (node.hasValue) {
+						length = depths[top];
+						value = node.value;
+						return true;
+					}
+				} else if (child < node.count) {
+					int depth = depths[top];
+
+					ensureCapacity(depth + 1);
+					key[depth] = node.symbol(child);
+					push(node.child(child), depth + 1);
+				} else {
+					size--;
+				}
+			}
+
+			return false;
+		}
+
+		// Pushes the node, its label is appended to the key at the position
+		private void push(int p, int pos) {
+
+			if (size == positions.length) {
+				positions = Arrays.copyOf(positions, size << 1);
+				depths = Arrays.copyOf(depths, size << 1);
+				children = Arrays.copyOf(children, size << 1);
+			}
+
+			node.read(p);
+			ensureCapacity(pos + node.labelLength);
+
+			for (int i = 0; i < node.labelLength; i++) {
+				key[pos + i] = nodes.get(node.label + i);
+			}
+
+			positions[size] = p;
+			depths[size] = pos + node.labelLength;
+			children[size] = -1;
+			size++;
+		}
+	}
+
+	/**
+	 * Iterates over the words of a {@link Trie}.
+	 * 
+	 * @author Gergely Kiss
+	 */
+	private static final class TrieCursor extends Cursor {
+		private final Trie<Integer> trie;
+
+		// The stack of the visited nodes, see NodeCursor
+		private List<TrieNode<Integer>> nodes = new ArrayList<TrieNode<Integer>>();
+		private List<TrieNode<Integer>[]> childArrays = new ArrayList<TrieNode<Integer>[]>();
+		private int[] depths = new int[16];
+		private int[] children = new int[16];
+
+		TrieCursor(Trie<Integer> trie, byte[] prefix) {
+			this.trie = trie;
+
+			TrieNode<Integer> node = trie.root;
+			int pos = 0;
+
+			ensureCapacity(prefix.length);
+			System.arraycopy(prefix, 0, key, 0, prefix.length);
+
+			// Finding the node which contains the end of the prefix
+			while (true) {
+				byte[] contents = trie.contents;
+				int len = Math.min(node.count, prefix.length - pos);
+
+				for (int i = 0; i < len; i++) {
+
+					if (contents[node.offset + i] != prefix[pos + i]) {
+						return;
+					}
+				}
+
+				if (pos + len == prefix.length) {
+					push(node, pos);
+					return;
+				}
+
+				pos += len;
+
+				if ((node = node.child(prefix[pos])) == null) {
+					return;
+				}
+			}
+		}
+
+		@Override
+		boolean next() {
+
+			while (!nodes.isEmpty()) {
+				int top = nodes.size() - 1;
+				int child = children[top]++;
+
+				if (child < 0) {
+					Integer v = nodes.get(top).value;
+
+					if (v != null) {
+						length = depths[top];
+						value = v.intValue();
+						return true;
+					}
+				} else {
+					TrieNode<Integer>[] array = childArrays.get(top);
+
+					if ((array != null) && (child < array.length)) {
+						push(array[child], depths[top]);
+					} else {
+						nodes.remove(top);
+						childArrays.remove(top);
+					}
+				}
+			}
+
+			return false;
+		}
+
+		// Pushes the node, its label is appended to the key at the position
+		private void push(TrieNode<Integer> node, int pos) {
+			int size = nodes.size();
+
+			if (size == depths.length) {
+				depths = Arrays.copyOf(depths, size << 1);
+				children = Arrays.copyOf(children, size << 1);
+			}
+
+			byte[] contents = trie.contents;
+			ensureCapacity(pos + node.count);
+			System.arraycopy(contents, node.offset, key, pos, node.count);
+
+			nodes.add(node);
+			childArrays.add(node.children);
+			depths[size] = pos + node.count;
+			children[size] = -1;
+		}
+	}
+
+	/**
+	 * Merges the words of two cursors in order, the second cursor overrides the
+	 * values of the first.
+	 * 
+	 * @author Gergely Kiss
+	 */
+	private static final class MergeCursor extends Cursor {
+		private final Cursor first;
+		private final Cursor second;
+		private boolean hasFirst;
+		private boolean hasSecond;
+
+		MergeCursor(Cursor first, Cursor second) {
+			this.first = first;
+			this.second = second;
+			this.hasFirst = first.next();
+			this.hasSecond = second.next();
+		}
+
+		@Override
+		boolean next() {
+			int cmp;
+
+			if (hasFirst && hasSecond) {
+				cmp = compare(first, second);
+			} else if (hasFirst) {
+				cmp = -1;
+			} else if (hasSecond) {
+				cmp = 1;
+			} else {
+				return false;
+			}
+
+			if (cmp < 0) {
+				copy(first);
+				hasFirst = first.next();
+			} else {
+				copy(second);
+				hasSecond = second.next();
+
+				if (cmp == 0) {
+					hasFirst = first.next();
+				}
+			}
+
+			return true;
+		}
+
+		private void copy(Cursor c) {
+			ensureCapacity(c.length);
+			System.arraycopy(c.key, 0, key, 0, c.length);
+			length = c.length;
+			value = c.value;
+		}
+
+		private static int compare(Cursor a, Cursor b) {
+			int len = Math.min(a.length, b.length);
+
+			for (int i = 0; i < len; i++) {
+				int cmp = a.key[i] - b.key[i];
+
+				if (cmp != 0) {
+					return cmp;
+				}
+			}
+
+			return a.length - b.length;
+		}
+	}
+
+	/**
+	 * Writes the nodes of the words added in order.
+	 * <p>
+	 * The nodes on the path of the last word are kept on a stack, and they are
+	 * written when a word with a different prefix is added (they will not
+	 * have more children), so their children have already been written.
+	 * </p>
+	 * 
+	 * @author Gergely Kiss
+	 */
+	private static final class NodeWriter {
+		private final FileChannel channel;
+		private ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+
+		/** The number of bytes written. */
+		long size = 0;
+
+		/** The last word added. */
+		private byte[] last = new byte[32];
+		private int lastLength = 0;
+
+		/** The nodes on the path of the last word, the first is the root. */
+		private final List<Frame> frames = new ArrayList<Frame>();
+		private int depth = 1;
+
+		NodeWriter(FileChannel channel) {
+			this.channel = channel;
+			this.frames.add(new Frame());
+		}
+
+		void add(byte[] word, int length, int value) throws IOException {
+			int common = 0;
+			int len = Math.min(length, lastLength);
+
+			while ((common < len) && (word[common] == last[common])) {
+				common++;
+			}
+
+			if ((common == length)
+					|| ((common < lastLength) && (word[common] < last[common]))) {
+				throw new IllegalArgumentException("The words must be added in ascending order");
+			}
+
+			// Writing the nodes which will not have more children
+			while (frames.get(depth - 1).end > common) {
+				Frame top = frames.get(depth - 1);
+
+				if (top.start >= common) {
+					int offset = writeNode(top);
+					depth--;
+					frames.get(depth - 1).addChild(last[top.start], offset);
+				} else {
+
+					// Splitting the node, the second half is complete
+					Frame tail = frame(depth);
+					tail.set(common, top.end, top);
+
+					top.end = common;
+					top.hasValue = false;
+					top.count = 0;
+					top.addChild(last[common], writeNode(tail));
+				}
+			}
+
+			Frame leaf = frame(depth++);
+			leaf.start = common;
+			leaf.end = length;
+			leaf.hasValue = true;
+			leaf.value = value;
+			leaf.count = 0;
+
+			if (last.length < length) {
+				last = new byte[Math.max(length, last.length << 1)];
+			}
+
+			System.arraycopy(word, 0, last, 0, length);
+			lastLength = length;
+		}
+
+		/**
+		 * Writes the remaining nodes.
+		 * 
+		 * @return The offset of the root node
+		 * @throws IOException
+		 */
+		int finish() throws IOException {
+
+			while (depth > 1) {
+				Frame top = frames.get(depth - 1);
+				int offset = writeNode(top);
+				depth--;
+				frames.get(depth - 1).addChild(last[top.start], offset);
+			}
+
+			int root = writeNode(frames.get(0));
+
+			buf.flip();
+			channel.write(buf);
+			buf.clear();
+
+			return root;
+		}
+
+		// Returns the reusable frame at the depth
+		private Frame frame(int idx) {
+
+			if (idx == frames.size()) {
+				frames.add(new Frame());
+			}
+
+			return frames.get(idx);
+		}
+
+		private int writeNode(Frame f) throws IOException {
+			int labelStart = (f == frames.get(0)) ? 0 : f.start + 1;
+			int labelLength = f.end - labelStart;
+			int nodeSize = 6 + labelLength + 4 + f.count * 5;
+
+			if (size > Integer.MAX_VALUE - nodeSize) {
+				throw new IOException("The trie is too large to be mapped");
+			}
+
+			if (buf.remaining() < nodeSize) {
+				buf.flip();
+				channel.write(buf);
+				buf.clear();
+
+				if (buf.capacity() < nodeSize) {
+					buf = ByteBuffer.allocate(nodeSize);
+				}
+			}
+
+			int offset = (int) size;
+			int start = buf.position();
+
+			buf.put((byte) ((f.hasValue ? 0x80 : 0) | f.count));
+
+			for (int len = labelLength; true; len >>>= 7) {
+
+				if (len < 0x80) {
+					buf.put((byte) len);
+					break;
+				}
+
+				buf.put((byte) ((len & 0x7F) | 0x80));
+			}
+
+			buf.put(last, labelStart, labelLength);
+
+			if (f.hasValue) {
+				buf.putInt(f.value);
+			}
+
+			buf.put(f.symbols, 0, f.count);
+
+			for (int i = 0; i < f.count; i++) {
+				buf.putInt(f.offsets[i]);
+			}
+
+			size += buf.position() - start;
+
+			return offset;
+		}
+	}
+
+	/**
+	 * A node being built by the {@link NodeWriter}. Its label is the
+	 * <code>[start, end)</code> range of the last word.
+	 * 
+	 * @author Gergely Kiss
+	 */
+	private static final class Frame {
+		int start;
+		int end;
+		boolean hasValue;
+		int value;
+		int count;
+		byte[] symbols = new byte[4];
+		int[] offsets = new int[4];
+
+		void set(int start, int end, Frame from) {
+			this.start = start;
+			this.end = end;
+			this.hasValue = from.hasValue;
+			this.value = from.value;
+			this.count = 0;
+
+			for (int i = 0; i < from.count; i++) {
+				addChild(from.symbols[i], from.offsets[i]);
+			}
+		}
+
+		void addChild(byte symbol, int offset) {
+
+			if (count == symbols.length) {
+				symbols = Arrays.copyOf(symbols, count << 1);
+				offsets = Arrays.copyOf(offsets, count << 1);
+			}
+
+			symbols[count] = symbol;
+			offsets[count] = offset;
+			count++;
+		}
+	}
+
+	/**
+	 * A depth-first search of the mapped words accepted by a Levenshtein
+	 * automaton, skipping the words of the delta trie.
+	 * 
+	 * @author Gergely Kiss
+	 * @see Trie#getSimilar(String, int, int)
+	 */
+	private final class SimilarWalk {
+		private final LevenshteinAutomaton automaton;
+		private final int limit;
+		private final Map<Integer, Integer> dest;
+		private final Node node = new Node();
+
+		/** The states of the automaton, by the depth of the walk. */
+		private int[][] states;
+
+		/** The symbols which may follow the states, by the depth of the walk. */
+		private int[][] symbols;
+
+		/** The symbols of the current path. */
+		private byte[] path = new byte[32];
+
+		SimilarWalk(LevenshteinAutomaton automaton, int limit, Map<Integer, Integer> dest) {
+			this.automaton = automaton;
+			this.limit = limit;
+			this.dest = dest;
+			this.states = new int[automaton.stateSize() + automaton.getMaxEdits() + 1][];
+			this.states[0] = automaton.start();
+			this.symbols = new int[states.length][];
+		}
+
+		// Walks the subtrie of the node (reached by the symbol, or -1 for the
+		// root), returns false if the limit has been reached
+		boolean walk(int p, int symbol, int depth) {
+			int maxEdits = automaton.getMaxEdits();
+
+			node.read(p);
+
+			int label = node.label;
+			int len = node.labelLength;
+
+			for (int i = (symbol < 0) ? 0 : -1; i < len; i++) {
+				byte s = (i < 0) ? (byte) symbol : nodes.get(label + i);
+
+				if (depth + 1 >= states.length) {
+					int[][] nstates = new int[states.length << 1][];
+					System.arraycopy(states, 0, nstates, 0, states.length);
+					states = nstates;
+
+					int[][] nsymbols = new int[states.length][];
+					System.arraycopy(symbols, 0, nsymbols, 0, symbols.length);
+					symbols = nsymbols;
+				}
+
+				if (states[depth + 1] == null) {
+					states[depth + 1] = new int[automaton.stateSize()];
+				}
+
+				if (path.length <= depth) {
+					path = Arrays.copyOf(path, path.length << 1);
+				}
+
+				path[depth] = s;
+
+				int min = automaton.step(states[depth], s, states[depth + 1]);
+
+				// No similar words in this subtrie
+				if (min > maxEdits) {
+					return true;
+				}
+
+				depth++;
+			}
+
+			if (node.hasValue && automaton.accepts(states[depth])
+					&& (delta.get(Arrays.copyOf(path, depth)) == null)) {
+				dest.put(node.value, automaton.distance(states[depth]));
+
+				if (dest.size() >= limit) {
+					return false;
+				}
+			}
+
+			int count = node.count;
+			int childSymbols = node.symbols;
+
+			if (count == 0) {
+				return true;
+			}
+
+			if (symbols[depth] == null) {
+				symbols[depth] = new int[automaton.stateSize()];
+			}
+
+			int[] next = symbols[depth];
+			int cnt = automaton.nextSymbols(states[depth], next);
+
+			if (cnt < 0) {
+
+				for (int i = 0; i < count; i++) {
+
+					if (!walk(child(childSymbols, count, i), nodes.get(childSymbols + i), depth)) {
+						return false;
+					}
+				}
+			} else {
+
+				// Only the children of the possible symbols are visited
+				for (int i = 0; i < cnt; i++) {
+					int idx = indexOf(childSymbols, count, next[i]);
+
+					if ((idx >= 0) && !walk(child(childSymbols, count, idx), next[i], depth)) {
+						return false;
+					}
+				}
+			}
+
+			return true;
+		}
+
+		private int child(int childSymbols, int count, int idx) {
+			return nodes.getInt(childSymbols + count + idx * 4);
+		}
+	}
+}
@@ -1,6 +1,12 @@
 package org.ogreg.util;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A fast and memory efficient Trie data structure.
@@ -13,8 +19,8 @@ import java.io.Serializable;
  * </p>
  * <p>
  * The storage of the mapped byte arrays is similar to Java's String
- * implementation - whenever a byte array needs to be split, only its offset
- * and/or length field will be modified.
+ * implementation - whenever a byte array needs to be split, only nodes with
+ * different offsets and lengths are created, the bytes are not copied.
  * </p>
  * <p>
  * Thanks to these optimizations, the Trie is only 5 times slower than a HashMap
@@ -25,6 +31,14 @@ import java.io.Serializable;
  * Please note that you must provide a {@link TrieDictionary} to use this data
  * structure, by default the {@link TrieDictionary#EN} is specified. </p>
  * <p>
+ * The trie may be read concurrently with its modifications, and the reads are
+ * never blocked: the nodes are never modified in place (except for their
+ * values), a split node is replaced by a copy, and the children arrays and
+ * the contents are copied on write, and published by volatile writes. The
+ * modifications are serialized by the trie. A reader sees every word set
+ * before it has started, and it may or may not see the words being set.
+ * </p>
+ * <p>
  * Please note that this implementation currently does not support deletion.
  * </p>
  * <p>
@@ -41,10 +55,13 @@ public class Trie<T> implements Serializable {
 	private static final long serialVersionUID = 8556320988440764488L;
 
 	final TrieDictionary dict;
-	byte maxChildren;
-	TrieNode<T> root;
+	final TrieNode<T> root;
 
-	byte[] contents = new byte[1];
+	/**
+	 * The labels of the nodes. Always read after the node (the node may be
+	 * newer than a previously read array).
+	 */
+	volatile byte[] contents = new byte[1];
 	private int size = 1;
 	private int capacity = 1;
 
@@ -62,8 +79,7 @@ public class Trie<T> implements Serializable {
 	 */
 	public Trie(TrieDictionary dict) {
 		this.dict = dict;
-		this.maxChildren = dict.size();
-		this.root = new TrieNode<T>(this, 1, 0, null);
+		this.root = new TrieNode<T>(1, 0, (byte) 0, null);
 	}
 
 	TrieNode<T> create(byte[] word, int offset, T value) {
@@ -77,7 +93,7 @@ public class Trie<T> implements Serializable {
 		System.arraycopy(word, offset, contents, noffset, wordLen);
 		size += wordLen;
 
-		return new TrieNode<T>(this, noffset, wordLen, value);
+		return new TrieNode<T>(noffset, wordLen, word[offset], value);
 	}
 
 	/**
@@ -91,7 +107,7 @@ public class Trie<T> implements Serializable {
 			return;
 		}
 
-		root.set(dict.encode(word), value);
+		set(dict.encode(word), value);
 	}
 
 	/**
@@ -99,13 +115,13 @@ public class Trie<T> implements Serializable {
 	 * 
 	 * @param word
 	 */
-	public void set(byte[] word, T value) {
+	public synchronized void set(byte[] word, T value) {
 
 		if ((word == null) || (word.length == 0)) {
 			return;
 		}
 
-		root.set(word, value);
+		root.set(this, word, value);
 	}
 
 	/**
@@ -116,9 +132,18 @@ public class Trie<T> implements Serializable {
 	 * @return
 	 */
 	public T get(String word) {
-		byte[] bytes = dict.encode(word);
+		return get(dict.encode(word));
+	}
 
-		return root.get(bytes, 0, bytes.length);
+	/**
+	 * Returns the value associated with the given encoded word, or null of
+	 * there is no such association.
+	 * 
+	 * @param word
+	 * @return
+	 */
+	public T get(byte[] word) {
+		return root.get(this, word);
 	}
 
 	/**
@@ -130,10 +155,120 @@ public class Trie<T> implements Serializable {
 		getWords("", root, processor);
 	}
 
+	/**
+	 * Returns the words starting with <code>prefix</code>, and their values.
+	 * <p>
+	 * Only the subtrie of the prefix is walked. Note: the words are decoded
+	 * by the dictionary of the trie, so they may differ from the words which
+	 * were set (in case, for example).
+	 * </p>
+	 * 
+	 * @param prefix
+	 * @param pattern The pattern the words must match, or null if every word
+	 *            with the prefix matches
+	 * @param limit The maximum number of words to return
+	 * @return The matching words and their values, in dictionary order
+	 */
+	public Map<String, T> getEntries(String prefix, Pattern pattern, int limit) {
+		Map<String, T> ret = new LinkedHashMap<String, T>();
+		byte[] word = dict.encode(prefix);
+		TrieNode<T> node = root;
+		int pos = 0;
+
+		if (limit <= 0) {
+			return ret;
+		}
+
+		// Finding the node which contains the end of the prefix
+		while (true) {
+			byte[] contents = this.contents;
+			int len = Math.min(node.count, word.length - pos);
+
+			for (int i = 0; i < len; i++) {
+
+				if (contents[node.offset + i] != word[pos + i]) {
+					return ret;
+				}
+			}
+
+			if (pos + len == word.length) {
+				break;
+			}
+
+			pos += len;
+
+			if ((node = node.child(word[pos])) == null) {
+				return ret;
+			}
+		}
+
+		getEntries(dict.decode(word, 0, pos), node,
+				(pattern == null) ? null : pattern.matcher(""), limit, ret);
+
+		return ret;
+	}
+
+	/**
+	 * Returns the values of the words within <code>maxEdits</code> edits of
+	 * <code>word</code>, and their edit distances.
+	 * <p>
+	 * The trie is searched by stepping a {@link LevenshteinAutomaton} along its
+	 * paths, so only the subtries which may contain similar words are visited
+	 * (no dictionary scan is needed).
+	 * The words are compared in their encoded form (case insensitively, for
+	 * example).
+	 * </p>
+	 * 
+	 * @param word
+	 * @param maxEdits The maximum edit distance
+	 * @param limit The maximum number of values to return
+	 * @return The values of the similar words, and their edit distances
+	 */
+	public Map<T, Integer> getSimilar(String word, int maxEdits, int limit) {
+		Map<T, Integer> ret = new LinkedHashMap<T, Integer>();
+
+		if (limit > 0) {
+			new SimilarWalk(new LevenshteinAutomaton(dict.encode(word), maxEdits), limit, ret)
+					.walk(root, 0);
+		}
+
+		return ret;
+	}
+
 	public TrieDictionary getDictionary() {
 		return dict;
 	}
 
+	// Collects the matching entries of the subtrie, returns false if the limit
+	// has been reached
+	private boolean getEntries(String prefix, TrieNode<T> node, Matcher matcher, int limit,
+			Map<String, T> dest) {
+		String value = prefix + dict.decode(contents, node.offset, node.count);
+
+		if ((node.value != null) && ((matcher == null) || matcher.reset(value).matches())) {
+			dest.put(value, node.value);
+
+			if (dest.size() >= limit) {
+				return false;
+			}
+		}
+
+		TrieNode<T>[] children = node.children;
+
+		if (children == null) {
+			return true;
+		}
+
+		for (TrieNode<T> child : children) {
+
+			if (!getEntries(value, child, matcher, limit, dest)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
 	private void getWords(String prefix, TrieNode<T> node, Callback<String> processor) {
 		String value = prefix + dict.decode(contents, node.offset, node.count);
 
@@ -147,11 +282,111 @@ public class Trie<T> implements Serializable {
 			return;
 		}
 
-		for (int i = 0; i < children.length; i++) {
+		for (TrieNode<T> child : children) {
+			getWords(value, child, processor);
+		}
+	}
+
+	/**
+	 * A depth-first search of the words accepted by a Levenshtein automaton.
+	 * 
+	 * @author Gergely Kiss
+	 */
+	private final class SimilarWalk {
+		private final LevenshteinAutomaton automaton;
+		private final int limit;
+		private final Map<T, Integer> dest;
+
+		/** The states of the automaton, by the depth of the walk. */
+		private int[][] states;
+
+		/** The symbols which may follow the states, by the depth of the walk. */
+		private int[][] symbols;
+
+		SimilarWalk(LevenshteinAutomaton automaton, int limit, Map<T, Integer> dest) {
+			this.automaton = automaton;
+			this.limit = limit;
+			this.dest = dest;
+			this.states = new int[automaton.stateSize() + automaton.getMaxEdits() + 1][];
+			this.states[0] = automaton.start();
+			this.symbols = new int[states.length][];
+		}
+
+		// Walks the subtrie of the node, returns false if the limit has been
+		// reached
+		boolean walk(TrieNode<T> node, int depth) {
+			byte[] contents = Trie.this.contents;
+			int maxEdits = automaton.getMaxEdits();
+
+			for (int i = 0; i < node.count; i++) {
+
+				if (depth + 1 >= states.length) {
+					int[][] nstates = new int[states.length << 1][];
+					System.arraycopy(states, 0, nstates, 0, states.length);
+					states = nstates;
 
-			if (children[i] != null) {
-				getWords(value, children[i], processor);
+					int[][] nsymbols = new int[states.length][];
+					System.arraycopy(symbols, 0, nsymbols, 0, symbols.length);
+					symbols = nsymbols;
+				}
+
+				if (states[depth + 1] == null) {
+					states[depth + 1] = new int[automaton.stateSize()];
+				}
+
+				int min = automaton.step(states[depth], contents[node.offset + i],
+						states[depth + 1]);
+
+				// No similar words in this subtrie
+				if (min > maxEdits) {
+					return true;
+				}
+
+				depth++;
+			}
+
+			if ((node.value != null) && automaton.accepts(states[depth])) {
+				dest.put(node.value, automaton.distance(states[depth]));
+
+				if (dest.size() >= limit) {
+					return false;
+				}
+			}
+
+			TrieNode<T>[] children = node.children;
+
+			if (children == null) {
+				return true;
+			}
+
+			if (symbols[depth] == null) {
+				symbols[depth] = new int[automaton.stateSize()];
 			}
+
+			int[] next = symbols[depth];
+			int cnt = automaton.nextSymbols(states[depth], next);
+
+			if (cnt < 0) {
+
+				for (TrieNode<T> child : children) {
+
+					if (!walk(child, depth)) {
+						return false;
+					}
+				}
+			} else {
+
+				// Only the children of the possible symbols are visited
+				for (int i = 0; i < cnt; i++) {
+					TrieNode<T> child = node.child(next[i]);
+
+					if ((child != null) && !walk(child, depth)) {
+						return false;
+					}
+				}
+			}
+
+			return true;
 		}
 	}
 
@@ -165,4 +400,9 @@ public class Trie<T> implements Serializable {
 		System.arraycopy(contents, 0, ncontents, 0, size);
 		contents = ncontents;
 	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		root.repair(contents);
+	}
 }
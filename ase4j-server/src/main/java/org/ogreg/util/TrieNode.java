@@ -5,163 +5,264 @@ import java.util.Arrays;
 
 /**
  * A trie node.
- * 
+ * <p>
+ * A trie has lots of nodes, so they are kept as small as possible: the label
+ * of a node is stored in the contents of the trie, and its children are
+ * stored in a packed array, sorted by their first symbols. Most nodes have
+ * only one to three children, so a full array indexed by the symbols would
+ * mostly contain nulls. The child of a symbol is found by a binary search on
+ * the first symbols of the children.
+ * </p>
+ * <p>
+ * The nodes are not modified in place (except for their values and
+ * children), so that the trie can be read while it is being modified: a
+ * node is split by replacing it with a copy in its parent, and the children
+ * arrays are copied on write (see {@link Trie}).
+ * </p>
+ *
  * @author Gergely Kiss
  * @see Trie
  */
 final class TrieNode<T> implements Serializable {
 	private static final long serialVersionUID = 7217023895828169766L;
 
-	final Trie<T> parent;
 	final int offset;
-	int count;
+	final int count;
 
-	T value;
-	TrieNode<T>[] children = null;
+	/** The first symbol of the node (fits into the padding of the object). */
+	byte symbol;
 
-	TrieNode(Trie<T> parent, int offset, int count, T value) {
-		this.parent = parent;
+	volatile T value;
+
+	/** The children sorted by their first symbols, or null if none. */
+	volatile TrieNode<T>[] children = null;
+
+	TrieNode(int offset, int count, byte symbol, T value) {
 		this.offset = offset;
 		this.count = count;
+		this.symbol = symbol;
 		this.value = value;
 	}
 
-	T get(byte[] word, int offset, int length) {
+	T get(Trie<T> trie, byte[] word) {
 		TrieNode<T> node = this;
-
-		byte[] contents = parent.contents;
 		int wordPos = 0;
 
 		while (node != null) {
-			int pos = node.getLongestMatch(contents, word, wordPos);
+			int pos = node.getLongestMatch(trie.contents, word, wordPos);
 			int wps = pos + wordPos;
 
-			if (wps == length) {
+			if (wps == word.length) {
 				return pos == node.count ? node.value : null;
 			}
 
-			if (node.children == null) {
+			if (pos < node.count) {
 				return null;
 			}
 
-			int charPos = word[offset + wps];
-
-			node = node.children[charPos];
+			node = node.child(word[wps]);
 			wordPos = wps;
 		}
 
 		return null;
 	}
 
+	/**
+	 * Sets the value of the word in the subtrie of this node.
+	 * <p>
+	 * The nodes must not be modified concurrently, and this node must not be
+	 * split (it should be the root).
+	 * </p>
+	 * 
+	 * @param trie
+	 * @param word
+	 * @param value
+	 */
 	@SuppressWarnings("unchecked")
-	void set(byte[] word, T value) {
+	void set(Trie<T> trie, byte[] word, T value) {
+		TrieNode<T> parent = null;
 		TrieNode<T> node = this;
-
-		byte[] contents = parent.contents;
 		int wordPos = 0;
-		int pos;
-		int wps;
 
 		while (true) {
-			pos = node.getLongestMatch(contents, word, wordPos);
-			wps = pos + wordPos;
+			int pos = node.getLongestMatch(trie.contents, word, wordPos);
+			int wps = pos + wordPos;
 
-			// No match - adding the new word
-			if (pos == 0) {
-				int charPos = word[wps];
+			// Match is as long as the prefix
+			if (pos == node.count) {
 
-				if (node.children == null) {
-					node.children = new TrieNode[parent.maxChildren];
+				// ...and we have an exact match - updating value
+				if (wps == word.length) {
+					node.value = value;
+					return;
 				}
 
-				if (node.children[charPos] == null) {
-					// No node at this child, creating new one
-					node.children[charPos] = parent.create(word, wordPos, value);
-				} else {
-					// Continue adding to current child
-					node = node.children[charPos];
-					continue;
+				TrieNode<T> child = node.child(word[wps]);
+
+				// ...and there are remaining chars - adding remainder to
+				// children
+				if (child == null) {
+					child = trie.create(word, wps, value);
+					node.addChild(child);
+					return;
 				}
+
+				parent = node;
+				node = child;
+				wordPos = wps;
+				continue;
+			}
+
+			// The match is shorter than the prefix - replacing the node with
+			// its first half, and its second half as a child
+			TrieNode<T> child2 = new TrieNode<T>(node.offset + pos, node.count - pos,
+					trie.contents[node.offset + pos], node.value);
+			child2.children = node.children;
+
+			TrieNode<T> split;
+
+			// ...and we have an exact match (creating: a prefix which is the
+			// same as the new word, with one child)
+			if (wps == word.length) {
+				split = new TrieNode<T>(node.offset, pos, node.symbol, value);
+				split.children = new TrieNode[] { child2 };
 			}
-			// We have a match
+			// ...and there are remaining chars (creating: a non-word prefix
+			// with two children)
 			else {
-				int wordLen = word.length - wordPos;
-				int prefixLen = node.count;
-
-				if (pos < prefixLen) {
-					// ... and there are remaining chars - splitting the
-					// node (creating: a non-word prefix with two children)
-					if (pos < wordLen) {
-						TrieNode<T> child1 = parent.create(word, wps, value);
-						TrieNode<T> child2 = node.subtrie(pos, node.value);
-						child2.children = node.children;
-
-						node.count = pos; // Keeping the first half
-						node.value = null;
-						node.children = new TrieNode[parent.maxChildren];
-						node.children[child1.byteAt(0)] = child1;
-						node.children[child2.byteAt(0)] = child2;
-					}
-					// ...and we have an exact match - splitting the node
-					// (creating: a prefix which is the same as the new
-					// word, with one child)
-					else {
-						TrieNode<T> child2 = node.subtrie(pos, node.value);
-						child2.children = node.children;
-
-						node.count = pos; // Keeping the first half
-						node.value = value;
-						node.children = new TrieNode[parent.maxChildren];
-						node.children[child2.byteAt(0)] = child2;
-					}
-				}
-				// Match is as long as the prefix
-				else {
-					// ...and there are remaining chars - adding remainder
-					// to children
-					if (pos < wordLen) {
-						int charPos = word[wps];
-
-						if (node.children == null) {
-							node.children = new TrieNode[parent.maxChildren];
-						}
-
-						if (node.children[charPos] == null) {
-							node.children[charPos] = parent.create(word, wps, value);
-						} else {
-							node = node.children[charPos];
-							wordPos = wps;
-							continue;
-						}
-					}
-					// ...and we have an exact match - updating value
-					else {
-						node.value = value;
-					}
-				}
+				TrieNode<T> child1 = trie.create(word, wps, value);
+
+				split = new TrieNode<T>(node.offset, pos, node.symbol, null);
+				split.children = (word[wps] < child2.symbol) ? new TrieNode[] {
+						child1, child2 } : new TrieNode[] { child2, child1 };
 			}
 
-			break;
+			parent.replaceChild(split);
+			return;
 		}
 	}
 
-	final byte byteAt(int i) {
-		return parent.contents[offset + i];
+	/**
+	 * Returns the child starting with <code>symbol</code>.
+	 *
+	 * @param symbol
+	 * @return The child, or null if there is no such child
+	 */
+	TrieNode<T> child(int symbol) {
+		TrieNode<T>[] children = this.children;
+
+		if (children == null) {
+			return null;
+		}
+
+		int idx = indexOf(children, symbol);
+
+		return (idx < 0) ? null : children[idx];
 	}
 
-	private TrieNode<T> subtrie(int beginIndex, T value) {
-		return (beginIndex == 0) ? this : new TrieNode<T>(parent, offset + beginIndex, count
-				- beginIndex, value);
+	@SuppressWarnings("unchecked")
+	private void addChild(TrieNode<T> child) {
+		TrieNode<T>[] children = this.children;
+
+		if (children == null) {
+			this.children = new TrieNode[] { child };
+			return;
+		}
+
+		int idx = -indexOf(children, child.symbol) - 1;
+		TrieNode<T>[] nchildren = new TrieNode[children.length + 1];
+
+		System.arraycopy(children, 0, nchildren, 0, idx);
+		System.arraycopy(children, idx, nchildren, idx + 1, children.length - idx);
+		nchildren[idx] = child;
+
+		this.children = nchildren;
+	}
+
+	// Replaces the child with the same first symbol
+	@SuppressWarnings("unchecked")
+	private void replaceChild(TrieNode<T> child) {
+		TrieNode<T>[] children = this.children;
+		TrieNode<T>[] nchildren = new TrieNode[children.length];
+
+		System.arraycopy(children, 0, nchildren, 0, children.length);
+		nchildren[indexOf(children, child.symbol)] = child;
+
+		this.children = nchildren;
+	}
+
+	/**
+	 * Returns the index of the child starting with <code>symbol</code>, with
+	 * the semantics of {@link Arrays#binarySearch(int[], int)}.
+	 *
+	 * @param children
+	 * @param symbol
+	 * @return
+	 */
+	static int indexOf(TrieNode<?>[] children, int symbol) {
+		int low = 0;
+		int high = children.length - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int s = children[mid].symbol;
+
+			if (s < symbol) {
+				low = mid + 1;
+			} else if (s > symbol) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+
+		return -(low + 1);
+	}
+
+	/**
+	 * Packs the children arrays and sets the first symbols of the subtree.
+	 * <p>
+	 * The previous versions stored the children in arrays indexed by their
+	 * first symbols, this is used to convert the Java serialized tries.
+	 * </p>
+	 *
+	 * @param contents The contents of the trie
+	 */
+	@SuppressWarnings("unchecked")
+	void repair(byte[] contents) {
+
+		if (children == null) {
+			return;
+		}
+
+		int len = 0;
+		for (TrieNode<T> child : children) {
+			if (child != null) {
+				len++;
+			}
+		}
+
+		TrieNode[] packed = new TrieNode[len];
+		int i = 0;
+		for (TrieNode<T> child : children) {
+			if (child != null) {
+				child.symbol = contents[child.offset];
+				child.repair(contents);
+				packed[i++] = child;
+			}
+		}
+
+		children = (len == 0) ? null : packed;
 	}
 
 	@Override
 	public String toString() {
-		return Arrays.toString(Arrays.copyOfRange(parent.contents, offset, offset + count));
+		return "TrieNode[" + offset + ", " + count + "]";
 	}
 
 	/**
 	 * Returns the longest matching position of the two strings.
-	 * 
+	 *
 	 * @param word
 	 * @return
 	 */
@@ -176,4 +277,4 @@ final class TrieNode<T> implements Serializable {
 		}
 		return len;
 	}
-}
\ No newline at end of file
+}
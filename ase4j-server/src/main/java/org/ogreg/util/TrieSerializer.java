@@ -71,7 +71,7 @@ public class TrieSerializer<T> {
 		NioUtils.serializeTo(channel, trie.dict);
 
 		buf.clear();
-		serialize(new TrieNodes(), trie.root, channel);
+		serialize(new TrieNodes(trie), trie.root, channel);
 
 		buf.flip();
 		channel.write(buf);
@@ -115,11 +115,8 @@ public class TrieSerializer<T> {
 		}
 
 		prefix.push(node);
-		for (int i = 0; i < children.length; i++) {
-
-			if (children[i] != null) {
-				serialize(prefix, children[i], dest);
-			}
+		for (TrieNode<T> child : children) {
+			serialize(prefix, child, dest);
 		}
 		prefix.pop();
 	}
@@ -207,12 +204,14 @@ public class TrieSerializer<T> {
 		n += node.count;
 		buf.putInt(n);
 
-		// Writing key
+		// Writing key (the contents are read after the node, as the trie
+		// may be modified while it is serialized)
+		byte[] contents = prefix.trie.contents;
 		for (int i = 0; i < prefix.size; i++) {
 			TrieNode<?> pn = prefix.nodes[i];
-			buf.put(pn.parent.contents, pn.offset, pn.count);
+			buf.put(contents, pn.offset, pn.count);
 		}
-		buf.put(node.parent.contents, node.offset, node.count);
+		buf.put(contents, node.offset, node.count);
 
 		// Writing value
 		valueSerializer.serialize(node.value, buf);
@@ -248,6 +247,13 @@ public class TrieSerializer<T> {
 		TrieNode<?>[] nodes = new TrieNode<?>[16];
 		int size = 0;
 
+		/** The serialized trie. */
+		final Trie<?> trie;
+
+		TrieNodes(Trie<?> trie) {
+			this.trie = trie;
+		}
+
 		public void push(TrieNode<?> node) {
 			if (size >= nodes.length) {
 				TrieNode<?>[] copy = new TrieNode<?>[nodes.length * 2];
@@ -0,0 +1,681 @@
+package org.ogreg.util.btree;
+
+import java.nio.charset.Charset;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+/**
+ * A concurrent in-memory B+ tree, with serialized keys.
+ * <p>
+ * The keys are byte arrays, compared as unsigned bytes. The keys of the
+ * {@link String} methods are UTF-8 encoded, so they are in the order of their
+ * code points, and they are looked up without encoding them. The keys of
+ * other types can be stored by an order preserving encoding, like the one of
+ * {@link #encode(long)}.
+ * </p>
+ * <p>
+ * The tree is a B-link tree (Lehman and Yao): every node has a high key and a
+ * link to its right sibling at the same level, so a node can be split
+ * without locking its parent, and the searches which reached the node before
+ * its split follow its right link. The leaves are linked this way too, which
+ * is used for range scans.
+ * </p>
+ * <p>
+ * The contents of the nodes are not modified in place, they are copied on
+ * write, and replaced by a volatile write. The lookups and iterations are
+ * lock-free, they are never blocked by the concurrent writers. The writers
+ * lock only one node at a time: a split replaces the contents of the node by
+ * its left half, linked to the new right half, then it inserts the separator
+ * key to the parent. The iterators are weakly consistent: they do not throw
+ * {@link java.util.ConcurrentModificationException}, and they may or may not
+ * return the entries set during the iteration.
+ * </p>
+ * <p>
+ * Please note that deletion is not yet implemented.
+ * </p>
+ * 
+ * @param <V> The type of the stored values
+ * @author Gergely Kiss
+ * @see BTree
+ */
+public class BLinkTree<V> implements Iterable<Entry<byte[], V>> {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The maximum number of keys of a leaf, and of children of a node. */
+	private final int order;
+
+	/** The root of the tree, it is replaced under the lock of the tree. */
+	private volatile Node root;
+
+	/**
+	 * Constructs a tree with the specified <code>order</code>.
+	 * 
+	 * @param order The maximum number of keys of a leaf, and of children of an
+	 *            internal node
+	 */
+	public BLinkTree(int order) {
+
+		if (order < 3) {
+			throw new IllegalArgumentException("Invalid order: " + order
+					+ ". BLinkTree must have an order greater than 2.");
+		}
+
+		this.order = order;
+		this.root = new Node(0, new Content(new byte[0][], new Object[0], null, null));
+	}
+
+	/**
+	 * Gets the value associated to the given key.
+	 * 
+	 * @param key
+	 * @return The value for the given key, or null if the key is not stored
+	 */
+	public V get(byte[] key) {
+		return find(key);
+	}
+
+	/**
+	 * Gets the value associated to the given key, without encoding it.
+	 * 
+	 * @param key
+	 * @return The value for the given key, or null if the key is not stored
+	 */
+	public V get(String key) {
+		return find(key);
+	}
+
+	/**
+	 * Sets the given value to the key.
+	 * 
+	 * @param key
+	 * @param value
+	 * @return The previous value of the key, or null if it was not stored
+	 */
+	@SuppressWarnings("unchecked")
+	public V set(byte[] key, V value) {
+		Node node = root;
+		Node[] path = new Node[node.level + 1];
+
+		// Finding the leaf, and remembering the path to it
+		while (node.level > 0) {
+			Content c = node.content;
+
+			if (c.isBefore(key)) {
+				node = c.right;
+			} else {
+				path[node.level] = node;
+				node = c.children[upperBound(c.keys, key)];
+			}
+		}
+
+		while (true) {
+			Content left;
+			Node right;
+
+			synchronized (node) {
+				Content c = node.content;
+
+				// The leaf was split since it was found
+				if (c.isBefore(key)) {
+					node = c.right;
+					continue;
+				}
+
+				int idx = indexOf(c.keys, key);
+
+				if (idx >= 0) {
+					Object[] values = c.values.clone();
+					values[idx] = value;
+
+					node.content = new Content(c.keys, values, c.highKey, c.right);
+
+					return (V) c.values[idx];
+				}
+
+				idx = -idx - 1;
+
+				byte[][] keys = insert(c.keys, idx, key);
+				Object[] values = insert(c.values, idx, value);
+
+				if (keys.length <= order) {
+					node.content = new Content(keys, values, c.highKey, c.right);
+					return null;
+				}
+
+				// Splitting the leaf in half
+				int median = keys.length / 2;
+
+				right = new Node(0, new Content(copyOfRange(keys, median, keys.length),
+						copyOfRange(values, median, values.length), c.highKey, c.right));
+				left = new Content(copyOfRange(keys, 0, median), copyOfRange(values, 0, median),
+						keys[median], right);
+
+				node.content = left;
+			}
+
+			insertSeparator(path, node, left.highKey, right);
+			return null;
+		}
+	}
+
+	/**
+	 * Sets the given value to the key.
+	 * 
+	 * @param key
+	 * @param value
+	 * @return The previous value of the key, or null if it was not stored
+	 */
+	public V set(String key, V value) {
+		return set(key.getBytes(UTF8), value);
+	}
+
+	@Override
+	public Iterator<Entry<byte[], V>> iterator() {
+		return iterator(new byte[0]);
+	}
+
+	/**
+	 * Returns an iterator over the entries starting from the first key which
+	 * is greater than or equal to <code>from</code>, in ascending key order.
+	 * 
+	 * @param from
+	 * @return
+	 */
+	public Iterator<Entry<byte[], V>> iterator(byte[] from) {
+		Node node = root;
+
+		while (true) {
+			Content c = node.content;
+
+			if (c.isBefore(from)) {
+				node = c.right;
+			} else if (node.level > 0) {
+				node = c.children[upperBound(c.keys, from)];
+			} else {
+				int idx = indexOf(c.keys, from);
+				return new LeafIterator(c, (idx < 0) ? (-idx - 1) : idx);
+			}
+		}
+	}
+
+	/**
+	 * Returns an iterator over the entries starting from the first key which
+	 * is greater than or equal to <code>from</code>, in ascending key order.
+	 * 
+	 * @param from
+	 * @return
+	 */
+	public Iterator<Entry<byte[], V>> iterator(String from) {
+		return iterator(from.getBytes(UTF8));
+	}
+
+	/**
+	 * Decodes a key of the {@link String} methods.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public static String decode(byte[] key) {
+		return new String(key, UTF8);
+	}
+
+	/**
+	 * Encodes the <code>value</code> to a key, preserving its order: the sign
+	 * bit is flipped, and the bytes are stored in big-endian order.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	public static byte[] encode(long value) {
+		byte[] key = new byte[8];
+		long v = value ^ Long.MIN_VALUE;
+
+		for (int i = 7; i >= 0; i--) {
+			key[i] = (byte) v;
+			v >>>= 8;
+		}
+
+		return key;
+	}
+
+	/**
+	 * Returns the value of the key encoded by {@link #encode(long)}.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public static long decodeLong(byte[] key) {
+		long v = 0;
+
+		for (int i = 0; i < 8; i++) {
+			v = (v << 8) | (key[i] & 0xFF);
+		}
+
+		return v ^ Long.MIN_VALUE;
+	}
+
+	/**
+	 * Returns the height of the tree.
+	 * 
+	 * @return 1 if the root is a leaf
+	 */
+	public int height() {
+		return root.level + 1;
+	}
+
+	// Key is either a byte array or a String
+	@SuppressWarnings("unchecked")
+	private V find(Object key) {
+		Node node = root;
+
+		while (true) {
+			Content c = node.content;
+
+			if (c.isBefore(key)) {
+				node = c.right;
+			} else if (node.level > 0) {
+				node = c.children[upperBound(c.keys, key)];
+			} else {
+				int idx = indexOf(c.keys, key);
+				return (idx < 0) ? null : (V) c.values[idx];
+			}
+		}
+	}
+
+	/**
+	 * Inserts the separator of a split node and its new right sibling to the
+	 * parent of the node, splitting the parent too if it is full.
+	 * 
+	 * @param path The nodes visited by the search, by their levels
+	 * @param left The split node
+	 * @param separator The high key of the split node
+	 * @param right The new right sibling of the split node
+	 */
+	private void insertSeparator(Node[] path, Node left, byte[] separator, Node right) {
+
+		while (true) {
+			int level = left.level + 1;
+			Node parent = (level < path.length) ? path[level] : null;
+
+			if (parent == null) {
+				parent = findParent(left, separator, right);
+
+				if (parent == null) {
+					return;
+				}
+			}
+
+			Content split;
+			Node splitRight;
+
+			while (true) {
+
+				synchronized (parent) {
+					Content c = parent.content;
+
+					// The parent was split since it was found
+					if (c.isBefore(separator)) {
+						parent = c.right;
+						continue;
+					}
+
+					int idx = upperBound(c.keys, separator);
+					byte[][] keys = insert(c.keys, idx, separator);
+					Node[] children = insert(c.children, idx + 1, right);
+
+					if (children.length <= order) {
+						parent.content = new Content(keys, children, c.highKey, c.right);
+						return;
+					}
+
+					// Splitting the node in half, the median key is moved to
+					// the parent
+					int median = children.length / 2;
+
+					splitRight = new Node(level, new Content(copyOfRange(keys, median,
+							keys.length), copyOfRange(children, median, children.length),
+							c.highKey, c.right));
+					split = new Content(copyOfRange(keys, 0, median - 1), copyOfRange(children,
+							0, median), keys[median - 1], splitRight);
+
+					parent.content = split;
+					break;
+				}
+			}
+
+			left = parent;
+			separator = split.highKey;
+			right = splitRight;
+		}
+	}
+
+	/**
+	 * Returns a node at the level above the split node, which is at the left
+	 * of the separator. Grows the tree if the split node is the root.
+	 * 
+	 * @return The node, or null if a new root was created
+	 */
+	private synchronized Node findParent(Node left, byte[] separator, Node right) {
+
+		if (root == left) {
+			Node[] children = new Node[] { left, right };
+			root = new Node(left.level + 1, new Content(new byte[][] { separator }, children,
+					null, null));
+
+			notifyAll();
+			return null;
+		}
+
+		// The root was split, but it is not replaced yet
+		while (root.level <= left.level) {
+
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while growing the tree", e);
+			}
+		}
+
+		Node node = root;
+
+		while (node.level > left.level + 1) {
+			Content c = node.content;
+
+			if (c.isBefore(separator)) {
+				node = c.right;
+			} else {
+				node = c.children[upperBound(c.keys, separator)];
+			}
+		}
+
+		return node;
+	}
+
+	/**
+	 * Returns the index of the specified key, or
+	 * <code>(-(insertion point) - 1)</code> if it was not found.
+	 * 
+	 * @param keys
+	 * @param key A byte array or a String
+	 * @return
+	 */
+	static int indexOf(byte[][] keys, Object key) {
+		int low = 0;
+		int high = keys.length - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compare(keys[mid], key);
+
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+
+		return -(low + 1);
+	}
+
+	/**
+	 * Returns the index of the first key which is greater than the specified
+	 * key, which is the index of the child containing the key.
+	 * 
+	 * @param keys
+	 * @param key A byte array or a String
+	 * @return
+	 */
+	static int upperBound(byte[][] keys, Object key) {
+		int low = 0;
+		int high = keys.length;
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+
+			if (compare(keys[mid], key) <= 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Compares the stored key to a byte array or a String key.
+	 * 
+	 * @param a
+	 * @param key
+	 * @return
+	 */
+	static int compare(byte[] a, Object key) {
+		return (key instanceof String) ? compare(a, (String) key) : compare(a, (byte[]) key);
+	}
+
+	/**
+	 * Compares the keys as unsigned bytes.
+	 * 
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	static int compare(byte[] a, byte[] b) {
+		int len = Math.min(a.length, b.length);
+
+		for (int i = 0; i < len; i++) {
+			int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+
+		return a.length - b.length;
+	}
+
+	/**
+	 * Compares the UTF-8 encoded key to the String, by their code points.
+	 * <p>
+	 * The unpaired surrogates of the String are compared as '?', just like
+	 * they are encoded by {@link String#getBytes(Charset)}.
+	 * </p>
+	 * 
+	 * @param a
+	 * @param s
+	 * @return
+	 */
+	static int compare(byte[] a, String s) {
+		int i = 0;
+		int j = 0;
+
+		while ((i < a.length) && (j < s.length())) {
+			int ca;
+			int b = a[i++] & 0xFF;
+
+			if (b < 0x80) {
+				ca = b;
+			} else if (b < 0xE0) {
+				ca = ((b & 0x1F) << 6) | (a[i++] & 0x3F);
+			} else if (b < 0xF0) {
+				ca = ((b & 0x0F) << 12) | ((a[i++] & 0x3F) << 6) | (a[i++] & 0x3F);
+			} else {
+				ca = ((b & 0x07) << 18) | ((a[i++] & 0x3F) << 12) | ((a[i++] & 0x3F) << 6)
+						| (a[i++] & 0x3F);
+			}
+
+			int cs = s.codePointAt(j);
+			j += Character.charCount(cs);
+
+			if ((cs >= Character.MIN_SURROGATE) && (cs <= Character.MAX_SURROGATE)) {
+				cs = '?';
+			}
+
+			if (ca != cs) {
+				return ca - cs;
+			}
+		}
+
+		return (i < a.length) ? 1 : ((j < s.length()) ? -1 : 0);
+	}
+
+	private static byte[][] insert(byte[][] array, int idx, byte[] value) {
+		byte[][] newarr = new byte[array.length + 1][];
+		System.arraycopy(array, 0, newarr, 0, idx);
+		System.arraycopy(array, idx, newarr, idx + 1, array.length - idx);
+		newarr[idx] = value;
+		return newarr;
+	}
+
+	private static Object[] insert(Object[] array, int idx, Object value) {
+		Object[] newarr = new Object[array.length + 1];
+		System.arraycopy(array, 0, newarr, 0, idx);
+		System.arraycopy(array, idx, newarr, idx + 1, array.length - idx);
+		newarr[idx] = value;
+		return newarr;
+	}
+
+	private static Node[] insert(Node[] array, int idx, Node value) {
+		Node[] newarr = new Node[array.length + 1];
+		System.arraycopy(array, 0, newarr, 0, idx);
+		System.arraycopy(array, idx, newarr, idx + 1, array.length - idx);
+		newarr[idx] = value;
+		return newarr;
+	}
+
+	private static byte[][] copyOfRange(byte[][] array, int from, int to) {
+		byte[][] newarr = new byte[to - from][];
+		System.arraycopy(array, from, newarr, 0, to - from);
+		return newarr;
+	}
+
+	private static Object[] copyOfRange(Object[] array, int from, int to) {
+		Object[] newarr = new Object[to - from];
+		System.arraycopy(array, from, newarr, 0, to - from);
+		return newarr;
+	}
+
+	private static Node[] copyOfRange(Node[] array, int from, int to) {
+		Node[] newarr = new Node[to - from];
+		System.arraycopy(array, from, newarr, 0, to - from);
+		return newarr;
+	}
+
+	/**
+	 * A node of the tree. Its contents are replaced under the lock of the
+	 * node.
+	 */
+	private static final class Node {
+		/** The level of the node, 0 for the leaves. */
+		final int level;
+
+		volatile Content content;
+
+		Node(int level, Content content) {
+			this.level = level;
+			this.content = content;
+		}
+	}
+
+	/**
+	 * The immutable contents of a node.
+	 * <p>
+	 * The leaves have n keys and n values. The internal nodes have n children
+	 * and n-1 keys, the child i contains the keys which are greater than or
+	 * equal to the key i-1, and less than the key i.
+	 * </p>
+	 */
+	private static final class Content {
+		final byte[][] keys;
+
+		/** The values of the leaf, or null. */
+		final Object[] values;
+
+		/** The children of the internal node, or null. */
+		final Node[] children;
+
+		/** The keys of the node are less than the high key (null if none). */
+		final byte[] highKey;
+
+		/** The right sibling of the node (null if none). */
+		final Node right;
+
+		Content(byte[][] keys, Object[] values, byte[] highKey, Node right) {
+			this.keys = keys;
+			this.values = values;
+			this.children = null;
+			this.highKey = highKey;
+			this.right = right;
+		}
+
+		Content(byte[][] keys, Node[] children, byte[] highKey, Node right) {
+			this.keys = keys;
+			this.values = null;
+			this.children = children;
+			this.highKey = highKey;
+			this.right = right;
+		}
+
+		/**
+		 * Returns true if the key is in a right sibling of the node.
+		 * 
+		 * @param key A byte array or a String
+		 * @return
+		 */
+		boolean isBefore(Object key) {
+			return (highKey != null) && (compare(highKey, key) <= 0);
+		}
+	}
+
+	// Iterates the leaves through their right links
+	private final class LeafIterator implements Iterator<Entry<byte[], V>> {
+		private Content current;
+		private int pos;
+
+		public LeafIterator(Content current, int pos) {
+			this.current = current;
+			this.pos = pos;
+		}
+
+		@Override
+		public boolean hasNext() {
+
+			while (pos >= current.keys.length) {
+
+				if (current.right == null) {
+					return false;
+				}
+
+				current = current.right.content;
+				pos = 0;
+			}
+
+			return true;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Entry<byte[], V> next() {
+
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			Entry<byte[], V> e = new SimpleEntry<byte[], V>(current.keys[pos],
+					(V) current.values[pos]);
+			pos++;
+
+			return e;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -100,7 +100,26 @@ public class BTree<K extends Comparable<K>, V> implements Serializable, Iterable
 
 	@Override
 	public Iterator<Entry<K, V>> iterator() {
-		return new BTreeIterator(getFirstLeaf());
+		return new BTreeIterator(getFirstLeaf(), 0);
+	}
+
+	/**
+	 * Returns an iterator over the entries starting from the first key which
+	 * is greater than or equal to <code>from</code>, in ascending key order.
+	 * 
+	 * @param from
+	 * @return
+	 */
+	public Iterator<Entry<K, V>> iterator(K from) {
+		BTNode<K, V> node = root;
+		int idx = node.indexOf(from);
+
+		while (!node.isLeaf()) {
+			node = node.children[(idx < 0) ? (-idx - 1) : idx];
+			idx = node.indexOf(from);
+		}
+
+		return new BTreeIterator(node, (idx < 0) ? (-idx - 1) : idx);
 	}
 
 	private BTNode<K, V> getFirstLeaf() {
@@ -196,11 +215,12 @@ public class BTree<K extends Comparable<K>, V> implements Serializable, Iterable
 	// BTree leaf (key-value) iterator
 	private final class BTreeIterator implements Iterator<Entry<K, V>> {
 		private BTNode<K, V> current;
-		private int pos = 0;
+		private int pos;
 		private Entry<K, V> entry;
 
-		public BTreeIterator(BTNode<K, V> current) {
+		public BTreeIterator(BTNode<K, V> current, int pos) {
 			this.current = current;
+			this.pos = pos;
 		}
 
 		@Override
@@ -1,13 +1,17 @@
 package org.ogreg.ase4j;
 
 import static org.ogreg.ase4j.TestData.data;
+import org.ogreg.ase4j.AssociationStore.Operation;
 import org.ogreg.ase4j.criteria.Query;
+import org.ogreg.ase4j.criteria.QueryExecutionException;
+import org.ogreg.ase4j.criteria.QueryProfile;
 import org.ogreg.ase4j.criteria.Restrictions;
 
 import org.ogreg.test.FileTestSupport;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
@@ -15,8 +19,11 @@ import org.testng.annotations.Test;
 import java.io.File;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.Random;
 
 /**
  * Grouped association storage tests.
@@ -53,6 +60,9 @@ public class GroupedAssociationStoreImplTest {
 		assocs.add(new Association<String, TestData>("b", data("bbb", new Date(0), 20), 1.0F));
 		store.addAll(assocs, gr);
 
+		// The added associations are not modified
+		assertEquals(assocs.get(0).value, 1.0F);
+
 		// Adding multiple assocs to different target
 		store.addAll(assocs, data("ccc", new Date(0), 20), gr);
 
@@ -86,5 +96,242 @@ public class GroupedAssociationStoreImplTest {
 		assertEquals(r.get(0).value, 0.5F);
 		assertEquals(r.get(1).to.url, "ccc");
 		assertEquals(r.get(1).value, 0.5F);
+
+		manager.closeStore("testGroup");
+	}
+
+	/**
+	 * Tests that the associations are added to the groups scaled by their
+	 * multipliers, using the operation of the group.
+	 */
+	@SuppressWarnings("unchecked")
+	public void testAdd02() throws Exception {
+		File dataDir = FileTestSupport.createTempDir("gstore");
+		manager.setDataDir(dataDir);
+		store = manager.getStore("testGroup");
+
+		GroupedParams sum = new GroupedParams("gr01", 1.0F).set("gr02", 0.5F).set("gr03", 3.0F);
+		GroupedParams overwrite = new GroupedParams("gr01", 1.0F, Operation.OVERWRITE).set(
+				"gr02", 0.5F).set("gr03", 3.0F);
+
+		List<Association<String, TestData>> assocs = new ArrayList<Association<String, TestData>>();
+		assocs.add(new Association<String, TestData>("a", data("aaa", new Date(0), 10), 2.0F));
+		assocs.add(new Association<String, TestData>("b", data("aaa", new Date(0), 10), 2.0F));
+
+		// Summed
+		store.addAll(assocs, sum);
+		store.addAll(assocs, sum);
+		store.add("c", data("aaa", new Date(0), 10), 2.0F, sum);
+		store.add("c", data("aaa", new Date(0), 10), 2.0F, sum);
+		manager.flushStore("testGroup");
+
+		assertValues("a", 4.0F, 2.0F, 12.0F);
+		assertValues("b", 4.0F, 2.0F, 12.0F);
+		assertValues("c", 4.0F, 2.0F, 12.0F);
+
+		// Overwritten
+		store.addAll(assocs, overwrite);
+		store.add("c", data("aaa", new Date(0), 10), 2.0F, overwrite);
+		manager.flushStore("testGroup");
+
+		assertValues("a", 2.0F, 1.0F, 6.0F);
+		assertValues("b", 2.0F, 1.0F, 6.0F);
+		assertValues("c", 2.0F, 1.0F, 6.0F);
+
+		manager.closeStore("testGroup");
+	}
+
+	// Asserts the values of the single association of from in the groups
+	void assertValues(String from, float... values) throws Exception {
+		String[] groups = { "gr01", "gr02", "gr03" };
+
+		for (int i = 0; i < groups.length; i++) {
+			List<Association<String, TestData>> r = store.query(new Query(Restrictions
+					.phrase(from), new GroupedParams(groups[i], 1.0F)));
+
+			assertEquals(r.size(), 1);
+			assertEquals(r.get(0).value, values[i], groups[i]);
+		}
+	}
+
+	/**
+	 * Tests querying multiple groups of the store at once.
+	 */
+	@SuppressWarnings("unchecked")
+	public void testQuery01() throws Exception {
+		File dataDir = FileTestSupport.createTempDir("gstore");
+		manager.setDataDir(dataDir);
+		store = manager.getStore("testGroup");
+
+		GroupedParams gr01 = new GroupedParams("gr01", 1.0F);
+		GroupedParams gr02 = new GroupedParams("gr02", 1.0F);
+
+		store.add("x", data("aaa", new Date(0), 10), 1.0F, gr01);
+		store.add("x", data("bbb", new Date(0), 20), 2.0F, gr01);
+		store.add("x", data("aaa", new Date(0), 10), 3.0F, gr02);
+		store.add("x", data("ccc", new Date(0), 30), 0.5F, gr02);
+		manager.flushStore("testGroup");
+
+		List<Association<String, TestData>> r;
+		GroupedParams both = new GroupedParams("gr01", 1.0F).set("gr02", 2.0F);
+
+		// The results are multiplied and merged by their targets
+		r = store.query(new Query(Restrictions.phrase("x"), both).limit(2));
+		assertEquals(r.size(), 2);
+		assertEquals(r.get(0).to.url, "aaa");
+		assertEquals(r.get(0).value, 7.0F);
+		assertEquals(r.get(1).to.url, "bbb");
+		assertEquals(r.get(1).value, 2.0F);
+
+		r = store.query(new Query(Restrictions.phrase("x"), both).offset(1).limit(2));
+		assertEquals(r.size(), 2);
+		assertEquals(r.get(0).to.url, "bbb");
+		assertEquals(r.get(1).to.url, "ccc");
+		assertEquals(r.get(1).value, 1.0F);
+
+		r = store.query(new Query(Restrictions.phrase("x"), both).limit(0));
+		assertEquals(r.size(), 3);
+
+		// Single members
+		r = store.query(new Query(Restrictions.phrase("x"), new GroupedParams("gr02", 2.0F))
+				.limit(1));
+		assertEquals(r.size(), 1);
+		assertEquals(r.get(0).to.url, "aaa");
+		assertEquals(r.get(0).value, 6.0F);
+
+		// Profiling (the members fit in their tops, so the merge is exact)
+		QueryProfile p = store.profile(new Query(Restrictions.phrase("x"), both).limit(2));
+		assertEquals(p.getOperator(), "group");
+		assertEquals(p.getOutputSize(), 2);
+		assertEquals(p.find("mergeTop").getInputSize(), 4);
+		assertEquals(p.find("mergeTop").getOutputSize(), 3);
+
+		// Overwrites are merged from the full results
+		p = store.profile(new Query(Restrictions.phrase("x"), new GroupedParams("gr01", 1.0F,
+				Operation.OVERWRITE).set("gr02", 2.0F)).limit(2));
+		assertEquals(p.find("mergeTop"), null);
+		assertEquals(p.find("merge").getOutputSize(), 3);
+
+		manager.closeStore("testGroup");
+	}
+
+	/**
+	 * Tests that the limited queries of multiple groups return the top of the
+	 * full merge.
+	 */
+	@SuppressWarnings("unchecked")
+	public void testQuery02() throws Exception {
+		File dataDir = FileTestSupport.createTempDir("gstore");
+		manager.setDataDir(dataDir);
+		store = manager.getStore("testGroup");
+
+		Random rnd = new Random(42);
+		String[] groups = { "gr01", "gr02", "gr03" };
+
+		for (String group : groups) {
+			List<Association<String, TestData>> assocs = new ArrayList<Association<String, TestData>>();
+
+			// The top targets are in every group, the others only in some
+			for (int i = 0; i < 100; i++) {
+
+				if ((i < 20) || rnd.nextBoolean()) {
+					float value = (100 - i) * (100 - i) * (0.9F + 0.2F * rnd.nextFloat());
+					assocs.add(new Association<String, TestData>("x", data("t" + i, new Date(0),
+							i), value));
+				}
+			}
+
+			store.addAll(assocs, new GroupedParams(group, 1.0F));
+		}
+
+		manager.flushStore("testGroup");
+
+		GroupedParams all = new GroupedParams("gr01", 1.0F).set("gr02", 0.5F).set("gr03", 2.0F);
+		List<Association<String, TestData>> expected = store.query(new Query(Restrictions
+				.phrase("x"), all).limit(0));
+
+		Collections.sort(expected, new Comparator<Association<String, TestData>>() {
+			@Override
+			public int compare(Association<String, TestData> o1, Association<String, TestData> o2) {
+				return Float.compare(o2.value, o1.value);
+			}
+		});
+
+		int[][] pages = { { 0, 5 }, { 0, 20 }, { 10, 10 }, { 15, 30 }, { 90, 20 } };
+
+		for (int[] page : pages) {
+			List<Association<String, TestData>> r = store.query(new Query(Restrictions
+					.phrase("x"), all).offset(page[0]).limit(page[1]));
+
+			assertEquals(r.size(), Math.max(0, Math.min(page[1], expected.size() - page[0])));
+
+			for (int i = 0; i < r.size(); i++) {
+				assertEquals(r.get(i).to.url, expected.get(page[0] + i).to.url);
+				assertEquals(r.get(i).value, expected.get(page[0] + i).value);
+			}
+		}
+
+		// The top of the members was enough
+		QueryProfile p = store.profile(new Query(Restrictions.phrase("x"), all).limit(5));
+		assertEquals(p.find("mergeTop").getOutputSize() > 0, true);
+		assertEquals(p.find("merge"), null);
+
+		manager.closeStore("testGroup");
+	}
+
+	/**
+	 * Tests paging through the merged results of multiple groups.
+	 */
+	@SuppressWarnings("unchecked")
+	public void testQueryPage01() throws Exception {
+		File dataDir = FileTestSupport.createTempDir("gstore");
+		manager.setDataDir(dataDir);
+		store = manager.getStore("testGroup");
+
+		GroupedParams gr01 = new GroupedParams("gr01", 1.0F);
+		GroupedParams gr02 = new GroupedParams("gr02", 1.0F);
+
+		store.add("x", data("aaa", new Date(0), 10), 1.0F, gr01);
+		store.add("x", data("bbb", new Date(0), 20), 2.0F, gr01);
+		store.add("x", data("aaa", new Date(0), 10), 3.0F, gr02);
+		store.add("x", data("ccc", new Date(0), 30), 0.5F, gr02);
+		manager.flushStore("testGroup");
+
+		GroupedParams both = new GroupedParams("gr02", 2.0F).set("gr01", 1.0F);
+		Query q = new Query(Restrictions.phrase("x"), both).limit(2);
+
+		// Sorted pages
+		ResultPage<String, TestData> p = store.queryPage(q);
+		assertEquals(p.results.size(), 2);
+		assertEquals(p.results.get(0).to.url, "aaa");
+		assertEquals(p.results.get(0).value, 7.0F);
+		assertEquals(p.results.get(1).to.url, "bbb");
+		assertTrue(p.cursor != null);
+
+		// The cursor can not be used with different multipliers
+		try {
+			store.queryPage(new Query(Restrictions.phrase("x"), new GroupedParams("gr01", 1.0F)
+					.set("gr02", 1.0F)).limit(2).offset(2).cursor(p.cursor));
+			fail("Expected QueryExecutionException");
+		} catch (QueryExecutionException e) {
+		}
+
+		p = store.queryPage(q.copy().offset(2).cursor(p.cursor));
+		assertEquals(p.results.size(), 1);
+		assertEquals(p.results.get(0).to.url, "ccc");
+		assertEquals(p.results.get(0).value, 1.0F);
+		assertEquals(p.cursor, null);
+
+		// Unlimited queries are paged by the page size
+		q = new Query(Restrictions.phrase("x"), both).limit(0).pageSize(2);
+		p = store.queryPage(q);
+		assertEquals(p.results.size(), 2);
+		assertTrue(p.cursor != null);
+
+		p = store.queryPage(q.copy().offset(2).cursor(p.cursor));
+		assertEquals(p.results.size(), 1);
+		assertEquals(p.cursor, null);
+
+		manager.closeStore("testGroup");
 	}
 }
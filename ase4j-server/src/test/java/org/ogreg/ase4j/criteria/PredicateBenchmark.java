@@ -0,0 +1,106 @@
+package org.ogreg.ase4j.criteria;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.ogreg.common.Operator;
+import org.testng.annotations.Test;
+
+/**
+ * Compiled predicate benchmarks.
+ * 
+ * @author Gergely Kiss
+ */
+@Test(groups = "performance")
+public class PredicateBenchmark {
+	int CANDIDATES = 1000000;
+
+	/**
+	 * Compares the compiled predicates to evaluating the comparisons value by
+	 * value, on a filter of 1M candidates.
+	 */
+	public void testFilter01() {
+		Random r = new Random(0);
+		List<Object> longs = new ArrayList<Object>(CANDIDATES);
+		List<Object> dates = new ArrayList<Object>(CANDIDATES);
+		List<Object> strings = new ArrayList<Object>(CANDIDATES);
+
+		for (int i = 0; i < CANDIDATES; i++) {
+			longs.add(Long.valueOf(r.nextInt(1000)));
+			dates.add(new Date(r.nextInt(1000000)));
+			strings.add("value" + r.nextInt(1000));
+		}
+
+		Date from = new Date(250000);
+		Date to = new Date(750000);
+		Pattern pattern = Pattern.compile("value1.*");
+
+		for (int run = 0; run < 3; run++) {
+			long before, time;
+			int cnt = 0;
+
+			before = System.nanoTime();
+			for (int i = 0; i < CANDIDATES; i++) {
+				if (evaluate(dates.get(i), Operator.GE, from)
+						&& evaluate(dates.get(i), Operator.LT, to)
+						&& evaluate(longs.get(i), Operator.NE, 500L)
+						&& evaluate(strings.get(i), Operator.MATCHES, pattern)) {
+					cnt++;
+				}
+			}
+			time = (System.nanoTime() - before) / 1000000;
+
+			System.err.printf("Evaluated filter of %d candidates (%d matches) in: %d ms\n",
+					CANDIDATES, cnt, time);
+
+			cnt = 0;
+			before = System.nanoTime();
+			List<Predicate> range = new ArrayList<Predicate>();
+			range.add(Predicate.compile(Operator.GE, from));
+			range.add(Predicate.compile(Operator.LT, to));
+
+			Predicate date = Predicate.and(range);
+			Predicate ne = Predicate.compile(Operator.NE, 500L);
+			Predicate matches = Predicate.compile(Operator.MATCHES, pattern);
+
+			for (int i = 0; i < CANDIDATES; i++) {
+				if (date.matches(dates.get(i)) && ne.matches(longs.get(i))
+						&& matches.matches(strings.get(i))) {
+					cnt++;
+				}
+			}
+			time = (System.nanoTime() - before) / 1000000;
+
+			System.err.printf("Compiled filter of %d candidates (%d matches) in: %d ms\n",
+					CANDIDATES, cnt, time);
+		}
+	}
+
+	// The value by value evaluation the predicates have replaced
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static boolean evaluate(Object valueA, Operator op, Object valueB) {
+
+		switch (op) {
+		case EQ:
+			return (valueA == null) ? (valueB == null) : valueA.equals(valueB);
+		case NE:
+			return (valueA == null) ? (valueB != null) : (!valueA.equals(valueB));
+		case GE:
+			return (valueA == null) ? false : (((Comparable) valueA).compareTo(valueB) >= 0);
+		case GT:
+			return (valueA == null) ? false : (((Comparable) valueA).compareTo(valueB) > 0);
+		case LE:
+			return (valueA == null) ? false : (((Comparable) valueA).compareTo(valueB) <= 0);
+		case LT:
+			return (valueA == null) ? false : (((Comparable) valueA).compareTo(valueB) < 0);
+		case MATCHES:
+			return ((valueA == null) || (valueB == null)) ? (valueA == valueB) : ((Pattern) valueB)
+					.matcher((CharSequence) valueA).matches();
+		}
+
+		throw new UnsupportedOperationException("Unsupported operator: " + op);
+	}
+}
@@ -0,0 +1,107 @@
+package org.ogreg.ase4j.criteria;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.ogreg.common.Operator;
+import org.testng.annotations.Test;
+
+/**
+ * Compiled predicate tests.
+ * 
+ * @author Gergely Kiss
+ */
+@Test(groups = "correctness")
+public class PredicateTest {
+
+	/**
+	 * Tests the comparisons of numbers and dates.
+	 */
+	public void testCompile01() {
+		List<?> longs = Arrays.asList(1L, 2L, 3L, null);
+
+		assertMatches(Predicate.compile(Operator.EQ, 2L), longs, "0100");
+		assertMatches(Predicate.compile(Operator.NE, 2L), longs, "1011");
+		assertMatches(Predicate.compile(Operator.GE, 2L), longs, "0110");
+		assertMatches(Predicate.compile(Operator.GT, 2L), longs, "0010");
+		assertMatches(Predicate.compile(Operator.LE, 2L), longs, "1100");
+		assertMatches(Predicate.compile(Operator.LT, 2L), longs, "1000");
+		assertMatches(Predicate.compile(Operator.GT, Long.MAX_VALUE), longs, "0000");
+		assertMatches(Predicate.compile(Operator.LT, Long.MIN_VALUE), longs, "0000");
+
+		List<?> dates = Arrays.asList(new Date(1), new Date(2), new Date(3), null);
+		assertMatches(Predicate.compile(Operator.GT, new Date(1)), dates, "0110");
+		assertMatches(Predicate.compile(Operator.EQ, new Date(3)), dates, "0010");
+
+		// Floating point numbers are ordered like Double.compare
+		List<?> doubles = Arrays.asList(-1.5, -0.0, 0.0, Double.NaN);
+		assertMatches(Predicate.compile(Operator.LT, 0.0), doubles, "1100");
+		assertMatches(Predicate.compile(Operator.EQ, -0.0), doubles, "0100");
+		assertMatches(Predicate.compile(Operator.GT, 1.0), doubles, "0001");
+		assertMatches(Predicate.compile(Operator.LE, 1.5F), Arrays.asList(1.5F, 2.5F), "10");
+
+		// Values of other types are compared as objects
+		assertMatches(Predicate.compile(Operator.EQ, 2L), Arrays.asList(new Object[] { 2, 2L }),
+				"01");
+	}
+
+	/**
+	 * Tests the comparisons of other values, patterns and nulls.
+	 */
+	public void testCompile02() {
+		List<?> strings = Arrays.asList("a", "b", "c", null);
+
+		assertMatches(Predicate.compile(Operator.EQ, "b"), strings, "0100");
+		assertMatches(Predicate.compile(Operator.NE, "b"), strings, "1011");
+		assertMatches(Predicate.compile(Operator.GE, "b"), strings, "0110");
+		assertMatches(Predicate.compile(Operator.LT, "b"), strings, "1000");
+		assertMatches(Predicate.compile(Operator.MATCHES, Pattern.compile("[ac]")), strings, "1010");
+
+		assertMatches(Predicate.compile(Operator.EQ, null), strings, "0001");
+		assertMatches(Predicate.compile(Operator.NE, null), strings, "1110");
+		assertMatches(Predicate.compile(Operator.MATCHES, null), strings, "0001");
+		assertMatches(Predicate.compile(Operator.GT, null), strings, "0000");
+
+		try {
+			Predicate.compile(Operator.MATCHES, "a");
+			throw new AssertionError();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	/**
+	 * Tests AND chains.
+	 */
+	public void testAnd01() {
+		Predicate ne = Predicate.compile(Operator.NE, 3L);
+		Predicate ge = Predicate.compile(Operator.GE, 2L);
+		Predicate eq = Predicate.compile(Operator.EQ, 2L);
+		Predicate and = Predicate.and(Arrays.asList(ne, ge, eq));
+
+		assertMatches(Predicate.and(Arrays.asList(ne, ge)), Arrays.asList(1L, 2L, 3L, 4L), "0101");
+		assertMatches(and, Arrays.asList(1L, 2L, 3L, null), "0100");
+		assertTrue(and.matches(2L));
+		assertFalse(and.matches(4L));
+		assertTrue(and.selectivity() < eq.selectivity());
+		assertTrue(eq.selectivity() < ge.selectivity());
+		assertTrue(ge.selectivity() < ne.selectivity());
+	}
+
+	private void assertMatches(Predicate p, List<?> values, String expected) {
+		boolean[] all = p.matchesAll(values);
+		StringBuilder buf = new StringBuilder();
+
+		for (int i = 0; i < all.length; i++) {
+			assertEquals(p.matches(values.get(i)), all[i]);
+			buf.append(all[i] ? '1' : '0');
+		}
+
+		assertEquals(buf.toString(), expected);
+	}
+}
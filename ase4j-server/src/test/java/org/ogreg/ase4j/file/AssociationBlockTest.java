@@ -152,7 +152,7 @@ public class AssociationBlockTest {
 
 			RandomAccessFile tmp = new RandomAccessFile(tmpFile, "rw");
 			MappedByteBuffer buf = tmp.getChannel().map(MapMode.READ_WRITE, 0,
-					12 + (row.capacity() * 8));
+					16 + (row.capacity() * 8));
 
 			CachedBlockStore.Serializer.serialize(row, buf);
 
@@ -164,6 +164,7 @@ public class AssociationBlockTest {
 			assertEquals(2, row.capacity());
 			assertEquals("[1, 2]", Arrays.toString(row.tos));
 			assertEquals("[101.0, 100.0]", Arrays.toString(row.values));
+			assertEquals(101.0F, row.maxValue);
 		} catch (IOException e) {
 			e.printStackTrace();
 			fail(e.getLocalizedMessage());
@@ -5,6 +5,8 @@ import static org.testng.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 import org.ogreg.ase4j.AssociationStore.Operation;
 import org.ogreg.common.nio.NioUtils;
@@ -48,7 +50,7 @@ public class CachedBlockStoreTest {
 
 			assertTrue(store.exists());
 
-			// Store size: 4 (ASE4J) + 8 (size) + 4 (index capacity) + 4 (index
+			// Store size: 4 (ASJ2) + 8 (size) + 4 (index capacity) + 4 (index
 			// maxKey) + 4 * 8 (index entries)
 			assertEquals(store.length(), 52);
 		} catch (IOException e) {
@@ -142,20 +144,20 @@ public class CachedBlockStoreTest {
 			fs.merge(assoc(3, 1, 40), OP);
 			fs.flush();
 
-			// Original size: 4 (AS4J) + 8 (size) + 4 (index capacity) + 4
-			// (index maxKey) + 4 * 8 (index entries) + 4 * (12 + 4 * 8)
-			// (association blocks of default size 4) = 220
-			assertEquals(store.length(), 184);
+			// Original size: 4 (ASJ2) + 8 (size) + 4 (index capacity) + 4
+			// (index maxKey) + 4 * 8 (index entries) + 3 * (16 + 4 * 8)
+			// (association blocks of default size 4) = 196
+			assertEquals(store.length(), 196);
 
 			// Growing will occur here
 			fs.merge(assoc(4, 1, 50), OP);
 			fs.merge(assoc(2, 1, 30), OP);
 			fs.flush();
 
-			// Target size: 4 (AS4J) + 8 (size) + 4 (index capacity) + 4 (index
-			// maxKey) + 8 * 8 (index entries) + 5 * (12 + 4 * 8) (association
-			// blocks of default size 4) = 252
-			assertEquals(store.length(), 304);
+			// Target size: 4 (ASJ2) + 8 (size) + 4 (index capacity) + 4 (index
+			// maxKey) + 8 * 8 (index entries) + 5 * (16 + 4 * 8) (association
+			// blocks of default size 4) = 324
+			assertEquals(store.length(), 324);
 
 			fs.flush();
 
@@ -209,6 +211,64 @@ public class CachedBlockStoreTest {
 		}
 	}
 
+	/**
+	 * Tests that the stores of the previous format are read, and upgraded when
+	 * flushed.
+	 */
+	public void testLegacy01() {
+
+		try {
+			File store = FileTestSupport.createTempFile("assocs");
+			ByteBuffer buf = ByteBuffer.allocate(140);
+
+			// Header: AS4J, association count, index capacity and maxKey
+			buf.put(new byte[] { 'A', 'S', '4', 'J' }).putLong(3).putInt(4).putInt(1);
+			buf.putLong(52).putLong(96).putLong(0).putLong(0);
+
+			// Blocks: capacity, size, from, tos, values (without maxValue)
+			buf.putInt(4).putInt(2).putInt(0).putInt(1).putInt(3).putInt(0).putInt(0);
+			buf.putFloat(1.5F).putFloat(2.5F).putFloat(0).putFloat(0);
+			buf.putInt(4).putInt(1).putInt(1).putInt(2).putInt(0).putInt(0).putInt(0);
+			buf.putFloat(4.5F).putFloat(0).putFloat(0).putFloat(0);
+			buf.flip();
+
+			RandomAccessFile raf = new RandomAccessFile(store, "rw");
+			raf.getChannel().write(buf);
+			raf.close();
+
+			fs = new CachedBlockStore();
+			fs.open(store);
+
+			assertEquals(fs.getAssociationCount(), 3);
+			assertEquals(fs.getBlockSize(0), 2);
+			assertEquals(fs.get(0, 3), 2.5F);
+			assertEquals(fs.get(0).maxValue, 2.5F);
+			assertEquals(fs.get(1, 2), 4.5F);
+
+			// Upgrading
+			fs.merge(assoc(1, 3, 5), OP);
+			fs.flush();
+			fs.close();
+
+			fs = new CachedBlockStore();
+			fs.open(store);
+
+			raf = new RandomAccessFile(store, "r");
+			byte[] magic = new byte[4];
+			raf.readFully(magic);
+			raf.close();
+
+			assertEquals(new String(magic, "ISO-8859-1"), "ASJ2");
+			assertEquals(fs.get(0, 1), 1.5F);
+			assertEquals(fs.get(0).maxValue, 2.5F);
+			assertEquals(fs.get(1, 2), 4.5F);
+			assertEquals(fs.get(1, 3), 5.0F);
+			assertEquals(fs.get(1).maxValue, 5.0F);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
 	AssociationBlock assoc(int from, int to, int value) {
 		AssociationBlock assoc = new AssociationBlock(from);
 		assoc.merge(to, value, OP);
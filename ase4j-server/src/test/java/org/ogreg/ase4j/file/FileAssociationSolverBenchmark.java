@@ -0,0 +1,89 @@
+package org.ogreg.ase4j.file;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.ogreg.ase4j.AssociationStore.Operation;
+import org.testng.annotations.Test;
+
+/**
+ * Association row solver benchmarks.
+ * 
+ * @author Gergely Kiss
+ */
+@Test(groups = "performance")
+public class FileAssociationSolverBenchmark {
+	int TERMS = 20;
+	int ROW_SIZE = 1000000;
+	int QUERIES = 10;
+
+	/**
+	 * Compares pooled and allocating set operations, on 20-term queries of
+	 * rows of 1M associations.
+	 */
+	public void testPool01() {
+		Random r = new Random(0);
+		List<AssociationResultBlock> rows = new ArrayList<AssociationResultBlock>(TERMS);
+
+		for (int i = 0; i < TERMS; i++) {
+			AssociationResultBlock row = new AssociationResultBlock(ROW_SIZE);
+
+			for (int j = 0, to = 0; j < ROW_SIZE; j++) {
+				to += r.nextInt(3) + 1;
+				row.tos[j] = to;
+				row.values[j] = r.nextFloat();
+			}
+
+			rows.add(row);
+		}
+
+		for (int run = 0; run < 3; run++) {
+			run("Allocating", new FileAssociationSolver(null, null, new ResultBlockPool(0)), rows);
+			run("Pooled", new FileAssociationSolver(null, null, new ResultBlockPool(256L << 20)),
+					rows);
+		}
+	}
+
+	private void run(String name, FileAssociationSolver solver, List<AssociationResultBlock> rows) {
+		long gcs = gcCount();
+		long before = System.nanoTime();
+		long cnt = 0;
+
+		for (int q = 0; q < QUERIES; q++) {
+
+			// A chain of unions, and a chain of intersections
+			AssociationResultBlock union = rows.get(0);
+			for (int i = 1; i < TERMS; i++) {
+				union = solver.union(union, rows.get(i), Operation.SUM);
+			}
+
+			AssociationResultBlock intersection = solver.union(rows.get(0), rows.get(1),
+					Operation.SUM);
+			for (int i = 2; i < TERMS; i++) {
+				intersection = solver.intersection(intersection, rows.get(i), Operation.SUM);
+			}
+
+			cnt += union.size + intersection.size;
+			solver.release(union);
+			solver.release(intersection);
+		}
+
+		long time = (System.nanoTime() - before) / 1000000;
+
+		System.err.printf("%s %d queries of %d terms (%d results) in: %d ms, %d GCs\n", name,
+				QUERIES * 2, TERMS, cnt, time, gcCount() - gcs);
+	}
+
+	private static long gcCount() {
+		long ret = 0;
+
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			ret += gc.getCollectionCount();
+		}
+
+		return ret;
+	}
+}
@@ -1,11 +1,24 @@
 package org.ogreg.ase4j.file;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.ogreg.ase4j.AssociationStore.Operation;
 import org.ogreg.ase4j.file.AssociationResultBlock;
 import org.ogreg.ase4j.file.AssociationBlock;
 import org.ogreg.ase4j.file.FileAssociationSolver;
+import org.ogreg.ase4j.criteria.Expression;
+import org.ogreg.ase4j.criteria.Query;
+import org.ogreg.ase4j.criteria.QueryExecutionException;
+import org.ogreg.ase4j.criteria.Restrictions;
 import org.testng.annotations.Test;
 
 /**
@@ -81,6 +94,269 @@ public class FileAssociationSolverTest {
 		equals(solver.union(row("4"), row("2,4"), OP), row("2,4"));
 	}
 
+	/**
+	 * Tests top-k union calculations.
+	 */
+	public void testUnionTop() {
+		Random r = new Random(42);
+
+		for (int iter = 0; iter < 100; iter++) {
+			List<AssociationResultBlock> rows = new ArrayList<AssociationResultBlock>();
+
+			for (int i = r.nextInt(5) + 1; i > 0; i--) {
+				rows.add(randomRow(r, r.nextInt(200), r.nextInt(100) + 1));
+			}
+
+			int limit = r.nextInt(20) + 1;
+
+			AssociationResultBlock all = rows.get(0);
+			for (int i = 1; i < rows.size(); i++) {
+				all = solver.union(all, rows.get(i), Operation.SUM);
+			}
+
+			AssociationResultBlock expected = solver.limit(all, 0, limit);
+			AssociationResultBlock actual = solver.unionTop(rows, Operation.SUM, 0, limit);
+
+			assertEquals(actual.size, expected.size, "row size");
+
+			float[] ev = java.util.Arrays.copyOf(expected.values, expected.size);
+			float[] av = java.util.Arrays.copyOf(actual.values, actual.size);
+			java.util.Arrays.sort(ev);
+			java.util.Arrays.sort(av);
+			assertEquals(java.util.Arrays.toString(av), java.util.Arrays.toString(ev));
+
+			// Every selected association must have its full value
+			for (int i = 0; i < actual.size; i++) {
+				int idx = java.util.Arrays.binarySearch(all.tos, 0, all.size, actual.tos[i]);
+				assertEquals(actual.values[i], all.values[idx]);
+			}
+		}
+	}
+
+	/**
+	 * Tests that top-k unions of non-integral values select the same
+	 * associations as the pairwise unions, even if their sums are tied.
+	 */
+	public void testUnionTop02() {
+		Random r = new Random(42);
+		float[] parts = { 0.1f, 0.2f, 0.3f, 0.7f, 1.1f, 1e-3f, 1e5f };
+
+		for (int iter = 0; iter < 200; iter++) {
+			List<AssociationResultBlock> rows = new ArrayList<AssociationResultBlock>();
+
+			for (int i = r.nextInt(6) + 2; i > 0; i--) {
+				AssociationResultBlock row = randomRow(r, r.nextInt(60), 1);
+
+				for (int j = 0; j < row.size; j++) {
+					row.values[j] = parts[r.nextInt(parts.length)];
+				}
+
+				rows.add(row);
+			}
+
+			int limit = r.nextInt(20) + 1;
+
+			AssociationResultBlock all = rows.get(0);
+			for (int i = 1; i < rows.size(); i++) {
+				all = solver.union(all, rows.get(i), Operation.SUM);
+			}
+
+			equals(solver.unionTop(rows, Operation.SUM, 0, limit), solver.limit(all, 0, limit));
+		}
+	}
+
+	/**
+	 * Tests that k-way unions calculate the same results as pairwise unions.
+	 */
+	public void testUnionAll() {
+		Random r = new Random(42);
+
+		for (int iter = 0; iter < 100; iter++) {
+			List<AssociationResultBlock> rows = new ArrayList<AssociationResultBlock>();
+
+			for (int i = r.nextInt(8) + 1; i > 0; i--) {
+				rows.add(randomRow(r, r.nextInt(200), r.nextInt(100) + 1));
+			}
+
+			for (Operation op : new Operation[] { Operation.SUM, Operation.OVERWRITE }) {
+				AssociationResultBlock expected = rows.get(0);
+				for (int i = 1; i < rows.size(); i++) {
+					expected = solver.union(expected, rows.get(i), op);
+				}
+
+				equals(solver.unionAll(rows, op), expected);
+			}
+		}
+
+		equals(solver.unionAll(new ArrayList<AssociationResultBlock>(), OP),
+				new AssociationResultBlock(0));
+	}
+
+	/**
+	 * Tests that pooled and in-place set operations calculate the same results
+	 * as the ones allocating new buffers.
+	 */
+	public void testPool01() {
+		ResultBlockPool pool = new ResultBlockPool(1 << 20);
+		FileAssociationSolver pooled = new FileAssociationSolver(null, null, pool);
+		FileAssociationSolver unpooled = new FileAssociationSolver(null, null,
+				new ResultBlockPool(0));
+		Random r = new Random(42);
+
+		for (int iter = 0; iter < 20; iter++) {
+			List<AssociationResultBlock> rows = new ArrayList<AssociationResultBlock>();
+
+			for (int i = 0; i < 6; i++) {
+				rows.add(randomRow(r, 2000 + r.nextInt(2000), 100));
+			}
+
+			AssociationResultBlock expected = unpooled.union(rows.get(0), rows.get(1), OP);
+			expected = unpooled.intersection(expected, rows.get(2), Operation.SUM);
+			expected = unpooled.minus(expected, rows.get(3));
+			expected = unpooled.unionAll(java.util.Arrays.asList(expected, rows.get(4),
+					rows.get(5)), Operation.SUM);
+
+			AssociationResultBlock union = pooled.union(rows.get(0), rows.get(1), OP);
+			int[] buffer = union.tos;
+			AssociationResultBlock actual = pooled.intersection(union, rows.get(2), Operation.SUM);
+
+			// Calculated in place
+			assertTrue(actual.tos == buffer);
+
+			actual = pooled.minus(actual, rows.get(3));
+			actual = pooled.unionAll(java.util.Arrays.asList(actual, rows.get(4), rows.get(5)),
+					Operation.SUM);
+
+			equals(actual, expected);
+			assertTrue(actual.pooled);
+			pool.release(actual);
+		}
+
+		// Released buffers are reused
+		AssociationResultBlock a = pool.acquire(1500);
+		int[] tos = a.tos;
+		assertEquals(tos.length, 2048);
+		pool.release(a);
+		assertEquals(a.tos, null);
+		assertTrue(pool.acquire(2000).tos == tos);
+
+		// Small results are not pooled
+		assertFalse(pool.acquire(100).pooled);
+	}
+
+	/**
+	 * Tests limiting results with offsets.
+	 */
+	public void testLimit() {
+		AssociationResultBlock r = row("1,2,3,4,5", "3,5,1,4,2");
+
+		// Sorted top-k
+		equals(solver.limit(r, 0, 3), row("2,4,1", "5,4,3"));
+
+		// Paging
+		equals(solver.limit(r, 2, 2), row("1,5", "3,2"));
+		equals(solver.limit(r, 4, 2), row("3", "1"));
+		equals(solver.limit(r, 5, 2), new AssociationResultBlock(0));
+
+		// Unlimited offset
+		equals(solver.limit(r, 3, 0), row("4,5", "4,2"));
+	}
+
+	/**
+	 * Tests that parallel set operations and limits calculate the same
+	 * results as the sequential ones.
+	 */
+	public void testParallel01() {
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		FileAssociationSolver parallel = new FileAssociationSolver(null);
+		parallel.setExecutor(executor, 4);
+
+		try {
+			Random r = new Random(42);
+			AssociationResultBlock a = randomRow(r, 300000, 1000);
+			AssociationResultBlock b = randomRow(r, 200000, 1000);
+
+			equals(parallel.union(a, b, Operation.SUM), solver.union(a, b, Operation.SUM));
+			equals(parallel.intersection(a, b, Operation.SUM),
+					solver.intersection(a, b, Operation.SUM));
+			equals(parallel.minus(a, b), solver.minus(a, b));
+			equals(parallel.limit(a, 10, 100), solver.limit(a, 10, 100));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Tests that the operand results of negated OR expressions are released.
+	 */
+	public void testNegatedOr01() throws Exception {
+		final List<AssociationResultBlock> solved = new ArrayList<AssociationResultBlock>();
+		final List<AssociationResultBlock> released = new ArrayList<AssociationResultBlock>();
+		final Expression negated = new Expression() {
+			private static final long serialVersionUID = 1L;
+		};
+
+		FileAssociationSolver solver = new FileAssociationSolver(null) {
+			@Override
+			protected AssociationResultBlock query(String phrase) {
+				AssociationResultBlock ret = row("1,2");
+				solved.add(ret);
+				return ret;
+			}
+
+			@Override
+			protected AssociationResultBlock solveExtended(Expression e) {
+				AssociationResultBlock ret = row("3");
+				ret.setNegated(true);
+				solved.add(ret);
+				return ret;
+			}
+
+			@Override
+			protected void release(AssociationResultBlock result) {
+				released.add(result);
+			}
+		};
+
+		// Negated operands are rejected before solving anything
+		try {
+			solver.solve(new Query(Restrictions.or(Restrictions.phrase("a"), Restrictions
+					.not("b"))).limit(0));
+			fail("Expected QueryExecutionException");
+		} catch (QueryExecutionException e) {
+		}
+
+		assertEquals(solved.size(), 0);
+
+		// Operands which turn out to be negated release all the results
+		for (int limit : new int[] { 0, 10 }) {
+			solved.clear();
+			released.clear();
+
+			try {
+				solver.solve(new Query(Restrictions.or(Restrictions.phrase("a"), negated,
+						Restrictions.phrase("c"))).limit(limit));
+				fail("Expected QueryExecutionException");
+			} catch (QueryExecutionException e) {
+			}
+
+			assertEquals(solved.size(), 3);
+			assertEquals(released, solved);
+		}
+	}
+
+	AssociationResultBlock randomRow(Random r, int size, int maxValue) {
+		AssociationResultBlock row = new AssociationResultBlock(size);
+
+		for (int i = 0, to = 0; i < size; i++) {
+			to += r.nextInt(3) + 1;
+			row.tos[i] = to;
+			row.values[i] = r.nextInt(maxValue);
+		}
+
+		return row;
+	}
+
 	void equals(AssociationResultBlock actual, AssociationResultBlock expected) {
 		assertEquals(actual.size, expected.size, "row size");
 
@@ -99,7 +375,7 @@ public class FileAssociationSolverTest {
 
 	AssociationResultBlock row(String tos, String values) {
 		String[] t = tos.split(",");
-		String[] v = tos.split(",");
+		String[] v = values.split(",");
 
 		assertEquals(t.length, v.length, "Array lengths must match");
 
@@ -12,6 +12,7 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -24,9 +25,12 @@ import java.util.regex.Pattern;
 import org.ogreg.ase4j.Association;
 import org.ogreg.ase4j.AssociationStore.Operation;
 import org.ogreg.ase4j.Params;
+import org.ogreg.ase4j.QueryIterator;
+import org.ogreg.ase4j.ResultPage;
 import org.ogreg.ase4j.TestData;
 import org.ogreg.ase4j.criteria.Query;
 import org.ogreg.ase4j.criteria.QueryExecutionException;
+import org.ogreg.ase4j.criteria.QueryProfile;
 import org.ogreg.ase4j.criteria.Restrictions;
 import org.ogreg.common.nio.NioUtils;
 import org.ogreg.ostore.ObjectStore;
@@ -342,6 +346,101 @@ public class FileAssociationStoreImplTest {
 		assertEquals(l.size(), 3);
 	}
 
+	/**
+	 * Tests prefix and wildcard searches.
+	 */
+	public void testQuery06() throws Exception {
+		File tf = FileTestSupport.createTempFile("assocs.idx");
+
+		simpleStore = new FileAssociationStoreImpl<String, String>();
+		simpleStore.setFromStore(sstore);
+		simpleStore.setToStore(sstore);
+		simpleStore.setStorageFile(tf);
+		simpleStore.init();
+
+		Collection<Association<String, String>> as = new LinkedList<Association<String, String>>();
+		as.add(assoc("house", "a", 1.0F));
+		as.add(assoc("house", "b", 0.5F));
+		as.add(assoc("housing", "b", 1.0F));
+		as.add(assoc("hose", "c", 0.1F));
+
+		simpleStore.addAll(as, null);
+		simpleStore.flush();
+
+		List<Association<String, String>> l;
+
+		// Prefix query
+		l = simpleStore.query(new Query(Restrictions.prefix("hous")).limit(10));
+		assertEquals(l.size(), 2);
+		assertEquals(l.get(0).to, "b");
+		assertEquals(l.get(0).value, 1.5F);
+		assertEquals(l.get(1).to, "a");
+
+		// Wildcard queries
+		l = simpleStore.query(new Query(Restrictions.wildcard("ho?se")).limit(10));
+		assertEquals(l.size(), 2);
+		l = simpleStore.query(new Query(Restrictions.wildcard("ho*e")).limit(10));
+		assertEquals(l.size(), 3);
+		l = simpleStore.query(new Query(Restrictions.wildcard("h*")).limit(10));
+		assertEquals(l.size(), 3);
+		l = simpleStore.query(new Query(Restrictions.wildcard("hose")).limit(10));
+		assertEquals(l.size(), 1);
+		l = simpleStore.query(new Query(Restrictions.prefix("x")).limit(10));
+		assertEquals(l.size(), 0);
+
+		// Expansion limit
+		simpleStore.setMaxPhraseExpansions(2);
+
+		try {
+			simpleStore.query(new Query(Restrictions.prefix("ho")).limit(10));
+			fail("Expected QueryExecutionException");
+		} catch (QueryExecutionException e) {
+		}
+	}
+
+	/**
+	 * Tests fuzzy searches.
+	 */
+	public void testQuery07() throws Exception {
+		File tf = FileTestSupport.createTempFile("assocs.idx");
+
+		simpleStore = new FileAssociationStoreImpl<String, String>();
+		simpleStore.setFromStore(sstore);
+		simpleStore.setToStore(sstore);
+		simpleStore.setStorageFile(tf);
+		simpleStore.init();
+
+		Collection<Association<String, String>> as = new LinkedList<Association<String, String>>();
+		as.add(assoc("house", "a", 1.0F));
+		as.add(assoc("hose", "a", 1.0F));
+		as.add(assoc("hose", "b", 1.0F));
+		as.add(assoc("horse", "c", 1.0F));
+		as.add(assoc("housing", "d", 1.0F));
+
+		simpleStore.addAll(as, null);
+		simpleStore.flush();
+
+		List<Association<String, String>> l;
+
+		// Associations are weighted by the edit distance
+		l = simpleStore.query(new Query(Restrictions.fuzzy("hose", 1)).limit(10));
+		assertEquals(l.size(), 3);
+		assertEquals(l.get(0).to, "a");
+		assertEquals(l.get(0).value, 1.5F);
+		assertEquals(l.get(1).to, "b");
+		assertEquals(l.get(1).value, 1.0F);
+		assertEquals(l.get(2).to, "c");
+		assertEquals(l.get(2).value, 0.5F);
+
+		l = simpleStore.query(new Query(Restrictions.fuzzy("hous", 1)).limit(10));
+		assertEquals(l.size(), 1);
+		assertEquals(l.get(0).value, 0.5F);
+		l = simpleStore.query(new Query(Restrictions.fuzzy("hous", 2)).limit(10));
+		assertEquals(l.size(), 3);
+		l = simpleStore.query(new Query(Restrictions.fuzzy("xyz", 1)).limit(10));
+		assertEquals(l.size(), 0);
+	}
+
 	/**
 	 * Tests filtered searches.
 	 */
@@ -415,6 +514,421 @@ public class FileAssociationStoreImplTest {
 		assertEquals(l.get(0).to.url, "bbb");
 	}
 
+	/**
+	 * Tests filters with multiple comparisons and missing values.
+	 */
+	public void testQuery05() throws Exception {
+		File tf = FileTestSupport.createTempFile("assocs.idx");
+
+		objStore = new FileAssociationStoreImpl<String, TestData>();
+		objStore.setFromStore(sstore);
+		objStore.setToStore(ostore);
+		objStore.setStorageFile(tf);
+		objStore.init();
+
+		Collection<Association<String, TestData>> as = new LinkedList<Association<String, TestData>>();
+		for (int i = 0; i < 10; i++) {
+			Date created = (i % 3 == 0) ? null : new Date(i);
+			as.add(assoc("a", data("u" + i, created, i * 10), i));
+		}
+
+		objStore.addAll(as, null);
+		objStore.flush();
+
+		List<Association<String, TestData>> l;
+
+		// Comparisons on dates, longs and strings (written in a non-optimal
+		// order)
+		l = objStore.query(new Query(Restrictions.phrase("a")).filter(Restrictions.and(
+				Restrictions.ne("url", "u5"), Restrictions.ge("created", new Date(2)),
+				Restrictions.lt("length", 80L))).limit(10));
+		assertEquals(l.size(), 3);
+		assertEquals(l.get(0).to.url, "u7");
+		assertEquals(l.get(1).to.url, "u4");
+		assertEquals(l.get(2).to.url, "u2");
+
+		// Missing values
+		l = objStore.query(new Query(Restrictions.phrase("a")).filter(Restrictions.ne("created",
+				new Date(1))));
+		assertEquals(l.size(), 9);
+
+		l = objStore.query(new Query(Restrictions.phrase("a")).filter(Restrictions.le("created",
+				new Date(100))));
+		assertEquals(l.size(), 6);
+	}
+
+	/**
+	 * Tests the query planner.
+	 */
+	public void testQuery03() throws Exception {
+		File tf = FileTestSupport.createTempFile("assocs.idx");
+
+		simpleStore = new FileAssociationStoreImpl<String, String>();
+		simpleStore.setFromStore(sstore);
+		simpleStore.setToStore(sstore);
+		simpleStore.setStorageFile(tf);
+		simpleStore.init();
+
+		Collection<Association<String, String>> as = new LinkedList<Association<String, String>>();
+		as.add(assoc("a", "b", 1.0F));
+		as.add(assoc("a", "d", 0.5F));
+		as.add(assoc("a", "e", 0.1F));
+		as.add(assoc("b", "d", 1.0F));
+		as.add(assoc("c", "d", 0.1F));
+		as.add(assoc("c", "e", 0.1F));
+
+		simpleStore.addAll(as, null);
+		simpleStore.flush();
+
+		final List<String> phrases = new LinkedList<String>();
+		FileAssociationSolver solver = new FileAssociationSolver(simpleStore) {
+			@Override
+			protected AssociationResultBlock query(String phrase) throws QueryExecutionException {
+				phrases.add(phrase);
+				return super.query(phrase);
+			}
+		};
+
+		AssociationResultBlock r;
+
+		// Smallest operand first, negated operands last
+		r = solver.solve(new Query(Restrictions.and(Restrictions.not("b"), Restrictions
+				.phrase("a"), Restrictions.phrase("c"))));
+		assertEquals(phrases.toString(), "[c, a, b]");
+		assertEquals(r.size(), 1);
+		assertEquals(r.values[0], 0.2F);
+
+		// Empty intersection short circuits
+		phrases.clear();
+		r = solver.solve(new Query(Restrictions.and(Restrictions.phrase("a"), Restrictions
+				.phrase("x"), Restrictions.phrase("c"))));
+		assertEquals(phrases.toString(), "[x]");
+		assertEquals(r.size(), 0);
+
+		// The written order is kept for non-commutative operations
+		phrases.clear();
+		r = solver.solve(new Query(Restrictions.and(Restrictions.phrase("a"), Restrictions
+				.phrase("c")), new Params(Operation.OVERWRITE)));
+		assertEquals(phrases.toString(), "[a, c]");
+		assertEquals(r.size(), 2);
+	}
+
+	/**
+	 * Tests sorted and paged queries.
+	 */
+	public void testQuery04() throws Exception {
+		File tf = FileTestSupport.createTempFile("assocs.idx");
+
+		simpleStore = new FileAssociationStoreImpl<String, String>();
+		simpleStore.setFromStore(sstore);
+		simpleStore.setToStore(sstore);
+		simpleStore.setStorageFile(tf);
+		simpleStore.init();
+
+		Collection<Association<String, String>> as = new LinkedList<Association<String, String>>();
+		for (int i = 0; i < 10; i++) {
+			as.add(assoc("a", "t" + i, i));
+			as.add(assoc("b", "t" + i, 10 - i));
+		}
+
+		simpleStore.addAll(as, null);
+		simpleStore.flush();
+
+		List<Association<String, String>> l;
+
+		// Sorted results
+		l = simpleStore.query(new Query(Restrictions.phrase("a")).limit(3));
+		assertEquals(toString(l), "[t9, t8, t7]");
+
+		l = simpleStore.query(new Query(Restrictions.or(Restrictions.phrase("a"), Restrictions
+				.phrase("b"))).filter(null).limit(3));
+		assertEquals(l.size(), 3);
+		assertEquals(l.get(0).value, 10.0F);
+
+		// Offset
+		l = simpleStore.query(new Query(Restrictions.phrase("a")).offset(3).limit(3));
+		assertEquals(toString(l), "[t6, t5, t4]");
+
+		// Pages
+		Query q = new Query(Restrictions.phrase("a")).limit(4);
+		ResultPage<String, String> p = simpleStore.queryPage(q);
+		assertEquals(toString(p.results), "[t9, t8, t7, t6]");
+		assertTrue(p.cursor != null);
+
+		// The snapshot is used for the next pages, even if the store changes
+		simpleStore.add("a", "t10", 10, null);
+		simpleStore.flush();
+
+		p = simpleStore.queryPage(q.offset(4).cursor(p.cursor));
+		assertEquals(toString(p.results), "[t5, t4, t3, t2]");
+
+		p = simpleStore.queryPage(q.offset(8).cursor(p.cursor));
+		assertEquals(toString(p.results), "[t1, t0]");
+		assertEquals(p.cursor, null);
+
+		// Unknown cursor: solving again
+		p = simpleStore.queryPage(q.offset(0).cursor("unknown"));
+		assertEquals(toString(p.results), "[t10, t9, t8, t7]");
+	}
+
+	/**
+	 * Tests iterating over query results page by page.
+	 */
+	public void testQueryIterator01() throws Exception {
+		File tf = FileTestSupport.createTempFile("assocs.idx");
+
+		simpleStore = new FileAssociationStoreImpl<String, String>();
+		simpleStore.setFromStore(sstore);
+		simpleStore.setToStore(sstore);
+		simpleStore.setStorageFile(tf);
+		simpleStore.init();
+
+		Collection<Association<String, String>> as = new LinkedList<Association<String, String>>();
+		for (int i = 0; i < 10; i++) {
+			as.add(assoc("a", "t" + i, i));
+		}
+
+		simpleStore.addAll(as, null);
+		simpleStore.flush();
+
+		List<Association<String, String>> l;
+
+		// Limited queries are iterated in order
+		Query q = new Query(Restrictions.phrase("a")).offset(1).limit(7);
+		l = toList(new QueryIterator<String, String>(simpleStore, q, 3));
+		assertEquals(toString(l), "[t8, t7, t6, t5, t4, t3, t2]");
+		assertEquals(q.offset(), 1);
+
+		// Unlimited queries are paged by the page size
+		Set<String> tos = new HashSet<String>();
+		for (Association<String, String> a : toList(new QueryIterator<String, String>(
+				simpleStore, new Query(Restrictions.phrase("a")).limit(0), 4))) {
+			tos.add(a.to);
+		}
+		assertEquals(tos.size(), 10);
+
+		ResultPage<String, String> p = simpleStore.queryPage(new Query(Restrictions.phrase("a"))
+				.limit(0).pageSize(4).offset(8));
+		assertEquals(p.results.size(), 2);
+		assertEquals(p.cursor, null);
+
+		// No results
+		l = toList(new QueryIterator<String, String>(simpleStore, new Query(Restrictions
+				.phrase("x")), 4));
+		assertEquals(l.size(), 0);
+	}
+
+	/**
+	 * Tests that the snapshots are tied to their queries, and bounded by
+	 * their memory.
+	 */
+	public void testQueryPage01() throws Exception {
+		File tf = FileTestSupport.createTempFile("assocs.idx");
+
+		simpleStore = new FileAssociationStoreImpl<String, String>();
+		simpleStore.setFromStore(sstore);
+		simpleStore.setToStore(sstore);
+		simpleStore.setStorageFile(tf);
+		simpleStore.init();
+
+		Collection<Association<String, String>> as = new LinkedList<Association<String, String>>();
+		for (int i = 0; i < 10; i++) {
+			as.add(assoc("a", "t" + i, i));
+			as.add(assoc("b", "t" + i, 10 - i));
+		}
+
+		simpleStore.addAll(as, null);
+		simpleStore.flush();
+
+		// No snapshot is kept if the results fit on the first page
+		ResultPage<String, String> p = simpleStore.queryPage(new Query(Restrictions.phrase("a"))
+				.limit(10));
+		assertEquals(p.results.size(), 10);
+		assertEquals(p.cursor, null);
+		assertEquals(simpleStore.getSnapshotUsage(), 0);
+
+		// The cursor can not be used with a different query
+		Query qa = new Query(Restrictions.phrase("a")).limit(4);
+		p = simpleStore.queryPage(qa);
+		assertTrue(simpleStore.getSnapshotUsage() > 0);
+
+		try {
+			simpleStore.queryPage(new Query(Restrictions.phrase("b")).limit(4).offset(4).cursor(
+					p.cursor));
+			fail("Expected QueryExecutionException");
+		} catch (QueryExecutionException e) {
+		}
+
+		// ...but it can be used with any limit
+		assertEquals(toString(simpleStore.queryPage(qa.copy().offset(4).limit(2).cursor(
+				p.cursor)).results), "[t5, t4]");
+
+		// The least recently used snapshots are dropped
+		long usage = simpleStore.getSnapshotUsage();
+		simpleStore.setSnapshotCacheSize(usage);
+
+		ResultPage<String, String> pb = simpleStore.queryPage(new Query(Restrictions
+				.phrase("b")).limit(4));
+		assertEquals(simpleStore.getSnapshotUsage(), usage);
+
+		// The dropped snapshot is solved again
+		p = simpleStore.queryPage(qa.copy().offset(4).cursor(p.cursor));
+		assertEquals(toString(p.results), "[t5, t4, t3, t2]");
+		assertTrue(p.cursor != null);
+
+		p = simpleStore.queryPage(new Query(Restrictions.phrase("b")).limit(4).offset(4).cursor(
+				pb.cursor));
+		assertEquals(toString(p.results), "[t4, t5, t6, t7]");
+	}
+
+	/**
+	 * Tests the query result cache.
+	 */
+	public void testQueryCache01() throws Exception {
+		File tf = FileTestSupport.createTempFile("assocs.idx");
+
+		simpleStore = new FileAssociationStoreImpl<String, String>();
+		simpleStore.setFromStore(sstore);
+		simpleStore.setToStore(sstore);
+		simpleStore.setStorageFile(tf);
+		simpleStore.init();
+
+		simpleStore.add("a", "t1", 1, null);
+		simpleStore.add("b", "t1", 2, null);
+		simpleStore.add("c", "t2", 3, null);
+		simpleStore.flush();
+
+		List<Association<String, String>> l;
+
+		// Commutative operands are normalized
+		l = simpleStore.query(new Query(Restrictions.and(Restrictions.phrase("a"), Restrictions
+				.phrase("b"))));
+		assertEquals(l.get(0).value, 3.0F);
+		l = simpleStore.query(new Query(Restrictions.and(Restrictions.phrase("b"), Restrictions
+				.phrase("a"))));
+		assertEquals(l.get(0).value, 3.0F);
+		assertEquals(simpleStore.getQueryCacheMisses(), 1);
+		assertEquals(simpleStore.getQueryCacheHits(), 1);
+
+		// ...but not for non-commutative operations
+		simpleStore.query(new Query(Restrictions.and(Restrictions.phrase("a"), Restrictions
+				.phrase("b")), new Params(Operation.OVERWRITE)));
+		simpleStore.query(new Query(Restrictions.and(Restrictions.phrase("b"), Restrictions
+				.phrase("a")), new Params(Operation.OVERWRITE)));
+		assertEquals(simpleStore.getQueryCacheMisses(), 3);
+
+		// Limit is part of the key
+		simpleStore.query(new Query(Restrictions.phrase("c")).limit(1));
+		simpleStore.query(new Query(Restrictions.phrase("c")).limit(1));
+		simpleStore.query(new Query(Restrictions.phrase("c")).limit(2));
+		assertEquals(simpleStore.getQueryCacheMisses(), 5);
+		assertEquals(simpleStore.getQueryCacheHits(), 2);
+		assertEquals(simpleStore.getQueryCacheHitRate(), 2.0 / 7);
+		assertTrue(simpleStore.getQueryCacheUsage() > 0);
+
+		// Unrelated updates do not invalidate the cached results
+		simpleStore.add("c", "t3", 1, null);
+		simpleStore.flush();
+		l = simpleStore.query(new Query(Restrictions.and(Restrictions.phrase("a"), Restrictions
+				.phrase("b"))));
+		assertEquals(l.get(0).value, 3.0F);
+		assertEquals(simpleStore.getQueryCacheHits(), 3);
+
+		// Updates of the dependencies do
+		simpleStore.add("b", "t1", 2, null);
+		simpleStore.flush();
+		l = simpleStore.query(new Query(Restrictions.and(Restrictions.phrase("a"), Restrictions
+				.phrase("b"))));
+		assertEquals(l.get(0).value, 5.0F);
+		assertEquals(simpleStore.getQueryCacheHits(), 3);
+
+		// Results of missing phrases are invalidated by new blocks
+		l = simpleStore.query(new Query(Restrictions.or(Restrictions.phrase("a"), Restrictions
+				.phrase("x"))));
+		assertEquals(l.size(), 1);
+		simpleStore.add("x", "t2", 1, null);
+		simpleStore.flush();
+		l = simpleStore.query(new Query(Restrictions.or(Restrictions.phrase("a"), Restrictions
+				.phrase("x"))));
+		assertEquals(l.size(), 2);
+
+		// Disabled cache
+		simpleStore.setQueryCacheSize(0);
+		assertEquals(simpleStore.getQueryCacheUsage(), 0);
+		simpleStore.query(new Query(Restrictions.phrase("c")).limit(1));
+		assertEquals(simpleStore.getQueryCacheHits(), 3);
+	}
+
+	/**
+	 * Tests query profiling.
+	 */
+	public void testProfile01() throws Exception {
+		File tf = FileTestSupport.createTempFile("assocs.idx");
+
+		simpleStore = new FileAssociationStoreImpl<String, String>();
+		simpleStore.setFromStore(sstore);
+		simpleStore.setToStore(sstore);
+		simpleStore.setStorageFile(tf);
+		simpleStore.init();
+
+		simpleStore.add("a", "t1", 1, null);
+		simpleStore.add("b", "t1", 2, null);
+		simpleStore.add("b", "t2", 1, null);
+		simpleStore.add("c", "t2", 3, null);
+		simpleStore.flush();
+
+		Query q = new Query(Restrictions.and(Restrictions.phrase("a"), Restrictions.phrase("b")))
+				.limit(10);
+		QueryProfile p = simpleStore.profile(q);
+
+		assertEquals(p.getOperator(), "query");
+		assertEquals(p.getOutputSize(), 1);
+		assertEquals(p.getCacheHits(), 0);
+		assertTrue(p.getNanos() > 0);
+
+		QueryProfile and = p.find("and");
+		assertEquals(and.getChildren().size(), 3);
+		assertEquals(and.getInputSize(), 3);
+		assertEquals(and.getOutputSize(), 1);
+
+		QueryProfile phrase = p.find("phrase");
+		assertEquals(phrase.getDetail(), "\"a\"");
+		assertEquals(phrase.getInputSize(), 1);
+		assertTrue(phrase.getBytesRead() > 0);
+
+		QueryProfile intersection = p.find("intersection");
+		assertEquals(intersection.getInputSize(), 3);
+		assertEquals(intersection.getOutputSize(), 1);
+		assertEquals(p.find("limit").getOutputSize(), 1);
+		assertEquals(p.find("materialize").getOutputSize(), 1);
+		assertTrue(p.toString().contains("phrase \"b\" (in: 2, out: 2"));
+
+		// Cached results
+		p = simpleStore.profile(q);
+		assertEquals(p.getCacheHits(), 1);
+		assertEquals(p.getOutputSize(), 1);
+		assertEquals(p.find("and"), null);
+
+		// Top-k unions
+		p = simpleStore.profile(new Query(Restrictions.or(Restrictions.phrase("a"), Restrictions
+				.phrase("c"))).limit(1));
+		assertEquals(p.getOutputSize(), 1);
+		assertEquals(p.find("or").getChildren().size(), 3);
+		assertEquals(p.find("unionTop").getInputSize(), 2);
+
+		// Parallel queries
+		simpleStore.setQueryCacheSize(0);
+		simpleStore.setQueryParallelism(4);
+		p = simpleStore.profile(new Query(Restrictions.or(Restrictions.phrase("a"), Restrictions
+				.phrase("b"), Restrictions.phrase("c"))).limit(0));
+		assertEquals(p.getOutputSize(), 2);
+		assertEquals(p.find("or").getChildren().size(), 4);
+		assertEquals(p.find("unionAll").getInputSize(), 4);
+
+		assertEquals(simpleStore.getSlowQueryCount(), 0);
+		assertEquals(simpleStore.getLastSlowQuery(), null);
+	}
+
 	/**
 	 * Tests invalid queries.
 	 */
@@ -482,6 +996,26 @@ public class FileAssociationStoreImplTest {
 		simpleStore.getStorageFile();
 	}
 
+	<T> String toString(List<Association<String, T>> assocs) {
+		List<T> tos = new LinkedList<T>();
+
+		for (Association<String, T> a : assocs) {
+			tos.add(a.to);
+		}
+
+		return tos.toString();
+	}
+
+	<T> List<Association<String, T>> toList(Iterator<Association<String, T>> it) {
+		List<Association<String, T>> ret = new LinkedList<Association<String, T>>();
+
+		while (it.hasNext()) {
+			ret.add(it.next());
+		}
+
+		return ret;
+	}
+
 	<T> Association<String, T> assoc(String from, T to, float value) {
 		return new Association<String, T>(from, to, value);
 	}
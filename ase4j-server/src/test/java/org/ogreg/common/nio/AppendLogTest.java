@@ -0,0 +1,141 @@
+package org.ogreg.common.nio;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ogreg.test.FileTestSupport;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link AppendLog}.
+ * 
+ * @author Gergely Kiss
+ */
+@Test(groups = "correctness")
+public class AppendLogTest {
+
+	/**
+	 * Tests that the records are buffered, and written in order.
+	 */
+	public void testAppend01() throws Exception {
+		File file = new File(FileTestSupport.createTempDir("alog"), "test.log");
+		FileChannel ch = new RandomAccessFile(file, "rw").getChannel();
+		NioUtils.writeInt(ch, 42);
+
+		AppendLog log = new AppendLog(ch, 8, 0, false);
+
+		log.append(record(1));
+		assertEquals(ch.size(), 4);
+
+		log.append(record(2));
+		assertEquals(ch.size(), 4);
+
+		// Does not fit, writes the buffer
+		log.append(record(3));
+		assertEquals(ch.size(), 12);
+
+		// Larger than the buffer, written directly after the buffer
+		ByteBuffer large = ByteBuffer.allocate(12);
+		large.putInt(4).putInt(5).putInt(6).flip();
+		log.append(large);
+		assertEquals(ch.size(), 28);
+
+		log.append(record(7));
+		log.close();
+		assertEquals(ch.size(), 32);
+
+		ch.position(0);
+		for (int i = 0; i < 8; i++) {
+			assertEquals(NioUtils.readInt(ch), (i == 0) ? 42 : i);
+		}
+
+		ch.close();
+	}
+
+	/**
+	 * Tests that the buffer is written when the flush interval elapses.
+	 */
+	public void testAppend02() throws Exception {
+		File file = new File(FileTestSupport.createTempDir("alog"), "test.log");
+		FileChannel ch = new RandomAccessFile(file, "rw").getChannel();
+
+		AppendLog log = new AppendLog(ch, 1024, 10, false);
+		log.append(record(1));
+
+		for (int i = 0; (i < 100) && (ch.size() == 0); i++) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(ch.size(), 4);
+
+		log.close();
+		ch.close();
+	}
+
+	/**
+	 * Tests that the concurrent synchronous appends are all written.
+	 */
+	public void testSync01() throws Exception {
+		File file = new File(FileTestSupport.createTempDir("alog"), "test.log");
+		final FileChannel ch = new RandomAccessFile(file, "rw").getChannel();
+		final AppendLog log = new AppendLog(ch, 64, 0, true);
+		final int THREADS = 4;
+		final int RECORDS = 200;
+		final List<Throwable> errors = new ArrayList<Throwable>();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; t++) {
+			final int base = t * RECORDS;
+
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < RECORDS; i++) {
+							log.append(record(base + i));
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			});
+		}
+
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(errors, new ArrayList<Throwable>());
+		assertEquals(ch.size(), THREADS * RECORDS * 4);
+
+		Set<Integer> values = new HashSet<Integer>();
+		ch.position(0);
+		for (int i = 0; i < THREADS * RECORDS; i++) {
+			values.add(NioUtils.readInt(ch));
+		}
+		assertEquals(values.size(), THREADS * RECORDS);
+
+		log.close();
+		ch.close();
+	}
+
+	static ByteBuffer record(int value) {
+		ByteBuffer buf = ByteBuffer.allocate(4);
+		buf.putInt(value);
+		buf.flip();
+		return buf;
+	}
+}
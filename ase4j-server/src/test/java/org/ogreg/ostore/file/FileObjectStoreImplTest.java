@@ -1,6 +1,7 @@
 package org.ogreg.ostore.file;
 
 import org.ogreg.common.ConfigurationException;
+import org.ogreg.common.Operator;
 import org.ogreg.common.dynamo.DynamicObject;
 import org.ogreg.common.dynamo.DynamicType;
 import org.ogreg.common.nio.serializer.SerializerManager;
@@ -12,6 +13,7 @@ import org.ogreg.ostore.ObjectStoreManager;
 import org.ogreg.test.FileTestSupport;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
 import org.testng.annotations.BeforeMethod;
@@ -20,9 +22,11 @@ import org.testng.annotations.Test;
 import java.io.File;
 import java.io.IOException;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 
@@ -81,6 +85,151 @@ public class FileObjectStoreImplTest {
         store = config.getStore("test", dir);
     }
 
+    /**
+     * Tests the batch get operation with the object store.
+     */
+    @Test public void testGetAll01() throws Exception {
+        store = config.getStore("test", FileTestSupport.createTempDir("ostore"));
+
+        for (int i = 1; i <= 10; i++) {
+            store.add(i, data(i, "v" + i, new Date(i)));
+        }
+
+        // Updated entities are appended, so the file order differs from the key order
+        store.add(3, data(3, "updated value", new Date(33)));
+
+        long[] ids = new long[] { 7, 3, 1, 3, 10 };
+        List<TestData> results = store.getAll(ids);
+
+        assertEquals(results.size(), ids.length);
+
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(results.get(i), store.get(ids[i]));
+        }
+
+        assertEquals(results.get(1), data(3, "updated value", new Date(33)));
+        assertEquals(store.getAll(new long[0]).size(), 0);
+    }
+
+    /**
+     * Tests the entity cache of the object store.
+     */
+    @Test public void testCache01() throws Exception {
+        store = config.getStore("testCached", FileTestSupport.createTempDir("ostore"));
+
+        FileObjectStoreImpl<TestData> fstore = (FileObjectStoreImpl<TestData>) store;
+        assertEquals(fstore.getCacheSize(), 4);
+
+        for (int i = 1; i <= 10; i++) {
+            store.add(i, data(i, "v" + i, new Date(i)));
+        }
+
+        // The second get is a hit
+        TestData d1 = store.get(1);
+        assertTrue(store.get(1) == d1);
+        assertEquals(fstore.getCacheHits(), 1);
+        assertEquals(fstore.getCacheMisses(), 1);
+
+        // Updates invalidate the cached entity
+        store.saveOrUpdate(data(1, "v1", new Date(11)));
+        assertEquals(store.get(1), data(1, "v1", new Date(11)));
+        assertEquals(fstore.getCacheMisses(), 2);
+
+        // Batch gets load the missing entities only, the least recently used are evicted
+        List<TestData> results = store.getAll(new long[] { 1, 2, 3, 4, 5 });
+        assertEquals(results.get(4), data(5, "v5", new Date(5)));
+        assertEquals(fstore.getCacheHits(), 2);
+        assertEquals(fstore.getCacheMisses(), 6);
+
+        store.get(1);
+        assertEquals(fstore.getCacheMisses(), 7);
+        store.get(5);
+        assertEquals(fstore.getCacheHits(), 3);
+        assertEquals(fstore.getCacheHitRate(), 0.3, 0.0001);
+    }
+
+    /**
+     * Tests the batch save operation with the object store.
+     */
+    @Test public void testSaveAll01() throws Exception {
+        File dir = FileTestSupport.createTempDir("ostore");
+        store = config.getStore("testIndexed", dir);
+
+        TestData d1 = data(1, "abc", new Date(3));
+        long id1 = store.save(d1);
+
+        // Duplicates and already stored entities are resolved
+        List<TestData> entities = new ArrayList<TestData>();
+        entities.add(data(2, "def", new Date(5)));
+        entities.add(data(3, "abc", new Date(7)));
+        entities.add(data(4, "ghi", new Date(5)));
+        entities.add(data(5, "def", new Date(9)));
+
+        long[] ids = store.saveAll(entities);
+
+        assertEquals(ids[1], id1);
+        assertEquals(ids[3], ids[0]);
+        assertTrue(ids[0] != ids[2]);
+        assertEquals(store.saveAll(new ArrayList<TestData>()).length, 0);
+
+        // The first of the duplicates is stored, existing entities are not updated
+        assertEquals(store.get(id1), d1);
+        assertEquals(store.get(ids[0]), data(2, "def", new Date(5)));
+        assertEquals(store.get(ids[2]), data(4, "ghi", new Date(5)));
+        assertEquals(store.uniqueResult("url", "ghi"), Long.valueOf(ids[2]));
+        assertEquals(store.indexedResults("added", Operator.EQ, new Date(5)).cardinality(), 2);
+
+        // Saving again returns the same ids
+        entities.add(data(6, "jkl", new Date(11)));
+
+        long[] ids2 = store.saveAll(entities);
+
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids2[i], ids[i]);
+        }
+
+        assertEquals(store.get(ids2[4]), data(6, "jkl", new Date(11)));
+        assertEquals(store.save(data(7, "jkl", null)), ids2[4]);
+    }
+
+    /**
+     * Tests the secondary indices of the object store.
+     */
+    @Test public void testIndex01() throws Exception {
+        File dir = FileTestSupport.createTempDir("ostore");
+        store = config.getStore("testIndexed", dir);
+
+        for (int i = 1; i <= 10; i++) {
+            store.add(i, data(i % 3, "v" + i, new Date(i)));
+        }
+
+        // Updates are reindexed
+        store.add(5, data(1, "v5", new Date(50)));
+
+        assertEquals(store.indexedResults("id", Operator.EQ, 1).toString(), "{1, 4, 5, 7, 10}");
+        assertEquals(store.indexedResults("id", Operator.NE, 1), null);
+        assertEquals(store.indexedResults("added", Operator.GT, new Date(8)).toString(), "{5, 9, 10}");
+        assertEquals(store.indexedResults("added", Operator.LE, new Date(3)).toString(), "{1, 2, 3}");
+        assertEquals(store.indexedResults("added", Operator.LT, new Date(3)).toString(), "{1, 2}");
+        assertEquals(store.indexedResults("added", Operator.GE, new Date(11)).toString(), "{5}");
+        assertEquals(store.indexedResults("added", Operator.EQ, new Date(5)).toString(), "{}");
+        assertEquals(store.indexedResults("url", Operator.EQ, "v1"), null);
+
+        // Testing store reopen
+        store.flush();
+        config.closeStore("testIndexed");
+        store = config.getStore("testIndexed", dir);
+
+        assertEquals(store.indexedResults("id", Operator.EQ, 1).toString(), "{1, 4, 5, 7, 10}");
+
+        // Testing index rebuild
+        config.closeStore("testIndexed");
+        assertTrue(ObjectStoreManager.getPropertyIndexFile(dir, "added").delete());
+        store = config.getStore("testIndexed", dir);
+
+        assertEquals(store.indexedResults("added", Operator.GT, new Date(8)).toString(), "{5, 9, 10}");
+    }
+
     /**
      * Tests the add operation with the dynamic object store.
      */
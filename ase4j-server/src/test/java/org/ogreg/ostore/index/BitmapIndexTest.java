@@ -0,0 +1,68 @@
+package org.ogreg.ostore.index;
+
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.ogreg.common.Operator;
+import org.ogreg.test.FileTestSupport;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link BitmapIndex}.
+ * 
+ * @author Gergely Kiss
+ */
+@Test(groups = "correctness")
+public class BitmapIndexTest {
+
+	/**
+	 * Tests that the selections match the scan of the values, with random
+	 * inserts and updates.
+	 */
+	public void testSelect01() throws Exception {
+		File file = new File(FileTestSupport.createTempDir("bindex"), "test.pix");
+		Random rnd = new Random(42);
+		Map<Integer, Object> values = new HashMap<Integer, Object>();
+
+		BitmapIndex idx = new BitmapIndex();
+		idx.loadFrom(file, Collections.<String, String> emptyMap());
+
+		for (int i = 0; i < 2000; i++) {
+			int id = (rnd.nextInt(4) == 0) ? rnd.nextInt(i + 1) : i;
+			Integer value = (rnd.nextInt(10) == 0) ? null : Integer.valueOf(rnd.nextInt(5));
+
+			idx.update(id, values.get(id), value);
+			values.put(id, value);
+		}
+
+		RangeIndexTest.assertSelects(idx, values, -1, 0, 2, 4, 5, 2L, "2", null);
+
+		// Testing reload
+		idx.saveTo(file);
+		idx = new BitmapIndex();
+		idx.loadFrom(file, Collections.<String, String> emptyMap());
+
+		RangeIndexTest.assertSelects(idx, values, 0, 2, 4);
+	}
+
+	/**
+	 * Tests that the nulls are scanned.
+	 */
+	public void testSelect02() throws Exception {
+		BitmapIndex idx = new BitmapIndex();
+		idx.loadFrom(new File(FileTestSupport.createTempDir("bindex"), "test.pix"),
+				Collections.<String, String> emptyMap());
+
+		idx.update(1, null, null);
+
+		assertTrue(idx.isEmpty());
+		assertNull(idx.select(Operator.NE, 1));
+		assertNull(idx.select(Operator.EQ, null));
+	}
+}
@@ -0,0 +1,119 @@
+package org.ogreg.ostore.index;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.ogreg.ase4j.criteria.Predicate;
+import org.ogreg.common.Operator;
+import org.ogreg.test.FileTestSupport;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link RangeIndex}.
+ * 
+ * @author Gergely Kiss
+ */
+@Test(groups = "correctness")
+public class RangeIndexTest {
+	static final Operator[] OPS = { Operator.EQ, Operator.NE, Operator.GE, Operator.GT,
+			Operator.LE, Operator.LT };
+
+	/**
+	 * Tests that the selections match the scan of the values, with random
+	 * inserts and updates.
+	 */
+	public void testSelect01() throws Exception {
+		File file = new File(FileTestSupport.createTempDir("rindex"), "test.pix");
+		Random rnd = new Random(42);
+		Map<Integer, Object> values = new HashMap<Integer, Object>();
+
+		RangeIndex<Long> idx = new RangeIndex<Long>();
+		idx.loadFrom(file, Collections.<String, String> emptyMap());
+
+		// Mostly ascending identifiers, with some updates and nulls
+		for (int i = 0; i < 2000; i++) {
+			int id = (rnd.nextInt(4) == 0) ? rnd.nextInt(i + 1) : i;
+			Long value = (rnd.nextInt(10) == 0) ? null : Long.valueOf(rnd.nextInt(100));
+
+			idx.update(id, values.get(id), value);
+			values.put(id, value);
+		}
+
+		assertSelects(idx, values, -1L, 0L, 42L, 99L, 100L, null);
+
+		// Testing reload
+		idx.saveTo(file);
+		idx = new RangeIndex<Long>();
+		idx.loadFrom(file, Collections.<String, String> emptyMap());
+
+		assertSelects(idx, values, 0L, 42L, 99L);
+
+		// Operands of other types are scanned
+		assertNull(idx.select(Operator.EQ, 42));
+	}
+
+	/**
+	 * Tests that the nulls are scanned when nothing was indexed.
+	 */
+	public void testSelect02() throws Exception {
+		RangeIndex<Long> idx = new RangeIndex<Long>();
+		idx.loadFrom(new File(FileTestSupport.createTempDir("rindex"), "test.pix"),
+				Collections.<String, String> emptyMap());
+
+		assertTrue(idx.isEmpty());
+
+		idx.update(1, null, null);
+
+		for (Operator op : OPS) {
+			assertNull(idx.select(op, 1L));
+		}
+
+		// Removed values leave the index non-empty, but answer nothing
+		idx.update(2, null, 1L);
+		idx.update(2, 1L, null);
+
+		assertFalse(idx.isEmpty());
+		assertEquals(idx.select(Operator.GE, 0L), new BitSet());
+	}
+
+	/**
+	 * Asserts that the index selects the same identifiers as the scan of the
+	 * <code>values</code>, for every operator, unless it can not answer.
+	 */
+	static void assertSelects(PropertyIndex idx, Map<Integer, Object> values,
+			Object... operands) {
+
+		for (Object operand : operands) {
+
+			for (Operator op : OPS) {
+				BitSet actual = idx.select(op, operand);
+
+				if (actual == null) {
+					continue;
+				}
+
+				Predicate p = Predicate.compile(op, operand);
+				BitSet expected = new BitSet();
+
+				for (Entry<Integer, Object> e : values.entrySet()) {
+
+					if (p.matches(e.getValue())) {
+						expected.set(e.getKey());
+					}
+				}
+
+				assertEquals(actual, expected, op + " " + operand);
+			}
+		}
+	}
+}
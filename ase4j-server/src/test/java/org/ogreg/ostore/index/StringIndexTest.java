@@ -0,0 +1,254 @@
+package org.ogreg.ostore.index;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.ogreg.common.utils.FileUtils;
+import org.ogreg.common.utils.SerializationUtils;
+import org.ogreg.test.FileTestSupport;
+import org.ogreg.util.MappedTrie;
+import org.ogreg.util.Trie;
+import org.ogreg.util.TrieDictionary;
+import org.ogreg.util.TrieSerializer;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the persistence of the {@link StringIndex}.
+ * 
+ * @author Gergely Kiss
+ */
+@Test(groups = "correctness")
+public class StringIndexTest {
+
+	/**
+	 * Tests that the saves are journaled, and the journals are compacted.
+	 */
+	public void testSave01() throws Exception {
+		File file = new File(FileTestSupport.createTempDir("sindex"), "test.uix");
+		Map<String, String> params = params("1");
+
+		StringIndex idx = new StringIndex();
+		idx.loadFrom(file, params);
+		idx.setKey("abc", 1);
+		idx.setKey("abd", 2);
+		idx.saveTo(file);
+		idx.awaitCompaction();
+
+		// The first journal is compacted into a snapshot
+		assertTrue(file.exists());
+		assertFalse(StringIndex.getCompactedJournalFile(file).exists());
+
+		idx.setKey("xyz", 3);
+		idx.setKey("abc", 4);
+		idx.saveTo(file);
+
+		// The journal is smaller than the snapshot, so it is kept
+		long snapshotLength = file.length();
+		assertTrue(StringIndex.getJournalFile(file).length() > 0);
+
+		StringIndex loaded = new StringIndex();
+		loaded.loadFrom(file, params);
+
+		assertEquals(loaded.getKey("abc"), Long.valueOf(4));
+		assertEquals(loaded.getKey("abd"), Long.valueOf(2));
+		assertEquals(loaded.getKey("xyz"), Long.valueOf(3));
+		assertNull(loaded.getKey("ab"));
+
+		// Saving without new keys does not grow the journal
+		long journalLength = StringIndex.getJournalFile(file).length();
+		loaded.saveTo(file);
+		assertEquals(StringIndex.getJournalFile(file).length(), journalLength);
+
+		for (int i = 0; i < 100; i++) {
+			loaded.setKey("word" + i, 100 + i);
+		}
+
+		loaded.saveTo(file);
+		loaded.awaitCompaction();
+
+		assertTrue(file.length() > snapshotLength);
+		assertFalse(StringIndex.getJournalFile(file).exists());
+
+		StringIndex compacted = new StringIndex();
+		compacted.loadFrom(file, params);
+
+		assertEquals(compacted.getKey("abc"), Long.valueOf(4));
+		assertEquals(compacted.getKey("word99"), Long.valueOf(199));
+	}
+
+	/**
+	 * Tests that an incomplete journal record is truncated.
+	 */
+	public void testSave02() throws Exception {
+		File file = new File(FileTestSupport.createTempDir("sindex"), "test.uix");
+		Map<String, String> params = params(null);
+
+		StringIndex idx = new StringIndex();
+		idx.loadFrom(file, params);
+		idx.setKey("abc", 1);
+		idx.saveTo(file);
+
+		File journal = StringIndex.getJournalFile(file);
+		long length = journal.length();
+		append(journal, new byte[] { 0, 0, 0, 5, 1 });
+
+		StringIndex loaded = new StringIndex();
+		loaded.loadFrom(file, params);
+
+		assertEquals(loaded.getKey("abc"), Long.valueOf(1));
+		assertEquals(journal.length(), length);
+
+		loaded.setKey("abd", 2);
+		loaded.saveTo(file);
+
+		loaded = new StringIndex();
+		loaded.loadFrom(file, params);
+
+		assertEquals(loaded.getKey("abd"), Long.valueOf(2));
+	}
+
+	/**
+	 * Tests that the snapshot of an interrupted compaction is only promoted if
+	 * it was completely written, otherwise the journals are replayed.
+	 */
+	public void testSave03() throws Exception {
+		File file = new File(FileTestSupport.createTempDir("sindex"), "test.uix");
+		Map<String, String> params = params(null);
+
+		StringIndex idx = new StringIndex();
+		idx.loadFrom(file, params);
+		idx.setKey("abc", 1);
+		idx.saveTo(file);
+
+		// The compaction renames the journal, and writes the snapshot
+		File snapshot = StringIndex.getSnapshotFile(file);
+		FileUtils.renameTo(StringIndex.getJournalFile(file),
+				StringIndex.getCompactedJournalFile(file));
+		idx.setKey("abd", 2);
+		idx.saveTo(file);
+
+		Trie<Integer> trie = new Trie<Integer>(TrieDictionary.createByName("EN"));
+		trie.set("abc", 1);
+		MappedTrie.write(new MappedTrie(trie), snapshot);
+
+		RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
+
+		try {
+			raf.setLength(raf.length() - 1);
+		} finally {
+			raf.close();
+		}
+
+		StringIndex loaded = new StringIndex();
+		loaded.loadFrom(file, params);
+
+		assertFalse(snapshot.exists());
+		assertFalse(file.exists());
+		assertEquals(loaded.getKey("abc"), Long.valueOf(1));
+		assertEquals(loaded.getKey("abd"), Long.valueOf(2));
+
+		// A complete snapshot is promoted
+		MappedTrie.write(new MappedTrie(trie), snapshot);
+
+		loaded = new StringIndex();
+		loaded.loadFrom(file, params);
+
+		assertFalse(snapshot.exists());
+		assertTrue(MappedTrie.isMappedTrie(file));
+		assertEquals(loaded.getKey("abc"), Long.valueOf(1));
+		assertEquals(loaded.getKey("abd"), Long.valueOf(2));
+	}
+
+	/**
+	 * Tests that Java serialized indices are loaded, and replaced by a
+	 * snapshot.
+	 */
+	public void testLegacy01() throws Exception {
+		File file = new File(FileTestSupport.createTempDir("sindex"), "test.uix");
+		Map<String, String> params = params(null);
+
+		StringIndex idx = new StringIndex();
+		idx.loadFrom(file, params);
+		idx.setKey("abc", 1);
+		SerializationUtils.write(file, idx);
+
+		StringIndex loaded = new StringIndex();
+		loaded.loadFrom(file, params);
+		assertEquals(loaded.getKey("abc"), Long.valueOf(1));
+
+		loaded.setKey("abd", 2);
+		loaded.saveTo(file);
+		assertFalse(StringIndex.getJournalFile(file).length() > 0);
+
+		loaded = new StringIndex();
+		loaded.loadFrom(file, params);
+
+		assertEquals(loaded.getKey("abc"), Long.valueOf(1));
+		assertEquals(loaded.getKey("abd"), Long.valueOf(2));
+	}
+
+	/**
+	 * Tests that the snapshots of the previous version are loaded, and
+	 * replaced by a mapped snapshot.
+	 */
+	public void testLegacy02() throws Exception {
+		File file = new File(FileTestSupport.createTempDir("sindex"), "test.uix");
+		Map<String, String> params = params(null);
+
+		Trie<Integer> trie = new Trie<Integer>();
+		trie.set("abc", 1);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+			FileChannel channel = raf.getChannel();
+			channel.write(ByteBuffer.wrap(new byte[] { 'S', 'I', 'D', 'X' }));
+			new TrieSerializer<Integer>(Integer.class).serialize(trie, channel);
+		} finally {
+			raf.close();
+		}
+
+		StringIndex loaded = new StringIndex();
+		loaded.loadFrom(file, params);
+		assertEquals(loaded.getKey("abc"), Long.valueOf(1));
+
+		loaded.saveTo(file);
+		assertTrue(MappedTrie.isMappedTrie(file));
+
+		loaded = new StringIndex();
+		loaded.loadFrom(file, params);
+		assertEquals(loaded.getKey("abc"), Long.valueOf(1));
+	}
+
+	private Map<String, String> params(String journalLimit) {
+		Map<String, String> ret = new HashMap<String, String>();
+		ret.put("dictionary", "EN");
+
+		if (journalLimit != null) {
+			ret.put("journalLimit", journalLimit);
+		}
+
+		return ret;
+	}
+
+	private void append(File file, byte[] bytes) throws IOException {
+		FileOutputStream os = new FileOutputStream(file, true);
+
+		try {
+			os.write(bytes);
+		} finally {
+			os.close();
+		}
+	}
+}
@@ -31,6 +31,9 @@ public class StringStoreBenchmark {
 		File file2 = FileTestSupport.createTempFile("sstore-2.ser");
 		File file3 = FileTestSupport.createTempFile("sstore-3.ser");
 
+		Result res;
+
+		Benchmark.start();
 		StringStore store = new StringStore();
 		store.init(null, dir, new HashMap<String, String>());
 
@@ -38,7 +41,9 @@ public class StringStoreBenchmark {
 			store.save(word);
 		}
 
-		Result res;
+		res = Benchmark.stop();
+		System.err.printf("%d saves completed in %d ms using %d Kb mem\n", ITERATIONS,
+				res.time(TimeUnit.MILLISECONDS), res.memory() / 1024);
 
 		Benchmark.start();
 		store.flush();
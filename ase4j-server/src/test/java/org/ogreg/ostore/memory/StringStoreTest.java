@@ -3,8 +3,15 @@ package org.ogreg.ostore.memory;
 import static org.testng.Assert.assertEquals;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
 
 import org.ogreg.test.FileTestSupport;
 import org.ogreg.test.TestUtils;
@@ -65,6 +72,146 @@ public class StringStoreTest {
 		}
 	}
 
+	/**
+	 * Tests that the new strings get new identifiers after reloading the
+	 * store.
+	 */
+	public void testAdd03() throws Exception {
+		File dir = FileTestSupport.createTempDir("sstore");
+		StringStore store = new StringStore();
+		store.init(null, dir, new HashMap<String, String>());
+
+		assertEquals(store.save("aaa"), 0);
+		assertEquals(store.save("bbb"), 1);
+		store.flush();
+
+		store = new StringStore();
+		store.init(null, dir, new HashMap<String, String>());
+
+		assertEquals(store.save("bbb"), 1);
+		assertEquals(store.save("ccc"), 2);
+		assertEquals(store.get(0), "aaa");
+		assertEquals(store.getObjectCount(), 3);
+	}
+
+	/**
+	 * Tests reloading a store of realistic size, with remapped strings.
+	 */
+	public void testAdd04() throws Exception {
+		File dir = FileTestSupport.createTempDir("sstore");
+		StringStore store = new StringStore();
+		store.init(null, dir, new HashMap<String, String>());
+
+		List<String> words = TestUtils.randomWords(300000, 31);
+		TreeMap<String, Long> expected = new TreeMap<String, Long>();
+
+		for (String word : words) {
+			expected.put(word, store.save(word));
+		}
+
+		// Remapping every hundredth string to a new identifier
+		int next = expected.size();
+
+		for (int i = 0; i < words.size(); i += 100) {
+			store.add(next, words.get(i));
+			expected.put(words.get(i), Long.valueOf(next++));
+		}
+
+		store.close();
+
+		store = new StringStore();
+		store.init(null, dir, new HashMap<String, String>());
+
+		assertEquals(store.prefixResults("", "", null, expected.size() + 1), expected);
+		assertEquals(store.uniqueResult("", words.get(100)), expected.get(words.get(100)));
+		assertEquals(store.save("new word"), next);
+		store.close();
+	}
+
+	/**
+	 * Tests that an incomplete last string is truncated, and the buffered
+	 * strings are written when the store is closed.
+	 */
+	public void testRecovery01() throws Exception {
+		File dir = FileTestSupport.createTempDir("sstore");
+		StringStore store = new StringStore();
+		store.init(null, dir, new HashMap<String, String>());
+
+		store.save("aaa");
+		store.save("bbb");
+		store.close();
+
+		// An interrupted write of a string
+		File file = new File(dir, "strings.prop");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+
+		store = new StringStore();
+		store.init(null, dir, new HashMap<String, String>());
+
+		assertEquals(store.get(0), "aaa");
+		assertEquals(store.get(1), null);
+		assertEquals(store.save("ccc"), 1);
+		store.close();
+
+		store = new StringStore();
+		store.init(null, dir, new HashMap<String, String>());
+
+		assertEquals(store.get(0), "aaa");
+		assertEquals(store.get(1), "ccc");
+		assertEquals(store.getObjectCount(), 2);
+		store.close();
+	}
+
+	/**
+	 * Tests prefix and similarity queries, in the order of the strings.
+	 */
+	public void testQuery01() throws Exception {
+		File dir = FileTestSupport.createTempDir("sstore");
+		StringStore store = new StringStore();
+		store.init(null, dir, new HashMap<String, String>());
+
+		List<String> words = TestUtils.randomWords(5000, 15);
+		TreeMap<String, Long> expected = new TreeMap<String, Long>();
+
+		for (String word : words) {
+			expected.put(word, store.save(word));
+
+			// Querying between the saves
+			if (expected.size() % 1000 == 0) {
+				assertEquals(new ArrayList<String>(store.prefixResults("", "", null, 10).keySet()),
+						new ArrayList<String>(expected.keySet()).subList(0, 10));
+			}
+		}
+
+		String prefix = words.get(0).substring(0, 1);
+		Map<String, Long> results = store.prefixResults("", prefix, null, 10000);
+		assertEquals(new ArrayList<String>(results.keySet()), new ArrayList<String>(expected
+				.subMap(prefix, prefix + Character.MAX_VALUE).keySet()));
+
+		List<String> matching = new ArrayList<String>();
+		for (String word : results.keySet()) {
+			if (word.endsWith("a")) {
+				matching.add(word);
+			}
+		}
+
+		assertEquals(new ArrayList<String>(store.prefixResults("", prefix, Pattern.compile(".*a"),
+				10000).keySet()), matching);
+
+		store.add(9999, "hello");
+		store.add(10000, "hello");
+		store.add(10001, "hellp");
+
+		assertEquals(store.uniqueResult("", "hello"), Long.valueOf(10000));
+		assertEquals(store.get(9999), "hello");
+		assertEquals(store.prefixResults("", "hell", null, 10).toString(),
+				"{hello=10000, hellp=10001}");
+		assertEquals(store.similarResults("", "hello", 1, 10).keySet(), new HashSet<Long>(
+				Arrays.asList(10000L, 10001L)));
+	}
+
 	/**
 	 * Tests some corner cases.
 	 */
@@ -0,0 +1,121 @@
+package org.ogreg.ostore.memory;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.ogreg.test.TestUtils;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link StringTable}.
+ * 
+ * @author Gergely Kiss
+ */
+@Test(groups = "correctness")
+public class StringTableTest {
+
+	/**
+	 * Tests that the strings are iterated in order, with remapped strings,
+	 * between the merges of the pending records.
+	 */
+	public void testIterator01() {
+		StringTable table = new StringTable();
+		TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+		List<String> words = TestUtils.randomWords(1000, 31);
+		Random rnd = new Random(42);
+
+		for (int id = 0; id < 5000; id++) {
+			String word = words.get(rnd.nextInt(words.size()));
+
+			table.add(id, word);
+			expected.put(word, id);
+
+			if (id % 700 == 0) {
+				assertEquals(entries(table.iterator()), new ArrayList<Object>(expected.entrySet()));
+
+				String from = words.get(rnd.nextInt(words.size()));
+				assertEquals(entries(table.iterator(from)), new ArrayList<Object>(expected
+						.tailMap(from).entrySet()));
+			}
+		}
+
+		assertEquals(entries(table.iterator()), new ArrayList<Object>(expected.entrySet()));
+	}
+
+	/**
+	 * Tests that the iterators see the mappings at the time they were created.
+	 */
+	public void testIterator02() {
+		StringTable table = new StringTable();
+		table.add(1, "a");
+		table.add(2, "b");
+		table.add(3, "a");
+
+		Iterator<Entry<String, Integer>> it = table.iterator();
+
+		table.add(4, "b");
+		table.add(5, "c");
+
+		assertEquals(entries(it).toString(), "[a=3, b=2]");
+		assertEquals(entries(table.iterator()).toString(), "[a=3, b=4, c=5]");
+
+		// Also after a merge
+		it = table.iterator();
+
+		for (int i = 0; i < 2000; i++) {
+			table.add(10 + i, (i % 2 == 0) ? "a" : "z" + i);
+		}
+
+		assertEquals(entries(it).toString(), "[a=3, b=4, c=5]");
+		assertEquals(table.iterator().next().toString(), "a=2008");
+	}
+
+	/**
+	 * Tests that the appended records are sorted once, before the adds and
+	 * the iterators, in the order of the mappings.
+	 */
+	public void testAppend01() {
+		StringTable table = new StringTable();
+		TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+		List<String> words = TestUtils.randomWords(1000, 31);
+		Random rnd = new Random(42);
+
+		for (int id = 0; id < 5000; id++) {
+			String word = words.get(rnd.nextInt(words.size()));
+
+			if (id % 1500 < 1000) {
+				table.append(id, word);
+			} else {
+				table.add(id, word);
+			}
+
+			expected.put(word, id);
+		}
+
+		assertEquals(entries(table.iterator()), new ArrayList<Object>(expected.entrySet()));
+
+		table.append(5000, "A");
+		table.add(5001, "A");
+		table.append(5002, "B");
+		table.sortAppended();
+
+		assertEquals(table.getId("A"), 5001);
+		assertEquals(entries(table.iterator("A")).subList(0, 2).toString(), "[A=5001, B=5002]");
+	}
+
+	private static List<Object> entries(Iterator<Entry<String, Integer>> it) {
+		List<Object> ret = new ArrayList<Object>();
+
+		while (it.hasNext()) {
+			ret.add(it.next());
+		}
+
+		return ret;
+	}
+}
@@ -16,6 +16,37 @@ import java.util.Arrays;
 @Test(groups = "correctness")
 public class ArraysTest {
 
+    /**
+     * Tests that the {@link org.ogreg.util.Arrays#gallop(int[], int, int, int)} function works as expected;
+     */
+    public void testGallop() {
+        int[] src = new int[] { 1, 3, 5, 7, 9, 11, 13, 15, 17 };
+
+        assertEquals(org.ogreg.util.Arrays.gallop(src, 0, src.length, 0), 0);
+        assertEquals(org.ogreg.util.Arrays.gallop(src, 0, src.length, 1), 0);
+        assertEquals(org.ogreg.util.Arrays.gallop(src, 0, src.length, 2), 1);
+        assertEquals(org.ogreg.util.Arrays.gallop(src, 0, src.length, 13), 6);
+        assertEquals(org.ogreg.util.Arrays.gallop(src, 0, src.length, 14), 7);
+        assertEquals(org.ogreg.util.Arrays.gallop(src, 0, src.length, 17), 8);
+        assertEquals(org.ogreg.util.Arrays.gallop(src, 0, src.length, 18), 9);
+        assertEquals(org.ogreg.util.Arrays.gallop(src, 4, src.length, 2), 4);
+        assertEquals(org.ogreg.util.Arrays.gallop(src, 2, 5, 12), 5);
+
+        // Exhaustive check against a linear search
+        for (int from = 0; from <= src.length; from++) {
+
+            for (int key = 0; key < 20; key++) {
+                int expected = from;
+
+                while ((expected < src.length) && (src[expected] < key)) {
+                    expected++;
+                }
+
+                assertEquals(org.ogreg.util.Arrays.gallop(src, from, src.length, key), expected);
+            }
+        }
+    }
+
     /**
      * Tests that the {@link org.ogreg.util.Arrays#insert(int[], int, int, int)} function works as expected;
      */
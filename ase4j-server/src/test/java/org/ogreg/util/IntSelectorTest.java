@@ -1,6 +1,7 @@
 package org.ogreg.util;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
 
 import java.util.Arrays;
 import java.util.Random;
@@ -62,6 +63,46 @@ public class IntSelectorTest {
 		assertEquals(Arrays.toString(h.vals), "[1.0, 3.0, 2.0, 0.0, 0.0]");
 	}
 
+	/**
+	 * Tests sorting the selected elements.
+	 */
+	public void testSort() {
+		int[] insert = new int[1000];
+
+		for (int i = 0; i < insert.length; i++) {
+			insert[i] = i;
+		}
+
+		shuffle(insert);
+
+		IntFloatSelector h = new IntFloatSelector(5);
+
+		for (int i = 0; i < insert.length; i++) {
+			h.add(insert[i], insert[i]);
+		}
+
+		h.sort();
+
+		assertEquals(Arrays.toString(h.vals), "[999.0, 998.0, 997.0, 996.0, 995.0]");
+		assertEquals(Arrays.toString(h.keys), "[999, 998, 997, 996, 995]");
+
+		// Not full selector
+		h = new IntFloatSelector(5);
+		h.add(1, 1);
+		h.add(2, 3);
+		h.add(3, 2);
+		h.sort();
+
+		assertEquals(h.size(), 3);
+		assertEquals(Arrays.toString(h.vals), "[3.0, 2.0, 1.0, 0.0, 0.0]");
+
+		try {
+			h.add(4, 4);
+			fail("Expected IllegalStateException");
+		} catch (IllegalStateException e) {
+		}
+	}
+
 	/**
 	 * Tests some coverage cases.
 	 */
@@ -0,0 +1,79 @@
+package org.ogreg.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+/**
+ * Benchmarks for similar word searches.
+ * 
+ * @author Gergely Kiss
+ */
+@Test(groups = "performance")
+public class LevenshteinAutomatonBenchmark {
+	int WORDS = 2000000;
+	int QUERIES = 1000;
+
+	/**
+	 * Tests the speed of similar word searches in a trie of 2M random words,
+	 * of length 5-12.
+	 */
+	public void testTrie01() {
+		Random r = new Random(0);
+		List<String> words = randomWords(r, WORDS, 5, 12);
+		Trie<Integer> trie = new Trie<Integer>();
+
+		for (int i = 0; i < words.size(); i++) {
+			trie.set(words.get(i), i);
+		}
+
+		// Words with a typo
+		String[] typos = new String[QUERIES];
+
+		for (int i = 0; i < QUERIES; i++) {
+			StringBuilder word = new StringBuilder(words.get(r.nextInt(WORDS)));
+			word.setCharAt(r.nextInt(word.length()), (char) (r.nextInt(26) + 'a'));
+			typos[i] = word.toString();
+		}
+
+		for (int run = 0; run < 3; run++) {
+
+			for (int maxEdits = 1; maxEdits <= 2; maxEdits++) {
+				long before = System.nanoTime();
+				long cnt = 0;
+
+				for (String typo : typos) {
+					cnt += trie.getSimilar(typo, maxEdits, Integer.MAX_VALUE).size();
+				}
+
+				long time = (System.nanoTime() - before) / QUERIES;
+
+				System.err.printf(
+						"Trie of %d words, %d searches of %d edits (%d matches) in: %d us/search\n",
+						WORDS, QUERIES, maxEdits, cnt, time / 1000);
+			}
+		}
+	}
+
+	private static List<String> randomWords(Random r, int count, int minLength, int maxLength) {
+		StringBuilder sb = new StringBuilder();
+		Set<String> ret = new HashSet<String>();
+
+		while (ret.size() < count) {
+			int len = r.nextInt(maxLength - minLength + 1) + minLength;
+
+			for (int j = 0; j < len; j++) {
+				sb.append((char) (r.nextInt(26) + 'a'));
+			}
+
+			ret.add(sb.toString());
+			sb.setLength(0);
+		}
+
+		return new ArrayList<String>(ret);
+	}
+}
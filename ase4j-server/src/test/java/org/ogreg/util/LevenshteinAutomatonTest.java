@@ -0,0 +1,110 @@
+package org.ogreg.util;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+
+import org.ogreg.test.TestUtils;
+import org.testng.annotations.Test;
+
+/**
+ * Levenshtein automaton tests.
+ * 
+ * @author Gergely Kiss
+ */
+@Test(groups = "correctness")
+public class LevenshteinAutomatonTest {
+
+	/**
+	 * Tests edit distance calculations.
+	 */
+	public void testDistance01() {
+		LevenshteinAutomaton a = new LevenshteinAutomaton("house", 2);
+
+		assertEquals(a.distance("house"), 0);
+		assertEquals(a.distance("hose"), 1);
+		assertEquals(a.distance("houses"), 1);
+		assertEquals(a.distance("mouse"), 1);
+		assertEquals(a.distance("horse"), 1);
+		assertEquals(a.distance("hsoue"), 2);
+		assertEquals(a.distance("ho"), -1);
+		assertEquals(a.distance("housing"), -1);
+		assertEquals(a.distance(""), -1);
+
+		assertEquals(new LevenshteinAutomaton("", 1).distance("a"), 1);
+		assertEquals(new LevenshteinAutomaton("a", 0).distance("b"), -1);
+
+		// Random words against the matrix calculation
+		List<String> words = TestUtils.randomWords(200, 6);
+
+		for (int i = 1; i < words.size(); i++) {
+			String a1 = words.get(i - 1);
+			String a2 = words.get(i);
+			int expected = distance(a1, a2);
+
+			assertEquals(new LevenshteinAutomaton(a1, 3).distance(a2), (expected > 3) ? -1
+					: expected);
+		}
+	}
+
+	/**
+	 * Tests similar word searches in tries.
+	 */
+	public void testTrie01() {
+		Trie<Integer> t = new Trie<Integer>();
+		List<String> words = TestUtils.randomWords(2000, 8);
+
+		for (int i = 0; i < words.size(); i++) {
+			t.set(words.get(i), i);
+		}
+
+		for (String word : words.subList(0, 50)) {
+
+			for (int maxEdits = 0; maxEdits <= 2; maxEdits++) {
+				Map<Integer, Integer> similar = t.getSimilar(word, maxEdits, Integer.MAX_VALUE);
+				int cnt = 0;
+
+				for (int i = 0; i < words.size(); i++) {
+					int expected = distance(word, words.get(i));
+
+					if (expected <= maxEdits) {
+						assertEquals(similar.get(i), Integer.valueOf(expected));
+						cnt++;
+					}
+				}
+
+				assertEquals(similar.size(), cnt);
+			}
+		}
+
+		// Case insensitive, limited
+		t.set("House", 3000);
+		assertEquals(t.getSimilar("HOUSE", 0, 10).get(3000), Integer.valueOf(0));
+		assertEquals(t.getSimilar("", 31, 10).size(), 10);
+	}
+
+	// The classic matrix calculation of the edit distance
+	private static int distance(String a, String b) {
+		int[][] d = new int[a.length() + 1][b.length() + 1];
+
+		for (int i = 0; i <= a.length(); i++) {
+			d[i][0] = i;
+		}
+
+		for (int j = 0; j <= b.length(); j++) {
+			d[0][j] = j;
+		}
+
+		for (int i = 1; i <= a.length(); i++) {
+
+			for (int j = 1; j <= b.length(); j++) {
+				int cost = (a.charAt(i - 1) == b.charAt(j - 1)) ? 0 : 1;
+				d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1), d[i - 1][j - 1]
+						+ cost);
+			}
+		}
+
+		return d[a.length()][b.length()];
+	}
+}
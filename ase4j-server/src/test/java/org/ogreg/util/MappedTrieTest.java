@@ -0,0 +1,183 @@
+package org.ogreg.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.ogreg.test.FileTestSupport;
+import org.ogreg.test.TestUtils;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link MappedTrie}.
+ * 
+ * @author Gergely Kiss
+ */
+@Test(groups = "correctness")
+public class MappedTrieTest {
+
+	/**
+	 * Tests that the mapped words are found, like in the heap trie.
+	 */
+	public void testGet01() throws Exception {
+		Trie<Integer> t = new Trie<Integer>();
+		List<String> words = TestUtils.randomWords(5000, 31);
+
+		for (int i = 0; i < words.size(); i++) {
+			t.set(words.get(i), i);
+		}
+
+		File file = new File(FileTestSupport.createTempDir("mtrie"), "test.trie");
+		MappedTrie.write(new MappedTrie(t), file);
+
+		assertTrue(MappedTrie.isMappedTrie(file));
+
+		MappedTrie mt = MappedTrie.open(file);
+
+		for (String word : words) {
+			assertEquals(mt.get(word), t.get(word));
+		}
+
+		assertNull(mt.get(words.get(0) + "x"));
+		assertNull(mt.get(""));
+
+		for (String prefix : new String[] { "", "a", "ab", "abc", "x", words.get(1) }) {
+			assertEquals(new ArrayList<Object>(mt.getEntries(prefix, null, 100).entrySet()),
+					new ArrayList<Object>(t.getEntries(prefix, null, 100).entrySet()));
+		}
+
+		Pattern pattern = Pattern.compile("a.*b");
+		assertEquals(mt.getEntries("a", pattern, 20), t.getEntries("a", pattern, 20));
+
+		for (String word : words.subList(0, 20)) {
+			assertEquals(new HashMap<Integer, Integer>(mt.getSimilar(word, 1, 100)),
+					new HashMap<Integer, Integer>(t.getSimilar(word, 1, 100)));
+		}
+
+		mt.close();
+	}
+
+	/**
+	 * Tests that the delta trie overrides the mapped words.
+	 */
+	public void testDelta01() throws Exception {
+		Trie<Integer> t = new Trie<Integer>();
+		String[] words = { "house", "housing", "hose", "horse", "ho" };
+
+		for (int i = 0; i < words.length; i++) {
+			t.set(words[i], i);
+		}
+
+		File file = new File(FileTestSupport.createTempDir("mtrie"), "test.trie");
+		MappedTrie.write(new MappedTrie(t), file);
+
+		MappedTrie mt = MappedTrie.open(file);
+		TrieDictionary dict = mt.getDictionary();
+		mt.set(dict.encode("hours"), 10);
+		mt.set(dict.encode("hose"), 12);
+		mt.set(dict.encode("h"), 13);
+
+		assertEquals(mt.get("house"), Integer.valueOf(0));
+		assertEquals(mt.get("hours"), Integer.valueOf(10));
+		assertEquals(mt.get("hose"), Integer.valueOf(12));
+
+		// The merged entries are in dictionary order
+		t.set("hours", 10);
+		t.set("hose", 12);
+		t.set("h", 13);
+		assertEquals(new ArrayList<Object>(mt.getEntries("", null, 10).entrySet()),
+				new ArrayList<Object>(t.getEntries("", null, 10).entrySet()));
+		assertEquals(mt.getEntries("hos", null, 10).get("hose"), Integer.valueOf(12));
+		assertEquals(mt.getEntries("", null, 3).size(), 3);
+
+		// The overridden value is not similar
+		assertFalse(mt.getSimilar("hose", 0, 10).containsKey(2));
+		assertEquals(mt.getSimilar("hose", 0, 10).get(12), Integer.valueOf(0));
+
+		File file2 = new File(file.getParentFile(), "test2.trie");
+		MappedTrie.write(mt, file2);
+		mt.close();
+
+		mt = MappedTrie.open(file2);
+		assertEquals(mt.get("hose"), Integer.valueOf(12));
+		assertEquals(mt.get("housing"), Integer.valueOf(1));
+		assertEquals(mt.get("h"), Integer.valueOf(13));
+		assertEquals(mt.getEntries("", null, 10).size(), 7);
+		mt.close();
+	}
+
+	/**
+	 * Tests the writing of an empty trie.
+	 */
+	public void testEmpty01() throws Exception {
+		File file = new File(FileTestSupport.createTempDir("mtrie"), "test.trie");
+		MappedTrie.write(new MappedTrie(new Trie<Integer>()), file);
+
+		MappedTrie mt = MappedTrie.open(file);
+		assertNull(mt.get("a"));
+		assertEquals(mt.getEntries("", null, 10).size(), 0);
+		assertEquals(mt.getSimilar("a", 1, 10).size(), 0);
+		mt.close();
+	}
+
+	/**
+	 * Tests that the incompletely written files are detected.
+	 */
+	public void testComplete01() throws Exception {
+		File dir = FileTestSupport.createTempDir("mtrie");
+		Trie<Integer> t = new Trie<Integer>();
+
+		for (String word : TestUtils.randomWords(100, 31)) {
+			t.set(word, 1);
+		}
+
+		File empty = new File(dir, "empty.trie");
+		MappedTrie.write(new MappedTrie(new Trie<Integer>()), empty);
+		assertTrue(MappedTrie.isComplete(empty));
+
+		File file = new File(dir, "test.trie");
+		MappedTrie.write(new MappedTrie(t), file);
+		assertTrue(MappedTrie.isComplete(file));
+
+		// The header (after the magic bytes and the same dictionary) is
+		// written last, so it is zeroed until the nodes are written
+		long header = empty.length() - 12;
+		long length = file.length();
+
+		for (File f : new File[] { empty, file }) {
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+
+			try {
+				raf.seek(header);
+				raf.write(new byte[12]);
+			} finally {
+				raf.close();
+			}
+
+			assertFalse(MappedTrie.isComplete(f));
+		}
+
+		// The cut short files
+		MappedTrie.write(new MappedTrie(t), file);
+
+		for (long l = length - 1; l >= 0; l--) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+			try {
+				raf.setLength(l);
+			} finally {
+				raf.close();
+			}
+
+			assertFalse(MappedTrie.isComplete(file), "Length: " + l);
+		}
+	}
+}
@@ -2,11 +2,16 @@ package org.ogreg.util;
 
 import org.ogreg.test.Benchmark;
 import org.ogreg.test.Benchmark.Result;
+import org.ogreg.test.FileTestSupport;
 import org.ogreg.test.TestUtils;
+import org.ogreg.util.TrieSerializer.TrieSerializerListener;
 import org.ogreg.util.btree.BTree;
 
 import org.testng.annotations.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
 
 import java.util.HashMap;
@@ -23,6 +28,9 @@ public class TrieBenchmark {
 	int ITERATIONS = 500000;
 	List<String> words = TestUtils.randomWords(ITERATIONS, 31);
 
+	/** The size of the dictionary of the footprint benchmark. */
+	int DICTIONARY_SIZE = Integer.getInteger("trie.words", 10000000);
+
 	/**
 	 * Tests the speed of inserts and searches of random words in a hash map.
 	 */
@@ -140,6 +148,126 @@ public class TrieBenchmark {
 		}
 	}
 
+	/**
+	 * Tests the heap bytes per key and the lookup latency of tries built from a
+	 * big dictionary (set the <code>trie.words</code> system property to
+	 * change its size).
+	 */
+	public void testFootprint() throws IOException {
+		List<String> dictionary = TestUtils.randomWords(DICTIONARY_SIZE, 31);
+
+		footprintOfTrie(dictionary);
+		footprintOfIntTrie(dictionary);
+		footprintOfMappedTrie(dictionary);
+	}
+
+	private void footprintOfTrie(List<String> dictionary) {
+		int size = dictionary.size();
+
+		Benchmark.start();
+		Trie<Integer> trie = new Trie<Integer>();
+
+		for (int i = 0; i < size; i++) {
+			trie.set(dictionary.get(i), i);
+		}
+
+		long memory = Benchmark.stop().memory();
+		long start = System.nanoTime();
+
+		for (String word : dictionary) {
+			trie.get(word);
+		}
+
+		long time = System.nanoTime() - start;
+
+		System.err.printf("Trie %d words: %d bytes/key, %d ns/get\n", size, memory / size, time
+				/ size);
+	}
+
+	private void footprintOfIntTrie(List<String> dictionary) {
+		int size = dictionary.size();
+
+		Benchmark.start();
+		IntTrie trie = new IntTrie();
+
+		for (int i = 0; i < size; i++) {
+			trie.set(dictionary.get(i), i);
+		}
+
+		long memory = Benchmark.stop().memory();
+		long start = System.nanoTime();
+
+		for (String word : dictionary) {
+			trie.get(word);
+		}
+
+		long time = System.nanoTime() - start;
+
+		System.err.printf("IntTrie %d words: %d bytes/key, %d ns/get\n", size, memory / size,
+				time / size);
+	}
+
+	private void footprintOfMappedTrie(List<String> dictionary) throws IOException {
+		int size = dictionary.size();
+		File dir = FileTestSupport.createTempDir("trie");
+		File mapped = new File(dir, "test.trie");
+		File serialized = new File(dir, "test.ser");
+
+		{
+			Trie<Integer> trie = new Trie<Integer>();
+
+			for (int i = 0; i < size; i++) {
+				trie.set(dictionary.get(i), i);
+			}
+
+			MappedTrie.write(new MappedTrie(trie), mapped);
+
+			RandomAccessFile raf = new RandomAccessFile(serialized, "rw");
+
+			try {
+				new TrieSerializer<Integer>(Integer.class).serialize(trie, raf.getChannel());
+			} finally {
+				raf.close();
+			}
+		}
+
+		{
+			Benchmark.start();
+			RandomAccessFile raf = new RandomAccessFile(serialized, "r");
+
+			try {
+				new TrieSerializer<Integer>(Integer.class).deserialize(raf.getChannel(),
+						new TrieSerializerListener<Integer>() {
+							@Override
+							public void onEntryRead(byte[] key, Integer value) {
+							}
+						});
+			} finally {
+				raf.close();
+			}
+
+			System.err.printf("TrieSerializer %d words: %d ms to load\n", size, Benchmark.stop()
+					.time(TimeUnit.MILLISECONDS));
+		}
+
+		long start = System.nanoTime();
+		MappedTrie trie = MappedTrie.open(mapped);
+		long open = System.nanoTime() - start;
+
+		start = System.nanoTime();
+
+		for (String word : dictionary) {
+			trie.get(word);
+		}
+
+		long time = System.nanoTime() - start;
+
+		System.err.printf("MappedTrie %d words: %d ms to open, %d bytes/key mapped, %d ns/get\n",
+				size, open / 1000000, mapped.length() / size, time / size);
+
+		trie.close();
+	}
+
 	/**
 	 * Tests the performance of the insert operation.
 	 */
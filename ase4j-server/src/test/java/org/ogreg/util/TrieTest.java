@@ -1,10 +1,16 @@
 package org.ogreg.util;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 import org.ogreg.test.TestUtils;
 import org.testng.annotations.Test;
@@ -87,6 +93,82 @@ public class TrieTest {
 		t.root.toString();
 	}
 
+	/**
+	 * Tests prefix and pattern enumerations.
+	 */
+	public void testGetEntries01() {
+		Trie<Integer> t = new Trie<Integer>();
+		String[] words = { "house", "housing", "hose", "horse", "ho" };
+
+		for (int i = 0; i < words.length; i++) {
+			t.set(words[i], i);
+		}
+
+		assertEquals(t.getEntries("hous", null, 10).keySet(),
+				new HashSet<String>(Arrays.asList("house", "housing")));
+		assertEquals(t.getEntries("ho", null, 10).size(), 5);
+		assertEquals(t.getEntries("", null, 10).size(), 5);
+		assertEquals(t.getEntries("ho", null, 3).size(), 3);
+		assertEquals(t.getEntries("hou", Pattern.compile("ho.se"), 10).keySet(),
+				new HashSet<String>(Arrays.asList("house")));
+		assertEquals(t.getEntries("ho", Pattern.compile("ho.se"), 10).keySet(),
+				new HashSet<String>(Arrays.asList("house", "horse")));
+		assertEquals(t.getEntries("housex", null, 10).size(), 0);
+		assertEquals(t.getEntries("x", null, 10).size(), 0);
+		assertEquals(t.getEntries("housing", null, 10).get("housing"), Integer.valueOf(1));
+	}
+
+	/**
+	 * Tests that the words are found while the trie is being modified.
+	 */
+	public void testConcurrent01() throws Exception {
+		final Trie<Integer> t = new Trie<Integer>();
+		final List<String> words = TestUtils.randomWords(20000, 31);
+		final int half = words.size() / 2;
+
+		for (int i = 0; i < half; i++) {
+			t.set(words.get(i), i);
+		}
+
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicInteger misses = new AtomicInteger();
+
+		Thread[] readers = new Thread[3];
+		for (int r = 0; r < readers.length; r++) {
+			readers[r] = new Thread() {
+				@Override
+				public void run() {
+
+					while (running.get()) {
+
+						for (int i = 0; i < half; i++) {
+
+							if (t.get(words.get(i)) == null) {
+								misses.incrementAndGet();
+							}
+						}
+					}
+				}
+			};
+			readers[r].start();
+		}
+
+		for (int i = half; i < words.size(); i++) {
+			t.set(words.get(i), i);
+		}
+
+		running.set(false);
+		for (Thread reader : readers) {
+			reader.join();
+		}
+
+		assertEquals(misses.get(), 0);
+
+		for (String word : words) {
+			assertNotNull(t.get(word));
+		}
+	}
+
 	/**
 	 * Just some coverage tests.
 	 */
@@ -0,0 +1,173 @@
+package org.ogreg.util.btree;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.ogreg.test.TestUtils;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link BLinkTree}.
+ * 
+ * @author Gergely Kiss
+ */
+@Test(groups = "correctness")
+public class BLinkTreeTest {
+
+	/**
+	 * Tests inserts and updates with semi-random data.
+	 */
+	public void testInsert01() {
+		BLinkTree<Integer> bt = new BLinkTree<Integer>(4);
+		List<String> words = TestUtils.randomWords(5000, 31);
+
+		for (int i = 0; i < words.size(); i++) {
+			bt.set(words.get(i), i);
+		}
+
+		assertTrue(bt.height() > 3);
+
+		for (int i = 0; i < words.size(); i++) {
+			assertEquals(bt.get(words.get(i)), Integer.valueOf(i));
+			assertEquals(bt.get(words.get(i).getBytes()), Integer.valueOf(i));
+		}
+
+		assertEquals(bt.set(words.get(0), -1), Integer.valueOf(0));
+		assertEquals(bt.get(words.get(0)), Integer.valueOf(-1));
+		assertNull(bt.get(words.get(0) + "á"));
+		assertNull(bt.get(""));
+	}
+
+	/**
+	 * Tests that the String keys are compared by their UTF-8 encoding.
+	 */
+	public void testInsert02() {
+		BLinkTree<Integer> bt = new BLinkTree<Integer>(3);
+		String[] words = { "a", "á", "ab", "z", "€", "𝄞", "ﬁ", "", "b" };
+
+		for (int i = 0; i < words.length; i++) {
+			bt.set(words[i], i);
+		}
+
+		for (int i = 0; i < words.length; i++) {
+			assertEquals(bt.get(words[i]), Integer.valueOf(i));
+		}
+
+		// The supplementary character is the last one in code point order
+		List<String> keys = new ArrayList<String>();
+		for (Entry<byte[], Integer> e : bt) {
+			keys.add(BLinkTree.decode(e.getKey()));
+		}
+
+		assertEquals(keys.toString(), "[, a, ab, b, z, á, €, ﬁ, 𝄞]");
+	}
+
+	/**
+	 * Tests iterating from a given key, with encoded long keys.
+	 */
+	public void testIterator01() {
+		BLinkTree<Long> bt = new BLinkTree<Long>(4);
+
+		for (long i = -100; i < 100; i += 2) {
+			bt.set(BLinkTree.encode(i), i);
+		}
+
+		for (long from = -101; from <= 100; from++) {
+			Iterator<Entry<byte[], Long>> it = bt.iterator(BLinkTree.encode(from));
+			long expected = Math.max(-100, from + (from & 1));
+
+			for (long i = expected; i < 100; i += 2) {
+				assertTrue(it.hasNext());
+
+				Entry<byte[], Long> e = it.next();
+				assertEquals(BLinkTree.decodeLong(e.getKey()), i);
+				assertEquals(e.getValue().longValue(), i);
+			}
+
+			assertFalse(it.hasNext());
+		}
+	}
+
+	/**
+	 * Tests concurrent inserts and lookups.
+	 */
+	public void testConcurrent01() throws Exception {
+		final BLinkTree<Integer> bt = new BLinkTree<Integer>(8);
+		final List<String> words = TestUtils.randomWords(20000, 31);
+		final int THREADS = 4;
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; t++) {
+			final int start = t;
+
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = start; i < words.size(); i += THREADS) {
+							bt.set(words.get(i), i);
+
+							// The set keys are visible immediately
+							if (bt.get(words.get(i)) == null) {
+								throw new AssertionError("Not found: " + words.get(i));
+							}
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			});
+		}
+
+		for (Thread thread : threads) {
+			thread.start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(errors, Collections.emptyList());
+
+		for (int i = 0; i < words.size(); i++) {
+			assertEquals(bt.get(words.get(i)), Integer.valueOf(i));
+		}
+
+		// The keys are iterated in order
+		List<String> expected = new ArrayList<String>(words);
+		Collections.sort(expected);
+		List<String> actual = new ArrayList<String>();
+		for (Entry<byte[], Integer> e : bt) {
+			actual.add(BLinkTree.decode(e.getKey()));
+		}
+
+		assertEquals(actual, expected);
+	}
+
+	/**
+	 * Tests some corner cases.
+	 */
+	public void testCoverage01() {
+
+		try {
+			new BLinkTree<String>(2);
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+		}
+
+		BLinkTree<String> bt = new BLinkTree<String>(3);
+		assertNull(bt.get("a"));
+		assertFalse(bt.iterator().hasNext());
+		assertEquals(bt.height(), 1);
+	}
+}
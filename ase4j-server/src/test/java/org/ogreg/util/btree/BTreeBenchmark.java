@@ -1,5 +1,6 @@
 package org.ogreg.util.btree;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -52,4 +53,129 @@ public class BTreeBenchmark {
 					r.time(TimeUnit.MILLISECONDS));
 		}
 	}
+
+	/**
+	 * Tests the performance of the insert operation of the {@link BLinkTree}.
+	 */
+	public void testInsert02() {
+		BLinkTree<Integer> bt;
+		int cnt = 0;
+
+		{
+			Benchmark.start();
+			bt = new BLinkTree<Integer>(64);
+
+			for (String word : words) {
+				bt.set(word, cnt++);
+			}
+
+			Result r = Benchmark.stop();
+
+			System.err.printf("BLinkTree %d puts in: %d ms using %d Kb mem\n", ITERATIONS,
+					r.time(TimeUnit.MILLISECONDS), r.memory() / 1024);
+		}
+
+		{
+			Benchmark.start();
+
+			for (String word : words) {
+				bt.get(word);
+			}
+
+			Result r = Benchmark.stop();
+
+			System.err.printf("BLinkTree %d gets in: %d ms\n", ITERATIONS,
+					r.time(TimeUnit.MILLISECONDS));
+		}
+	}
+
+	/**
+	 * Tests the performance of concurrent inserts and lookups: every thread
+	 * inserts its part of the words, and looks up all the words.
+	 */
+	public void testConcurrent01() throws Exception {
+
+		for (int threads = 1; threads <= 8; threads *= 2) {
+			final BTree<String, Integer> bt = new BTree<String, Integer>(512);
+
+			long time = run(threads, new Worker() {
+				@Override
+				void set(String key, int value) {
+					synchronized (bt) {
+						bt.set(key, value);
+					}
+				}
+
+				@Override
+				void get(String key) {
+					synchronized (bt) {
+						bt.get(key);
+					}
+				}
+			});
+
+			System.err.printf("Synchronized BTree %d threads: %d ms\n", threads, time);
+
+			final BLinkTree<Integer> blt = new BLinkTree<Integer>(64);
+
+			time = run(threads, new Worker() {
+				@Override
+				void set(String key, int value) {
+					blt.set(key, value);
+				}
+
+				@Override
+				void get(String key) {
+					blt.get(key);
+				}
+			});
+
+			System.err.printf("BLinkTree %d threads: %d ms\n", threads, time);
+		}
+	}
+
+	// Runs the worker on the threads, and returns the time in ms
+	private long run(final int threads, final Worker worker) throws InterruptedException {
+		List<Thread> list = new ArrayList<Thread>();
+
+		for (int t = 0; t < threads; t++) {
+			final int start = t;
+
+			list.add(new Thread() {
+				@Override
+				public void run() {
+
+					for (int i = start; i < ITERATIONS; i += threads) {
+						worker.set(words.get(i), i);
+					}
+
+					for (int i = start; i < ITERATIONS; i++) {
+						worker.get(words.get(i));
+					}
+
+					for (int i = 0; i < start; i++) {
+						worker.get(words.get(i));
+					}
+				}
+			});
+		}
+
+		long start = System.nanoTime();
+
+		for (Thread thread : list) {
+			thread.start();
+		}
+
+		for (Thread thread : list) {
+			thread.join();
+		}
+
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	private static abstract class Worker {
+		abstract void set(String key, int value);
+
+		abstract void get(String key);
+	}
 }
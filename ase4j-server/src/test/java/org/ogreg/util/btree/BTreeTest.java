@@ -3,11 +3,14 @@ package org.ogreg.util.btree;
 import org.ogreg.test.TestUtils;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
 import org.testng.annotations.Test;
 
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 
@@ -112,6 +115,29 @@ public class BTreeTest {
 		assertEquals(actual.toString(), expected.toString());
 	}
 
+	/**
+	 * Tests iterating from a given key.
+	 */
+	public void testIterator02() {
+		BTree<Integer, Integer> bt = new BTree<Integer, Integer>(4);
+
+		for (int i = 0; i < 100; i += 2) {
+			bt.set(i, i);
+		}
+
+		for (int from = -1; from <= 100; from++) {
+			Iterator<Entry<Integer, Integer>> it = bt.iterator(from);
+			int expected = Math.max(0, from + (from & 1));
+
+			for (int i = expected; i < 100; i += 2) {
+				assertTrue(it.hasNext());
+				assertEquals(it.next().getKey().intValue(), i);
+			}
+
+			assertFalse(it.hasNext());
+		}
+	}
+
 	/**
 	 * Tests some corner cases.
 	 */